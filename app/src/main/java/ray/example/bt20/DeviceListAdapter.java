@@ -0,0 +1,153 @@
+package ray.example.bt20;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import ray.library.android.bluetooth.DiscoveredDevice;
+
+/**
+ * 裝置清單，搜尋結果在任意thread呼叫{@link #post(DiscoveredDevice)}，
+ * 每個frame最多更新一次UI；已存在的裝置只重新bind可見的那一列
+ */
+public class DeviceListAdapter extends BaseAdapter {
+    private final LayoutInflater mLayoutInflater;
+    private final ListView mListView;
+    private final ArrayList<DiscoveredDevice> mDevices = new ArrayList<DiscoveredDevice>();
+    private final HashMap<String, Integer> mPositions = new HashMap<String, Integer>();
+    private final LinkedHashMap<String, DiscoveredDevice> mPending = new LinkedHashMap<String, DiscoveredDevice>();
+    private boolean mFramePosted;
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    public DeviceListAdapter(Context context, ListView listView) {
+        mLayoutInflater = LayoutInflater.from(context);
+        mListView = listView;
+    }
+
+    /**
+     * 可在任意thread呼叫，同一frame內同一裝置的多次更新只保留最後一次
+     *
+     * @param device
+     */
+    public void post(DiscoveredDevice device) {
+        synchronized (mPending) {
+            mPending.put(device.getAddress(), device);
+
+            if (mFramePosted) {
+                return;
+            }
+            mFramePosted = true;
+        }
+        mListView.postOnAnimation(mFrameRunnable);
+    }
+
+    @Override
+    public int getCount() {
+        return mDevices.size();
+    }
+
+    @Override
+    public DiscoveredDevice getItem(int position) {
+        return mDevices.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        // 只會append，position不會變動
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+
+        if (convertView == null) {
+            convertView = mLayoutInflater.inflate(R.layout.item_device, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.bind(mDevices.get(position));
+        return convertView;
+    }
+
+    private void applyPending() {
+        DiscoveredDevice[] devices;
+
+        synchronized (mPending) {
+            devices = mPending.values().toArray(new DiscoveredDevice[mPending.size()]);
+            mPending.clear();
+            mFramePosted = false;
+        }
+        boolean inserted = false;
+
+        for (DiscoveredDevice device : devices) {
+            Integer position = mPositions.get(device.getAddress());
+
+            if (position == null) {
+                mPositions.put(device.getAddress(), mDevices.size());
+                mDevices.add(device);
+                inserted = true;
+            } else {
+                mDevices.set(position, device);
+                if (!inserted) {
+                    rebindVisibleRow(position);
+                }
+            }
+        }
+
+        if (inserted) {
+            notifyDataSetChanged();
+        }
+    }
+
+    private void rebindVisibleRow(int position) {
+        int first = mListView.getFirstVisiblePosition();
+
+        if (position < first || position > mListView.getLastVisiblePosition()) {
+            return;
+        }
+        View row = mListView.getChildAt(position - first);
+
+        if (row != null && row.getTag() instanceof ViewHolder) {
+            ((ViewHolder) row.getTag()).bind(mDevices.get(position));
+        }
+    }
+
+    private static class ViewHolder {
+        private final TextView mName;
+        private final TextView mAddress;
+        private final TextView mRssi;
+
+        ViewHolder(View view) {
+            mName = (TextView) view.findViewById(R.id.name);
+            mAddress = (TextView) view.findViewById(R.id.address);
+            mRssi = (TextView) view.findViewById(R.id.rssi);
+        }
+
+        void bind(DiscoveredDevice device) {
+            mName.setText(String.valueOf(device.getName()));
+            mAddress.setText(device.getAddress());
+            mRssi.setText(device.getRssi() == DiscoveredDevice.RSSI_UNKNOWN ? "" : device.getRssi() + " dBm");
+        }
+    }
+}
@@ -6,34 +6,33 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
 import android.os.Bundle;
-import android.text.SpannableString;
-import android.text.Spanned;
-import android.text.TextPaint;
-import android.text.method.LinkMovementMethod;
-import android.text.style.ClickableSpan;
-import android.util.Log;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.IOException;
 
 import ray.library.android.bluetooth.BTManager;
-import ray.library.android.common.RayUtility;
+import ray.library.android.bluetooth.DiscoveredDevice;
+import ray.library.android.bluetooth.KnownDevice;
+import ray.library.android.bluetooth.PooledConnection;
+import ray.library.android.common.RayLog;
 import ray.library.android.supereasypermissions.PermissionsHelper;
 
 public class MainActivity extends Activity {
-    private static String TAG = RayUtility.getCurrentClassSimpleName();
+    private static String TAG = RayLog.tag(MainActivity.class);
     private BTManager mBTManager;
     private TextView mText;
+    private DeviceListAdapter mDeviceListAdapter;
     private Object mToastObject = new Object();
     private Toast mToast;
-    private BTManager.OnFoundBluetoothDeviceListener mOnFoundBluetoothDeviceListener = new BTManager.OnFoundBluetoothDeviceListener() {
+    private BTManager.OnDiscoveredDeviceListener mOnDiscoveredDeviceListener = new BTManager.OnDiscoveredDeviceListener() {
 
         @Override
-        public void onFoundBluetoothDevice(final BluetoothDevice device) {
-            doFoundBluetoothDevice(device);
-
+        public void onDiscoveredDevice(BluetoothDevice device, DiscoveredDevice discoveredDevice) {
+            mDeviceListAdapter.post(discoveredDevice);
         }
     };
     private BTManager.OnPairBluetoothDeviceListener mOnPairBluetoothDeviceListener = new BTManager.OnPairBluetoothDeviceListener() {
@@ -47,6 +46,12 @@ public class MainActivity extends Activity {
             showTextToast(device.getName() + ",解除配對");
         }
     };
+    private BTManager.OnPairFailedBluetoothDeviceListener mOnPairFailedBluetoothDeviceListener = new BTManager.OnPairFailedBluetoothDeviceListener() {
+        @Override
+        public void onPairFailedBluetoothDevice(BluetoothDevice device) {
+            showTextToast(device.getName() + ",配對失敗");
+        }
+    };
 
     private BTManager.OnBluetoothStateChangedListener mOnBluetoothStateChangedListener = new BTManager.OnBluetoothStateChangedListener() {
         @Override
@@ -61,25 +66,31 @@ public class MainActivity extends Activity {
         setContentView(R.layout.activity_main);
         mText = (TextView) findViewById(R.id.text);
         mText.setText("");
-        //長按會crash
-        mText.setOnLongClickListener(new View.OnLongClickListener() {
+
+        ListView listView = (ListView) findViewById(R.id.list);
+
+        mDeviceListAdapter = new DeviceListAdapter(this, listView);
+        listView.setAdapter(mDeviceListAdapter);
+        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public boolean onLongClick(View v) {
-                return true;
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                confirmPair(mBTManager.getRemoteDevice(mDeviceListAdapter.getItem(position).getAddress()));
             }
         });
-        // this step is mandated for the url and clickable styles.
-        mText.setMovementMethod(LinkMovementMethod.getInstance());
 
         init();
     }
 
     private void init() {
         mBTManager = BTManager.getInstance(MainActivity.this);
-        Log.d(TAG, "mBTManager,isSupported["+mBTManager.isSupported()+"],isEnable["+mBTManager.isEnable()+"]");
+        if (RayLog.isLoggable(RayLog.DEBUG)) {
+            RayLog.d(TAG, "mBTManager,isSupported[" + mBTManager.isSupported() + "],isEnable[" + mBTManager.isEnable() + "]");
+        }
 
-        mBTManager.setOnFoundBluetoothDeviceListener(mOnFoundBluetoothDeviceListener);
+        mBTManager.setOnDiscoveredDeviceListener(mOnDiscoveredDeviceListener);
+        loadDevices();
         mBTManager.setOnPairBluetoothDeviceListener(mOnPairBluetoothDeviceListener);
+        mBTManager.setOnPairFailedBluetoothDeviceListener(mOnPairFailedBluetoothDeviceListener);
 
         mBTManager.setOnBluetoothStateChangedListener(mOnBluetoothStateChangedListener);
 
@@ -95,7 +106,7 @@ public class MainActivity extends Activity {
                                 if (isGrant) {// 請求權限已被允許
                                     mBTManager.cancelDiscovery();
                                     mBTManager.startDiscovery();
-                                    appendText("startDiscovery\n");
+                                    showStatus("startDiscovery");
                                 } else {// 請求權限已被拒絕
                                     if (hasShowedRequestPermissionDialog) {// 有透過系統彈出提示請求權限
                                         Toast.makeText(getApplicationContext(), "權限[" + permissions + "]已被拒絕", Toast.LENGTH_SHORT).show();
@@ -115,7 +126,7 @@ public class MainActivity extends Activity {
             @Override
             public void onClick(View v) {
                 mBTManager.cancelDiscovery();
-                appendText("cancelDiscovery\n");
+                showStatus("cancelDiscovery");
             }
         });
 
@@ -126,57 +137,18 @@ public class MainActivity extends Activity {
                 try {
                     mBTManager.initSPPBluetoothServerSocket();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    RayLog.e(TAG, "initSPPBluetoothServerSocket failed", e);
                 }
             }
         });
 
     }
 
-    private void doFoundBluetoothDevice(BluetoothDevice device) {
-        String deviceName = device.getName();
-        String deviceAddress = device.getAddress();
-        String msg = "name[" + deviceName + "],address[" + deviceAddress + "]";
-
-        appendBluetoothAddress(msg + "\n", deviceAddress);
-
-    }
-
-    private void appendText(final CharSequence text) {
+    private void showStatus(final CharSequence text) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                mText.append(text);
-            }
-        });
-    }
-
-    private void appendBluetoothAddress(String text, final String address) {
-        final SpannableString spannableString = new SpannableString(text);
-
-        ClickableSpan clickableSpan = new ClickableSpan() {
-            @Override
-            public void onClick(View widget) {
-                confirmPair(mBTManager.getRemoteDevice(address));
-            }
-
-            @Override
-            public void updateDrawState(TextPaint ds) {
-                super.updateDrawState(ds);
-                ds.setColor(MainActivity.this.getResources().getColor(android.R.color.holo_red_dark));
-                ds.setUnderlineText(false);
-                ds.clearShadowLayer();
-            }
-        };
-        int beginIndex = text.lastIndexOf(address);
-        int endIndex = beginIndex + address.length();
-
-        spannableString.setSpan(clickableSpan, beginIndex, endIndex, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mText.append(spannableString);
+                mText.setText(text);
             }
         });
     }
@@ -204,11 +176,48 @@ public class MainActivity extends Activity {
             builder.create().show();
         } else {
             showTextToast("已經藍牙配對");
-            //TODO 建立SPP連線
-
+            connectSPP(device.getAddress());
         }
     }
 
+    /**
+     * 已知裝置不需搜尋即可點選；讀檔及查詢已配對裝置在背景thread上
+     */
+    private void loadDevices() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (KnownDevice device : mBTManager.getKnownDevices()) {
+                    mDeviceListAdapter.post(new DiscoveredDevice(device.getAddress(), device.getName(),
+                            device.getDeviceClass(), device.getLastRssi(), 0L, 0L, 0));
+                }
+                // 搜尋結果較新，在已知裝置之後更新
+                for (DiscoveredDevice device : mBTManager.getDiscoveredDevices()) {
+                    mDeviceListAdapter.post(device);
+                }
+            }
+        }, "load-devices").start();
+    }
+
+    private void connectSPP(final String address) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PooledConnection connection = mBTManager.connect(address, 10 * 1000L);
+
+                    showStatus("SPP已連線[" + address + "]");
+                    connection.release();
+                } catch (IOException e) {
+                    RayLog.e(TAG, "connect failed", e);
+                    // 連線失敗時輸出最近的藍牙事件
+                    RayLog.dumpEvents(TAG);
+                    showStatus("SPP連線失敗[" + address + "]");
+                }
+            }
+        }).start();
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -218,4 +227,18 @@ public class MainActivity extends Activity {
     public void onStop() {
         super.onStop();
     }
+
+    @Override
+    protected void onDestroy() {
+        // 沒有listener時BTManager會取消註冊對應的廣播
+        mBTManager.setOnDiscoveredDeviceListener(null);
+        mBTManager.setOnPairBluetoothDeviceListener(null);
+        mBTManager.setOnPairFailedBluetoothDeviceListener(null);
+        mBTManager.setOnBluetoothStateChangedListener(null);
+
+        if (isFinishing()) {
+            mBTManager.release();
+        }
+        super.onDestroy();
+    }
 }
@@ -0,0 +1,315 @@
+package ray.library.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Accept loop of a {@link TransportServerSocket}, accepted sockets are handed to
+ * {@link BTManager.OnAcceptBluetoothSocketListener} on a worker pool so a slow client
+ * never stalls the others.
+ * <p>
+ * A connection holds one of the maxConnections slots while the listener runs,
+ * the listener owns the socket and is responsible for closing it.
+ */
+public class AcceptEngine {
+    private final static String TAG = RayLog.tag(AcceptEngine.class);
+    public final static int DEFAULT_WORKER_COUNT = 4;
+    public final static int DEFAULT_MAX_CONNECTIONS = 8;
+    public final static long DEFAULT_MIN_BACKOFF_MILLIS = 50L;
+    public final static long DEFAULT_MAX_BACKOFF_MILLIS = 5000L;
+
+    /**
+     * 連線數已達上限
+     */
+    public final static int REJECT_MAX_CONNECTIONS = 1;
+    /**
+     * {@link OnAdmissionListener#onAdmission(TransportSocket)}回傳false
+     */
+    public final static int REJECT_ADMISSION = 2;
+    /**
+     * engine已關閉
+     */
+    public final static int REJECT_SHUTDOWN = 3;
+
+    private final TransportServerSocket mServerSocket;
+    private final BTManager.OnAcceptBluetoothSocketListener mOnAcceptBluetoothSocketListener;
+    private final Set<TransportSocket> mInFlight = Collections.newSetFromMap(new ConcurrentHashMap<TransportSocket, Boolean>());
+    private final AtomicInteger mActiveConnections = new AtomicInteger();
+    private final AtomicLong mAcceptedCount = new AtomicLong();
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mAcceptErrorCount = new AtomicLong();
+    private int mWorkerCount = DEFAULT_WORKER_COUNT;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long mMinBackoffMillis = DEFAULT_MIN_BACKOFF_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private OnAdmissionListener mOnAdmissionListener;
+    private ThreadPoolExecutor mExecutor;
+    private Thread mAcceptThread;
+    private volatile boolean mIsClose;
+
+    public AcceptEngine(TransportServerSocket serverSocket, BTManager.OnAcceptBluetoothSocketListener listener) {
+        if (serverSocket == null) {
+            throw new IllegalArgumentException("serverSocket == null");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener == null");
+        }
+        mServerSocket = serverSocket;
+        mOnAcceptBluetoothSocketListener = listener;
+    }
+
+    public synchronized void setWorkerCount(int workerCount) {
+        checkNotStarted();
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount <= 0");
+        }
+        mWorkerCount = workerCount;
+    }
+
+    public synchronized void setMaxConnections(int maxConnections) {
+        checkNotStarted();
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections <= 0");
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * accept發生IOException時，由minMillis開始每次加倍等待，最多maxMillis，成功accept後重置
+     *
+     * @param minMillis
+     * @param maxMillis
+     */
+    public synchronized void setBackoff(long minMillis, long maxMillis) {
+        checkNotStarted();
+        if (minMillis <= 0L || maxMillis < minMillis) {
+            throw new IllegalArgumentException("minMillis <= 0 || maxMillis < minMillis");
+        }
+        mMinBackoffMillis = minMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    public void setOnAdmissionListener(OnAdmissionListener listener) {
+        mOnAdmissionListener = listener;
+    }
+
+    public synchronized void start() {
+        checkNotStarted();
+        mExecutor = new ThreadPoolExecutor(mWorkerCount, mWorkerCount, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("AcceptEngine-worker-"));
+        mAcceptThread = new Thread(new AcceptLoop(), "AcceptEngine-accept");
+        mAcceptThread.start();
+    }
+
+    public boolean isClose() {
+        return mIsClose;
+    }
+
+    public int getActiveConnections() {
+        return mActiveConnections.get();
+    }
+
+    public long getAcceptedCount() {
+        return mAcceptedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    public long getAcceptErrorCount() {
+        return mAcceptErrorCount.get();
+    }
+
+    /**
+     * 停止accept，等待進行中的連線處理完畢，超過drainTimeoutMillis則強制關閉剩餘的socket
+     *
+     * @param drainTimeoutMillis
+     * @return true 所有連線皆在時限內處理完畢
+     */
+    public boolean shutdown(long drainTimeoutMillis) {
+        ThreadPoolExecutor executor;
+        Thread acceptThread;
+
+        synchronized (this) {
+            if (mIsClose) {
+                return mExecutor == null || mExecutor.isTerminated();
+            }
+            mIsClose = true;
+            executor = mExecutor;
+            acceptThread = mAcceptThread;
+        }
+        closeQuietly(mServerSocket);
+
+        if (executor == null) {
+            return true;
+        }
+        acceptThread.interrupt();
+        executor.shutdown();
+        boolean drained = false;
+
+        try {
+            drained = executor.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!drained) {
+            for (TransportSocket socket : mInFlight) {
+                closeQuietly(socket);
+            }
+            executor.shutdownNow();
+        }
+        return drained;
+    }
+
+    private synchronized void checkNotStarted() {
+        if (mExecutor != null || mIsClose) {
+            throw new IllegalStateException("AcceptEngine already started");
+        }
+    }
+
+    private void admit(TransportSocket socket) {
+        if (mIsClose) {
+            reject(socket, REJECT_SHUTDOWN);
+            return;
+        }
+        if (mActiveConnections.incrementAndGet() > mMaxConnections) {
+            mActiveConnections.decrementAndGet();
+            reject(socket, REJECT_MAX_CONNECTIONS);
+            return;
+        }
+        OnAdmissionListener admissionListener = mOnAdmissionListener;
+
+        if (admissionListener != null && !admissionListener.onAdmission(socket)) {
+            mActiveConnections.decrementAndGet();
+            reject(socket, REJECT_ADMISSION);
+            return;
+        }
+        mInFlight.add(socket);
+        mAcceptedCount.incrementAndGet();
+
+        try {
+            mExecutor.execute(new ConnectionTask(socket));
+        } catch (RuntimeException e) {
+            // executor已shutdown
+            mInFlight.remove(socket);
+            mActiveConnections.decrementAndGet();
+            mAcceptedCount.decrementAndGet();
+            reject(socket, REJECT_SHUTDOWN);
+        }
+    }
+
+    private void reject(TransportSocket socket, int reason) {
+        mRejectedCount.incrementAndGet();
+        closeQuietly(socket);
+        OnAdmissionListener admissionListener = mOnAdmissionListener;
+
+        if (admissionListener != null) {
+            admissionListener.onRejected(socket, reason);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close failed", e);
+        }
+    }
+
+    public static interface OnAdmissionListener {
+        /**
+         * 在accept thread上呼叫，需快速回傳
+         *
+         * @param socket
+         * @return false 拒絕此連線
+         */
+        boolean onAdmission(TransportSocket socket);
+
+        /**
+         * @param socket 已被關閉的socket
+         * @param reason REJECT_MAX_CONNECTIONS, REJECT_ADMISSION, REJECT_SHUTDOWN
+         */
+        void onRejected(TransportSocket socket, int reason);
+    }
+
+    private class AcceptLoop implements Runnable {
+
+        @Override
+        public void run() {
+            long backoffMillis = mMinBackoffMillis;
+
+            while (!mIsClose) {
+                TransportSocket socket;
+
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    if (mIsClose) {
+                        break;
+                    }
+                    mAcceptErrorCount.incrementAndGet();
+                    RayLog.w(TAG, "accept failed", e);
+                    try {
+                        Thread.sleep(backoffMillis);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    backoffMillis = Math.min(backoffMillis * 2L, mMaxBackoffMillis);
+                    continue;
+                }
+                backoffMillis = mMinBackoffMillis;
+                admit(socket);
+            }
+        }
+    }
+
+    private class ConnectionTask implements Runnable {
+        private final TransportSocket mSocket;
+
+        ConnectionTask(TransportSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mOnAcceptBluetoothSocketListener.onAcceptBluetoothSocket(mSocket);
+            } catch (RuntimeException e) {
+                RayLog.e(TAG, "OnAcceptBluetoothSocketListener failed", e);
+                closeQuietly(mSocket);
+            } finally {
+                mInFlight.remove(mSocket);
+                mActiveConnections.decrementAndGet();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, mPrefix + mCount.incrementAndGet());
+        }
+    }
+}
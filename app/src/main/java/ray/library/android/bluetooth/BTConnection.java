@@ -0,0 +1,643 @@
+package ray.library.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Framed connection with one reader and one writer thread, so UI, parser and sender threads
+ * never share a lock around the socket streams.
+ * <ul>
+ * <li>The reader decodes frames ({@link FrameEncoder} format) into a {@link SpscRingBuffer},
+ * consumed by one thread with {@link #poll()} / {@link #take(long)}. When the ring is full the
+ * reader stops reading, which pushes back on the peer.</li>
+ * <li>{@link #send(byte[])} from any thread appends to a lock-free queue drained by the writer.
+ * Queued bytes above the high water mark turn {@link #isWritable()} false until they drain
+ * below the low water mark, see {@link OnConnectionListener#onWritabilityChanged}. The writer
+ * coalesces consecutive frames into socket writes of at most writeBatchSize bytes through a
+ * {@link CoalescingOutputStream}, and flushes when the queue is empty.</li>
+ * <li>An I/O error on either thread, or EOF, closes the socket and wakes every waiting thread.</li>
+ * <li>Empty frames are link-level pings and never reach the consumer. A ping is echoed unless
+ * this side has its own ping outstanding, in which case it counts as the answer, see
+ * {@link KeepAliveManager}.</li>
+ * </ul>
+ */
+public class BTConnection implements Closeable {
+    private final static String TAG = RayLog.tag(BTConnection.class);
+    public final static int DEFAULT_INBOUND_CAPACITY = 64;
+    public final static int DEFAULT_LOW_WATER_MARK = 16 * 1024;
+    public final static int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+    public final static long DEFAULT_CLOSE_TIMEOUT_MILLIS = 2000L;
+    public final static int DEFAULT_WRITE_BATCH_SIZE = CoalescingOutputStream.DEFAULT_BATCH_SIZE;
+
+    private final TransportSocket mSocket;
+    private final BufferPool mBufferPool;
+    private final ConcurrentLinkedQueue<Outbound> mOutbound = new ConcurrentLinkedQueue<Outbound>();
+    private final AtomicLong mQueuedBytes = new AtomicLong();
+    private final AtomicBoolean mIsWritable = new AtomicBoolean(true);
+    private final AtomicBoolean mIsClose = new AtomicBoolean();
+    private final Object mWritableLock = new Object();
+    private final AtomicLong mFramesIn = new AtomicLong();
+    private final AtomicLong mFramesOut = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mInboundStallCount = new AtomicLong();
+    private final AtomicInteger mPingsOutstanding = new AtomicInteger();
+    private int mInboundCapacity = DEFAULT_INBOUND_CAPACITY;
+    private int mLowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private int mHighWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private int mMaxFrameLength = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+    private int mWriteBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private boolean mCrcEnabled;
+    private Histogram mLatencyHistogram;
+    private OnConnectionListener mOnConnectionListener;
+    private SpscRingBuffer<byte[]> mInbound;
+    private Thread mReaderThread;
+    private Thread mWriterThread;
+    private volatile Thread mReaderWaiter;
+    private volatile Thread mWriterWaiter;
+    private volatile Thread mConsumerWaiter;
+    private volatile Thread mDrainWaiter;
+    private volatile boolean mIsClosing;
+    private volatile IOException mCloseCause;
+    private volatile long mLastReceivedNanos = System.nanoTime();
+    private volatile CoalescingOutputStream mOut;
+
+    public BTConnection(TransportSocket socket) {
+        this(socket, BufferPool.getDefault());
+    }
+
+    public BTConnection(TransportSocket socket, BufferPool pool) {
+        if (socket == null) {
+            throw new IllegalArgumentException("socket == null");
+        }
+        mSocket = socket;
+        mBufferPool = pool;
+    }
+
+    /**
+     * @param capacity inbound ring可容納的frame數
+     */
+    public synchronized void setInboundCapacity(int capacity) {
+        checkNotStarted();
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mInboundCapacity = capacity;
+    }
+
+    /**
+     * @param low  排隊bytes降到low以下時恢復writable
+     * @param high 排隊bytes超過high時變為不可寫
+     */
+    public synchronized void setWaterMarks(int low, int high) {
+        checkNotStarted();
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("low < 0 || high < low");
+        }
+        mLowWaterMark = low;
+        mHighWaterMark = high;
+    }
+
+    public synchronized void setMaxFrameLength(int maxFrameLength) {
+        checkNotStarted();
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength <= 0");
+        }
+        mMaxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * writer將連續的frame合併後寫入socket，每次write最多batchSize bytes；
+     * 較大的frame直接寫出，queue清空時flush
+     *
+     * @param batchSize 通常為RFCOMM MTU
+     */
+    public synchronized void setWriteBatchSize(int batchSize) {
+        checkNotStarted();
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0");
+        }
+        mWriteBatchSize = batchSize;
+    }
+
+    /**
+     * 兩端需相同
+     */
+    public synchronized void setCrcEnabled(boolean crcEnabled) {
+        checkNotStarted();
+        mCrcEnabled = crcEnabled;
+    }
+
+    /**
+     * @param histogram ex : {@link BTMetrics#getFrameLatency()}，可為null
+     */
+    public synchronized void setLatencyHistogram(Histogram histogram) {
+        checkNotStarted();
+        mLatencyHistogram = histogram;
+    }
+
+    public void setOnConnectionListener(OnConnectionListener listener) {
+        mOnConnectionListener = listener;
+    }
+
+    public synchronized void start() throws IOException {
+        checkNotStarted();
+        final FrameDecoder decoder = new FrameDecoder(mBufferPool, mMaxFrameLength, mCrcEnabled,
+                new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer frame) {
+                        onInboundFrame(frame);
+                    }
+                });
+        final FrameEncoder encoder = new FrameEncoder(mBufferPool, mCrcEnabled);
+        final InputStream in = mSocket.getInputStream();
+        // 只依size及queue清空時的flush送出，不需要flush timer
+        final CoalescingOutputStream out = new CoalescingOutputStream(mSocket.getOutputStream(), mWriteBatchSize,
+                0L, null);
+
+        decoder.setLatencyHistogram(mLatencyHistogram);
+        mOut = out;
+        mInbound = new SpscRingBuffer<byte[]>(mInboundCapacity);
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    decoder.readFrom(in);
+                    shutdown(null);
+                } catch (IOException e) {
+                    shutdown(e);
+                }
+            }
+        }, "BTConnection-reader");
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop(encoder, out);
+                } catch (IOException e) {
+                    shutdown(e);
+                }
+            }
+        }, "BTConnection-writer");
+        mReaderThread.setDaemon(true);
+        mWriterThread.setDaemon(true);
+        mReaderThread.start();
+        mWriterThread.start();
+    }
+
+    public TransportSocket getSocket() {
+        return mSocket;
+    }
+
+    public String getRemoteAddress() {
+        return mSocket.getRemoteAddress();
+    }
+
+    public boolean isClose() {
+        return mIsClose.get();
+    }
+
+    /**
+     * @return null 正常關閉或EOF
+     */
+    public IOException getCloseCause() {
+        return mCloseCause;
+    }
+
+    public boolean isWritable() {
+        return mIsWritable.get();
+    }
+
+    /**
+     * 放入outbound queue後立即回傳，任何thread皆可呼叫；不會因backpressure而拒絕，
+     * 需要時以{@link #isWritable()}或{@link #awaitWritable(long)}節流
+     *
+     * @throws IOException 連線已關閉
+     */
+    public void send(byte[] b) throws IOException {
+        send(null, ByteBuffer.wrap(b));
+    }
+
+    /**
+     * head與body組成一個frame，送出前不可修改其內容；body可為MappedByteBuffer的slice。
+     * 空的frame保留給keepalive使用
+     *
+     * @param head 可為null
+     * @param body 可為null
+     * @throws IOException 連線已關閉
+     */
+    public void send(ByteBuffer head, ByteBuffer body) throws IOException {
+        int length = (head == null ? 0 : head.remaining()) + (body == null ? 0 : body.remaining());
+
+        if (length == 0 || length > mMaxFrameLength) {
+            throw new IllegalArgumentException("frame length[" + length + "] not in [1, " + mMaxFrameLength + "]");
+        }
+        if (mIsClosing || mIsClose.get()) {
+            throw closedException();
+        }
+        enqueue(new Outbound(head, body, length));
+    }
+
+    /**
+     * 送出空的frame，對方回應或送出任何frame都會更新{@link #getLastReceivedNanos()}
+     */
+    void ping() {
+        if (mIsClosing || mIsClose.get()) {
+            return;
+        }
+        mPingsOutstanding.incrementAndGet();
+        enqueue(new Outbound(null, null, 0));
+    }
+
+    /**
+     * 等待outbound queue降到maxQueuedBytes以下，writer每寫出一個frame就喚醒，不需輪詢；
+     * 同時只能有一個thread等待，ex : {@link OutboundScheduler}的writer
+     *
+     * @throws InterruptedIOException 被interrupt
+     * @throws IOException            連線已關閉
+     */
+    void awaitQueuedBytes(long maxQueuedBytes) throws IOException {
+        mDrainWaiter = Thread.currentThread();
+        try {
+            while (mQueuedBytes.get() > maxQueuedBytes) {
+                if (mIsClose.get()) {
+                    throw closedException();
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            mDrainWaiter = null;
+        }
+        if (mIsClose.get()) {
+            throw closedException();
+        }
+    }
+
+    /**
+     * 以cause關閉連線，不等待outbound queue送完，ex : keepalive判定斷線
+     */
+    void abort(IOException cause) {
+        shutdown(cause);
+    }
+
+    /**
+     * @return System.nanoTime() 最後收到frame(含ping)的時間，尚未收到時為建立的時間
+     */
+    long getLastReceivedNanos() {
+        return mLastReceivedNanos;
+    }
+
+    private void enqueue(Outbound outbound) {
+        int length = outbound.mLength;
+
+        mOutbound.offer(outbound);
+        if (mQueuedBytes.addAndGet(length) > mHighWaterMark && mIsWritable.compareAndSet(true, false)) {
+            notifyWritabilityChanged(false);
+        }
+        LockSupport.unpark(mWriterWaiter);
+    }
+
+    /**
+     * 等待直到writable
+     *
+     * @return false 逾時
+     * @throws IOException 連線已關閉
+     */
+    public boolean awaitWritable(long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        synchronized (mWritableLock) {
+            while (!mIsWritable.get()) {
+                if (mIsClose.get()) {
+                    throw closedException();
+                }
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0L) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mWritableLock, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        if (mIsClose.get()) {
+            throw closedException();
+        }
+        return true;
+    }
+
+    /**
+     * consumer thread，只能有一個consumer
+     *
+     * @return null 目前沒有frame
+     */
+    public byte[] poll() {
+        byte[] frame = mInbound.poll();
+
+        if (frame != null) {
+            LockSupport.unpark(mReaderWaiter);
+        }
+        return frame;
+    }
+
+    /**
+     * consumer thread，只能有一個consumer；連線關閉後仍會先取完已收到的frame
+     *
+     * @return null 逾時
+     * @throws IOException 連線已關閉且沒有剩餘frame
+     */
+    public byte[] take(long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while (true) {
+            byte[] frame = poll();
+
+            if (frame != null) {
+                return frame;
+            }
+            if (mIsClose.get()) {
+                frame = poll();
+                if (frame != null) {
+                    return frame;
+                }
+                throw closedException();
+            }
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0L) {
+                return null;
+            }
+            mConsumerWaiter = Thread.currentThread();
+            if (mInbound.isEmpty() && !mIsClose.get()) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            mConsumerWaiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * @return 尚未被consumer取走的frame數
+     */
+    public int getInboundSize() {
+        return mInbound == null ? 0 : mInbound.size();
+    }
+
+    public long getQueuedBytes() {
+        return mQueuedBytes.get();
+    }
+
+    public long getFramesIn() {
+        return mFramesIn.get();
+    }
+
+    public long getFramesOut() {
+        return mFramesOut.get();
+    }
+
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    /**
+     * @return 實際呼叫socket write的次數，少於{@link #getFramesOut()}表示frame已被合併
+     */
+    public long getWriteBatchCount() {
+        CoalescingOutputStream out = mOut;
+
+        return out == null ? 0L : out.getBatchCount();
+    }
+
+    /**
+     * @return 平均每次socket write的bytes(含frame header)
+     */
+    public double getAverageWriteBatchSize() {
+        CoalescingOutputStream out = mOut;
+
+        return out == null ? 0.0 : out.getAverageBatchSize();
+    }
+
+    /**
+     * @return inbound ring滿載使reader暫停的次數，過多表示consumer太慢
+     */
+    public long getInboundStallCount() {
+        return mInboundStallCount.get();
+    }
+
+    /**
+     * 不再接受send，等待已排隊的frame送出(最多{@link #DEFAULT_CLOSE_TIMEOUT_MILLIS})後關閉
+     */
+    @Override
+    public void close() {
+        close(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param drainTimeoutMillis 0 不等待，直接關閉
+     */
+    public void close(long drainTimeoutMillis) {
+        Thread writerThread;
+
+        synchronized (this) {
+            mIsClosing = true;
+            writerThread = mWriterThread;
+        }
+        if (writerThread != null && writerThread != Thread.currentThread() && drainTimeoutMillis > 0L) {
+            LockSupport.unpark(mWriterWaiter);
+            try {
+                writerThread.join(drainTimeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        shutdown(null);
+    }
+
+    private void onInboundFrame(ByteBuffer frame) {
+        mLastReceivedNanos = System.nanoTime();
+        if (!frame.hasRemaining()) {
+            onPing();
+            return;
+        }
+        byte[] copy = new byte[frame.remaining()];
+
+        frame.get(copy);
+        mFramesIn.incrementAndGet();
+        mBytesIn.addAndGet(copy.length);
+
+        if (!mInbound.offer(copy)) {
+            mInboundStallCount.incrementAndGet();
+            mReaderWaiter = Thread.currentThread();
+            while (!mInbound.offer(copy)) {
+                if (mIsClose.get()) {
+                    mReaderWaiter = null;
+                    return;
+                }
+                // 不再讀取socket，由RFCOMM flow control讓對方停止送出
+                LockSupport.park(this);
+            }
+            mReaderWaiter = null;
+        }
+        LockSupport.unpark(mConsumerWaiter);
+    }
+
+    private void onPing() {
+        while (true) {
+            int outstanding = mPingsOutstanding.get();
+
+            if (outstanding == 0) {
+                // 對方的ping，回應
+                if (!mIsClose.get()) {
+                    enqueue(new Outbound(null, null, 0));
+                }
+                return;
+            }
+            // 自己的ping的回應，或雙方同時ping；兩者都證明連線仍存在
+            if (mPingsOutstanding.compareAndSet(outstanding, outstanding - 1)) {
+                return;
+            }
+        }
+    }
+
+    private void writeLoop(FrameEncoder encoder, OutputStream out) throws IOException {
+        while (true) {
+            Outbound outbound = mOutbound.poll();
+
+            if (outbound == null) {
+                // queue已清空才flush，連續的frame合併為較少的write
+                out.flush();
+                if (mIsClose.get() || mIsClosing && mOutbound.isEmpty()) {
+                    return;
+                }
+                mWriterWaiter = Thread.currentThread();
+                if (mOutbound.isEmpty() && !mIsClosing && !mIsClose.get()) {
+                    LockSupport.park(this);
+                }
+                mWriterWaiter = null;
+                continue;
+            }
+            ByteBuffer buffer = mBufferPool.acquire(encoder.encodedLength(outbound.mLength));
+
+            try {
+                buffer.clear();
+                int length = encoder.encode(outbound.mHead, outbound.mBody, buffer);
+
+                out.write(buffer.array(), buffer.arrayOffset(), length);
+            } finally {
+                mBufferPool.release(buffer);
+            }
+            mFramesOut.incrementAndGet();
+            mBytesOut.addAndGet(outbound.mLength);
+            long queuedBytes = mQueuedBytes.addAndGet(-outbound.mLength);
+
+            LockSupport.unpark(mDrainWaiter);
+            if (queuedBytes <= mLowWaterMark && mIsWritable.compareAndSet(false, true)) {
+                synchronized (mWritableLock) {
+                    mWritableLock.notifyAll();
+                }
+                notifyWritabilityChanged(true);
+            }
+        }
+    }
+
+    private void shutdown(IOException cause) {
+        if (!mIsClose.compareAndSet(false, true)) {
+            return;
+        }
+        mCloseCause = cause;
+        if (cause != null) {
+            RayLog.w(TAG, "connection failed " + mSocket.getRemoteAddress(), cause);
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close socket failed", e);
+        }
+        LockSupport.unpark(mReaderWaiter);
+        LockSupport.unpark(mWriterWaiter);
+        LockSupport.unpark(mConsumerWaiter);
+        LockSupport.unpark(mDrainWaiter);
+        synchronized (mWritableLock) {
+            mWritableLock.notifyAll();
+        }
+        OnConnectionListener listener = mOnConnectionListener;
+
+        if (listener != null) {
+            listener.onClosed(this, cause);
+        }
+    }
+
+    private void notifyWritabilityChanged(boolean writable) {
+        OnConnectionListener listener = mOnConnectionListener;
+
+        if (listener != null) {
+            listener.onWritabilityChanged(this, writable);
+        }
+    }
+
+    private IOException closedException() {
+        IOException cause = mCloseCause;
+
+        return cause != null ? new IOException("connection closed", cause) : new EOFException("connection closed");
+    }
+
+    private void checkNotStarted() {
+        if (mReaderThread != null) {
+            throw new IllegalStateException("BTConnection already started");
+        }
+    }
+
+    public static interface OnConnectionListener {
+        /**
+         * 在send或writer thread上呼叫，需快速回傳
+         */
+        void onWritabilityChanged(BTConnection connection, boolean writable);
+
+        /**
+         * 只呼叫一次，在發生錯誤或呼叫close的thread上
+         *
+         * @param cause null 正常關閉或EOF
+         */
+        void onClosed(BTConnection connection, IOException cause);
+    }
+
+    private static class Outbound {
+        final ByteBuffer mHead;
+        final ByteBuffer mBody;
+        final int mLength;
+
+        Outbound(ByteBuffer head, ByteBuffer body, int length) {
+            mHead = head;
+            mBody = body;
+            mLength = length;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Multi-subscriber dispatch keyed by listener interface. Subscriber arrays are copy-on-write,
+ * posting only reads a volatile array and never takes a lock. Each subscriber chooses where
+ * it is called : on the posting thread, the main thread, the shared background thread
+ * or its own {@link Executor}.
+ */
+public class BTEventBus {
+    private final static String TAG = RayLog.tag(BTEventBus.class);
+    /**
+     * 在post的thread上直接呼叫(BroadcastReceiver為main thread)
+     */
+    public final static int THREAD_POSTING = 0;
+    public final static int THREAD_MAIN = 1;
+    /**
+     * 共用的背景thread，依序呼叫
+     */
+    public final static int THREAD_BACKGROUND = 2;
+
+    private final static Subscriber[] EMPTY = new Subscriber[0];
+
+    private final ConcurrentHashMap<Class<?>, Subscribers> mSubscribers = new ConcurrentHashMap<Class<?>, Subscribers>();
+    private final Executor mMainExecutor;
+    private final Executor mBackgroundExecutor;
+    private volatile OnSubscribersChangedListener mOnSubscribersChangedListener;
+
+    /**
+     * @param mainExecutor       THREAD_MAIN
+     * @param backgroundExecutor THREAD_BACKGROUND
+     */
+    public BTEventBus(Executor mainExecutor, Executor backgroundExecutor) {
+        mMainExecutor = mainExecutor;
+        mBackgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * @param listenerType  ex : BTManager.OnFoundBluetoothDeviceListener.class
+     * @param listener
+     * @param deliveryThread THREAD_POSTING, THREAD_MAIN, THREAD_BACKGROUND
+     */
+    public <T> void register(Class<T> listenerType, T listener, int deliveryThread) {
+        switch (deliveryThread) {
+            case THREAD_POSTING:
+                register(listenerType, listener, null);
+                break;
+            case THREAD_MAIN:
+                register(listenerType, listener, mMainExecutor);
+                break;
+            case THREAD_BACKGROUND:
+                register(listenerType, listener, mBackgroundExecutor);
+                break;
+            default:
+                throw new IllegalArgumentException("deliveryThread[" + deliveryThread + "]");
+        }
+    }
+
+    /**
+     * @param executor null 表示在post的thread上呼叫
+     */
+    public <T> void register(Class<T> listenerType, T listener, Executor executor) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener == null");
+        }
+        getSubscribers(listenerType).add(new Subscriber(listener, executor));
+        notifySubscribersChanged(listenerType);
+    }
+
+    public <T> void unregister(Class<T> listenerType, T listener) {
+        Subscribers subscribers = mSubscribers.get(listenerType);
+
+        if (subscribers != null && subscribers.remove(listener)) {
+            notifySubscribersChanged(listenerType);
+        }
+    }
+
+    /**
+     * 每次register / unregister後呼叫，ex : 依是否有subscriber註冊或取消BroadcastReceiver
+     *
+     * @param listener
+     */
+    public void setOnSubscribersChangedListener(OnSubscribersChangedListener listener) {
+        mOnSubscribersChangedListener = listener;
+    }
+
+    private void notifySubscribersChanged(Class<?> listenerType) {
+        OnSubscribersChangedListener listener = mOnSubscribersChangedListener;
+
+        if (listener != null) {
+            listener.onSubscribersChanged(listenerType);
+        }
+    }
+
+    public boolean hasSubscribers(Class<?> listenerType) {
+        Subscribers subscribers = mSubscribers.get(listenerType);
+
+        return subscribers != null && subscribers.mArray.length > 0;
+    }
+
+    public <T> void post(Class<T> listenerType, final Event<T> event) {
+        Subscribers subscribers = mSubscribers.get(listenerType);
+
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers.mArray) {
+            @SuppressWarnings("unchecked")
+            final T listener = (T) subscriber.mListener;
+
+            if (subscriber.mExecutor == null) {
+                deliver(event, listener);
+            } else {
+                subscriber.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(event, listener);
+                    }
+                });
+            }
+        }
+    }
+
+    private static <T> void deliver(Event<T> event, T listener) {
+        try {
+            event.deliver(listener);
+        } catch (RuntimeException e) {
+            // 一個subscriber失敗不影響其他subscriber
+            RayLog.e(TAG, "subscriber failed", e);
+        }
+    }
+
+    private Subscribers getSubscribers(Class<?> listenerType) {
+        Subscribers subscribers = mSubscribers.get(listenerType);
+
+        if (subscribers == null) {
+            Subscribers created = new Subscribers();
+
+            subscribers = mSubscribers.putIfAbsent(listenerType, created);
+            if (subscribers == null) {
+                subscribers = created;
+            }
+        }
+        return subscribers;
+    }
+
+    public static interface Event<T> {
+        void deliver(T listener);
+    }
+
+    public static interface OnSubscribersChangedListener {
+        void onSubscribersChanged(Class<?> listenerType);
+    }
+
+    private static class Subscriber {
+        final Object mListener;
+        final Executor mExecutor;
+
+        Subscriber(Object listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    private static class Subscribers {
+        volatile Subscriber[] mArray = EMPTY;
+
+        synchronized void add(Subscriber subscriber) {
+            Subscriber[] array = mArray;
+            Subscriber[] copy = new Subscriber[array.length + 1];
+
+            System.arraycopy(array, 0, copy, 0, array.length);
+            copy[array.length] = subscriber;
+            mArray = copy;
+        }
+
+        synchronized boolean remove(Object listener) {
+            Subscriber[] array = mArray;
+
+            for (int i = 0; i < array.length; i++) {
+                if (array[i].mListener == listener) {
+                    Subscriber[] copy = new Subscriber[array.length - 1];
+
+                    System.arraycopy(array, 0, copy, 0, i);
+                    System.arraycopy(array, i + 1, copy, i, array.length - i - 1);
+                    mArray = copy;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -1,35 +1,164 @@
 package ray.library.android.bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.BluetoothTransport;
+import ray.library.android.bluetooth.transport.RfcommSocket;
+import ray.library.android.bluetooth.transport.RfcommTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
 
 /**
  * Created by ray.lee on 2017/3/24.
  */
 public class BTManager {
     public final static String SPP_UUID = "00001101-0000-1000-8000-00805F9B34FB";
-    private static String TAG = BTManager.class.getSimpleName();
-    private static BTManager sInstance;
+    private final static String KNOWN_DEVICE_FILE = "bt_known_devices.bin";
+    private static String TAG = RayLog.tag(BTManager.class);
+    private static volatile BTManager sInstance;
+    private final static int ACTION_FOUND = 1;
+    private final static int ACTION_BOND_STATE_CHANGED = 1 << 1;
+    private final static int ACTION_STATE_CHANGED = 1 << 2;
+    private final static int ACTION_DISCOVERY_STARTED = 1 << 3;
+    private final static int ACTION_DISCOVERY_FINISHED = 1 << 4;
     private Context mContext;
-    private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothReceiver mBluetoothReceiver;
+    private volatile BluetoothAdapter mBluetoothAdapter;
+    private volatile boolean mIsAdapterResolved;
+    private volatile BluetoothTransport mTransport;
+    private BluetoothReceiver mBluetoothReceiver = new BluetoothReceiver();
+    private final Object mReceiverLock = new Object();
+    private final Object mBondedSeedLock = new Object();
+    private boolean mIsBondedSeeded;
+    private int mRegisteredActions;
+    private boolean mIsReleased;
+    private volatile boolean mIsDiscoveryRequested;
+    // 進行中的inquiry是由targeted discovery開始的，全部結束時才可停止
+    private volatile boolean mIsTargetedInquiry;
+    private BackgroundExecutor mBackgroundExecutor = new BackgroundExecutor();
+    private BTEventBus mEventBus = new BTEventBus(new HandlerExecutor(new Handler(Looper.getMainLooper())),
+            mBackgroundExecutor);
+    private BTMetrics mMetrics = new BTMetrics();
+    private DiscoveryCache mDiscoveryCache = new DiscoveryCache();
+    private BroadcastDispatcher mBroadcastDispatcher = new BroadcastDispatcher(mEventBus, mMetrics, mDiscoveryCache);
+    private volatile BroadcastTrace.Writer mBroadcastTrace;
+    private KnownDeviceStore mKnownDeviceStore;
     private OnFoundBluetoothDeviceListener mOnFoundBluetoothDeviceListener;
-    private ServerThread mServerThread;
-    private BluetoothServerSocket mBluetoothServerSocket;
+    private OnDiscoveredDeviceListener mOnDiscoveredDeviceListener;
+    private CopyOnWriteArrayList<TargetedDiscovery> mTargetedDiscoveries = new CopyOnWriteArrayList<TargetedDiscovery>();
+    private AcceptEngine mAcceptEngine;
+    private ConnectionPool mConnectionPool;
+    private volatile CompressionNegotiator mCompressionNegotiator;
+    private KeepAliveManager mKeepAliveManager;
+    private volatile boolean mIsKeepAliveEnabled;
+    private KeepAliveManager.OnLinkLostListener mOnLinkLostListener;
     private OnAcceptBluetoothSocketListener mOnAcceptBluetoothSocketListener;
+    private AcceptEngine.OnAdmissionListener mOnAdmissionListener;
     private OnPairBluetoothDeviceListener mOnPairBluetoothDeviceListener;
+    private OnPairFailedBluetoothDeviceListener mOnPairFailedBluetoothDeviceListener;
+    private volatile PairingQueue mPairingQueue;
     private OnBluetoothStateChangedListener mOnBluetoothStateChangedListener;
     private OnBluetoothStateChangingListener mOnBluetoothStateChangingListener;
     private OnDiscoveryBluetoothFinishListener mOnDiscoveryBluetoothFinishListener;
+    private OnAcceptBluetoothSocketListener mAcceptDispatcher = new OnAcceptBluetoothSocketListener() {
+        @Override
+        public void onAcceptBluetoothSocket(TransportSocket socket) {
+            mMetrics.recordAccept();
+            RayLog.event(TAG, "accept ", socket.getRemoteAddress());
+            OnAcceptBluetoothSocketListener listener = mOnAcceptBluetoothSocketListener;
+            CompressionNegotiator negotiator = mCompressionNegotiator;
+
+            if (listener != null && negotiator != null) {
+                try {
+                    socket = negotiator.negotiate(socket);
+                } catch (IOException e) {
+                    RayLog.w(TAG, "compression handshake failed", e);
+                    listener = null;
+                }
+            }
+            if (listener != null) {
+                listener.onAcceptBluetoothSocket(socket);
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    RayLog.w(TAG, "close unhandled socket failed", e);
+                }
+            }
+        }
+    };
+
+    private KeepAliveManager.OnLinkLostListener mLinkLostDispatcher = new KeepAliveManager.OnLinkLostListener() {
+        @Override
+        public void onLinkLost(final BTConnection connection, final long silentMillis) {
+            mMetrics.recordLinkLost();
+            mEventBus.post(KeepAliveManager.OnLinkLostListener.class,
+                    new BTEventBus.Event<KeepAliveManager.OnLinkLostListener>() {
+                        @Override
+                        public void deliver(KeepAliveManager.OnLinkLostListener listener) {
+                            listener.onLinkLost(connection, silentMillis);
+                        }
+                    });
+        }
+    };
+
+    private Runnable mCancelDiscoveryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // 搜尋中會大幅拖慢連線
+            cancelDiscovery();
+        }
+    };
+    private PairingQueue.BondDriver mBondDriver = new PairingQueue.BondDriver() {
+        @Override
+        public int getBondState(String address) {
+            BluetoothDevice device = getRemoteDevice(address);
+
+            return device == null ? BluetoothDevice.BOND_NONE : device.getBondState();
+        }
+
+        @Override
+        public boolean createBond(String address) {
+            BluetoothDevice device = getRemoteDevice(address);
+
+            return device != null && device.createBond();
+        }
+    };
+    private ConnectionPool.OnConnectListener mRecordConnectListener = new ConnectionPool.OnConnectListener() {
+        @Override
+        public void onConnect(String address, boolean success, long connectNanos) {
+            mMetrics.recordConnect(success, connectNanos);
+            RayLog.event(TAG, success ? "connect success " : "connect failure ", address);
+            // ex : LoopbackTransport的位址不是MAC，不記錄
+            if (KnownDeviceStore.isValidAddress(address)) {
+                mKnownDeviceStore.recordConnection(address, success, System.currentTimeMillis());
+            }
+        }
+    };
 
     private BTManager(Context context) {
         init(context);
@@ -53,14 +182,144 @@ public class BTManager {
             appContext = context;
         }
         mContext = appContext;
-        try {
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mKnownDeviceStore = new KnownDeviceStore(new File(mContext.getFilesDir(), KNOWN_DEVICE_FILE));
+        mBroadcastDispatcher.setKnownDeviceStore(mKnownDeviceStore);
+        mBroadcastDispatcher.setTargetedDiscoveries(mTargetedDiscoveries);
+        mBroadcastDispatcher.setDeviceResolver(new BroadcastDispatcher.DeviceResolver() {
+            @Override
+            public BluetoothDevice getRemoteDevice(String address) {
+                return BTManager.this.getRemoteDevice(address);
+            }
+        });
+        mBroadcastDispatcher.setOnDiscoveryFinished(new Runnable() {
+            @Override
+            public void run() {
+                mIsTargetedInquiry = false;
+
+                if (mIsDiscoveryRequested) {
+                    mIsDiscoveryRequested = false;
+                    updateBluetoothReceiver();
+                }
+            }
+        });
+        // adapter與BroadcastReceiver皆在需要時才取得、註冊
+        mEventBus.setOnSubscribersChangedListener(new BTEventBus.OnSubscribersChangedListener() {
+            @Override
+            public void onSubscribersChanged(Class<?> listenerType) {
+                updateBluetoothReceiver();
+            }
+        });
+        preloadKnownDevices();
+    }
+
+    /**
+     * 第一次使用時才呼叫BluetoothAdapter.getDefaultAdapter()
+     *
+     * @return null 裝置不支援藍牙
+     */
+    private BluetoothAdapter getAdapter() {
+        if (!mIsAdapterResolved) {
+            synchronized (this) {
+                if (!mIsAdapterResolved) {
+                    try {
+                        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+                    } catch (Exception e) {
+                        RayLog.e(TAG, "getDefaultAdapter failed", e);
+                    }
+                    mIsAdapterResolved = true;
+                }
+            }
+        }
+        return mBluetoothAdapter;
+    }
+
+    /**
+     * 釋放BroadcastReceiver、server socket與連線池，之後getInstance()會建立新的BTManager。
+     * server socket處理中的連線會立即關閉，需要等待時先呼叫{@link #closeBluetoothServerSocket(long)}
+     */
+    public void release() {
+        synchronized (BTManager.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+        mEventBus.setOnSubscribersChangedListener(null);
 
-            if (mBluetoothAdapter != null) {
-                registerBluetoothReceiver(mContext);
+        synchronized (mReceiverLock) {
+            mIsReleased = true;
+            if (mRegisteredActions != 0) {
+                mContext.unregisterReceiver(mBluetoothReceiver);
+                mRegisteredActions = 0;
+            }
+        }
+        for (TargetedDiscovery discovery : mTargetedDiscoveries) {
+            discovery.finish(TargetedDiscovery.REASON_CANCELLED);
+        }
+        PairingQueue pairingQueue = mPairingQueue;
+
+        if (pairingQueue != null) {
+            pairingQueue.cancel();
+        }
+        stopBroadcastTrace();
+        closeBluetoothServerSocket(0L);
+
+        synchronized (this) {
+            if (mConnectionPool != null) {
+                mConnectionPool.close();
+                mConnectionPool = null;
+            }
+            if (mKeepAliveManager != null) {
+                mKeepAliveManager.clear();
+            }
+        }
+        // release通常在main thread上，不等待fsync
+        mKnownDeviceStore.saveAsync();
+        mBackgroundExecutor.quit();
+    }
+
+    private void preloadKnownDevices() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // 只讀檔，已配對的裝置在第一次取得known devices時才向adapter查詢
+                mKnownDeviceStore.load();
+            }
+        }, "BTManager-known-devices");
+
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 第一次取得known devices時加入已配對的裝置，之後的配對由廣播更新
+     */
+    private void seedBondedDevices() {
+        // 同時呼叫時等待第一個完成，才不會取得缺少已配對裝置的結果
+        synchronized (mBondedSeedLock) {
+            if (mIsBondedSeeded) {
+                return;
+            }
+            mIsBondedSeeded = true;
+            BluetoothAdapter adapter = getAdapter();
+
+            if (adapter == null) {
+                return;
+            }
+            try {
+                Set<BluetoothDevice> bondedDevices = adapter.getBondedDevices();
+
+                if (bondedDevices == null) {
+                    return;
+                }
+                for (BluetoothDevice device : bondedDevices) {
+                    BluetoothClass bluetoothClass = device.getBluetoothClass();
+
+                    mKnownDeviceStore.put(device.getAddress(), device.getName(),
+                            bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass());
+                }
+            } catch (SecurityException e) {
+                RayLog.w(TAG, "getBondedDevices failed", e);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
@@ -69,27 +328,322 @@ public class BTManager {
     }
 
     public void initBluetoothServerSocket(String name, String uuid) throws IOException {
-        if (!isSupported()) {
-            throw new UnsupportedOperationException("mBluetoothAdapter == null");
+        initBluetoothServerSocket(name, uuid, AcceptEngine.DEFAULT_WORKER_COUNT, AcceptEngine.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param name
+     * @param uuid
+     * @param workerCount    同時執行OnAcceptBluetoothSocketListener的thread數
+     * @param maxConnections 同時處理中的連線上限，超過時直接拒絕
+     * @throws IOException
+     */
+    public synchronized void initBluetoothServerSocket(String name, String uuid, int workerCount,
+                                                       int maxConnections) throws IOException {
+        BluetoothTransport transport = getTransport();
+
+        if (transport == null) {
+            throw new UnsupportedOperationException("transport == null");
+        }
+        if (mAcceptEngine != null && !mAcceptEngine.isClose()) {
+            throw new IllegalStateException("server socket already initialized");
+        }
+        TransportServerSocket serverSocket = transport.listen(name, UUID.fromString(uuid));
+        AcceptEngine acceptEngine = new AcceptEngine(serverSocket, mAcceptDispatcher);
+
+        acceptEngine.setWorkerCount(workerCount);
+        acceptEngine.setMaxConnections(maxConnections);
+        acceptEngine.setOnAdmissionListener(mOnAdmissionListener);
+        acceptEngine.start();
+        mAcceptEngine = acceptEngine;
+    }
+
+    /**
+     * 停止接受新連線，並等待處理中的連線結束
+     *
+     * @param drainTimeoutMillis
+     * @return true 所有連線皆在時限內處理完畢
+     */
+    public boolean closeBluetoothServerSocket(long drainTimeoutMillis) {
+        AcceptEngine acceptEngine;
+
+        synchronized (this) {
+            acceptEngine = mAcceptEngine;
+            mAcceptEngine = null;
+        }
+        if (acceptEngine == null) {
+            return true;
+        }
+        return acceptEngine.shutdown(drainTimeoutMillis);
+    }
+
+    /**
+     * 取出accept或連線池socket底層的BluetoothSocket，會略過統計及壓縮的包裝
+     *
+     * @param socket
+     * @return null 不是RFCOMM socket，ex : LoopbackTransport
+     */
+    public static BluetoothSocket getBluetoothSocket(TransportSocket socket) {
+        while (true) {
+            if (socket instanceof MeteredTransport.MeteredSocket) {
+                socket = ((MeteredTransport.MeteredSocket) socket).getSocket();
+            } else if (socket instanceof CompressedSocket) {
+                socket = ((CompressedSocket) socket).getSocket();
+            } else if (socket instanceof RfcommSocket) {
+                return ((RfcommSocket) socket).getBluetoothSocket();
+            } else {
+                return null;
+            }
         }
-        mBluetoothServerSocket = mBluetoothAdapter
-                .listenUsingInsecureRfcommWithServiceRecord(name,
-                        UUID.fromString(uuid));
-        mServerThread = new ServerThread();
-        mServerThread.start();
     }
 
-    private void registerBluetoothReceiver(Context context) {
-        if (mBluetoothReceiver == null) {
-            mBluetoothReceiver = new BluetoothReceiver();
-            IntentFilter intentFilter = new IntentFilter();
+    public AcceptEngine getAcceptEngine() {
+        return mAcceptEngine;
+    }
+
+    /**
+     * 只註冊目前有subscriber或搜尋中需要的廣播，沒有任何需要時取消註冊，避免藍牙狀態變動時喚醒process
+     */
+    private void updateBluetoothReceiver() {
+        if (getAdapter() == null) {
+            return;
+        }
+        synchronized (mReceiverLock) {
+            if (mIsReleased) {
+                return;
+            }
+            int actions = getRequiredActions();
+
+            if (actions == mRegisteredActions) {
+                return;
+            }
+            if (mRegisteredActions != 0) {
+                mContext.unregisterReceiver(mBluetoothReceiver);
+            }
+            if (actions != 0) {
+                mContext.registerReceiver(mBluetoothReceiver, createIntentFilter(actions));
+            }
+            mRegisteredActions = actions;
+            RayLog.event(TAG, "receiver actions ", actions);
+        }
+    }
+
+    private int getRequiredActions() {
+        int actions = 0;
+
+        if (mIsDiscoveryRequested || !mTargetedDiscoveries.isEmpty()
+                || mEventBus.hasSubscribers(OnFoundBluetoothDeviceListener.class)
+                || mEventBus.hasSubscribers(OnDiscoveredDeviceListener.class)) {
+            actions |= ACTION_FOUND | ACTION_DISCOVERY_STARTED | ACTION_DISCOVERY_FINISHED;
+        }
+        if (mEventBus.hasSubscribers(OnDiscoveryBluetoothFinishListener.class)) {
+            actions |= ACTION_DISCOVERY_FINISHED;
+        }
+        if (mPairingQueue != null || mEventBus.hasSubscribers(OnPairBluetoothDeviceListener.class)
+                || mEventBus.hasSubscribers(OnPairFailedBluetoothDeviceListener.class)) {
+            actions |= ACTION_BOND_STATE_CHANGED;
+        }
+        if (mEventBus.hasSubscribers(OnBluetoothStateChangedListener.class)
+                || mEventBus.hasSubscribers(OnBluetoothStateChangingListener.class)) {
+            actions |= ACTION_STATE_CHANGED;
+        }
+        return actions;
+    }
+
+    private static IntentFilter createIntentFilter(int actions) {
+        IntentFilter intentFilter = new IntentFilter();
+
+        if ((actions & ACTION_FOUND) != 0) {
             intentFilter.addAction(BluetoothDevice.ACTION_FOUND);
+        }
+        if ((actions & ACTION_BOND_STATE_CHANGED) != 0) {
             intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-            intentFilter.addAction(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED);
+        }
+        if ((actions & ACTION_STATE_CHANGED) != 0) {
             intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        }
+        if ((actions & ACTION_DISCOVERY_STARTED) != 0) {
+            intentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+        }
+        if ((actions & ACTION_DISCOVERY_FINISHED) != 0) {
             intentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-            context.registerReceiver(mBluetoothReceiver, intentFilter);
         }
+        return intentFilter;
+    }
+
+    /**
+     * 替換底層transport，ex : 以LoopbackTransport在JVM上測試；會包裝為MeteredTransport以記錄byte數
+     *
+     * @param transport
+     */
+    public void setTransport(BluetoothTransport transport) {
+        mTransport = transport == null || transport instanceof MeteredTransport ? transport
+                : new MeteredTransport(transport, mMetrics);
+    }
+
+    /**
+     * @return 未呼叫setTransport時為RFCOMM，裝置不支援藍牙時為null
+     */
+    public BluetoothTransport getTransport() {
+        if (mTransport == null) {
+            synchronized (this) {
+                BluetoothAdapter adapter = getAdapter();
+
+                if (mTransport == null && adapter != null) {
+                    mTransport = new MeteredTransport(new RfcommTransport(adapter), mMetrics);
+                }
+            }
+        }
+        return mTransport;
+    }
+
+    /**
+     * SPP client連線池，第一次呼叫時建立
+     *
+     * @return
+     */
+    public synchronized ConnectionPool getConnectionPool() {
+        if (mConnectionPool == null) {
+            BluetoothTransport transport = getTransport();
+
+            if (transport == null) {
+                throw new UnsupportedOperationException("transport == null");
+            }
+            mConnectionPool = new ConnectionPool(transport, UUID.fromString(SPP_UUID));
+            mConnectionPool.setBeforeConnect(mCancelDiscoveryRunnable);
+            mConnectionPool.setOnConnectListener(mRecordConnectListener);
+            mConnectionPool.setCompressionNegotiator(mCompressionNegotiator);
+        }
+        return mConnectionPool;
+    }
+
+    /**
+     * 以BTConnection包裝已連線的socket並啟動reader/writer thread，
+     * ex : 在OnAcceptBluetoothSocketListener中呼叫，或搭配FileTransferSender/FileTransferReceiver
+     *
+     * @param socket
+     * @return 使用完畢需呼叫{@link BTConnection#close()}
+     * @throws IOException
+     */
+    public BTConnection openConnection(TransportSocket socket) throws IOException {
+        BTConnection connection = new BTConnection(socket);
+
+        connection.setLatencyHistogram(mMetrics.getFrameLatency());
+        connection.start();
+        if (mIsKeepAliveEnabled) {
+            getKeepAliveManager().register(connection);
+        }
+        return connection;
+    }
+
+    /**
+     * 以openConnection建立連線並在其上開啟RpcChannel，來回時間記錄在{@link BTMetrics#getRpcLatency()}
+     *
+     * @param socket
+     * @param handler  回應對方的request，null時只能發出call
+     * @param executor 執行handler，null時在reader thread上執行
+     * @return 使用完畢需呼叫{@link RpcChannel#close()}
+     * @throws IOException
+     */
+    public RpcChannel openRpcChannel(TransportSocket socket, RpcChannel.RequestHandler handler, Executor executor) throws IOException {
+        RpcChannel channel = new RpcChannel(openConnection(socket));
+
+        channel.setRequestHandler(handler, executor);
+        channel.setLatencyHistogram(mMetrics.getRpcLatency());
+        channel.start();
+        return channel;
+    }
+
+    /**
+     * 開啟後openConnection建立的連線會定時ping，偵測對方離開範圍等半開的連線；
+     * 間隔及次數由{@link #getKeepAliveManager()}設定
+     *
+     * @param enabled
+     */
+    public void setKeepAliveEnabled(boolean enabled) {
+        mIsKeepAliveEnabled = enabled;
+    }
+
+    /**
+     * 所有連線共用一個HashedTimerWheel，也可直接register其他BTConnection
+     */
+    public synchronized KeepAliveManager getKeepAliveManager() {
+        if (mKeepAliveManager == null) {
+            mKeepAliveManager = new KeepAliveManager();
+            mKeepAliveManager.setOnLinkLostListener(mLinkLostDispatcher);
+        }
+        return mKeepAliveManager;
+    }
+
+    /**
+     * 在timer wheel thread上呼叫，連線在通知後隨即關閉
+     *
+     * @param listener
+     */
+    public synchronized void setOnLinkLostListener(KeepAliveManager.OnLinkLostListener listener) {
+        mOnLinkLostListener = replaceListener(KeepAliveManager.OnLinkLostListener.class, mOnLinkLostListener, listener);
+    }
+
+    /**
+     * 開啟後新建立的SPP連線(connect、connectAll及accept)會先進行壓縮握手，對方也需開啟此功能；
+     * 適合重複性高的文字資料，已在pool中的連線及已建立的MultiConnector不受影響
+     *
+     * @param enabled
+     */
+    public synchronized void setCompressionEnabled(boolean enabled) {
+        mCompressionNegotiator = enabled ? new CompressionNegotiator(mMetrics.getCompression()) : null;
+        if (mConnectionPool != null) {
+            mConnectionPool.setCompressionNegotiator(mCompressionNegotiator);
+        }
+    }
+
+    /**
+     * @return null 未開啟壓縮；可用來設定預設字典
+     */
+    public CompressionNegotiator getCompressionNegotiator() {
+        return mCompressionNegotiator;
+    }
+
+    /**
+     * 建立平行連線多個裝置的MultiConnector，可再調整parallelism、timeout、retry後呼叫connectAll
+     *
+     * @return
+     */
+    public MultiConnector createMultiConnector() {
+        BluetoothTransport transport = getTransport();
+
+        if (transport == null) {
+            throw new UnsupportedOperationException("transport == null");
+        }
+        MultiConnector connector = new MultiConnector(transport, UUID.fromString(SPP_UUID));
+
+        connector.setBeforeConnect(mCancelDiscoveryRunnable);
+        connector.setOnConnectListener(mRecordConnectListener);
+        connector.setCompressionNegotiator(mCompressionNegotiator);
+        return connector;
+    }
+
+    /**
+     * 以預設設定平行連線多個SPP裝置；需在背景thread呼叫
+     *
+     * @param addresses
+     * @return 成功的socket由caller負責關閉
+     * @throws InterruptedException
+     */
+    public MultiConnector.Result connectAll(List<String> addresses) throws InterruptedException {
+        return createMultiConnector().connectAll(addresses);
+    }
+
+    /**
+     * 取得與address的SPP連線，會重複使用閒置的連線；需在背景thread呼叫
+     *
+     * @param address
+     * @param timeoutMillis 等待可用連線的時間
+     * @return 使用完畢需呼叫{@link PooledConnection#release()}
+     * @throws IOException
+     */
+    public PooledConnection connect(String address, long timeoutMillis) throws IOException {
+        return getConnectionPool().acquire(address, timeoutMillis);
     }
 
     public BluetoothDevice getRemoteDevice(String address) {
@@ -97,73 +651,365 @@ public class BTManager {
             return null;
         }
 
-        return mBluetoothAdapter.getRemoteDevice(address);
+        return getAdapter().getRemoteDevice(address);
     }
 
     public boolean isSupported() {
-        return mBluetoothAdapter != null;
+        return getAdapter() != null;
     }
 
     public boolean isEnable() {
         if (isSupported()) {
-            return mBluetoothAdapter.isEnabled();
+            return getAdapter().isEnabled();
         }
         return false;
     }
 
     public boolean setBluetooth(boolean enable) {
-        boolean isEnabled = mBluetoothAdapter.isEnabled();
+        BluetoothAdapter adapter = getAdapter();
+        boolean isEnabled = adapter.isEnabled();
         if (enable && !isEnabled) {
-            return mBluetoothAdapter.enable();
+            return adapter.enable();
         } else if (!enable && isEnabled) {
-            return mBluetoothAdapter.disable();
+            return adapter.disable();
         }
         // No need to change bluetooth state
         return true;
     }
 
-    public void setOnFoundBluetoothDeviceListener(OnFoundBluetoothDeviceListener listener) {
-        mOnFoundBluetoothDeviceListener = listener;
+    public synchronized void setOnFoundBluetoothDeviceListener(OnFoundBluetoothDeviceListener listener) {
+        mOnFoundBluetoothDeviceListener = replaceListener(OnFoundBluetoothDeviceListener.class,
+                mOnFoundBluetoothDeviceListener, listener);
+    }
+
+    /**
+     * 與OnFoundBluetoothDeviceListener相同，只回報新裝置或name、class、RSSI有變更的裝置，並附帶RSSI等資訊
+     *
+     * @param listener
+     */
+    public synchronized void setOnDiscoveredDeviceListener(OnDiscoveredDeviceListener listener) {
+        mOnDiscoveredDeviceListener = replaceListener(OnDiscoveredDeviceListener.class,
+                mOnDiscoveredDeviceListener, listener);
     }
 
     public void setOnAcceptBluetoothSocketListener(OnAcceptBluetoothSocketListener listener) {
         mOnAcceptBluetoothSocketListener = listener;
     }
 
-    public void setOnPairBluetoothDeviceListener(OnPairBluetoothDeviceListener listener) {
-        mOnPairBluetoothDeviceListener = listener;
+    public void setOnAdmissionListener(AcceptEngine.OnAdmissionListener listener) {
+        mOnAdmissionListener = listener;
+        AcceptEngine acceptEngine = mAcceptEngine;
+
+        if (acceptEngine != null) {
+            acceptEngine.setOnAdmissionListener(listener);
+        }
     }
 
-    public void setOnBluetoothStateChangingListener(OnBluetoothStateChangingListener listener) {
-        mOnBluetoothStateChangingListener = listener;
+    public synchronized void setOnPairBluetoothDeviceListener(OnPairBluetoothDeviceListener listener) {
+        mOnPairBluetoothDeviceListener = replaceListener(OnPairBluetoothDeviceListener.class,
+                mOnPairBluetoothDeviceListener, listener);
     }
 
-    public void setOnBluetoothStateChangedListener(OnBluetoothStateChangedListener listener) {
-        mOnBluetoothStateChangedListener = listener;
+    public synchronized void setOnPairFailedBluetoothDeviceListener(OnPairFailedBluetoothDeviceListener listener) {
+        mOnPairFailedBluetoothDeviceListener = replaceListener(OnPairFailedBluetoothDeviceListener.class,
+                mOnPairFailedBluetoothDeviceListener, listener);
     }
 
-    public void setOnDiscoveryBluetoothFinishListener(OnDiscoveryBluetoothFinishListener listener) {
-        mOnDiscoveryBluetoothFinishListener = listener;
+    public synchronized void setOnBluetoothStateChangingListener(OnBluetoothStateChangingListener listener) {
+        mOnBluetoothStateChangingListener = replaceListener(OnBluetoothStateChangingListener.class,
+                mOnBluetoothStateChangingListener, listener);
+    }
+
+    public synchronized void setOnBluetoothStateChangedListener(OnBluetoothStateChangedListener listener) {
+        mOnBluetoothStateChangedListener = replaceListener(OnBluetoothStateChangedListener.class,
+                mOnBluetoothStateChangedListener, listener);
+    }
+
+    public synchronized void setOnDiscoveryBluetoothFinishListener(OnDiscoveryBluetoothFinishListener listener) {
+        mOnDiscoveryBluetoothFinishListener = replaceListener(OnDiscoveryBluetoothFinishListener.class,
+                mOnDiscoveryBluetoothFinishListener, listener);
+    }
+
+    /**
+     * 註冊listener，同一種listener可有多個subscriber，不影響setOnXxxListener設定的listener
+     *
+     * @param listenerType   ex : OnFoundBluetoothDeviceListener.class
+     * @param listener
+     * @param deliveryThread BTEventBus.THREAD_POSTING, THREAD_MAIN, THREAD_BACKGROUND
+     */
+    public <T> void register(Class<T> listenerType, T listener, int deliveryThread) {
+        mEventBus.register(listenerType, listener, deliveryThread);
+    }
+
+    /**
+     * @param executor 呼叫listener的executor，ex : 專屬的HandlerThread
+     */
+    public <T> void register(Class<T> listenerType, T listener, Executor executor) {
+        mEventBus.register(listenerType, listener, executor);
+    }
+
+    public <T> void unregister(Class<T> listenerType, T listener) {
+        mEventBus.unregister(listenerType, listener);
+    }
+
+    private <T> T replaceListener(Class<T> listenerType, T previous, T listener) {
+        if (previous != null) {
+            mEventBus.unregister(listenerType, previous);
+        }
+        if (listener != null) {
+            mEventBus.register(listenerType, listener, BTEventBus.THREAD_POSTING);
+        }
+        return listener;
     }
 
     public boolean startDiscovery() {
         if (!isSupported()) {
             return false;
         }
-        return mBluetoothAdapter.startDiscovery();
+        // 搜尋結束前持續接收ACTION_FOUND以更新快取
+        mIsDiscoveryRequested = true;
+        updateBluetoothReceiver();
+
+        if (!getAdapter().startDiscovery()) {
+            mIsDiscoveryRequested = false;
+            updateBluetoothReceiver();
+            return false;
+        }
+        return true;
     }
 
     public boolean cancelDiscovery() {
         if (!isSupported()) {
             return false;
         }
-        return mBluetoothAdapter.cancelDiscovery();
+        return getAdapter().cancelDiscovery();
+    }
+
+    /**
+     * 搜尋直到找到maxCount個符合predicate的裝置或逾時；inquiry由此開始且沒有{@link #startDiscovery()}時，
+     * 全部targeted discovery結束後自動cancelDiscovery()
+     *
+     * @param predicate     比對address、name、class或RSSI
+     * @param maxCount      找到幾個符合的裝置即停止
+     * @param timeoutMillis 最長搜尋時間，需大於0
+     * @param listener      結束時於接收廣播或timer thread上呼叫，可為null
+     * @return 可用{@link TargetedDiscovery#get()}等待結果
+     */
+    public TargetedDiscovery startDiscovery(TargetedDiscovery.DevicePredicate predicate, int maxCount,
+                                            long timeoutMillis, OnTargetedDiscoveryListener listener) {
+        if (timeoutMillis <= 0L) {
+            throw new IllegalArgumentException("timeoutMillis <= 0");
+        }
+        final TargetedDiscovery discovery = new TargetedDiscovery(predicate, maxCount, listener);
+
+        if (!isSupported()) {
+            discovery.finish(TargetedDiscovery.REASON_FAILED);
+            return discovery;
+        }
+        // 先設定onFinish再開始接收裝置及計時，提早結束時才會移除並停止inquiry
+        discovery.start(new Runnable() {
+            @Override
+            public void run() {
+                mTargetedDiscoveries.remove(discovery);
+
+                if (mTargetedDiscoveries.isEmpty() && mIsTargetedInquiry && !mIsDiscoveryRequested) {
+                    mIsTargetedInquiry = false;
+                    cancelDiscovery();
+                }
+                updateBluetoothReceiver();
+            }
+        });
+        mTargetedDiscoveries.add(discovery);
+        discovery.setTimeout(SharedScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                discovery.finish(TargetedDiscovery.REASON_TIMEOUT);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS));
+
+        updateBluetoothReceiver();
+
+        BluetoothAdapter adapter = getAdapter();
+
+        if (!adapter.isDiscovering()) {
+            // 先標記，讓提早結束的discovery也能停止此inquiry
+            mIsTargetedInquiry = true;
+
+            if (!adapter.startDiscovery()) {
+                discovery.finish(TargetedDiscovery.REASON_FAILED);
+            }
+        }
+        return discovery;
+    }
+
+    /**
+     * 依序配對queue中的裝置，進行中暫停搜尋，結束後若原本在搜尋則重新開始；同時只能有一個queue
+     *
+     * @param queue 以{@link PairingQueue#setOnPairingListener}取得每個裝置的結果
+     * @return false 不支援藍牙或已有配對中的queue
+     */
+    public boolean startPairing(final PairingQueue queue) {
+        if (!isSupported()) {
+            return false;
+        }
+        synchronized (this) {
+            if (mPairingQueue != null) {
+                return false;
+            }
+            mPairingQueue = queue;
+            mBroadcastDispatcher.setPairingQueue(queue);
+        }
+        final boolean wasDiscovering = getAdapter().isDiscovering();
+
+        updateBluetoothReceiver();
+        queue.start(SharedScheduler.get(), mBondDriver, mCancelDiscoveryRunnable, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BTManager.this) {
+                    if (mPairingQueue == queue) {
+                        mPairingQueue = null;
+                        mBroadcastDispatcher.setPairingQueue(null);
+                    }
+                }
+                updateBluetoothReceiver();
+                if (wasDiscovering) {
+                    startDiscovery();
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return null 沒有配對中的queue
+     */
+    public PairingQueue getPairingQueue() {
+        return mPairingQueue;
+    }
+
+    /**
+     * @return 此次及先前搜尋到且尚未過期的裝置
+     */
+    public List<DiscoveredDevice> getDiscoveredDevices() {
+        return mDiscoveryCache.getSnapshot(SystemClock.elapsedRealtime());
+    }
+
+    public DiscoveredDevice getDiscoveredDevice(String address) {
+        return mDiscoveryCache.get(address, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * 裝置超過ttlMillis未再被搜尋到即從快取移除
+     *
+     * @param ttlMillis
+     */
+    public void setDiscoveryCacheTtl(long ttlMillis) {
+        mDiscoveryCache.setTtl(ttlMillis);
+    }
+
+    public void clearDiscoveryCache() {
+        mDiscoveryCache.clear();
+    }
+
+    /**
+     * 已配對或曾連線過的裝置，不需搜尋即可使用；依最後連線時間排序。第一次呼叫時才向adapter查詢已配對的裝置
+     *
+     * @return
+     */
+    public List<KnownDevice> getKnownDevices() {
+        seedBondedDevices();
+        return mKnownDeviceStore.getKnownDevices();
+    }
+
+    public KnownDeviceStore getKnownDeviceStore() {
+        seedBondedDevices();
+        return mKnownDeviceStore;
+    }
+
+    public BTMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 將目前的統計輸出到logcat
+     */
+    public void dumpMetrics() {
+        StringWriter stringWriter = new StringWriter();
+
+        mMetrics.dump(new PrintWriter(stringWriter));
+
+        for (String line : stringWriter.toString().split("\n")) {
+            RayLog.i(TAG, line);
+        }
+    }
+
+    /**
+     * 將目前的統計附加到檔案
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void dumpMetrics(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+
+        try {
+            writer.println("---- " + new Date());
+            mMetrics.dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 記錄之後處理的每個藍牙廣播，可在JVM上以{@link BroadcastReplayer}重播；已在記錄時會先停止前一個
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void startBroadcastTrace(File file) throws IOException {
+        BroadcastTrace.Writer trace = BroadcastTrace.openWriter(file);
+
+        synchronized (this) {
+            stopBroadcastTrace();
+            mBroadcastTrace = trace;
+        }
+        RayLog.event(TAG, "broadcast trace ", file);
+    }
+
+    /**
+     * 停止記錄並關閉檔案
+     */
+    public synchronized void stopBroadcastTrace() {
+        stopBroadcastTrace(mBroadcastTrace);
+    }
+
+    /**
+     * 只停止仍在使用中的trace，已被startBroadcastTrace替換時不影響新的trace
+     */
+    private synchronized void stopBroadcastTrace(BroadcastTrace.Writer trace) {
+        if (trace == null || mBroadcastTrace != trace) {
+            return;
+        }
+        mBroadcastTrace = null;
+        try {
+            trace.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close broadcast trace failed", e);
+        }
     }
 
     public static interface OnFoundBluetoothDeviceListener {
         void onFoundBluetoothDevice(BluetoothDevice device);
     }
 
+    public static interface OnDiscoveredDeviceListener {
+        void onDiscoveredDevice(BluetoothDevice device, DiscoveredDevice discoveredDevice);
+    }
+
+    public static interface OnTargetedDiscoveryListener {
+        void onTargetedDiscoveryFinish(TargetedDiscovery.Result result);
+    }
+
     public static interface OnPairBluetoothDeviceListener {
         void onPairedBluetoothDevice(BluetoothDevice device);
 
@@ -171,8 +1017,18 @@ public class BTManager {
 
     }
 
+    /**
+     * 配對失敗(BOND_BONDING回到BOND_NONE)，ex : PIN錯誤、逾時、對方拒絕
+     */
+    public static interface OnPairFailedBluetoothDeviceListener {
+        void onPairFailedBluetoothDevice(BluetoothDevice device);
+    }
+
+    /**
+     * socket可能經過統計或壓縮的包裝，以{@link #getBluetoothSocket(TransportSocket)}取得BluetoothSocket
+     */
     public static interface OnAcceptBluetoothSocketListener {
-        void onAcceptBluetoothSocket(BluetoothSocket socket);
+        void onAcceptBluetoothSocket(TransportSocket socket);
     }
 
     public static interface OnBluetoothStateChangedListener {
@@ -187,91 +1043,120 @@ public class BTManager {
         void onDiscoveryBluetoothFinish();
     }
 
+    /**
+     * 將廣播轉為BroadcastRecord，不處理的action回傳null
+     */
+    private static BroadcastRecord toRecord(Intent intent) {
+        String action = intent.getAction();
+        long now = SystemClock.elapsedRealtimeNanos();
+
+        if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+            BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+            short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DiscoveredDevice.RSSI_UNKNOWN);
+
+            if (name == null) {
+                name = device.getName();
+            }
+            return new BroadcastRecord(BroadcastRecord.TYPE_FOUND, now, device.getAddress(), name,
+                    bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass(), rssi, 0, 0);
+        } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            BluetoothClass bluetoothClass = device.getBluetoothClass();
+
+            return new BroadcastRecord(BroadcastRecord.TYPE_BOND_STATE_CHANGED, now, device.getAddress(),
+                    device.getName(), bluetoothClass == null ? 0 : bluetoothClass.getDeviceClass(),
+                    DiscoveredDevice.RSSI_UNKNOWN,
+                    intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR),
+                    intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR));
+        } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
+            return new BroadcastRecord(BroadcastRecord.TYPE_DISCOVERY_STARTED, now, null, null, 0,
+                    DiscoveredDevice.RSSI_UNKNOWN, 0, 0);
+        } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+            return new BroadcastRecord(BroadcastRecord.TYPE_DISCOVERY_FINISHED, now, null, null, 0,
+                    DiscoveredDevice.RSSI_UNKNOWN, 0, 0);
+        } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {// 藍牙開關變動
+            return new BroadcastRecord(BroadcastRecord.TYPE_STATE_CHANGED, now, null, null, 0,
+                    DiscoveredDevice.RSSI_UNKNOWN,
+                    intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR),
+                    intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, BluetoothAdapter.ERROR));
+        }
+        return null;
+    }
+
     private class BluetoothReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
+            BroadcastRecord record = toRecord(intent);
 
-            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-                if (mOnFoundBluetoothDeviceListener != null) {
-                    mOnFoundBluetoothDeviceListener.onFoundBluetoothDevice(device);
-                }
-            } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
-                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-
-                final int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
-                final int prevState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
+            if (record == null) {
+                return;
+            }
+            BroadcastTrace.Writer trace = mBroadcastTrace;
 
-                if (state == BluetoothDevice.BOND_BONDED && prevState == BluetoothDevice.BOND_BONDING) {
-                    if (mOnPairBluetoothDeviceListener != null) {
-                        mOnPairBluetoothDeviceListener.onPairedBluetoothDevice(device);
-                    }
-                } else if (state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDED) {
-                    if (mOnPairBluetoothDeviceListener != null) {
-                        mOnPairBluetoothDeviceListener.onUnpairedBluetoothDevice(device);
-                    }
-                }
-            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                mOnDiscoveryBluetoothFinishListener.onDiscoveryBluetoothFinish();
-            } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {// 藍牙開關變動
-                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
-                switch (state) {
-                    case BluetoothAdapter.STATE_OFF:
-                        if (mOnBluetoothStateChangedListener != null) {
-                            mOnBluetoothStateChangedListener.onBluetoothStateChanged(false);
-                        }
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_OFF:
-                        if (mOnBluetoothStateChangingListener != null) {
-                            mOnBluetoothStateChangingListener.onBluetoothStateChanging(false);
-                        }
-                        break;
-                    case BluetoothAdapter.STATE_ON:
-                        if (mOnBluetoothStateChangedListener != null) {
-                            mOnBluetoothStateChangedListener.onBluetoothStateChanged(true);
-                        }
-                        break;
-                    case BluetoothAdapter.STATE_TURNING_ON:
-                        if (mOnBluetoothStateChangingListener != null) {
-                            mOnBluetoothStateChangingListener.onBluetoothStateChanging(true);
-                        }
-                        break;
+            if (trace != null) {
+                try {
+                    trace.write(record);
+                } catch (IOException e) {
+                    RayLog.w(TAG, "write broadcast trace failed", e);
+                    stopBroadcastTrace(trace);
                 }
             }
+            mBroadcastDispatcher.dispatch(record);
         }
     }
 
-    public class ServerThread extends Thread {
-
-        boolean mIsClose = false;
+    private static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
 
-        public ServerThread() {
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
         }
 
-        public void close() {
-            mIsClose = true;
-            try {
-                mBluetoothServerSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
         }
+    }
 
-        @Override
-        public void run() {
-            while (!mIsClose) {
-                try {
-                    BluetoothSocket socket = mBluetoothServerSocket.accept();
+    /**
+     * THREAD_BACKGROUND，第一次使用時才建立HandlerThread
+     */
+    private static class BackgroundExecutor implements Executor {
+        private HandlerThread mThread;
+        private Handler mHandler;
+        private boolean mIsQuit;
 
-                    if (mOnAcceptBluetoothSocketListener != null) {
-                        mOnAcceptBluetoothSocketListener.onAcceptBluetoothSocket(socket);
-                    }
+        @Override
+        public void execute(Runnable command) {
+            Handler handler;
 
-                } catch (IOException e) {
-                    e.printStackTrace();
+            synchronized (this) {
+                if (mIsQuit) {
+                    RayLog.w(TAG, "event dropped after release");
+                    return;
+                }
+                if (mHandler == null) {
+                    mThread = new HandlerThread("BTManager-events");
+                    mThread.start();
+                    mHandler = new Handler(mThread.getLooper());
                 }
+                handler = mHandler;
+            }
+            handler.post(command);
+        }
+
+        /**
+         * 已送出的事件處理完後結束thread
+         */
+        synchronized void quit() {
+            mIsQuit = true;
+
+            if (mThread != null) {
+                mThread.quitSafely();
+                mThread = null;
+                mHandler = null;
             }
         }
     }
@@ -0,0 +1,326 @@
+package ray.library.android.bluetooth;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and {@link Histogram}s of Bluetooth operations, all durations are in nanos.
+ * Recording on the data path (bytes, frame latency) does not allocate.
+ */
+public class BTMetrics {
+    private final static long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong mAcceptCount = new AtomicLong();
+    private final AtomicLong mConnectSuccessCount = new AtomicLong();
+    private final AtomicLong mConnectFailureCount = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicLong mScanCount = new AtomicLong();
+    private final AtomicLong mBondFailureCount = new AtomicLong();
+    private final AtomicLong mLinkLostCount = new AtomicLong();
+    private final Histogram mConnectTime = new Histogram();
+    private final Histogram mFrameLatency = new Histogram();
+    private final Histogram mRpcLatency = new Histogram();
+    private final Histogram mTimeToFirstDevice = new Histogram();
+    private final Histogram mDevicesPerScan = new Histogram();
+    private final Histogram mBondDuration = new Histogram();
+    private final CompressionStats mCompression = new CompressionStats();
+    private final CopyOnWriteArrayList<ConnectionStats> mOpenConnections = new CopyOnWriteArrayList<ConnectionStats>();
+    private final ConcurrentHashMap<String, Long> mBondStartNanos = new ConcurrentHashMap<String, Long>();
+    private volatile long mStartNanos = System.nanoTime();
+    private long mScanStartNanos;
+    private final Set<String> mScanAddresses = new HashSet<String>();
+
+    public Histogram getConnectTime() {
+        return mConnectTime;
+    }
+
+    public Histogram getFrameLatency() {
+        return mFrameLatency;
+    }
+
+    public Histogram getRpcLatency() {
+        return mRpcLatency;
+    }
+
+    public Histogram getTimeToFirstDevice() {
+        return mTimeToFirstDevice;
+    }
+
+    public Histogram getDevicesPerScan() {
+        return mDevicesPerScan;
+    }
+
+    public Histogram getBondDuration() {
+        return mBondDuration;
+    }
+
+    /**
+     * 所有壓縮連線共用的統計
+     */
+    public CompressionStats getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * keepalive判定斷線
+     */
+    public void recordLinkLost() {
+        mLinkLostCount.incrementAndGet();
+    }
+
+    public void recordAccept() {
+        mAcceptCount.incrementAndGet();
+    }
+
+    public void recordConnect(boolean success, long connectNanos) {
+        if (success) {
+            mConnectSuccessCount.incrementAndGet();
+            mConnectTime.record(connectNanos);
+        } else {
+            mConnectFailureCount.incrementAndGet();
+        }
+    }
+
+    ConnectionStats openConnection(String address, boolean inbound) {
+        ConnectionStats stats = new ConnectionStats(address, inbound, System.currentTimeMillis());
+
+        mOpenConnections.add(stats);
+        return stats;
+    }
+
+    void closeConnection(ConnectionStats stats) {
+        if (mOpenConnections.remove(stats)) {
+            stats.setClosedAtMillis(System.currentTimeMillis());
+        }
+    }
+
+    void addBytesIn(ConnectionStats stats, long count) {
+        stats.addBytesIn(count);
+        mBytesIn.addAndGet(count);
+    }
+
+    void addBytesOut(ConnectionStats stats, long count) {
+        stats.addBytesOut(count);
+        mBytesOut.addAndGet(count);
+    }
+
+    /**
+     * ACTION_DISCOVERY_STARTED，在接收廣播的thread上呼叫
+     */
+    public synchronized void onDiscoveryStarted(long nowNanos) {
+        mScanStartNanos = nowNanos;
+        mScanAddresses.clear();
+    }
+
+    /**
+     * ACTION_FOUND，同一次搜尋中重複回報的裝置不重複計算
+     */
+    public synchronized void onDeviceDiscovered(String address, long nowNanos) {
+        if (mScanStartNanos == 0L || !mScanAddresses.add(address)) {
+            return;
+        }
+        if (mScanAddresses.size() == 1) {
+            mTimeToFirstDevice.record(nowNanos - mScanStartNanos);
+        }
+    }
+
+    /**
+     * ACTION_DISCOVERY_FINISHED
+     */
+    public synchronized void onDiscoveryFinished() {
+        if (mScanStartNanos == 0L) {
+            return;
+        }
+        mScanStartNanos = 0L;
+        mScanCount.incrementAndGet();
+        mDevicesPerScan.record(mScanAddresses.size());
+        mScanAddresses.clear();
+    }
+
+    public void onBondStarted(String address, long nowNanos) {
+        mBondStartNanos.put(address, nowNanos);
+    }
+
+    /**
+     * @param success false : BOND_BONDING -> BOND_NONE
+     */
+    public void onBondFinished(String address, boolean success, long nowNanos) {
+        Long startNanos = mBondStartNanos.remove(address);
+
+        if (startNanos == null) {
+            return;
+        }
+        if (success) {
+            mBondDuration.record(nowNanos - startNanos);
+        } else {
+            mBondFailureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 清除所有統計，開啟中的連線保留但不重設其byte數
+     */
+    public void reset() {
+        mAcceptCount.set(0L);
+        mConnectSuccessCount.set(0L);
+        mConnectFailureCount.set(0L);
+        mBytesIn.set(0L);
+        mBytesOut.set(0L);
+        mScanCount.set(0L);
+        mBondFailureCount.set(0L);
+        mLinkLostCount.set(0L);
+        mConnectTime.reset();
+        mFrameLatency.reset();
+        mRpcLatency.reset();
+        mTimeToFirstDevice.reset();
+        mDevicesPerScan.reset();
+        mBondDuration.reset();
+        mCompression.reset();
+        mStartNanos = System.nanoTime();
+    }
+
+    public Snapshot getSnapshot() {
+        return new Snapshot(this);
+    }
+
+    public void dump(PrintWriter writer) {
+        Snapshot snapshot = getSnapshot();
+
+        writer.println("uptime[" + snapshot.getUptimeMillis() + "ms]");
+        writer.println("accept count[" + snapshot.getAcceptCount() + "],rate[" + snapshot.getAcceptRatePerSecond() + "/s]");
+        writer.println("connect success[" + snapshot.getConnectSuccessCount() + "],failure[" + snapshot.getConnectFailureCount() + "]");
+        writer.println("connect time(ms) " + snapshot.getConnectTime().format(NANOS_PER_MILLI));
+        writer.println("bytes in[" + snapshot.getBytesIn() + "],out[" + snapshot.getBytesOut() + "]");
+        writer.println("frame latency(us) " + snapshot.getFrameLatency().format(1000L));
+        writer.println("rpc latency(us) " + snapshot.getRpcLatency().format(1000L));
+        writer.println("scan count[" + snapshot.getScanCount() + "]");
+        writer.println("time to first device(ms) " + snapshot.getTimeToFirstDevice().format(NANOS_PER_MILLI));
+        writer.println("devices per scan " + snapshot.getDevicesPerScan().format(1L));
+        writer.println("bond failure[" + snapshot.getBondFailureCount() + "]");
+        writer.println("bond duration(ms) " + snapshot.getBondDuration().format(NANOS_PER_MILLI));
+        writer.println("link lost[" + snapshot.getLinkLostCount() + "]");
+        writer.println("compression " + mCompression);
+
+        for (ConnectionStats stats : snapshot.getOpenConnections()) {
+            writer.println("connection " + stats);
+        }
+        writer.flush();
+    }
+
+    public static class Snapshot {
+        private final long mUptimeMillis;
+        private final long mAcceptCount;
+        private final long mConnectSuccessCount;
+        private final long mConnectFailureCount;
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final long mScanCount;
+        private final long mBondFailureCount;
+        private final long mLinkLostCount;
+        private final Histogram.Snapshot mConnectTime;
+        private final Histogram.Snapshot mFrameLatency;
+        private final Histogram.Snapshot mRpcLatency;
+        private final Histogram.Snapshot mTimeToFirstDevice;
+        private final Histogram.Snapshot mDevicesPerScan;
+        private final Histogram.Snapshot mBondDuration;
+        private final List<ConnectionStats> mOpenConnections;
+
+        Snapshot(BTMetrics metrics) {
+            mUptimeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - metrics.mStartNanos);
+            mAcceptCount = metrics.mAcceptCount.get();
+            mConnectSuccessCount = metrics.mConnectSuccessCount.get();
+            mConnectFailureCount = metrics.mConnectFailureCount.get();
+            mBytesIn = metrics.mBytesIn.get();
+            mBytesOut = metrics.mBytesOut.get();
+            mScanCount = metrics.mScanCount.get();
+            mBondFailureCount = metrics.mBondFailureCount.get();
+            mLinkLostCount = metrics.mLinkLostCount.get();
+            mConnectTime = metrics.mConnectTime.getSnapshot();
+            mFrameLatency = metrics.mFrameLatency.getSnapshot();
+            mRpcLatency = metrics.mRpcLatency.getSnapshot();
+            mTimeToFirstDevice = metrics.mTimeToFirstDevice.getSnapshot();
+            mDevicesPerScan = metrics.mDevicesPerScan.getSnapshot();
+            mBondDuration = metrics.mBondDuration.getSnapshot();
+            mOpenConnections = new ArrayList<ConnectionStats>(metrics.mOpenConnections);
+        }
+
+        public long getUptimeMillis() {
+            return mUptimeMillis;
+        }
+
+        public long getAcceptCount() {
+            return mAcceptCount;
+        }
+
+        public double getAcceptRatePerSecond() {
+            return mUptimeMillis == 0L ? 0.0 : mAcceptCount * 1000.0 / mUptimeMillis;
+        }
+
+        public long getConnectSuccessCount() {
+            return mConnectSuccessCount;
+        }
+
+        public long getConnectFailureCount() {
+            return mConnectFailureCount;
+        }
+
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        public long getScanCount() {
+            return mScanCount;
+        }
+
+        public long getBondFailureCount() {
+            return mBondFailureCount;
+        }
+
+        public long getLinkLostCount() {
+            return mLinkLostCount;
+        }
+
+        public Histogram.Snapshot getConnectTime() {
+            return mConnectTime;
+        }
+
+        public Histogram.Snapshot getFrameLatency() {
+            return mFrameLatency;
+        }
+
+        public Histogram.Snapshot getRpcLatency() {
+            return mRpcLatency;
+        }
+
+        public Histogram.Snapshot getTimeToFirstDevice() {
+            return mTimeToFirstDevice;
+        }
+
+        public Histogram.Snapshot getDevicesPerScan() {
+            return mDevicesPerScan;
+        }
+
+        public Histogram.Snapshot getBondDuration() {
+            return mBondDuration;
+        }
+
+        /**
+         * @return 各連線的ConnectionStats為即時數值
+         */
+        public List<ConnectionStats> getOpenConnections() {
+            return mOpenConnections;
+        }
+    }
+}
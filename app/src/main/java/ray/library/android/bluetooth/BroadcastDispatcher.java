@@ -0,0 +1,277 @@
+package ray.library.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * What BTManager does with each Bluetooth broadcast: discovery cache, metrics, known devices,
+ * targeted discoveries, the pairing queue and the listener events. Everything is driven by
+ * {@link BroadcastRecord}, so the same path runs live from BluetoothReceiver and from
+ * {@link BroadcastReplayer} on a plain JVM, where no android method is called.
+ */
+public class BroadcastDispatcher {
+    private final static String TAG = RayLog.tag(BroadcastDispatcher.class);
+    private final static BTEventBus.Event<BTManager.OnDiscoveryBluetoothFinishListener> DISCOVERY_FINISH_EVENT = new BTEventBus.Event<BTManager.OnDiscoveryBluetoothFinishListener>() {
+        @Override
+        public void deliver(BTManager.OnDiscoveryBluetoothFinishListener listener) {
+            listener.onDiscoveryBluetoothFinish();
+        }
+    };
+    private final static BTEventBus.Event<BTManager.OnBluetoothStateChangedListener> STATE_ON_EVENT = new StateChangedEvent(true);
+    private final static BTEventBus.Event<BTManager.OnBluetoothStateChangedListener> STATE_OFF_EVENT = new StateChangedEvent(false);
+    private final static BTEventBus.Event<BTManager.OnBluetoothStateChangingListener> STATE_TURNING_ON_EVENT = new StateChangingEvent(true);
+    private final static BTEventBus.Event<BTManager.OnBluetoothStateChangingListener> STATE_TURNING_OFF_EVENT = new StateChangingEvent(false);
+
+    private final BTEventBus mEventBus;
+    private final BTMetrics mMetrics;
+    private final DiscoveryCache mDiscoveryCache;
+    private KnownDeviceStore mKnownDeviceStore;
+    private DeviceResolver mDeviceResolver;
+    private List<TargetedDiscovery> mTargetedDiscoveries;
+    private volatile PairingQueue mPairingQueue;
+    private Runnable mOnDiscoveryFinished;
+
+    /**
+     * replay時自行建立，listener以eventBus註冊；listener收到的BluetoothDevice為null
+     */
+    public BroadcastDispatcher(BTEventBus eventBus, BTMetrics metrics, DiscoveryCache discoveryCache) {
+        if (eventBus == null || metrics == null || discoveryCache == null) {
+            throw new IllegalArgumentException("eventBus == null || metrics == null || discoveryCache == null");
+        }
+        mEventBus = eventBus;
+        mMetrics = metrics;
+        mDiscoveryCache = discoveryCache;
+    }
+
+    /**
+     * @param store 可為null
+     */
+    public void setKnownDeviceStore(KnownDeviceStore store) {
+        mKnownDeviceStore = store;
+    }
+
+    void setDeviceResolver(DeviceResolver resolver) {
+        mDeviceResolver = resolver;
+    }
+
+    void setTargetedDiscoveries(List<TargetedDiscovery> targetedDiscoveries) {
+        mTargetedDiscoveries = targetedDiscoveries;
+    }
+
+    void setPairingQueue(PairingQueue pairingQueue) {
+        mPairingQueue = pairingQueue;
+    }
+
+    /**
+     * @param onDiscoveryFinished TYPE_DISCOVERY_FINISHED處理完後呼叫
+     */
+    void setOnDiscoveryFinished(Runnable onDiscoveryFinished) {
+        mOnDiscoveryFinished = onDiscoveryFinished;
+    }
+
+    public DiscoveryCache getDiscoveryCache() {
+        return mDiscoveryCache;
+    }
+
+    /**
+     * 在接收廣播或replay的thread上呼叫
+     */
+    public void dispatch(BroadcastRecord record) {
+        switch (record.getType()) {
+            case BroadcastRecord.TYPE_FOUND:
+                onFound(record);
+                break;
+            case BroadcastRecord.TYPE_BOND_STATE_CHANGED:
+                onBondStateChanged(record);
+                break;
+            case BroadcastRecord.TYPE_DISCOVERY_STARTED:
+                RayLog.event(TAG, "discovery started", null);
+                mMetrics.onDiscoveryStarted(record.getTimestampNanos());
+                break;
+            case BroadcastRecord.TYPE_DISCOVERY_FINISHED:
+                onDiscoveryFinished();
+                break;
+            case BroadcastRecord.TYPE_STATE_CHANGED:
+                onStateChanged(record.getState());
+                break;
+        }
+    }
+
+    private void onFound(BroadcastRecord record) {
+        String address = record.getAddress();
+        long nowMillis = TimeUnit.NANOSECONDS.toMillis(record.getTimestampNanos());
+        DiscoveredDevice discoveredDevice = updateDiscoveryCache(record, nowMillis);
+
+        mMetrics.onDeviceDiscovered(address, record.getTimestampNanos());
+        RayLog.event(TAG, "found ", address);
+
+        List<TargetedDiscovery> targetedDiscoveries = mTargetedDiscoveries;
+
+        if (targetedDiscoveries != null && !targetedDiscoveries.isEmpty()) {
+            DiscoveredDevice current = discoveredDevice != null ? discoveredDevice
+                    : mDiscoveryCache.get(address, nowMillis);
+
+            for (TargetedDiscovery discovery : targetedDiscoveries) {
+                discovery.onDevice(current);
+            }
+        }
+        if (discoveredDevice == null) {// 重複回報
+            return;
+        }
+        postFound(resolve(address), discoveredDevice);
+    }
+
+    private void onBondStateChanged(BroadcastRecord record) {
+        String address = record.getAddress();
+        int state = record.getState();
+        int prevState = record.getPrevState();
+        PairingQueue pairingQueue = mPairingQueue;
+
+        if (pairingQueue != null) {
+            pairingQueue.onBondStateChanged(address, state, prevState);
+        }
+        if (state == BluetoothDevice.BOND_BONDING) {
+            RayLog.event(TAG, "bonding ", address);
+            mMetrics.onBondStarted(address, record.getTimestampNanos());
+        } else if (state == BluetoothDevice.BOND_BONDED && prevState == BluetoothDevice.BOND_BONDING) {
+            RayLog.event(TAG, "bonded ", address);
+            mMetrics.onBondFinished(address, true, record.getTimestampNanos());
+            if (mKnownDeviceStore != null) {
+                mKnownDeviceStore.put(address, record.getName(), record.getDeviceClass());
+            }
+            postPaired(resolve(address), true);
+        } else if (state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDING) {
+            RayLog.event(TAG, "bond failed ", address);
+            mMetrics.onBondFinished(address, false, record.getTimestampNanos());
+            postPairFailed(resolve(address));
+        } else if (state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDED) {
+            RayLog.event(TAG, "unpaired ", address);
+            postPaired(resolve(address), false);
+        }
+    }
+
+    private void onDiscoveryFinished() {
+        mMetrics.onDiscoveryFinished();
+        RayLog.event(TAG, "discovery finished", null);
+        List<TargetedDiscovery> targetedDiscoveries = mTargetedDiscoveries;
+
+        if (targetedDiscoveries != null) {
+            for (TargetedDiscovery discovery : targetedDiscoveries) {
+                discovery.finish(TargetedDiscovery.REASON_FINISHED);
+            }
+        }
+        mEventBus.post(BTManager.OnDiscoveryBluetoothFinishListener.class, DISCOVERY_FINISH_EVENT);
+
+        if (mOnDiscoveryFinished != null) {
+            mOnDiscoveryFinished.run();
+        }
+    }
+
+    private void onStateChanged(int state) {
+        RayLog.event(TAG, "adapter state ", state);
+        switch (state) {
+            case BluetoothAdapter.STATE_OFF:
+                mEventBus.post(BTManager.OnBluetoothStateChangedListener.class, STATE_OFF_EVENT);
+                break;
+            case BluetoothAdapter.STATE_TURNING_OFF:
+                mEventBus.post(BTManager.OnBluetoothStateChangingListener.class, STATE_TURNING_OFF_EVENT);
+                break;
+            case BluetoothAdapter.STATE_ON:
+                mEventBus.post(BTManager.OnBluetoothStateChangedListener.class, STATE_ON_EVENT);
+                break;
+            case BluetoothAdapter.STATE_TURNING_ON:
+                mEventBus.post(BTManager.OnBluetoothStateChangingListener.class, STATE_TURNING_ON_EVENT);
+                break;
+        }
+    }
+
+    private DiscoveredDevice updateDiscoveryCache(BroadcastRecord record, long nowMillis) {
+        short rssi = record.getRssi();
+
+        if (rssi != DiscoveredDevice.RSSI_UNKNOWN && mKnownDeviceStore != null) {
+            mKnownDeviceStore.updateRssi(record.getAddress(), rssi);
+        }
+        return mDiscoveryCache.update(record.getAddress(), record.getName(), record.getDeviceClass(), rssi, nowMillis);
+    }
+
+    private BluetoothDevice resolve(String address) {
+        DeviceResolver resolver = mDeviceResolver;
+
+        return resolver == null ? null : resolver.getRemoteDevice(address);
+    }
+
+    private void postFound(final BluetoothDevice device, final DiscoveredDevice discoveredDevice) {
+        mEventBus.post(BTManager.OnFoundBluetoothDeviceListener.class, new BTEventBus.Event<BTManager.OnFoundBluetoothDeviceListener>() {
+            @Override
+            public void deliver(BTManager.OnFoundBluetoothDeviceListener listener) {
+                listener.onFoundBluetoothDevice(device);
+            }
+        });
+        mEventBus.post(BTManager.OnDiscoveredDeviceListener.class, new BTEventBus.Event<BTManager.OnDiscoveredDeviceListener>() {
+            @Override
+            public void deliver(BTManager.OnDiscoveredDeviceListener listener) {
+                listener.onDiscoveredDevice(device, discoveredDevice);
+            }
+        });
+    }
+
+    private void postPaired(final BluetoothDevice device, final boolean paired) {
+        mEventBus.post(BTManager.OnPairBluetoothDeviceListener.class, new BTEventBus.Event<BTManager.OnPairBluetoothDeviceListener>() {
+            @Override
+            public void deliver(BTManager.OnPairBluetoothDeviceListener listener) {
+                if (paired) {
+                    listener.onPairedBluetoothDevice(device);
+                } else {
+                    listener.onUnpairedBluetoothDevice(device);
+                }
+            }
+        });
+    }
+
+    private void postPairFailed(final BluetoothDevice device) {
+        mEventBus.post(BTManager.OnPairFailedBluetoothDeviceListener.class, new BTEventBus.Event<BTManager.OnPairFailedBluetoothDeviceListener>() {
+            @Override
+            public void deliver(BTManager.OnPairFailedBluetoothDeviceListener listener) {
+                listener.onPairFailedBluetoothDevice(device);
+            }
+        });
+    }
+
+    /**
+     * address轉為listener需要的BluetoothDevice，ex : BluetoothAdapter.getRemoteDevice
+     */
+    interface DeviceResolver {
+        BluetoothDevice getRemoteDevice(String address);
+    }
+
+    private static class StateChangedEvent implements BTEventBus.Event<BTManager.OnBluetoothStateChangedListener> {
+        private final boolean mEnable;
+
+        StateChangedEvent(boolean enable) {
+            mEnable = enable;
+        }
+
+        @Override
+        public void deliver(BTManager.OnBluetoothStateChangedListener listener) {
+            listener.onBluetoothStateChanged(mEnable);
+        }
+    }
+
+    private static class StateChangingEvent implements BTEventBus.Event<BTManager.OnBluetoothStateChangingListener> {
+        private final boolean mEnable;
+
+        StateChangingEvent(boolean enable) {
+            mEnable = enable;
+        }
+
+        @Override
+        public void deliver(BTManager.OnBluetoothStateChangingListener listener) {
+            listener.onBluetoothStateChanging(mEnable);
+        }
+    }
+}
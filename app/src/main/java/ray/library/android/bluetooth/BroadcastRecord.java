@@ -0,0 +1,105 @@
+package ray.library.android.bluetooth;
+
+/**
+ * One Bluetooth broadcast handled by BTManager, reduced to the fields the library reads, so it
+ * can be dispatched, traced by {@link BroadcastTrace} and replayed without android.content.Intent.
+ * State values are those of BluetoothAdapter / BluetoothDevice.
+ */
+public class BroadcastRecord {
+    /**
+     * BluetoothDevice.ACTION_FOUND
+     */
+    public final static int TYPE_FOUND = 1;
+    /**
+     * BluetoothDevice.ACTION_BOND_STATE_CHANGED
+     */
+    public final static int TYPE_BOND_STATE_CHANGED = 2;
+    /**
+     * BluetoothAdapter.ACTION_DISCOVERY_STARTED
+     */
+    public final static int TYPE_DISCOVERY_STARTED = 3;
+    /**
+     * BluetoothAdapter.ACTION_DISCOVERY_FINISHED
+     */
+    public final static int TYPE_DISCOVERY_FINISHED = 4;
+    /**
+     * BluetoothAdapter.ACTION_STATE_CHANGED
+     */
+    public final static int TYPE_STATE_CHANGED = 5;
+
+    private final int mType;
+    private final long mTimestampNanos;
+    private final String mAddress;
+    private final String mName;
+    private final int mDeviceClass;
+    private final short mRssi;
+    private final int mState;
+    private final int mPrevState;
+
+    /**
+     * @param timestampNanos SystemClock.elapsedRealtimeNanos()
+     * @param address        TYPE_FOUND、TYPE_BOND_STATE_CHANGED以外為null
+     * @param rssi           沒有時為DiscoveredDevice.RSSI_UNKNOWN
+     * @param state          EXTRA_BOND_STATE或EXTRA_STATE
+     * @param prevState      EXTRA_PREVIOUS_BOND_STATE或EXTRA_PREVIOUS_STATE
+     */
+    public BroadcastRecord(int type, long timestampNanos, String address, String name, int deviceClass, short rssi,
+                           int state, int prevState) {
+        if (type < TYPE_FOUND || type > TYPE_STATE_CHANGED) {
+            throw new IllegalArgumentException("type[" + type + "]");
+        }
+        if (address == null && hasDevice(type)) {
+            throw new IllegalArgumentException("address == null");
+        }
+        mType = type;
+        mTimestampNanos = timestampNanos;
+        mAddress = address;
+        mName = name;
+        mDeviceClass = deviceClass;
+        mRssi = rssi;
+        mState = state;
+        mPrevState = prevState;
+    }
+
+    static boolean hasDevice(int type) {
+        return type == TYPE_FOUND || type == TYPE_BOND_STATE_CHANGED;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getDeviceClass() {
+        return mDeviceClass;
+    }
+
+    public short getRssi() {
+        return mRssi;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public int getPrevState() {
+        return mPrevState;
+    }
+
+    @Override
+    public String toString() {
+        return "type[" + mType + "] t[" + mTimestampNanos + "] " + mAddress + " name[" + mName + "] class["
+                + mDeviceClass + "] rssi[" + mRssi + "] state[" + mPrevState + "->" + mState + "]";
+    }
+}
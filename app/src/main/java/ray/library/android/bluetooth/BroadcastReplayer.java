@@ -0,0 +1,152 @@
+package ray.library.android.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a {@link BroadcastTrace} through a {@link BroadcastDispatcher} on the calling thread,
+ * either paced by the recorded timestamps or as fast as possible. Each dispatch is timed,
+ * so a field trace such as a discovery storm, bond flapping or adapter toggling becomes a
+ * repeatable regression test on a plain JVM. Listeners registered on the dispatcher's
+ * {@link BTEventBus} see the events as they would on a device.
+ */
+public class BroadcastReplayer {
+    /**
+     * 不等待，連續dispatch
+     */
+    public final static double SPEED_UNLIMITED = 0.0;
+    public final static double SPEED_RECORDED = 1.0;
+
+    private final BroadcastDispatcher mDispatcher;
+    private double mSpeed = SPEED_UNLIMITED;
+
+    public BroadcastReplayer(BroadcastDispatcher dispatcher) {
+        if (dispatcher == null) {
+            throw new IllegalArgumentException("dispatcher == null");
+        }
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * @param speed SPEED_RECORDED依記錄的間隔，2.0為兩倍速，SPEED_UNLIMITED不等待
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0.0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("speed[" + speed + "]");
+        }
+        mSpeed = speed;
+    }
+
+    public Result replay(File file) throws IOException {
+        BroadcastTrace.Reader reader = BroadcastTrace.openReader(file);
+
+        try {
+            return replay(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * 讀完reader為止，不關閉reader
+     *
+     * @throws IOException 讀取失敗，已dispatch的record不會還原
+     */
+    public Result replay(BroadcastTrace.Reader reader) throws IOException {
+        Histogram dispatchTime = new Histogram();
+        double speed = mSpeed;
+        long startNanos = System.nanoTime();
+        long firstTimestamp = 0L;
+        long lastTimestamp = 0L;
+        long maxLagNanos = 0L;
+        long count = 0L;
+        BroadcastRecord record;
+
+        while ((record = reader.read()) != null) {
+            if (count == 0L) {
+                firstTimestamp = record.getTimestampNanos();
+            }
+            lastTimestamp = record.getTimestampNanos();
+            if (speed > 0.0) {
+                long due = startNanos + (long) ((lastTimestamp - firstTimestamp) / speed);
+                long wait;
+
+                while ((wait = due - System.nanoTime()) > 0L) {
+                    LockSupport.parkNanos(wait);
+                    if (Thread.interrupted()) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                maxLagNanos = Math.max(maxLagNanos, -wait);
+            }
+            long dispatchStart = System.nanoTime();
+
+            mDispatcher.dispatch(record);
+            dispatchTime.record(System.nanoTime() - dispatchStart);
+            count++;
+        }
+        return new Result(count, System.nanoTime() - startNanos, lastTimestamp - firstTimestamp, maxLagNanos,
+                dispatchTime.getSnapshot());
+    }
+
+    public static class Result {
+        private final long mRecordCount;
+        private final long mElapsedNanos;
+        private final long mTraceNanos;
+        private final long mMaxLagNanos;
+        private final Histogram.Snapshot mDispatchTime;
+
+        Result(long recordCount, long elapsedNanos, long traceNanos, long maxLagNanos, Histogram.Snapshot dispatchTime) {
+            mRecordCount = recordCount;
+            mElapsedNanos = elapsedNanos;
+            mTraceNanos = traceNanos;
+            mMaxLagNanos = maxLagNanos;
+            mDispatchTime = dispatchTime;
+        }
+
+        public long getRecordCount() {
+            return mRecordCount;
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * @return 第一筆至最後一筆record的記錄時間
+         */
+        public long getTraceNanos() {
+            return mTraceNanos;
+        }
+
+        /**
+         * @return 依速度重播時，record比預定時間晚dispatch的最大值；dispatch跟不上時會持續增加
+         */
+        public long getMaxLagNanos() {
+            return mMaxLagNanos;
+        }
+
+        public double getRecordsPerSecond() {
+            return mElapsedNanos <= 0L ? 0.0 : mRecordCount * (double) TimeUnit.SECONDS.toNanos(1) / mElapsedNanos;
+        }
+
+        /**
+         * @return 每筆dispatch的時間(ns)，含THREAD_POSTING listener
+         */
+        public Histogram.Snapshot getDispatchTime() {
+            return mDispatchTime;
+        }
+
+        @Override
+        public String toString() {
+            return "records[" + mRecordCount + "] elapsed[" + TimeUnit.NANOSECONDS.toMillis(mElapsedNanos)
+                    + "ms] trace[" + TimeUnit.NANOSECONDS.toMillis(mTraceNanos) + "ms] rate["
+                    + (long) getRecordsPerSecond() + "/s] max lag[" + TimeUnit.NANOSECONDS.toMicros(mMaxLagNanos)
+                    + "us] dispatch(ns) " + mDispatchTime.format(1L);
+        }
+    }
+}
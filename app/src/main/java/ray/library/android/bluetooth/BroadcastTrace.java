@@ -0,0 +1,234 @@
+package ray.library.android.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary trace of {@link BroadcastRecord}s, written by BTManager while tracing and read
+ * back by {@link BroadcastReplayer}. A discovery storm record takes about 15 bytes.
+ * <pre>
+ * header : magic "BTTR"(4) | version(2) | wall clock millis at start(8)
+ * record : type(1) | zigzag varint timestamp nanos, absolute in the first record and
+ *          relative to the previous record afterwards (negative when out of order)
+ *          [TYPE_FOUND, TYPE_BOND_STATE_CHANGED : address(6) | varint name length + 1, 0 = null | name UTF-8
+ *          | varint deviceClass | rssi(2)]
+ *          | zigzag varint state | zigzag varint prevState
+ * </pre>
+ */
+public class BroadcastTrace {
+    private final static int MAGIC = 0x42545452;// "BTTR"
+    private final static short VERSION = 1;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private BroadcastTrace() {
+    }
+
+    public static Writer openWriter(File file) throws IOException {
+        return new Writer(new FileOutputStream(file));
+    }
+
+    public static Reader openReader(File file) throws IOException {
+        return new Reader(new FileInputStream(file));
+    }
+
+    /**
+     * 任何thread皆可寫入，依呼叫順序記錄
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private long mLastNanos;
+        private boolean mHasRecord;
+        private long mRecordCount;
+
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out, 8192));
+            mOut.writeInt(MAGIC);
+            mOut.writeShort(VERSION);
+            mOut.writeLong(System.currentTimeMillis());
+        }
+
+        public synchronized void write(BroadcastRecord record) throws IOException {
+            // 第一筆記錄絕對時間，之後為差值；亂序時差值為負，以zigzag保留
+            long delta = mHasRecord ? record.getTimestampNanos() - mLastNanos : record.getTimestampNanos();
+
+            mOut.writeByte(record.getType());
+            writeVarLong(zigzag(delta));
+            if (BroadcastRecord.hasDevice(record.getType())) {
+                writeAddress(record.getAddress());
+                if (record.getName() == null) {
+                    writeVarLong(0L);
+                } else {
+                    byte[] name = record.getName().getBytes(UTF_8);
+
+                    writeVarLong(name.length + 1L);
+                    mOut.write(name);
+                }
+                writeVarLong(record.getDeviceClass() & 0xFFFFFFFFL);
+                mOut.writeShort(record.getRssi());
+            }
+            writeVarLong(zigzag(record.getState()));
+            writeVarLong(zigzag(record.getPrevState()));
+            mLastNanos = record.getTimestampNanos();
+            mHasRecord = true;
+            mRecordCount++;
+        }
+
+        public synchronized long getRecordCount() {
+            return mRecordCount;
+        }
+
+        public synchronized void flush() throws IOException {
+            mOut.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            mOut.close();
+        }
+
+        private void writeAddress(String address) throws IOException {
+            if (address.length() != 17) {
+                throw new IllegalArgumentException("address[" + address + "]");
+            }
+            for (int i = 0; i < 6; i++) {
+                mOut.writeByte(Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16));
+            }
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0L) {
+                mOut.writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mOut.writeByte((int) value);
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    /**
+     * 只能由一個thread讀取
+     */
+    public static class Reader implements Closeable {
+        private final static char[] HEX = "0123456789ABCDEF".toCharArray();
+        private final DataInputStream mIn;
+        private final long mStartMillis;
+        private final char[] mAddress = new char[17];
+        private long mLastNanos;
+        private boolean mHasRecord;
+
+        public Reader(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in, 8192));
+            if (mIn.readInt() != MAGIC) {
+                throw new IOException("not a broadcast trace");
+            }
+            short version = mIn.readShort();
+
+            if (version != VERSION) {
+                throw new IOException("unsupported trace version[" + version + "]");
+            }
+            mStartMillis = mIn.readLong();
+        }
+
+        /**
+         * @return 開始記錄時的System.currentTimeMillis()
+         */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * @return null 已讀完
+         * @throws IOException 格式錯誤或檔案被截斷
+         */
+        public BroadcastRecord read() throws IOException {
+            int type = mIn.read();
+
+            if (type < 0) {
+                return null;
+            }
+            long delta = unzigzag(readVarLong());
+            long timestampNanos = mHasRecord ? mLastNanos + delta : delta;
+            String address = null;
+            String name = null;
+            int deviceClass = 0;
+            short rssi = DiscoveredDevice.RSSI_UNKNOWN;
+
+            if (BroadcastRecord.hasDevice(type)) {
+                address = readAddress();
+                int nameLength = (int) readVarLong();
+
+                if (nameLength > 0) {
+                    byte[] b = new byte[nameLength - 1];
+
+                    mIn.readFully(b);
+                    name = new String(b, UTF_8);
+                }
+                deviceClass = (int) readVarLong();
+                rssi = mIn.readShort();
+            }
+            int state = (int) unzigzag(readVarLong());
+            int prevState = (int) unzigzag(readVarLong());
+
+            mLastNanos = timestampNanos;
+            mHasRecord = true;
+            try {
+                return new BroadcastRecord(type, timestampNanos, address, name, deviceClass, rssi, state, prevState);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("corrupt record, " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private String readAddress() throws IOException {
+            for (int i = 0; i < 6; i++) {
+                int b = mIn.readUnsignedByte();
+
+                mAddress[i * 3] = HEX[b >> 4];
+                mAddress[i * 3 + 1] = HEX[b & 0x0F];
+                if (i < 5) {
+                    mAddress[i * 3 + 2] = ':';
+                }
+            }
+            return new String(mAddress);
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0L;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = mIn.read();
+
+                if (b < 0) {
+                    throw new EOFException("truncated trace");
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1L);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ray.library.android.bluetooth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Size-classed pool of heap {@link ByteBuffer}s, classes are powers of two between
+ * minSize and maxSize. acquire/release do not allocate once a class is warmed up,
+ * requests larger than maxSize are allocated and dropped on release.
+ */
+public class BufferPool {
+    public final static int DEFAULT_MIN_SIZE = 64;
+    public final static int DEFAULT_MAX_SIZE = 64 * 1024;
+    public final static int DEFAULT_MAX_PER_CLASS = 16;
+    private static BufferPool sDefault;
+
+    private final int mMinShift;
+    private final int mMaxSize;
+    private final ByteBuffer[][] mStacks;
+    private final int[] mSizes;
+
+    public BufferPool() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_MAX_PER_CLASS);
+    }
+
+    /**
+     * @param minSize     最小size class，會向上取2的次方
+     * @param maxSize     最大size class，會向上取2的次方
+     * @param maxPerClass 每個size class最多保留的buffer數
+     */
+    public BufferPool(int minSize, int maxSize, int maxPerClass) {
+        if (minSize <= 0 || maxSize < minSize || maxPerClass <= 0) {
+            throw new IllegalArgumentException("minSize <= 0 || maxSize < minSize || maxPerClass <= 0");
+        }
+        mMinShift = ceilShift(minSize);
+        int maxShift = ceilShift(maxSize);
+
+        mMaxSize = 1 << maxShift;
+        mStacks = new ByteBuffer[maxShift - mMinShift + 1][maxPerClass];
+        mSizes = new int[mStacks.length];
+    }
+
+    public static BufferPool getDefault() {
+        if (sDefault == null) {
+            synchronized (BufferPool.class) {
+                if (sDefault == null) {
+                    sDefault = new BufferPool();
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param length
+     * @return position=0, limit=length, capacity>=length
+     */
+    public ByteBuffer acquire(int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0");
+        }
+        ByteBuffer buffer = null;
+
+        if (length <= mMaxSize) {
+            int index = classIndex(length);
+            ByteBuffer[] stack = mStacks[index];
+
+            synchronized (stack) {
+                int size = mSizes[index];
+
+                if (size > 0) {
+                    buffer = stack[--size];
+                    stack[size] = null;
+                    mSizes[index] = size;
+                }
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(1 << (index + mMinShift));
+            }
+        } else {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int capacity = buffer.capacity();
+
+        if (capacity > mMaxSize || Integer.bitCount(capacity) != 1 || capacity < (1 << mMinShift)) {
+            return;
+        }
+        int index = classIndex(capacity);
+        ByteBuffer[] stack = mStacks[index];
+
+        synchronized (stack) {
+            int size = mSizes[index];
+
+            if (size < stack.length) {
+                stack[size] = buffer;
+                mSizes[index] = size + 1;
+            }
+        }
+    }
+
+    private int classIndex(int length) {
+        return Math.max(0, ceilShift(length) - mMinShift);
+    }
+
+    private static int ceilShift(int value) {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -0,0 +1,356 @@
+package ray.library.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Carries up to {@link #MAX_CHANNELS} logical {@link MuxChannel}s, ex : control, telemetry and bulk,
+ * over one connected socket. Every frame is a 4 byte header (type, channel, 16 bit length)
+ * followed by the payload.
+ * <p>
+ * Flow control is per channel and credit based : a sender may only have as many unread bytes
+ * in flight as the receiver announced in its OPEN frame, the receiver returns CREDIT as the
+ * application consumes data. The reader thread therefore never blocks on a slow consumer, which
+ * only stalls its own channel. Writers share the socket through a fair lock, one frame of at most
+ * maxFrameSize bytes at a time, so a bulk transfer cannot hold the link while a control message waits.
+ * Both sides must use the same channel ids.
+ */
+public class ChannelMultiplexer implements Closeable {
+    private final static String TAG = RayLog.tag(ChannelMultiplexer.class);
+    public final static int MAX_CHANNELS = 256;
+    public final static int DEFAULT_WINDOW = 16 * 1024;
+    public final static int DEFAULT_MAX_FRAME_SIZE = 1024;
+    public final static int MAX_FRAME_SIZE = 0xFFFF;
+    final static int TYPE_OPEN = 1;
+    final static int TYPE_DATA = 2;
+    final static int TYPE_CREDIT = 3;
+    final static int TYPE_CLOSE = 4;
+    private final static int HEADER_SIZE = 4;
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final Closeable mCloseable;
+    private final MuxChannel[] mChannels = new MuxChannel[MAX_CHANNELS];
+    private final ReentrantLock mWriteLock = new ReentrantLock(true);
+    private byte[] mWriteBuffer;
+    private int mWindow = DEFAULT_WINDOW;
+    private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private OnChannelListener mOnChannelListener;
+    private Thread mReaderThread;
+    private volatile boolean mIsClose;
+
+    public ChannelMultiplexer(TransportSocket socket) throws IOException {
+        this(socket.getInputStream(), socket.getOutputStream(), socket);
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @param closeable 關閉時一併關閉，ex : socket
+     */
+    public ChannelMultiplexer(InputStream in, OutputStream out, Closeable closeable) {
+        mIn = in;
+        mOut = out;
+        mCloseable = closeable;
+    }
+
+    /**
+     * 每個channel的接收buffer大小，即對方最多可送出未被讀取的bytes；需在start()前設定
+     *
+     * @param window
+     */
+    public void setWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window <= 0");
+        }
+        mWindow = window;
+    }
+
+    /**
+     * 單一frame的最大payload，越小則高優先的channel等待越短；需在start()前設定
+     *
+     * @param maxFrameSize
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0 || maxFrameSize > MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("maxFrameSize[" + maxFrameSize + "]");
+        }
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    public void setOnChannelListener(OnChannelListener listener) {
+        mOnChannelListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mReaderThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        mWriteBuffer = new byte[HEADER_SIZE + mMaxFrameSize];
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "ChannelMultiplexer-reader");
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    /**
+     * 開啟channel，在對方回應OPEN前寫入會等待
+     *
+     * @param id 0 ~ MAX_CHANNELS - 1
+     * @return
+     * @throws IOException
+     */
+    public MuxChannel openChannel(int id) throws IOException {
+        if (id < 0 || id >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("id[" + id + "]");
+        }
+        MuxChannel channel;
+        boolean announce;
+
+        synchronized (this) {
+            checkOpen();
+            channel = mChannels[id];
+
+            if (channel == null) {
+                channel = new MuxChannel(this, id, mWindow);
+                mChannels[id] = channel;
+            }
+            announce = !channel.mIsAnnounced;
+            channel.mIsAnnounced = true;
+        }
+        if (announce) {
+            writeControl(TYPE_OPEN, id, mWindow);
+        }
+        return channel;
+    }
+
+    public synchronized MuxChannel getChannel(int id) {
+        return mChannels[id];
+    }
+
+    public boolean isClose() {
+        return mIsClose;
+    }
+
+    @Override
+    public void close() {
+        close(null);
+    }
+
+    void writeData(int id, byte[] b, int off, int len) throws IOException {
+        mWriteLock.lock();
+        try {
+            checkOpen();
+            writeHeader(TYPE_DATA, id, len);
+            System.arraycopy(b, off, mWriteBuffer, HEADER_SIZE, len);
+            mOut.write(mWriteBuffer, 0, HEADER_SIZE + len);
+            mOut.flush();
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    void writeControl(int type, int id, int value) throws IOException {
+        mWriteLock.lock();
+        try {
+            checkOpen();
+            writeHeader(type, id, 4);
+            mWriteBuffer[4] = (byte) (value >>> 24);
+            mWriteBuffer[5] = (byte) (value >>> 16);
+            mWriteBuffer[6] = (byte) (value >>> 8);
+            mWriteBuffer[7] = (byte) value;
+            mOut.write(mWriteBuffer, 0, HEADER_SIZE + 4);
+            mOut.flush();
+        } catch (IOException e) {
+            close(e);
+            throw e;
+        } finally {
+            mWriteLock.unlock();
+        }
+    }
+
+    synchronized void removeChannel(MuxChannel channel) {
+        if (mChannels[channel.getId()] == channel) {
+            mChannels[channel.getId()] = null;
+        }
+    }
+
+    private void writeHeader(int type, int id, int length) {
+        mWriteBuffer[0] = (byte) type;
+        mWriteBuffer[1] = (byte) id;
+        mWriteBuffer[2] = (byte) (length >>> 8);
+        mWriteBuffer[3] = (byte) length;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mIsClose) {
+            throw new IOException("multiplexer closed");
+        }
+    }
+
+    private void readLoop() {
+        byte[] header = new byte[HEADER_SIZE];
+        byte[] payload = new byte[MAX_FRAME_SIZE];
+
+        try {
+            while (!mIsClose) {
+                if (!readFully(header, HEADER_SIZE, true)) {
+                    close(null);
+                    return;
+                }
+                int type = header[0] & 0xFF;
+                int id = header[1] & 0xFF;
+                int length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+
+                readFully(payload, length, false);
+                dispatch(type, id, payload, length);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void dispatch(int type, int id, byte[] payload, int length) throws IOException {
+        MuxChannel channel;
+
+        switch (type) {
+            case TYPE_OPEN: {
+                boolean announce;
+
+                synchronized (this) {
+                    channel = mChannels[id];
+
+                    if (channel == null) {
+                        channel = new MuxChannel(this, id, mWindow);
+                        mChannels[id] = channel;
+                    }
+                    announce = !channel.mIsAnnounced;
+                    channel.mIsAnnounced = true;
+                }
+                channel.addSendCredits(readInt(payload, length));
+
+                if (announce) {
+                    // 對方開啟的channel
+                    writeControl(TYPE_OPEN, id, mWindow);
+                    OnChannelListener listener = mOnChannelListener;
+
+                    if (listener != null) {
+                        listener.onChannelOpened(channel);
+                    }
+                }
+                break;
+            }
+            case TYPE_DATA:
+                channel = getChannel(id);
+
+                if (channel != null) {// 已在本地關閉的channel直接丟棄
+                    channel.onData(payload, 0, length);
+                }
+                break;
+            case TYPE_CREDIT:
+                channel = getChannel(id);
+
+                if (channel != null) {
+                    channel.addSendCredits(readInt(payload, length));
+                }
+                break;
+            case TYPE_CLOSE:
+                channel = getChannel(id);
+
+                if (channel != null) {
+                    channel.onRemoteClose();
+                }
+                break;
+            default:
+                throw new IOException("unknown frame type[" + type + "]");
+        }
+    }
+
+    private static int readInt(byte[] payload, int length) throws IOException {
+        if (length != 4) {
+            throw new IOException("malformed control frame");
+        }
+        return ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8)
+                | (payload[3] & 0xFF);
+    }
+
+    /**
+     * @return false 在frame開頭遇到EOF
+     */
+    private boolean readFully(byte[] b, int len, boolean eofAllowed) throws IOException {
+        int off = 0;
+
+        while (off < len) {
+            int n = mIn.read(b, off, len - off);
+
+            if (n == -1) {
+                if (off == 0 && eofAllowed) {
+                    return false;
+                }
+                throw new EOFException("EOF in the middle of a frame");
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private void close(IOException cause) {
+        MuxChannel[] channels;
+
+        synchronized (this) {
+            if (mIsClose) {
+                return;
+            }
+            mIsClose = true;
+            channels = mChannels.clone();
+        }
+        if (cause != null) {
+            RayLog.w(TAG, "link failed", cause);
+        }
+        for (MuxChannel channel : channels) {
+            if (channel != null) {
+                channel.onMultiplexerClosed(cause);
+            }
+        }
+        try {
+            mCloseable.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close failed", e);
+        }
+        OnChannelListener listener = mOnChannelListener;
+
+        if (listener != null) {
+            listener.onMultiplexerClosed(cause);
+        }
+    }
+
+    public static interface OnChannelListener {
+        /**
+         * 對方開啟channel，在reader thread上呼叫，不可阻塞
+         */
+        void onChannelOpened(MuxChannel channel);
+
+        /**
+         * @param cause null 表示正常關閉或對方關閉連線
+         */
+        void onMultiplexerClosed(IOException cause);
+    }
+}
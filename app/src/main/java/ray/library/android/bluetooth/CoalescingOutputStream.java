@@ -0,0 +1,240 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces small writes into MTU-sized batches before they reach the socket.
+ * A batch is flushed when it is full, when maxDelayMillis has elapsed since its first byte,
+ * or on {@link #flush()}. Writes larger than a batch bypass the buffer.
+ */
+public class CoalescingOutputStream extends OutputStream {
+    /**
+     * 常見RFCOMM MTU
+     */
+    public final static int DEFAULT_BATCH_SIZE = 990;
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 5L;
+    private static ScheduledExecutorService sFlushScheduler;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer;
+    private final long mMaxDelayMillis;
+    private final ScheduledExecutorService mScheduler;
+    private final Runnable mTimeFlush = new Runnable() {
+        @Override
+        public void run() {
+            onTimeFlush();
+        }
+    };
+    private int mCount;
+    private ScheduledFuture<?> mPendingFlush;
+    private IOException mPendingError;
+    private boolean mIsClose;
+
+    private long mWriteCount;
+    private long mByteCount;
+    private long mBatchCount;
+    private long mSizeFlushCount;
+    private long mTimeFlushCount;
+    private long mExplicitFlushCount;
+
+    public CoalescingOutputStream(OutputStream out) {
+        this(out, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS, null);
+    }
+
+    /**
+     * @param out            socket OutputStream
+     * @param batchSize      每批最大bytes，通常為MTU
+     * @param maxDelayMillis 資料最多在buffer停留的時間，0 表示只依size或flush()送出
+     * @param scheduler      null 使用共用的flush thread(maxDelayMillis為0時不需要)；逾時flush會在其上寫入socket，不可使用{@link SharedScheduler}
+     */
+    public CoalescingOutputStream(OutputStream out, int batchSize, long maxDelayMillis,
+                                  ScheduledExecutorService scheduler) {
+        if (out == null) {
+            throw new IllegalArgumentException("out == null");
+        }
+        if (batchSize <= 0 || maxDelayMillis < 0L) {
+            throw new IllegalArgumentException("batchSize <= 0 || maxDelayMillis < 0");
+        }
+        mOut = out;
+        mBuffer = new byte[batchSize];
+        mMaxDelayMillis = maxDelayMillis;
+        mScheduler = scheduler != null || maxDelayMillis == 0L ? scheduler : getFlushScheduler();
+    }
+
+    /**
+     * 逾時flush會block在socket write上，不與{@link SharedScheduler}的timer共用thread
+     */
+    private static synchronized ScheduledExecutorService getFlushScheduler() {
+        if (sFlushScheduler == null) {
+            sFlushScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CoalescingOutputStream-flush");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sFlushScheduler;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        checkState();
+        mWriteCount++;
+        mByteCount++;
+        mBuffer[mCount++] = (byte) b;
+        onBuffered(1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkState();
+        mWriteCount++;
+        mByteCount += len;
+
+        if (len >= mBuffer.length) {
+            // 大筆資料直接送出，先送出已緩衝的資料以保持順序
+            if (mCount > 0) {
+                mSizeFlushCount++;
+                flushBuffer();
+            }
+            mBatchCount++;
+            mOut.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            int n = Math.min(len, mBuffer.length - mCount);
+
+            System.arraycopy(b, off, mBuffer, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+            onBuffered(n);
+        }
+    }
+
+    /**
+     * 立即送出已緩衝的資料
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        checkState();
+        if (mCount > 0) {
+            mExplicitFlushCount++;
+            flushBuffer();
+        }
+        mOut.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mIsClose) {
+            return;
+        }
+        try {
+            if (mCount > 0 && mPendingError == null) {
+                mExplicitFlushCount++;
+                flushBuffer();
+            }
+        } finally {
+            mIsClose = true;
+            cancelTimeFlush();
+            mOut.close();
+        }
+    }
+
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * 實際呼叫底層write的次數
+     */
+    public synchronized long getBatchCount() {
+        return mBatchCount;
+    }
+
+    public synchronized long getSizeFlushCount() {
+        return mSizeFlushCount;
+    }
+
+    public synchronized long getTimeFlushCount() {
+        return mTimeFlushCount;
+    }
+
+    public synchronized long getExplicitFlushCount() {
+        return mExplicitFlushCount;
+    }
+
+    /**
+     * @return 平均每次底層write的bytes
+     */
+    public synchronized double getAverageBatchSize() {
+        return mBatchCount == 0L ? 0.0 : (double) (mByteCount - mCount) / mBatchCount;
+    }
+
+    private void onBuffered(int added) throws IOException {
+        if (mCount == mBuffer.length) {
+            mSizeFlushCount++;
+            flushBuffer();
+        } else if (mCount == added && mMaxDelayMillis > 0L) {
+            // 此batch的第一筆資料
+            mPendingFlush = mScheduler.schedule(mTimeFlush, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void onTimeFlush() {
+        mPendingFlush = null;
+        if (mIsClose || mCount == 0 || mPendingError != null) {
+            return;
+        }
+        mTimeFlushCount++;
+        try {
+            flushBuffer();
+            mOut.flush();
+        } catch (IOException e) {
+            // 在下一次write時拋出
+            mPendingError = e;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        cancelTimeFlush();
+        int count = mCount;
+
+        mCount = 0;
+        mBatchCount++;
+        mOut.write(mBuffer, 0, count);
+    }
+
+    private void cancelTimeFlush() {
+        if (mPendingFlush != null) {
+            mPendingFlush.cancel(false);
+            mPendingFlush = null;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (mIsClose) {
+            throw new IOException("stream closed");
+        }
+        if (mPendingError != null) {
+            throw new IOException("background flush failed", mPendingError);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+/**
+ * A connected socket whose streams compress per block, created by
+ * {@link CompressionNegotiator#negotiate(TransportSocket)}. Call flush() on the OutputStream
+ * at the end of every message, a partial block is held until then.
+ */
+public class CompressedSocket implements TransportSocket {
+    private final TransportSocket mSocket;
+    private final int mBlockSize;
+    private final byte[] mDictionary;
+    private final CompressionStats mStats;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+
+    CompressedSocket(TransportSocket socket, int blockSize, byte[] dictionary, CompressionStats stats) {
+        mSocket = socket;
+        mBlockSize = blockSize;
+        mDictionary = dictionary;
+        mStats = stats;
+    }
+
+    public TransportSocket getSocket() {
+        return mSocket;
+    }
+
+    public boolean hasDictionary() {
+        return mDictionary != null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // 協商時已連線
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mSocket.isConnected();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mSocket.getRemoteAddress();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (mInputStream == null) {
+            mInputStream = new DecompressingInputStream(mSocket.getInputStream(), mDictionary, mStats);
+        }
+        return mInputStream;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (mOutputStream == null) {
+            mOutputStream = new CompressingOutputStream(mSocket.getOutputStream(), mBlockSize, mDictionary, mStats);
+        }
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
@@ -0,0 +1,193 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Buffers writes into blocks and sends each block deflated (raw deflate, BEST_SPEED) or as is,
+ * read back by {@link DecompressingInputStream}. Block : type | varint(rawLength) | payload,
+ * a deflated block adds varint(payloadLength) before its payload.
+ * <p>
+ * Every block is compressed on its own (with the optional preset dictionary), so a block that
+ * does not shrink can be sent raw without desynchronizing the peer. After an incompressible
+ * block the next ones are sent raw without trying, backing off up to {@link #MAX_SKIP_BLOCKS}.
+ * Not thread safe, one writer at a time.
+ */
+public class CompressingOutputStream extends OutputStream {
+    public final static int DEFAULT_BLOCK_SIZE = 4096;
+    public final static int MAX_BLOCK_SIZE = 64 * 1024;
+    /**
+     * 小於此長度的block不壓縮
+     */
+    public final static int MIN_COMPRESS_SIZE = 64;
+    public final static int MAX_SKIP_BLOCKS = 16;
+    final static int TYPE_RAW = 0;
+    final static int TYPE_DEFLATE = 1;
+    private final static int HEADER_MAX = 1 + FrameEncoder.MAX_VARINT_BYTES * 2;
+
+    private final OutputStream mOut;
+    private final byte[] mDictionary;
+    private final CompressionStats mStats;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final byte[] mBlock;
+    // header預留在前方，整個block以單次write送出
+    private final byte[] mFrame;
+    private final ByteBuffer mHeader;
+    private int mCount;
+    private int mSkipBlocks;
+    private int mSkipRemaining;
+    private boolean mIsClose;
+
+    public CompressingOutputStream(OutputStream out, byte[] dictionary, CompressionStats stats) {
+        this(out, DEFAULT_BLOCK_SIZE, dictionary, stats);
+    }
+
+    /**
+     * @param out        socket OutputStream
+     * @param blockSize  每個block最大的原始bytes，flush()時會送出不滿的block
+     * @param dictionary 預設字典，需與對方相同，可為null
+     * @param stats      可為null
+     */
+    public CompressingOutputStream(OutputStream out, int blockSize, byte[] dictionary, CompressionStats stats) {
+        if (out == null) {
+            throw new IllegalArgumentException("out == null");
+        }
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize <= 0 || blockSize > " + MAX_BLOCK_SIZE);
+        }
+        mOut = out;
+        mDictionary = dictionary;
+        mStats = stats;
+        mBlock = new byte[blockSize];
+        mFrame = new byte[HEADER_MAX + blockSize];
+        mHeader = ByteBuffer.wrap(mFrame);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkState();
+        mBlock[mCount++] = (byte) b;
+        if (mCount == mBlock.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        checkState();
+        while (len > 0) {
+            int n = Math.min(len, mBlock.length - mCount);
+
+            System.arraycopy(b, off, mBlock, mCount, n);
+            mCount += n;
+            off += n;
+            len -= n;
+            if (mCount == mBlock.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkState();
+        if (mCount > 0) {
+            writeBlock();
+        }
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIsClose) {
+            return;
+        }
+        try {
+            if (mCount > 0) {
+                writeBlock();
+            }
+        } finally {
+            mIsClose = true;
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int rawLength = mCount;
+        int payloadLength = -1;
+        long nanos = 0L;
+
+        mCount = 0;
+        if (rawLength >= MIN_COMPRESS_SIZE) {
+            if (mSkipRemaining > 0) {
+                mSkipRemaining--;
+            } else {
+                long start = System.nanoTime();
+
+                payloadLength = deflate(rawLength);
+                nanos = System.nanoTime() - start;
+                if (payloadLength < 0) {
+                    // 資料無法壓縮(已壓縮或加密)，暫停嘗試以節省CPU
+                    mSkipBlocks = mSkipBlocks == 0 ? 1 : Math.min(mSkipBlocks * 2, MAX_SKIP_BLOCKS);
+                    mSkipRemaining = mSkipBlocks;
+                } else {
+                    mSkipBlocks = 0;
+                }
+            }
+        }
+        boolean compressed = payloadLength >= 0;
+        int start;
+
+        if (!compressed) {
+            System.arraycopy(mBlock, 0, mFrame, HEADER_MAX, rawLength);
+            start = HEADER_MAX - 1 - FrameEncoder.varintLength(rawLength);
+            mHeader.clear();
+            mHeader.position(start);
+            mHeader.put((byte) TYPE_RAW);
+            FrameEncoder.writeVarint(mHeader, rawLength);
+            payloadLength = rawLength;
+        } else {
+            start = HEADER_MAX - 1 - FrameEncoder.varintLength(rawLength) - FrameEncoder.varintLength(payloadLength);
+            mHeader.clear();
+            mHeader.position(start);
+            mHeader.put((byte) TYPE_DEFLATE);
+            FrameEncoder.writeVarint(mHeader, rawLength);
+            FrameEncoder.writeVarint(mHeader, payloadLength);
+        }
+        int wireLength = HEADER_MAX - start + payloadLength;
+
+        mOut.write(mFrame, start, wireLength);
+        if (mStats != null) {
+            mStats.recordOut(rawLength, wireLength, compressed, nanos);
+        }
+    }
+
+    /**
+     * @return 壓縮後的bytes，寫在mFrame[HEADER_MAX]之後；-1 表示節省不到1/32
+     */
+    private int deflate(int rawLength) {
+        int limit = rawLength - (rawLength >>> 5);
+
+        mDeflater.reset();
+        if (mDictionary != null) {
+            mDeflater.setDictionary(mDictionary);
+        }
+        mDeflater.setInput(mBlock, 0, rawLength);
+        mDeflater.finish();
+        int length = mDeflater.deflate(mFrame, HEADER_MAX, limit);
+
+        return mDeflater.finished() ? length : -1;
+    }
+
+    private void checkState() throws IOException {
+        if (mIsClose) {
+            throw new IOException("stream closed");
+        }
+    }
+}
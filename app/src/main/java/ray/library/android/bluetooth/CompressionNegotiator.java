@@ -0,0 +1,143 @@
+package ray.library.android.bluetooth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Handshake run by both ends right after connect. Each side sends an 8 bytes hello
+ * 'R' 'Z' | version | flags | adler32(dictionary), compression is used only when both offer it,
+ * and the preset dictionary only when both hold the same one.
+ * <p>
+ * The peer must run the handshake too (with compression enabled or not), otherwise
+ * {@link #negotiate(TransportSocket)} blocks waiting for its hello.
+ */
+public class CompressionNegotiator {
+    private final static String TAG = RayLog.tag(CompressionNegotiator.class);
+    public final static int VERSION = 1;
+    public final static int FLAG_DEFLATE = 0x01;
+    private final static int MAGIC_0 = 'R';
+    private final static int MAGIC_1 = 'Z';
+    private final static int HELLO_LENGTH = 8;
+
+    private final CompressionStats mStats;
+    private volatile boolean mIsEnabled = true;
+    private volatile byte[] mDictionary;
+    private volatile int mBlockSize = CompressingOutputStream.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * @param stats 所有壓縮連線共用，可為null
+     */
+    public CompressionNegotiator(CompressionStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * @param enabled false 仍進行握手，但不提議壓縮
+     */
+    public void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * 預設字典，放入常出現的字串(ex : telemetry的欄位名稱)可大幅改善小block的壓縮率
+     *
+     * @param dictionary 可為null
+     */
+    public void setDictionary(byte[] dictionary) {
+        mDictionary = dictionary == null ? null : dictionary.clone();
+    }
+
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize > CompressingOutputStream.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize <= 0 || blockSize > " + CompressingOutputStream.MAX_BLOCK_SIZE);
+        }
+        mBlockSize = blockSize;
+    }
+
+    public CompressionStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * 在已連線的socket上進行握手，兩端需各自呼叫
+     *
+     * @param socket
+     * @return 協商成功時為{@link CompressedSocket}，否則為原本的socket
+     * @throws IOException 握手失敗，caller需關閉socket
+     */
+    public TransportSocket negotiate(TransportSocket socket) throws IOException {
+        boolean enabled = mIsEnabled;
+        byte[] dictionary = mDictionary;
+        int dictionaryId = dictionaryId(dictionary);
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        byte[] hello = new byte[HELLO_LENGTH];
+
+        hello[0] = (byte) MAGIC_0;
+        hello[1] = (byte) MAGIC_1;
+        hello[2] = (byte) VERSION;
+        hello[3] = (byte) (enabled ? FLAG_DEFLATE : 0);
+        putInt(hello, 4, dictionaryId);
+        // hello很小，兩端同時寫入不會互相阻塞
+        out.write(hello);
+        out.flush();
+
+        int off = 0;
+
+        while (off < HELLO_LENGTH) {
+            int n = in.read(hello, off, HELLO_LENGTH - off);
+
+            if (n == -1) {
+                throw new EOFException("EOF in compression hello");
+            }
+            off += n;
+        }
+        if (hello[0] != MAGIC_0 || hello[1] != MAGIC_1) {
+            throw new IOException("peer does not speak compression handshake");
+        }
+        boolean peerEnabled = (hello[3] & FLAG_DEFLATE) != 0;
+
+        if (!enabled || !peerEnabled) {
+            RayLog.event(TAG, "compression off ", socket.getRemoteAddress());
+            return socket;
+        }
+        if (dictionary != null && getInt(hello, 4) != dictionaryId) {
+            // 字典不同時不使用字典，仍可壓縮
+            dictionary = null;
+        }
+        RayLog.event(TAG, dictionary != null ? "compression on, dictionary " : "compression on ",
+                socket.getRemoteAddress());
+        return new CompressedSocket(socket, mBlockSize, dictionary, mStats);
+    }
+
+    private static int dictionaryId(byte[] dictionary) {
+        if (dictionary == null) {
+            return 0;
+        }
+        Adler32 adler32 = new Adler32();
+
+        adler32.update(dictionary, 0, dictionary.length);
+        return (int) adler32.getValue();
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,110 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counts and codec time of {@link CompressingOutputStream} / {@link DecompressingInputStream},
+ * may be shared by every compressed connection. Times are nanos spent inside Deflater / Inflater
+ * on the writer / reader thread.
+ */
+public class CompressionStats {
+    private final AtomicLong mRawBytesOut = new AtomicLong();
+    private final AtomicLong mWireBytesOut = new AtomicLong();
+    private final AtomicLong mRawBytesIn = new AtomicLong();
+    private final AtomicLong mWireBytesIn = new AtomicLong();
+    private final AtomicLong mCompressedBlockCount = new AtomicLong();
+    private final AtomicLong mBypassedBlockCount = new AtomicLong();
+    private final AtomicLong mCompressNanos = new AtomicLong();
+    private final AtomicLong mDecompressNanos = new AtomicLong();
+
+    void recordOut(int rawBytes, int wireBytes, boolean compressed, long compressNanos) {
+        mRawBytesOut.addAndGet(rawBytes);
+        mWireBytesOut.addAndGet(wireBytes);
+        (compressed ? mCompressedBlockCount : mBypassedBlockCount).incrementAndGet();
+        if (compressNanos > 0L) {
+            mCompressNanos.addAndGet(compressNanos);
+        }
+    }
+
+    void recordIn(int rawBytes, int wireBytes, long decompressNanos) {
+        mRawBytesIn.addAndGet(rawBytes);
+        mWireBytesIn.addAndGet(wireBytes);
+        if (decompressNanos > 0L) {
+            mDecompressNanos.addAndGet(decompressNanos);
+        }
+    }
+
+    public long getRawBytesOut() {
+        return mRawBytesOut.get();
+    }
+
+    /**
+     * @return 實際送出的bytes，含block header
+     */
+    public long getWireBytesOut() {
+        return mWireBytesOut.get();
+    }
+
+    public long getRawBytesIn() {
+        return mRawBytesIn.get();
+    }
+
+    public long getWireBytesIn() {
+        return mWireBytesIn.get();
+    }
+
+    public long getCompressedBlockCount() {
+        return mCompressedBlockCount.get();
+    }
+
+    /**
+     * @return 因壓縮無效而原樣送出的block數
+     */
+    public long getBypassedBlockCount() {
+        return mBypassedBlockCount.get();
+    }
+
+    public long getCompressNanos() {
+        return mCompressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return mDecompressNanos.get();
+    }
+
+    /**
+     * @return wire / raw，小於1表示有節省，沒有資料時為1
+     */
+    public double getOutRatio() {
+        long raw = mRawBytesOut.get();
+
+        return raw == 0L ? 1.0 : (double) mWireBytesOut.get() / raw;
+    }
+
+    public double getInRatio() {
+        long raw = mRawBytesIn.get();
+
+        return raw == 0L ? 1.0 : (double) mWireBytesIn.get() / raw;
+    }
+
+    public void reset() {
+        mRawBytesOut.set(0L);
+        mWireBytesOut.set(0L);
+        mRawBytesIn.set(0L);
+        mWireBytesIn.set(0L);
+        mCompressedBlockCount.set(0L);
+        mBypassedBlockCount.set(0L);
+        mCompressNanos.set(0L);
+        mDecompressNanos.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "out[" + getRawBytesOut() + "->" + getWireBytesOut() + "],ratio[" + String.format("%.3f", getOutRatio())
+                + "],blocks[" + getCompressedBlockCount() + "],bypassed[" + getBypassedBlockCount()
+                + "],compress[" + TimeUnit.NANOSECONDS.toMillis(getCompressNanos()) + "ms]"
+                + ",in[" + getWireBytesIn() + "->" + getRawBytesIn() + "],ratio[" + String.format("%.3f", getInRatio())
+                + "],decompress[" + TimeUnit.NANOSECONDS.toMillis(getDecompressNanos()) + "ms]";
+    }
+}
@@ -0,0 +1,341 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.BluetoothTransport;
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Client sockets keyed by device address. Connected sockets are reused across callers,
+ * closed after being idle for idleTimeoutMillis, and at most maxPerDevice sockets
+ * (idle or leased) exist per device.
+ */
+public class ConnectionPool {
+    private final static String TAG = RayLog.tag(ConnectionPool.class);
+    public final static int DEFAULT_MAX_PER_DEVICE = 1;
+    public final static long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000L;
+
+    private final BluetoothTransport mTransport;
+    private final UUID mUuid;
+    private final HashMap<String, DeviceEntry> mEntries = new HashMap<String, DeviceEntry>();
+    private int mMaxPerDevice = DEFAULT_MAX_PER_DEVICE;
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private Runnable mBeforeConnect;
+    private OnConnectListener mOnConnectListener;
+    private volatile CompressionNegotiator mCompressionNegotiator;
+    private ScheduledFuture<?> mEvictTask;
+    private boolean mIsClose;
+
+    public ConnectionPool(BluetoothTransport transport, UUID uuid) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport == null");
+        }
+        mTransport = transport;
+        mUuid = uuid;
+    }
+
+    public synchronized void setMaxPerDevice(int maxPerDevice) {
+        if (maxPerDevice <= 0) {
+            throw new IllegalArgumentException("maxPerDevice <= 0");
+        }
+        mMaxPerDevice = maxPerDevice;
+        notifyAll();
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0L) {
+            throw new IllegalArgumentException("idleTimeoutMillis <= 0");
+        }
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        if (mEvictTask != null) {
+            mEvictTask.cancel(false);
+            mEvictTask = null;
+        }
+        scheduleEviction();
+    }
+
+    /**
+     * 每次建立新連線前呼叫，ex : cancelDiscovery()
+     *
+     * @param beforeConnect
+     */
+    public void setBeforeConnect(Runnable beforeConnect) {
+        mBeforeConnect = beforeConnect;
+    }
+
+    public void setOnConnectListener(OnConnectListener listener) {
+        mOnConnectListener = listener;
+    }
+
+    /**
+     * 新連線建立後先進行壓縮握手，對方也需進行握手；已在pool中的連線不受影響
+     *
+     * @param negotiator null 不進行握手
+     */
+    public void setCompressionNegotiator(CompressionNegotiator negotiator) {
+        mCompressionNegotiator = negotiator;
+    }
+
+    /**
+     * 取得連線，優先使用閒置的socket；已達maxPerDevice時等待其他caller歸還
+     *
+     * @param address
+     * @param timeoutMillis 等待可用連線的時間，不含建立連線的時間
+     * @return
+     * @throws IOException 連線失敗或等待逾時
+     */
+    public PooledConnection acquire(String address, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ArrayList<PooledConnection> stale = new ArrayList<PooledConnection>();
+
+        try {
+            synchronized (this) {
+                while (true) {
+                    if (mIsClose) {
+                        throw new IOException("pool closed");
+                    }
+                    // 等待期間entry可能被evictIdle移除，每次重新取得
+                    DeviceEntry entry = getEntry(address);
+                    PooledConnection idle = entry.mIdle.pollFirst();
+
+                    if (idle != null) {
+                        if (idle.getSocket().isConnected()) {
+                            idle.setLeased(true);
+                            return idle;
+                        }
+                        entry.mCount--;
+                        stale.add(idle);
+                        continue;
+                    }
+                    if (entry.mCount < mMaxPerDevice) {
+                        // 保留名額，在lock外建立連線
+                        entry.mCount++;
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+
+                    if (remaining <= 0L) {
+                        throw new IOException("timeout waiting for connection to " + address);
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        } finally {
+            closeSockets(stale);
+        }
+        return connect(address);
+    }
+
+    /**
+     * 關閉所有閒置連線，已借出的連線在歸還時關閉
+     */
+    public void close() {
+        ArrayList<PooledConnection> idle = new ArrayList<PooledConnection>();
+
+        synchronized (this) {
+            mIsClose = true;
+            for (DeviceEntry entry : mEntries.values()) {
+                entry.mCount -= entry.mIdle.size();
+                idle.addAll(entry.mIdle);
+                entry.mIdle.clear();
+            }
+            if (mEvictTask != null) {
+                mEvictTask.cancel(false);
+                mEvictTask = null;
+            }
+            notifyAll();
+        }
+        closeSockets(idle);
+    }
+
+    public synchronized int getIdleCount(String address) {
+        DeviceEntry entry = mEntries.get(address);
+
+        return entry == null ? 0 : entry.mIdle.size();
+    }
+
+    /**
+     * @return 閒置加上借出的連線數
+     */
+    public synchronized int getConnectionCount(String address) {
+        DeviceEntry entry = mEntries.get(address);
+
+        return entry == null ? 0 : entry.mCount;
+    }
+
+    /**
+     * 關閉閒置超過idleTimeoutMillis的連線
+     *
+     * @return 關閉的連線數
+     */
+    public int evictIdle() {
+        ArrayList<PooledConnection> evicted = new ArrayList<PooledConnection>();
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            long idleNanos = TimeUnit.MILLISECONDS.toNanos(mIdleTimeoutMillis);
+            Iterator<DeviceEntry> entries = mEntries.values().iterator();
+
+            while (entries.hasNext()) {
+                DeviceEntry entry = entries.next();
+                Iterator<PooledConnection> iterator = entry.mIdle.iterator();
+
+                while (iterator.hasNext()) {
+                    PooledConnection connection = iterator.next();
+
+                    if (now - connection.getLastUsedNanos() >= idleNanos) {
+                        iterator.remove();
+                        entry.mCount--;
+                        evicted.add(connection);
+                    }
+                }
+                if (entry.mCount == 0) {
+                    entries.remove();
+                }
+            }
+            if (!evicted.isEmpty()) {
+                notifyAll();
+            }
+        }
+        closeSockets(evicted);
+        return evicted.size();
+    }
+
+    private PooledConnection connect(String address) throws IOException {
+        Runnable beforeConnect = mBeforeConnect;
+        TransportSocket socket = null;
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try {
+            if (beforeConnect != null) {
+                beforeConnect.run();
+            }
+            socket = mTransport.createSocket(address, mUuid);
+            socket.connect();
+            CompressionNegotiator negotiator = mCompressionNegotiator;
+
+            if (negotiator != null) {
+                socket = negotiator.negotiate(socket);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        RayLog.w(TAG, "close socket failed", e);
+                    }
+                }
+                synchronized (this) {
+                    getEntry(address).mCount--;
+                    notifyAll();
+                }
+            }
+            // 先釋放socket和名額，listener丟出例外也不影響pool
+            OnConnectListener listener = mOnConnectListener;
+
+            if (listener != null) {
+                try {
+                    listener.onConnect(address, success, System.nanoTime() - start);
+                } catch (RuntimeException e) {
+                    RayLog.w(TAG, "OnConnectListener failed", e);
+                }
+            }
+        }
+        PooledConnection connection = new PooledConnection(this, address, socket);
+
+        connection.setLeased(true);
+        synchronized (this) {
+            if (!mIsClose) {
+                scheduleEviction();
+                return connection;
+            }
+        }
+        release(connection, true);
+        throw new IOException("pool closed");
+    }
+
+    void release(PooledConnection connection, boolean invalidate) {
+        synchronized (this) {
+            if (!connection.isLeased()) {
+                return;
+            }
+            connection.setLeased(false);
+            DeviceEntry entry = getEntry(connection.getAddress());
+
+            if (!invalidate && !mIsClose && connection.getSocket().isConnected()) {
+                connection.setLastUsedNanos(System.nanoTime());
+                // 最近使用的放前面，較舊的較先被淘汰
+                entry.mIdle.addFirst(connection);
+                notifyAll();
+                return;
+            }
+            entry.mCount--;
+            notifyAll();
+        }
+        connection.closeSocket();
+    }
+
+    /**
+     * 在lock外呼叫，關閉socket可能block
+     */
+    private static void closeSockets(ArrayList<PooledConnection> connections) {
+        for (PooledConnection connection : connections) {
+            connection.closeSocket();
+        }
+    }
+
+    private DeviceEntry getEntry(String address) {
+        DeviceEntry entry = mEntries.get(address);
+
+        if (entry == null) {
+            entry = new DeviceEntry();
+            mEntries.put(address, entry);
+        }
+        return entry;
+    }
+
+    private void scheduleEviction() {
+        if (mEvictTask != null || mIsClose) {
+            return;
+        }
+        long period = Math.max(1L, mIdleTimeoutMillis / 2L);
+
+        mEvictTask = SharedScheduler.get().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static interface OnConnectListener {
+        /**
+         * 每次建立連線後呼叫，在acquire的thread上
+         *
+         * @param connectNanos 建立連線花費的時間
+         */
+        void onConnect(String address, boolean success, long connectNanos);
+    }
+
+    private static class DeviceEntry {
+        final ArrayDeque<PooledConnection> mIdle = new ArrayDeque<PooledConnection>();
+        int mCount;
+    }
+}
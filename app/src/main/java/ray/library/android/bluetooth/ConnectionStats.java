@@ -0,0 +1,68 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte counters of one connection, updated by {@link MeteredTransport} streams.
+ */
+public class ConnectionStats {
+    private final String mAddress;
+    private final boolean mIsInbound;
+    private final long mOpenedAtMillis;
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private volatile long mClosedAtMillis;
+
+    ConnectionStats(String address, boolean inbound, long openedAtMillis) {
+        mAddress = address;
+        mIsInbound = inbound;
+        mOpenedAtMillis = openedAtMillis;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return true 由server socket accept的連線
+     */
+    public boolean isInbound() {
+        return mIsInbound;
+    }
+
+    public long getOpenedAtMillis() {
+        return mOpenedAtMillis;
+    }
+
+    /**
+     * @return 0 表示尚未關閉
+     */
+    public long getClosedAtMillis() {
+        return mClosedAtMillis;
+    }
+
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    void addBytesIn(long count) {
+        mBytesIn.addAndGet(count);
+    }
+
+    void addBytesOut(long count) {
+        mBytesOut.addAndGet(count);
+    }
+
+    void setClosedAtMillis(long closedAtMillis) {
+        mClosedAtMillis = closedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "address[" + mAddress + "],inbound[" + mIsInbound + "],in[" + getBytesIn() + "],out[" + getBytesOut() + "]";
+    }
+}
@@ -0,0 +1,177 @@
+package ray.library.android.bluetooth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the blocks written by {@link CompressingOutputStream}. A read returns at most the rest
+ * of the current block, so it never waits for more data than one block.
+ * Not thread safe, one reader at a time.
+ */
+public class DecompressingInputStream extends InputStream {
+    private final InputStream mIn;
+    private final byte[] mDictionary;
+    private final CompressionStats mStats;
+    private final Inflater mInflater = new Inflater(true);
+    private byte[] mBlock = new byte[CompressingOutputStream.DEFAULT_BLOCK_SIZE];
+    private byte[] mPayload = new byte[CompressingOutputStream.DEFAULT_BLOCK_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private boolean mIsClose;
+
+    /**
+     * @param in         socket InputStream
+     * @param dictionary 預設字典，需與對方相同，可為null
+     * @param stats      可為null
+     */
+    public DecompressingInputStream(InputStream in, byte[] dictionary, CompressionStats stats) {
+        if (in == null) {
+            throw new IllegalArgumentException("in == null");
+        }
+        mIn = in;
+        mDictionary = dictionary;
+        mStats = stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mPosition == mLimit && !readBlock()) {
+            return -1;
+        }
+        return mBlock[mPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (mPosition == mLimit && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, mLimit - mPosition);
+
+        System.arraycopy(mBlock, mPosition, b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mLimit - mPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mIsClose) {
+            return;
+        }
+        mIsClose = true;
+        mInflater.end();
+        mIn.close();
+    }
+
+    /**
+     * @return false EOF
+     */
+    private boolean readBlock() throws IOException {
+        if (mIsClose) {
+            throw new IOException("stream closed");
+        }
+        // 空的block不會被送出，讀到時略過
+        do {
+            int type = mIn.read();
+
+            if (type == -1) {
+                return false;
+            }
+            int rawLength = readLength();
+
+            mBlock = ensureCapacity(mBlock, rawLength);
+            mPosition = 0;
+            mLimit = rawLength;
+
+            if (type == CompressingOutputStream.TYPE_RAW) {
+                readFully(mBlock, rawLength);
+                if (mStats != null) {
+                    mStats.recordIn(rawLength, 1 + FrameEncoder.varintLength(rawLength) + rawLength, 0L);
+                }
+            } else if (type == CompressingOutputStream.TYPE_DEFLATE) {
+                int payloadLength = readLength();
+
+                mPayload = ensureCapacity(mPayload, payloadLength);
+                readFully(mPayload, payloadLength);
+                long start = System.nanoTime();
+
+                inflate(rawLength, payloadLength);
+                if (mStats != null) {
+                    mStats.recordIn(rawLength, 1 + FrameEncoder.varintLength(rawLength)
+                            + FrameEncoder.varintLength(payloadLength) + payloadLength, System.nanoTime() - start);
+                }
+            } else {
+                throw new IOException("unknown block type[" + type + "]");
+            }
+        } while (mLimit == 0);
+        return true;
+    }
+
+    private void inflate(int rawLength, int payloadLength) throws IOException {
+        mInflater.reset();
+        if (mDictionary != null) {
+            mInflater.setDictionary(mDictionary);
+        }
+        mInflater.setInput(mPayload, 0, payloadLength);
+        try {
+            int n = mInflater.inflate(mBlock, 0, rawLength);
+
+            if (n != rawLength || !mInflater.finished()) {
+                throw new IOException("corrupt block, inflated[" + n + "] expected[" + rawLength + "]");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block", e);
+        }
+    }
+
+    private int readLength() throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < FrameEncoder.MAX_VARINT_BYTES * 7; shift += 7) {
+            int b = mIn.read();
+
+            if (b == -1) {
+                throw new EOFException("EOF in block header");
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > CompressingOutputStream.MAX_BLOCK_SIZE) {
+                    throw new IOException("block length[" + value + "] > max[" + CompressingOutputStream.MAX_BLOCK_SIZE + "]");
+                }
+                return value;
+            }
+        }
+        throw new IOException("malformed varint length");
+    }
+
+    private void readFully(byte[] b, int len) throws IOException {
+        int off = 0;
+
+        while (off < len) {
+            int n = mIn.read(b, off, len - off);
+
+            if (n == -1) {
+                throw new EOFException("EOF in block payload");
+            }
+            off += n;
+        }
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        return buffer.length >= length ? buffer : new byte[Math.max(length, buffer.length * 2)];
+    }
+}
@@ -0,0 +1,70 @@
+package ray.library.android.bluetooth;
+
+/**
+ * Immutable snapshot of a device seen during discovery.
+ */
+public class DiscoveredDevice {
+    /**
+     * 未提供RSSI
+     */
+    public final static short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private final String mAddress;
+    private final String mName;
+    private final int mDeviceClass;
+    private final short mRssi;
+    private final long mFirstSeen;
+    private final long mLastSeen;
+    private final int mSeenCount;
+
+    public DiscoveredDevice(String address, String name, int deviceClass, short rssi,
+                            long firstSeen, long lastSeen, int seenCount) {
+        mAddress = address;
+        mName = name;
+        mDeviceClass = deviceClass;
+        mRssi = rssi;
+        mFirstSeen = firstSeen;
+        mLastSeen = lastSeen;
+        mSeenCount = seenCount;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getDeviceClass() {
+        return mDeviceClass;
+    }
+
+    public short getRssi() {
+        return mRssi;
+    }
+
+    public long getFirstSeen() {
+        return mFirstSeen;
+    }
+
+    public long getLastSeen() {
+        return mLastSeen;
+    }
+
+    public int getSeenCount() {
+        return mSeenCount;
+    }
+
+    /**
+     * @return true 本次為第一次發現
+     */
+    public boolean isNew() {
+        return mSeenCount == 1;
+    }
+
+    @Override
+    public String toString() {
+        return "name[" + mName + "],address[" + mAddress + "],rssi[" + mRssi + "]";
+    }
+}
@@ -0,0 +1,112 @@
+package ray.library.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Deduplicates ACTION_FOUND reports by device address. Times are supplied by the caller
+ * (ex : SystemClock.elapsedRealtime()) so the cache can run on a plain JVM.
+ */
+public class DiscoveryCache {
+    public final static long DEFAULT_TTL_MILLIS = 60 * 1000L;
+    public final static int DEFAULT_RSSI_THRESHOLD = 5;
+
+    private final HashMap<String, DiscoveredDevice> mDevices = new HashMap<String, DiscoveredDevice>();
+    private long mTtlMillis = DEFAULT_TTL_MILLIS;
+    private int mRssiThreshold = DEFAULT_RSSI_THRESHOLD;
+
+    public synchronized void setTtl(long ttlMillis) {
+        if (ttlMillis <= 0L) {
+            throw new IllegalArgumentException("ttlMillis <= 0");
+        }
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * RSSI變動小於此值(dBm)時不視為變更
+     *
+     * @param rssiThreshold
+     */
+    public synchronized void setRssiThreshold(int rssiThreshold) {
+        mRssiThreshold = rssiThreshold;
+    }
+
+    /**
+     * 記錄一次發現
+     *
+     * @return 新裝置或name、class、RSSI有變更時回傳最新的snapshot，重複回報則回傳null
+     */
+    public synchronized DiscoveredDevice update(String address, String name, int deviceClass, short rssi, long now) {
+        DiscoveredDevice previous = mDevices.get(address);
+
+        if (previous != null && now - previous.getLastSeen() > mTtlMillis) {
+            previous = null;
+        }
+        if (previous == null) {
+            DiscoveredDevice device = new DiscoveredDevice(address, name, deviceClass, rssi, now, now, 1);
+
+            mDevices.put(address, device);
+            return device;
+        }
+        if (name == null) {
+            name = previous.getName();
+        }
+        if (rssi == DiscoveredDevice.RSSI_UNKNOWN) {
+            rssi = previous.getRssi();
+        }
+        boolean changed = !equals(name, previous.getName())
+                || deviceClass != previous.getDeviceClass()
+                || Math.abs(rssi - previous.getRssi()) >= mRssiThreshold;
+
+        if (!changed) {
+            // 保留上次回報的RSSI，避免小幅飄動累積
+            rssi = previous.getRssi();
+        }
+        DiscoveredDevice device = new DiscoveredDevice(address, name, deviceClass, rssi,
+                previous.getFirstSeen(), now, previous.getSeenCount() + 1);
+
+        mDevices.put(address, device);
+        return changed ? device : null;
+    }
+
+    public synchronized DiscoveredDevice get(String address, long now) {
+        DiscoveredDevice device = mDevices.get(address);
+
+        if (device != null && now - device.getLastSeen() > mTtlMillis) {
+            mDevices.remove(address);
+            return null;
+        }
+        return device;
+    }
+
+    /**
+     * @return 尚未過期的裝置
+     */
+    public synchronized List<DiscoveredDevice> getSnapshot(long now) {
+        evictExpired(now);
+        return new ArrayList<DiscoveredDevice>(mDevices.values());
+    }
+
+    public synchronized int evictExpired(long now) {
+        int count = 0;
+        Iterator<DiscoveredDevice> iterator = mDevices.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (now - iterator.next().getLastSeen() > mTtlMillis) {
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        mDevices.clear();
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,79 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages of {@link FileTransferSender} / {@link FileTransferReceiver}, one per
+ * {@link BTConnection} frame, big-endian.
+ * <pre>
+ * OFFER  : type | fileId(8) | length(8) | chunkSize(4) | window(4) | name(UTF-8)
+ * RESUME : type | offset(8)            receiver已有的連續bytes
+ * DATA   : type | offset(8) | crc32(4) | bytes
+ * ACK    : type | offset(8)            累計，offset之前皆已寫入
+ * NACK   : type | offset(8)            從offset重送
+ * </pre>
+ */
+final class FileTransferProtocol {
+    final static int TYPE_OFFER = 1;
+    final static int TYPE_RESUME = 2;
+    final static int TYPE_DATA = 3;
+    final static int TYPE_ACK = 4;
+    final static int TYPE_NACK = 5;
+    final static int OFFER_HEADER_LENGTH = 1 + 8 + 8 + 4 + 4;
+    final static int DATA_HEADER_LENGTH = 1 + 8 + 4;
+    final static int CONTROL_LENGTH = 1 + 8;
+    final static String PART_SUFFIX = ".part";
+
+    private FileTransferProtocol() {
+    }
+
+    static byte[] offer(long fileId, long length, int chunkSize, int window, String name) {
+        byte[] nameBytes = utf8(name);
+        ByteBuffer buffer = ByteBuffer.allocate(OFFER_HEADER_LENGTH + nameBytes.length);
+
+        buffer.put((byte) TYPE_OFFER).putLong(fileId).putLong(length).putInt(chunkSize).putInt(window).put(nameBytes);
+        return buffer.array();
+    }
+
+    static byte[] control(int type, long offset) {
+        ByteBuffer buffer = ByteBuffer.allocate(CONTROL_LENGTH);
+
+        buffer.put((byte) type).putLong(offset);
+        return buffer.array();
+    }
+
+    static ByteBuffer dataHeader(long offset, int crc) {
+        ByteBuffer buffer = ByteBuffer.allocate(DATA_HEADER_LENGTH);
+
+        buffer.put((byte) TYPE_DATA).putLong(offset).putInt(crc);
+        buffer.flip();
+        return buffer;
+    }
+
+    static int type(byte[] message) throws IOException {
+        if (message.length == 0) {
+            throw new IOException("empty message");
+        }
+        return message[0];
+    }
+
+    /**
+     * @return CONTROL或DATA訊息的offset
+     */
+    static long offset(byte[] message) throws IOException {
+        if (message.length < CONTROL_LENGTH) {
+            throw new IOException("message too short[" + message.length + "]");
+        }
+        return ByteBuffer.wrap(message, 1, 8).getLong();
+    }
+
+    static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package ray.library.android.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Receives files sent by {@link FileTransferSender} into a directory. Data is written in order
+ * to name.&lt;fileId&gt;.part, whose length is the resume offset when the same file is offered
+ * again after a reconnect, and renamed to name once complete.
+ */
+public class FileTransferReceiver {
+    private final static String TAG = RayLog.tag(FileTransferReceiver.class);
+    public final static long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000L;
+
+    private final BTConnection mConnection;
+    private final File mDirectory;
+    private final CRC32 mCrc32 = new CRC32();
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private OnReceiveListener mOnReceiveListener;
+    private long mChecksumFailureCount;
+
+    /**
+     * @param connection 已start的連線，接收期間由此receiver取走所有收到的frame
+     * @param directory  存放檔案的目錄
+     */
+    public FileTransferReceiver(BTConnection connection, File directory) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection == null");
+        }
+        if (directory == null) {
+            throw new IllegalArgumentException("directory == null");
+        }
+        mConnection = connection;
+        mDirectory = directory;
+    }
+
+    /**
+     * @param idleTimeoutMillis 超過此時間沒有收到資料視為連線中斷
+     */
+    public void setIdleTimeout(long idleTimeoutMillis) {
+        if (idleTimeoutMillis <= 0L) {
+            throw new IllegalArgumentException("idleTimeoutMillis <= 0");
+        }
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public void setOnReceiveListener(OnReceiveListener listener) {
+        mOnReceiveListener = listener;
+    }
+
+    public long getChecksumFailureCount() {
+        return mChecksumFailureCount;
+    }
+
+    /**
+     * 接收一個檔案，在呼叫的thread上阻塞直到完成
+     *
+     * @return 完成的檔案
+     * @throws IOException 連線中斷或逾時，已收到的部分保留供續傳
+     */
+    public File receive() throws IOException {
+        byte[] offer = await();
+
+        if (FileTransferProtocol.type(offer) != FileTransferProtocol.TYPE_OFFER
+                || offer.length < FileTransferProtocol.OFFER_HEADER_LENGTH) {
+            throw new IOException("expected offer, got type[" + FileTransferProtocol.type(offer) + "]");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(offer, 1, offer.length - 1);
+        long fileId = buffer.getLong();
+        long length = buffer.getLong();
+        int chunkSize = buffer.getInt();
+        int window = buffer.getInt();
+        String name = new String(offer, FileTransferProtocol.OFFER_HEADER_LENGTH,
+                offer.length - FileTransferProtocol.OFFER_HEADER_LENGTH, "UTF-8");
+
+        checkName(name);
+        if (length < 0L || chunkSize <= 0 || window <= 0) {
+            throw new IOException("invalid offer of " + name);
+        }
+        File target = new File(mDirectory, name);
+        File part = new File(mDirectory, name + "." + Long.toHexString(fileId) + FileTransferProtocol.PART_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(part, "rw");
+        boolean received;
+
+        try {
+            long offset = file.length();
+
+            if (offset > length) {
+                offset = 0L;
+            }
+            file.setLength(offset);
+            received = offset == length;
+            if (!received) {
+                if (offset > 0L) {
+                    RayLog.i(TAG, "resume " + name + " at ", offset);
+                }
+                mConnection.send(FileTransferProtocol.control(FileTransferProtocol.TYPE_RESUME, offset));
+                receiveData(file.getChannel(), name, offset, length, Math.max(1, window / 2));
+            }
+        } finally {
+            file.close();
+        }
+        finish(part, target);
+        // 改名後才回覆最後的確認，sender結束時檔案已就位
+        mConnection.send(FileTransferProtocol.control(received ? FileTransferProtocol.TYPE_RESUME
+                : FileTransferProtocol.TYPE_ACK, length));
+        return target;
+    }
+
+    private void receiveData(FileChannel channel, String name, long offset, long length, int ackInterval)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        long resumeOffset = offset;
+        boolean nackPending = false;
+        int sinceAck = 0;
+
+        while (offset < length) {
+            byte[] message = await();
+
+            if (FileTransferProtocol.type(message) != FileTransferProtocol.TYPE_DATA
+                    || message.length < FileTransferProtocol.DATA_HEADER_LENGTH) {
+                throw new IOException("unexpected message[" + FileTransferProtocol.type(message) + "]");
+            }
+            long chunkOffset = FileTransferProtocol.offset(message);
+            int crc = ByteBuffer.wrap(message, 9, 4).getInt();
+            int n = message.length - FileTransferProtocol.DATA_HEADER_LENGTH;
+
+            if (chunkOffset != offset) {
+                // go-back-N : 重送前已在路上的chunk直接丟棄
+                if (chunkOffset > offset && !nackPending) {
+                    nackPending = true;
+                    mConnection.send(FileTransferProtocol.control(FileTransferProtocol.TYPE_NACK, offset));
+                }
+                continue;
+            }
+            mCrc32.reset();
+            mCrc32.update(message, FileTransferProtocol.DATA_HEADER_LENGTH, n);
+            if ((int) mCrc32.getValue() != crc || n == 0 || offset + n > length) {
+                mChecksumFailureCount++;
+                RayLog.event(TAG, "chunk checksum failed ", offset);
+                if (!nackPending) {
+                    nackPending = true;
+                    mConnection.send(FileTransferProtocol.control(FileTransferProtocol.TYPE_NACK, offset));
+                }
+                continue;
+            }
+            ByteBuffer data = ByteBuffer.wrap(message, FileTransferProtocol.DATA_HEADER_LENGTH, n);
+
+            while (data.hasRemaining()) {
+                channel.write(data, offset + data.position() - FileTransferProtocol.DATA_HEADER_LENGTH);
+            }
+            offset += n;
+            nackPending = false;
+            if (++sinceAck >= ackInterval && offset < length) {
+                sinceAck = 0;
+                mConnection.send(FileTransferProtocol.control(FileTransferProtocol.TYPE_ACK, offset));
+            }
+            notifyProgress(name, offset, length, FileTransferSender.bytesPerSecond(offset - resumeOffset, startNanos));
+        }
+        channel.force(false);
+    }
+
+    private void finish(File part, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("cannot replace " + target);
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("cannot rename " + part + " to " + target);
+        }
+        OnReceiveListener listener = mOnReceiveListener;
+
+        if (listener != null) {
+            listener.onFileReceived(target);
+        }
+    }
+
+    private void notifyProgress(String name, long received, long total, double bytesPerSecond) {
+        OnReceiveListener listener = mOnReceiveListener;
+
+        if (listener != null) {
+            listener.onProgress(name, received, total, bytesPerSecond);
+        }
+    }
+
+    private byte[] await() throws IOException {
+        byte[] message = mConnection.take(mIdleTimeoutMillis);
+
+        if (message == null) {
+            throw new SocketTimeoutException("no data in " + mIdleTimeoutMillis + "ms");
+        }
+        return message;
+    }
+
+    private static void checkName(String name) throws IOException {
+        // 不允許寫到directory以外
+        if (name.length() == 0 || name.equals(".") || name.equals("..")
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IOException("invalid file name[" + name + "]");
+        }
+    }
+
+    public static interface OnReceiveListener {
+        /**
+         * 在receive的thread上呼叫
+         *
+         * @param received       已寫入的bytes，含續傳前已完成的部分
+         * @param bytesPerSecond 本次連線的平均傳輸速度
+         */
+        void onProgress(String name, long received, long total, double bytesPerSecond);
+
+        void onFileReceived(File file);
+    }
+}
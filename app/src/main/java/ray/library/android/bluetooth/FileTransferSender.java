@@ -0,0 +1,225 @@
+package ray.library.android.bluetooth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Sends a file over a {@link BTConnection} to a {@link FileTransferReceiver}.
+ * <p>
+ * Chunks are slices of a memory-mapped segment of the file and are only copied once, into the
+ * writer's frame buffer. At most window chunks are unacknowledged; the receiver acks
+ * cumulatively and a NACK (checksum failure) rewinds to its offset (go-back-N).
+ * After a dropped link, call {@link #send(File)} again on a new connection, the receiver
+ * answers the offer with the offset it already has and the transfer resumes there.
+ */
+public class FileTransferSender {
+    private final static String TAG = RayLog.tag(FileTransferSender.class);
+    public final static int DEFAULT_CHUNK_SIZE = 4096;
+    public final static int DEFAULT_WINDOW = 8;
+    public final static long DEFAULT_ACK_TIMEOUT_MILLIS = 15 * 1000L;
+    /**
+     * 每次map的最大範圍，避免32-bit裝置的位址空間不足
+     */
+    public final static int MAP_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private final BTConnection mConnection;
+    private final CRC32 mCrc32 = new CRC32();
+    private final byte[] mCrcScratch = new byte[8192];
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private int mWindow = DEFAULT_WINDOW;
+    private long mAckTimeoutMillis = DEFAULT_ACK_TIMEOUT_MILLIS;
+    private OnProgressListener mOnProgressListener;
+    private FileChannel mChannel;
+    private MappedByteBuffer mSegment;
+    private long mSegmentStart;
+    private long mRetransmitCount;
+
+    /**
+     * @param connection 已start的連線，傳送期間由此sender取走所有收到的frame
+     */
+    public FileTransferSender(BTConnection connection) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection == null");
+        }
+        mConnection = connection;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > FrameDecoder.DEFAULT_MAX_FRAME_LENGTH - FileTransferProtocol.DATA_HEADER_LENGTH) {
+            throw new IllegalArgumentException("chunkSize out of range");
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * @param window 未確認的chunk上限
+     */
+    public void setWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window <= 0");
+        }
+        mWindow = window;
+    }
+
+    /**
+     * @param ackTimeoutMillis 超過此時間沒有收到ACK視為連線中斷
+     */
+    public void setAckTimeout(long ackTimeoutMillis) {
+        if (ackTimeoutMillis <= 0L) {
+            throw new IllegalArgumentException("ackTimeoutMillis <= 0");
+        }
+        mAckTimeoutMillis = ackTimeoutMillis;
+    }
+
+    public void setOnProgressListener(OnProgressListener listener) {
+        mOnProgressListener = listener;
+    }
+
+    /**
+     * @return 累計因NACK重送的次數
+     */
+    public long getRetransmitCount() {
+        return mRetransmitCount;
+    }
+
+    /**
+     * 傳送整個檔案，在呼叫的thread上阻塞直到對方確認全部收到
+     *
+     * @param file
+     * @return 本次實際傳送的bytes(不含續傳前已完成的部分)
+     * @throws IOException 連線中斷或ACK逾時，可在新連線上重新呼叫以續傳
+     */
+    public long send(File file) throws IOException {
+        long length = file.length();
+        long fileId = length * 31L + file.lastModified();
+        FileInputStream in = new FileInputStream(file);
+
+        mChannel = in.getChannel();
+        try {
+            mConnection.send(FileTransferProtocol.offer(fileId, length, mChunkSize, mWindow, file.getName()));
+            byte[] reply = await();
+
+            if (FileTransferProtocol.type(reply) != FileTransferProtocol.TYPE_RESUME) {
+                throw new IOException("unexpected reply[" + FileTransferProtocol.type(reply) + "] to offer");
+            }
+            long resumeOffset = FileTransferProtocol.offset(reply);
+
+            if (resumeOffset < 0L || resumeOffset > length) {
+                throw new IOException("invalid resume offset[" + resumeOffset + "]");
+            }
+            if (resumeOffset > 0L) {
+                RayLog.i(TAG, "resume " + file.getName() + " at ", resumeOffset);
+            }
+            return transfer(resumeOffset, length);
+        } finally {
+            mSegment = null;
+            mChannel = null;
+            in.close();
+        }
+    }
+
+    private long transfer(long resumeOffset, long length) throws IOException {
+        long windowBytes = (long) mWindow * mChunkSize;
+        long startNanos = System.nanoTime();
+        long acked = resumeOffset;
+        long next = resumeOffset;
+
+        while (acked < length) {
+            while (next < length && next - acked < windowBytes) {
+                next += sendChunk(next, length);
+            }
+            byte[] reply = await();
+            int type = FileTransferProtocol.type(reply);
+            long offset = FileTransferProtocol.offset(reply);
+
+            if (offset < acked || offset > length) {
+                throw new IOException("invalid ack offset[" + offset + "]");
+            }
+            if (type == FileTransferProtocol.TYPE_ACK) {
+                acked = offset;
+            } else if (type == FileTransferProtocol.TYPE_NACK) {
+                // receiver只依序寫入，之後送出的chunk都會被丟棄
+                mRetransmitCount++;
+                acked = offset;
+                next = offset;
+                RayLog.event(TAG, "nack ", offset);
+            } else {
+                throw new IOException("unexpected message[" + type + "]");
+            }
+            OnProgressListener listener = mOnProgressListener;
+
+            if (listener != null) {
+                listener.onProgress(acked, length, bytesPerSecond(acked - resumeOffset, startNanos));
+            }
+        }
+        return length - resumeOffset;
+    }
+
+    /**
+     * @return 送出的bytes
+     */
+    private int sendChunk(long offset, long length) throws IOException {
+        if (mSegment == null || offset < mSegmentStart || offset >= mSegmentStart + mSegment.capacity()) {
+            mSegmentStart = offset / MAP_SEGMENT_SIZE * MAP_SEGMENT_SIZE;
+            mSegment = mChannel.map(FileChannel.MapMode.READ_ONLY, mSegmentStart,
+                    Math.min(MAP_SEGMENT_SIZE, length - mSegmentStart));
+        }
+        int position = (int) (offset - mSegmentStart);
+        int n = Math.min(mChunkSize, mSegment.capacity() - position);
+        ByteBuffer chunk = mSegment.duplicate();
+
+        chunk.position(position);
+        chunk.limit(position + n);
+        chunk = chunk.slice();
+        mConnection.send(FileTransferProtocol.dataHeader(offset, crc(chunk)), chunk);
+        return n;
+    }
+
+    private int crc(ByteBuffer chunk) {
+        ByteBuffer source = chunk.duplicate();
+
+        mCrc32.reset();
+        while (source.hasRemaining()) {
+            int n = Math.min(source.remaining(), mCrcScratch.length);
+
+            source.get(mCrcScratch, 0, n);
+            mCrc32.update(mCrcScratch, 0, n);
+        }
+        return (int) mCrc32.getValue();
+    }
+
+    private byte[] await() throws IOException {
+        byte[] message = mConnection.take(mAckTimeoutMillis);
+
+        if (message == null) {
+            throw new SocketTimeoutException("no ack in " + mAckTimeoutMillis + "ms");
+        }
+        return message;
+    }
+
+    static double bytesPerSecond(long bytes, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+
+        return elapsed <= 0L ? 0.0 : bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    public static interface OnProgressListener {
+        /**
+         * 在send的thread上呼叫
+         *
+         * @param transferred    對方已確認的bytes，含續傳前已完成的部分
+         * @param total          檔案大小
+         * @param bytesPerSecond 本次連線的平均傳輸速度
+         */
+        void onProgress(long transferred, long total, double bytesPerSecond);
+    }
+}
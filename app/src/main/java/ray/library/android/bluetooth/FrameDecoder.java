@@ -0,0 +1,187 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental decoder for frames written by {@link FrameEncoder}, bytes may arrive split
+ * at any position. Payloads are decoded into buffers from a {@link BufferPool} and
+ * recycled after {@link OnFrameListener#onFrame(ByteBuffer)} returns.
+ * Not thread safe, use one decoder per reader thread.
+ */
+public class FrameDecoder {
+    public final static int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    private final static int STATE_LENGTH = 0;
+    private final static int STATE_PAYLOAD = 1;
+    private final static int STATE_CRC = 2;
+
+    private final BufferPool mBufferPool;
+    private final int mMaxFrameLength;
+    private final boolean mCrcEnabled;
+    private final OnFrameListener mOnFrameListener;
+    private final CRC32 mCrc32 = new CRC32();
+    private final byte[] mReadBuffer;
+    private int mState = STATE_LENGTH;
+    private int mLength;
+    private int mShift;
+    private int mCrc;
+    private int mCrcCount;
+    private ByteBuffer mPayload;
+    private Histogram mLatencyHistogram;
+    private long mFrameStartNanos;
+
+    public FrameDecoder(BufferPool pool, int maxFrameLength, boolean crcEnabled, OnFrameListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener == null");
+        }
+        mBufferPool = pool;
+        mMaxFrameLength = maxFrameLength;
+        mCrcEnabled = crcEnabled;
+        mOnFrameListener = listener;
+        mReadBuffer = new byte[4096];
+    }
+
+    /**
+     * 記錄每個frame從收到第一個byte到交給listener的時間(nanos)，可為null
+     *
+     * @param histogram ex : {@link BTMetrics#getFrameLatency()}
+     */
+    public void setLatencyHistogram(Histogram histogram) {
+        mLatencyHistogram = histogram;
+    }
+
+    /**
+     * 讀取直到EOF，在reader thread上呼叫
+     */
+    public void readFrom(InputStream in) throws IOException {
+        int n;
+
+        while ((n = in.read(mReadBuffer, 0, mReadBuffer.length)) != -1) {
+            decode(mReadBuffer, 0, n);
+        }
+        if (mState != STATE_LENGTH || mShift != 0) {
+            reset();
+            throw new IOException("EOF in the middle of a frame");
+        }
+    }
+
+    public void decode(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+
+        while (off < end) {
+            switch (mState) {
+                case STATE_LENGTH:
+                    off = decodeLength(b, off, end);
+                    break;
+                case STATE_PAYLOAD: {
+                    int n = Math.min(end - off, mPayload.remaining());
+
+                    mPayload.put(b, off, n);
+                    off += n;
+                    if (!mPayload.hasRemaining()) {
+                        onPayloadComplete();
+                    }
+                    break;
+                }
+                case STATE_CRC:
+                    mCrc = (mCrc << 8) | (b[off++] & 0xFF);
+                    if (++mCrcCount == FrameEncoder.CRC_BYTES) {
+                        verifyCrc();
+                        deliver();
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 丟棄decode到一半的frame
+     */
+    public void reset() {
+        mState = STATE_LENGTH;
+        mLength = 0;
+        mShift = 0;
+        mCrc = 0;
+        mCrcCount = 0;
+        if (mPayload != null) {
+            mBufferPool.release(mPayload);
+            mPayload = null;
+        }
+    }
+
+    private int decodeLength(byte[] b, int off, int end) throws IOException {
+        if (mShift == 0 && mLatencyHistogram != null) {
+            mFrameStartNanos = System.nanoTime();
+        }
+        while (off < end) {
+            int value = b[off++];
+
+            mLength |= (value & 0x7F) << mShift;
+            mShift += 7;
+
+            if ((value & 0x80) == 0) {
+                if (mLength < 0 || mLength > mMaxFrameLength) {
+                    int length = mLength;
+
+                    reset();
+                    throw new IOException("frame length[" + length + "] > max[" + mMaxFrameLength + "]");
+                }
+                mPayload = mBufferPool.acquire(mLength);
+                mState = STATE_PAYLOAD;
+                if (mLength == 0) {
+                    onPayloadComplete();
+                }
+                return off;
+            }
+            if (mShift >= FrameEncoder.MAX_VARINT_BYTES * 7) {
+                reset();
+                throw new IOException("malformed varint length");
+            }
+        }
+        return off;
+    }
+
+    private void onPayloadComplete() throws IOException {
+        if (mCrcEnabled) {
+            mState = STATE_CRC;
+        } else {
+            deliver();
+        }
+    }
+
+    private void verifyCrc() throws IOException {
+        mCrc32.reset();
+        mCrc32.update(mPayload.array(), mPayload.arrayOffset(), mPayload.position());
+
+        if ((int) mCrc32.getValue() != mCrc) {
+            reset();
+            throw new IOException("frame crc mismatch");
+        }
+    }
+
+    private void deliver() {
+        ByteBuffer payload = mPayload;
+
+        mPayload = null;
+        reset();
+        payload.flip();
+
+        if (mLatencyHistogram != null) {
+            mLatencyHistogram.record(System.nanoTime() - mFrameStartNanos);
+        }
+        try {
+            mOnFrameListener.onFrame(payload);
+        } finally {
+            mBufferPool.release(payload);
+        }
+    }
+
+    public static interface OnFrameListener {
+        /**
+         * @param frame position=0, limit=payload length; 僅在callback期間有效，需保留請自行複製
+         */
+        void onFrame(ByteBuffer frame);
+    }
+}
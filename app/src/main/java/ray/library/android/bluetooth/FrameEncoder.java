@@ -0,0 +1,111 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Writes length-prefixed frames : varint(length) | payload | [crc32 of payload, big-endian].
+ * Not thread safe, use one encoder per writer thread.
+ */
+public class FrameEncoder {
+    public final static int MAX_VARINT_BYTES = 5;
+    public final static int CRC_BYTES = 4;
+
+    private final BufferPool mBufferPool;
+    private final boolean mCrcEnabled;
+    private final CRC32 mCrc32 = new CRC32();
+
+    public FrameEncoder(BufferPool pool, boolean crcEnabled) {
+        mBufferPool = pool;
+        mCrcEnabled = crcEnabled;
+    }
+
+    public boolean isCrcEnabled() {
+        return mCrcEnabled;
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static void writeVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    public int encodedLength(int payloadLength) {
+        return varintLength(payloadLength) + payloadLength + (mCrcEnabled ? CRC_BYTES : 0);
+    }
+
+    /**
+     * 將frame寫入dst
+     *
+     * @return 寫入的bytes
+     */
+    public int encode(byte[] b, int off, int len, ByteBuffer dst) {
+        int start = dst.position();
+
+        writeVarint(dst, len);
+        dst.put(b, off, len);
+
+        if (mCrcEnabled) {
+            mCrc32.reset();
+            mCrc32.update(b, off, len);
+            dst.putInt((int) mCrc32.getValue());
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * 將head及body組成一個frame寫入dst，dst需為heap buffer；head、body的position不變
+     *
+     * @param head 可為null
+     * @param body 可為null，ex : MappedByteBuffer的slice，只複製一次到dst
+     * @return 寫入的bytes
+     */
+    public int encode(ByteBuffer head, ByteBuffer body, ByteBuffer dst) {
+        int start = dst.position();
+        int len = (head == null ? 0 : head.remaining()) + (body == null ? 0 : body.remaining());
+
+        writeVarint(dst, len);
+        int payloadStart = dst.position();
+
+        if (head != null) {
+            dst.put(head.duplicate());
+        }
+        if (body != null) {
+            dst.put(body.duplicate());
+        }
+        if (mCrcEnabled) {
+            mCrc32.reset();
+            mCrc32.update(dst.array(), dst.arrayOffset() + payloadStart, len);
+            dst.putInt((int) mCrc32.getValue());
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * 以單次write送出整個frame
+     */
+    public void encode(byte[] b, int off, int len, OutputStream out) throws IOException {
+        ByteBuffer buffer = mBufferPool.acquire(encodedLength(len));
+
+        try {
+            encode(b, off, len, buffer);
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } finally {
+            mBufferPool.release(buffer);
+        }
+    }
+}
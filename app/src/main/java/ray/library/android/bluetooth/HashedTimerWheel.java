@@ -0,0 +1,276 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Hashed timing wheel (Varghese &amp; Lauck) on one daemon thread, for large numbers of
+ * coarse timers such as per-connection keepalives. Adding and cancelling are O(1) and
+ * lock-free; a timeout fires on the first tick at or after its deadline, so the error is
+ * at most one tick. Tasks run on the wheel thread and must be short.
+ */
+public class HashedTimerWheel {
+    private final static String TAG = RayLog.tag(HashedTimerWheel.class);
+    public final static long DEFAULT_TICK_MILLIS = 100L;
+    public final static int DEFAULT_WHEEL_SIZE = 512;
+    private static HashedTimerWheel sDefault;
+
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    private final String mName;
+    private final ConcurrentLinkedQueue<Timeout> mPending = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicInteger mTimeoutCount = new AtomicInteger();
+    private Thread mWorker;
+    private volatile long mStartNanos;
+    private volatile boolean mIsStop;
+    // 只由worker thread存取
+    private long mTick;
+
+    public HashedTimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, "HashedTimerWheel");
+    }
+
+    /**
+     * @param tickMillis 精確度
+     * @param wheelSize  bucket數，會向上取2的次方；tickMillis * wheelSize以上的timeout需多轉幾圈
+     * @param name       thread名稱
+     */
+    public HashedTimerWheel(long tickMillis, int wheelSize, String name) {
+        if (tickMillis <= 0L || wheelSize <= 0 || wheelSize > 1 << 20) {
+            throw new IllegalArgumentException("tickMillis <= 0 || wheelSize out of range");
+        }
+        int size = Integer.highestOneBit(wheelSize);
+
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mName = name;
+    }
+
+    public static HashedTimerWheel getDefault() {
+        if (sDefault == null) {
+            synchronized (HashedTimerWheel.class) {
+                if (sDefault == null) {
+                    sDefault = new HashedTimerWheel(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, "BTManager-timer-wheel");
+                }
+            }
+        }
+        return sDefault;
+    }
+
+    public long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTickNanos);
+    }
+
+    /**
+     * @return 尚未觸發且未取消的timeout數
+     */
+    public int getTimeoutCount() {
+        return mTimeoutCount.get();
+    }
+
+    /**
+     * 任何thread皆可呼叫，第一次呼叫時啟動worker thread
+     *
+     * @param task
+     * @param delayMillis
+     * @return 可用來取消
+     */
+    public Timeout newTimeout(Runnable task, long delayMillis) {
+        if (task == null) {
+            throw new IllegalArgumentException("task == null");
+        }
+        start();
+        Timeout timeout = new Timeout(this, task,
+                System.nanoTime() - mStartNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis)));
+
+        mTimeoutCount.incrementAndGet();
+        mPending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 停止worker thread，未觸發的timeout不再執行
+     */
+    public synchronized void stop() {
+        mIsStop = true;
+        if (mWorker != null) {
+            mWorker.interrupt();
+        }
+    }
+
+    private synchronized void start() {
+        if (mIsStop) {
+            throw new IllegalStateException("HashedTimerWheel stopped");
+        }
+        if (mWorker == null) {
+            mStartNanos = System.nanoTime();
+            mWorker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, mName);
+            mWorker.setDaemon(true);
+            mWorker.start();
+        }
+    }
+
+    private void work() {
+        while (!mIsStop) {
+            long deadline = mTickNanos * (mTick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - mStartNanos);
+
+            if (sleepNanos > 0L) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (mIsStop) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferPending();
+            mWheel[(int) (mTick & mMask)].expire();
+            mTick++;
+        }
+    }
+
+    private void transferPending() {
+        // 每個tick最多搬移固定數量，避免大量新增時拖延到期的timeout
+        for (int i = 0; i < 100000; i++) {
+            Timeout timeout = mPending.poll();
+
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.mState.get() != Timeout.STATE_PENDING) {
+                continue;
+            }
+            long calculated = timeout.mDeadlineNanos / mTickNanos;
+
+            timeout.mRemainingRounds = (calculated - mTick) / mWheel.length;
+            mWheel[(int) (Math.max(calculated, mTick) & mMask)].add(timeout);
+        }
+    }
+
+    public static class Timeout {
+        private final static int STATE_PENDING = 0;
+        private final static int STATE_CANCELLED = 1;
+        private final static int STATE_EXPIRED = 2;
+
+        private final HashedTimerWheel mWheel;
+        private final Runnable mTask;
+        private final long mDeadlineNanos;
+        private final AtomicInteger mState = new AtomicInteger(STATE_PENDING);
+        // 以下只由worker thread存取
+        private long mRemainingRounds;
+        private Timeout mNext;
+        private Timeout mPrev;
+
+        Timeout(HashedTimerWheel wheel, Runnable task, long deadlineNanos) {
+            mWheel = wheel;
+            mTask = task;
+            mDeadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * @return false 已觸發或已取消
+         */
+        public boolean cancel() {
+            if (!mState.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+                return false;
+            }
+            // 由worker在經過所屬bucket時移除
+            mWheel.mTimeoutCount.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return mState.get() == STATE_EXPIRED;
+        }
+
+        void expire() {
+            if (!mState.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+                return;
+            }
+            mWheel.mTimeoutCount.decrementAndGet();
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                RayLog.e(TAG, "timer task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Timeout的雙向鏈結，只由worker thread存取
+     */
+    private static class Bucket {
+        private Timeout mHead;
+        private Timeout mTail;
+
+        void add(Timeout timeout) {
+            if (mHead == null) {
+                mHead = mTail = timeout;
+            } else {
+                mTail.mNext = timeout;
+                timeout.mPrev = mTail;
+                mTail = timeout;
+            }
+        }
+
+        void expire() {
+            Timeout timeout = mHead;
+
+            while (timeout != null) {
+                Timeout next = timeout.mNext;
+
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.mRemainingRounds <= 0L) {
+                    // transferPending保證deadline不晚於此tick
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            Timeout next = timeout.mNext;
+
+            if (timeout.mPrev != null) {
+                timeout.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = timeout.mPrev;
+            }
+            if (timeout == mHead) {
+                mHead = next;
+            }
+            if (timeout == mTail) {
+                mTail = timeout.mPrev;
+            }
+            timeout.mPrev = null;
+            timeout.mNext = null;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed-memory log-linear histogram of non-negative long values
+ * (each power of two split into 16 linear buckets, ~6% relative error).
+ * {@link #record(long)} never allocates.
+ */
+public class Histogram {
+    private final static int SUB_BITS = 4;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static int BUCKET_COUNT = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+        mBuckets.incrementAndGet(bucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long min;
+
+        while (value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+            // retry
+        }
+        long max;
+
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0L);
+        }
+        mCount.set(0L);
+        mSum.set(0L);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * 取得當下的統計，與record同時進行時數值可能有些微誤差
+     */
+    public Snapshot getSnapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mBuckets.get(i);
+            total += counts[i];
+        }
+        long min = mMin.get();
+        long max = mMax.get();
+
+        if (total == 0L) {
+            return new Snapshot(0L, 0L, 0L, 0.0, 0L, 0L, 0L, 0L);
+        }
+        return new Snapshot(total, min, max, (double) mSum.get() / mCount.get(),
+                percentile(counts, total, 0.50, max), percentile(counts, total, 0.90, max),
+                percentile(counts, total, 0.99, max), percentile(counts, total, 0.999, max));
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+
+        return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    private static long percentile(long[] counts, long total, double percentile, long max) {
+        long rank = (long) Math.ceil(total * percentile);
+        long cumulative = 0L;
+
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                long lower = bucketLowerBound(i);
+                long upper = i + 1 < counts.length ? bucketLowerBound(i + 1) - 1 : Long.MAX_VALUE;
+
+                return Math.min(max, lower + (upper - lower) / 2);
+            }
+        }
+        return max;
+    }
+
+    public static class Snapshot {
+        private final long mCount;
+        private final long mMin;
+        private final long mMax;
+        private final double mMean;
+        private final long mP50;
+        private final long mP90;
+        private final long mP99;
+        private final long mP999;
+
+        Snapshot(long count, long min, long max, double mean, long p50, long p90, long p99, long p999) {
+            mCount = count;
+            mMin = min;
+            mMax = max;
+            mMean = mean;
+            mP50 = p50;
+            mP90 = p90;
+            mP99 = p99;
+            mP999 = p999;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mMean;
+        }
+
+        public long getP50() {
+            return mP50;
+        }
+
+        public long getP90() {
+            return mP90;
+        }
+
+        public long getP99() {
+            return mP99;
+        }
+
+        public long getP999() {
+            return mP999;
+        }
+
+        /**
+         * @param divisor ex : 1000000 將nanos轉為millis
+         */
+        public String format(long divisor) {
+            return "count[" + mCount + "],min[" + mMin / divisor + "],p50[" + mP50 / divisor
+                    + "],p90[" + mP90 / divisor + "],p99[" + mP99 / divisor + "],max[" + mMax / divisor
+                    + "],mean[" + (long) (mMean / divisor) + "]";
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Detects half-open links of every registered {@link BTConnection} on one shared
+ * {@link HashedTimerWheel}. A connection that has received nothing for pingInterval gets a
+ * ping (empty frame) every pingInterval; when missedPings pings in a row go unanswered the
+ * connection is aborted, which unblocks its reader, and {@link OnLinkLostListener} is called.
+ * A dead link is reported at most pingInterval * (missedPings + 2) + one tick after its last frame.
+ * <p>
+ * The peer only needs a {@link BTConnection}, which answers pings by itself.
+ */
+public class KeepAliveManager {
+    private final static String TAG = RayLog.tag(KeepAliveManager.class);
+    public final static long DEFAULT_PING_INTERVAL_MILLIS = 5000L;
+    public final static int DEFAULT_MISSED_PINGS = 3;
+
+    private final HashedTimerWheel mWheel;
+    private final ConcurrentHashMap<BTConnection, Entry> mEntries = new ConcurrentHashMap<BTConnection, Entry>();
+    private volatile long mPingIntervalMillis = DEFAULT_PING_INTERVAL_MILLIS;
+    private volatile int mMissedPings = DEFAULT_MISSED_PINGS;
+    private volatile OnLinkLostListener mOnLinkLostListener;
+
+    public KeepAliveManager() {
+        this(HashedTimerWheel.getDefault());
+    }
+
+    public KeepAliveManager(HashedTimerWheel wheel) {
+        if (wheel == null) {
+            throw new IllegalArgumentException("wheel == null");
+        }
+        mWheel = wheel;
+    }
+
+    /**
+     * 已註冊的連線在下一次檢查後套用
+     *
+     * @param pingIntervalMillis 需大於timer wheel的tick
+     */
+    public void setPingInterval(long pingIntervalMillis) {
+        if (pingIntervalMillis < mWheel.getTickMillis()) {
+            throw new IllegalArgumentException("pingIntervalMillis < tick[" + mWheel.getTickMillis() + "]");
+        }
+        mPingIntervalMillis = pingIntervalMillis;
+    }
+
+    public long getPingInterval() {
+        return mPingIntervalMillis;
+    }
+
+    /**
+     * @param missedPings 連續幾次ping沒有回應視為斷線
+     */
+    public void setMissedPings(int missedPings) {
+        if (missedPings <= 0) {
+            throw new IllegalArgumentException("missedPings <= 0");
+        }
+        mMissedPings = missedPings;
+    }
+
+    public int getMissedPings() {
+        return mMissedPings;
+    }
+
+    public void setOnLinkLostListener(OnLinkLostListener listener) {
+        mOnLinkLostListener = listener;
+    }
+
+    /**
+     * 開始監控，連線關閉後自動移除
+     *
+     * @param connection 已start的連線
+     */
+    public void register(BTConnection connection) {
+        Entry entry = new Entry(connection);
+
+        if (mEntries.putIfAbsent(connection, entry) == null) {
+            entry.schedule();
+        }
+    }
+
+    public void unregister(BTConnection connection) {
+        Entry entry = mEntries.remove(connection);
+
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    /**
+     * 停止監控所有連線，不關閉連線
+     */
+    public void clear() {
+        for (BTConnection connection : mEntries.keySet()) {
+            unregister(connection);
+        }
+    }
+
+    public int getConnectionCount() {
+        return mEntries.size();
+    }
+
+    private void onLinkLost(Entry entry, long silentMillis) {
+        BTConnection connection = entry.mConnection;
+
+        mEntries.remove(connection, entry);
+        RayLog.event(TAG, "link lost ", connection.getRemoteAddress());
+        OnLinkLostListener listener = mOnLinkLostListener;
+
+        // 先通知再abort，讀取端因斷線失敗時listener已被呼叫
+        try {
+            if (listener != null) {
+                listener.onLinkLost(connection, silentMillis);
+            }
+        } finally {
+            connection.abort(new IOException("link lost, silent for " + silentMillis + "ms"));
+        }
+    }
+
+    public static interface OnLinkLostListener {
+        /**
+         * 在timer wheel thread上呼叫，需快速回傳；回傳後connection會被關閉
+         *
+         * @param silentMillis 最後收到資料至今的時間
+         */
+        void onLinkLost(BTConnection connection, long silentMillis);
+    }
+
+    private class Entry implements Runnable {
+        final BTConnection mConnection;
+        // 以下只在timer wheel thread上存取
+        private long mLastReceivedNanos;
+        private int mUnansweredPings;
+        private volatile HashedTimerWheel.Timeout mTimeout;
+        private volatile boolean mIsCancelled;
+
+        Entry(BTConnection connection) {
+            mConnection = connection;
+            mLastReceivedNanos = connection.getLastReceivedNanos();
+        }
+
+        void schedule() {
+            if (!mIsCancelled) {
+                mTimeout = mWheel.newTimeout(this, mPingIntervalMillis);
+            }
+        }
+
+        void cancel() {
+            mIsCancelled = true;
+            HashedTimerWheel.Timeout timeout = mTimeout;
+
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mIsCancelled) {
+                return;
+            }
+            if (mConnection.isClose()) {
+                mEntries.remove(mConnection, this);
+                return;
+            }
+            long lastReceived = mConnection.getLastReceivedNanos();
+            long silentNanos = System.nanoTime() - lastReceived;
+
+            if (lastReceived != mLastReceivedNanos) {
+                mLastReceivedNanos = lastReceived;
+                mUnansweredPings = 0;
+            }
+            if (silentNanos >= TimeUnit.MILLISECONDS.toNanos(mPingIntervalMillis)) {
+                if (mUnansweredPings >= mMissedPings) {
+                    onLinkLost(this, TimeUnit.NANOSECONDS.toMillis(silentNanos));
+                    return;
+                }
+                mUnansweredPings++;
+                mConnection.ping();
+            }
+            schedule();
+        }
+    }
+}
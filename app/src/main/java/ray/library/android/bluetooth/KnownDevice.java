@@ -0,0 +1,71 @@
+package ray.library.android.bluetooth;
+
+/**
+ * Immutable record of a device kept by {@link KnownDeviceStore}.
+ */
+public class KnownDevice {
+    private final String mAddress;
+    private final String mName;
+    private final int mDeviceClass;
+    private final short mLastRssi;
+    private final long mLastConnectedTime;
+    private final int mConnectAttempts;
+    private final int mConnectSuccesses;
+
+    public KnownDevice(String address, String name, int deviceClass, short lastRssi, long lastConnectedTime,
+                       int connectAttempts, int connectSuccesses) {
+        mAddress = address;
+        mName = name;
+        mDeviceClass = deviceClass;
+        mLastRssi = lastRssi;
+        mLastConnectedTime = lastConnectedTime;
+        mConnectAttempts = connectAttempts;
+        mConnectSuccesses = connectSuccesses;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getDeviceClass() {
+        return mDeviceClass;
+    }
+
+    /**
+     * @return {@link DiscoveredDevice#RSSI_UNKNOWN} 未曾搜尋到
+     */
+    public short getLastRssi() {
+        return mLastRssi;
+    }
+
+    /**
+     * @return System.currentTimeMillis()，0 表示未曾連線成功
+     */
+    public long getLastConnectedTime() {
+        return mLastConnectedTime;
+    }
+
+    public int getConnectAttempts() {
+        return mConnectAttempts;
+    }
+
+    public int getConnectSuccesses() {
+        return mConnectSuccesses;
+    }
+
+    /**
+     * @return 0~1，未曾嘗試連線時為0
+     */
+    public float getSuccessRate() {
+        return mConnectAttempts == 0 ? 0f : (float) mConnectSuccesses / mConnectAttempts;
+    }
+
+    @Override
+    public String toString() {
+        return "name[" + mName + "],address[" + mAddress + "],successRate[" + getSuccessRate() + "]";
+    }
+}
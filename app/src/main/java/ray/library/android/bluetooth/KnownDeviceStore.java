@@ -0,0 +1,407 @@
+package ray.library.android.bluetooth;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Devices the phone has bonded to or connected with, kept in a small binary file of
+ * fixed-size records so startup can map it and read fields directly.
+ * <pre>
+ * header : int magic | short version | short recordSize | int count | int reserved
+ * record : long address | int deviceClass | short lastRssi | short nameLength |
+ *          long lastConnectedTime | int connectAttempts | int connectSuccesses | byte[32] name(UTF-8)
+ * </pre>
+ * The file is loaded on first access; changes are written back after a short delay on a
+ * dedicated background thread, and the fsync never runs under the lock that readers need.
+ */
+public class KnownDeviceStore {
+    private final static String TAG = RayLog.tag(KnownDeviceStore.class);
+    public final static long DEFAULT_SAVE_DELAY_MILLIS = 2000L;
+    private final static int MAGIC = 0x42544b44;// "BTKD"
+    private final static short VERSION = 1;
+    private final static int HEADER_SIZE = 16;
+    private final static int NAME_SIZE = 32;
+    private final static int RECORD_SIZE = 8 + 4 + 2 + 2 + 8 + 4 + 4 + NAME_SIZE;
+    private static ScheduledExecutorService sSaveExecutor;
+
+    private final File mFile;
+    // 寫檔順序，不與mDevices共用lock
+    private final Object mFileLock = new Object();
+    private final LinkedHashMap<String, KnownDevice> mDevices = new LinkedHashMap<String, KnownDevice>();
+    private boolean mIsLoaded;
+    private long mSaveDelayMillis = DEFAULT_SAVE_DELAY_MILLIS;
+    private ScheduledFuture<?> mPendingSave;
+    private long mVersion;
+    private long mSavedVersion = -1L;
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                save();
+            } catch (IOException e) {
+                RayLog.w(TAG, "save failed", e);
+            }
+        }
+    };
+
+    public KnownDeviceStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 寫檔及fsync可能block數十ms，不使用{@link SharedScheduler}
+     */
+    private static synchronized ScheduledExecutorService getSaveExecutor() {
+        if (sSaveExecutor == null) {
+            sSaveExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "KnownDeviceStore-save");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sSaveExecutor;
+    }
+
+    /**
+     * @param saveDelayMillis 變更後延遲多久寫檔，0 表示只在呼叫{@link #save()}時寫檔
+     */
+    public synchronized void setSaveDelay(long saveDelayMillis) {
+        mSaveDelayMillis = saveDelayMillis;
+    }
+
+    /**
+     * 讀取檔案，之後的存取不再讀檔；可在背景thread預先呼叫
+     */
+    public synchronized void load() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        try {
+            readFile();
+        } catch (FileNotFoundException e) {
+            // 第一次使用
+        } catch (IOException e) {
+            RayLog.w(TAG, "load failed", e);
+            mDevices.clear();
+        }
+    }
+
+    /**
+     * @return 依最後連線時間排序，最近的在前，適合作為重新連線的候選
+     */
+    public synchronized List<KnownDevice> getKnownDevices() {
+        load();
+        ArrayList<KnownDevice> devices = new ArrayList<KnownDevice>(mDevices.values());
+
+        Collections.sort(devices, new Comparator<KnownDevice>() {
+            @Override
+            public int compare(KnownDevice lhs, KnownDevice rhs) {
+                long l = lhs.getLastConnectedTime();
+                long r = rhs.getLastConnectedTime();
+
+                return l < r ? 1 : (l == r ? 0 : -1);
+            }
+        });
+        return devices;
+    }
+
+    public synchronized KnownDevice get(String address) {
+        load();
+        return mDevices.get(address);
+    }
+
+    /**
+     * 新增裝置，已存在則更新name及class
+     */
+    public synchronized void put(String address, String name, int deviceClass) {
+        parseAddress(address);
+        load();
+        KnownDevice device = mDevices.get(address);
+
+        if (device == null) {
+            device = new KnownDevice(address, name, deviceClass, DiscoveredDevice.RSSI_UNKNOWN, 0L, 0, 0);
+        } else {
+            if (eq(name, device.getName()) && deviceClass == device.getDeviceClass()) {
+                return;
+            }
+            device = new KnownDevice(address, name == null ? device.getName() : name, deviceClass,
+                    device.getLastRssi(), device.getLastConnectedTime(), device.getConnectAttempts(),
+                    device.getConnectSuccesses());
+        }
+        mDevices.put(address, device);
+        onChanged();
+    }
+
+    /**
+     * 只更新已知的裝置
+     */
+    public synchronized void updateRssi(String address, short rssi) {
+        load();
+        KnownDevice device = mDevices.get(address);
+
+        if (device == null || device.getLastRssi() == rssi) {
+            return;
+        }
+        mDevices.put(address, new KnownDevice(address, device.getName(), device.getDeviceClass(), rssi,
+                device.getLastConnectedTime(), device.getConnectAttempts(), device.getConnectSuccesses()));
+        onChanged();
+    }
+
+    /**
+     * 記錄一次連線嘗試，未知的裝置會被加入
+     *
+     * @param timeMillis System.currentTimeMillis()
+     */
+    public synchronized void recordConnection(String address, boolean success, long timeMillis) {
+        parseAddress(address);
+        load();
+        KnownDevice device = mDevices.get(address);
+
+        if (device == null) {
+            device = new KnownDevice(address, null, 0, DiscoveredDevice.RSSI_UNKNOWN, 0L, 0, 0);
+        }
+        mDevices.put(address, new KnownDevice(address, device.getName(), device.getDeviceClass(),
+                device.getLastRssi(), success ? timeMillis : device.getLastConnectedTime(),
+                device.getConnectAttempts() + 1, device.getConnectSuccesses() + (success ? 1 : 0)));
+        onChanged();
+    }
+
+    public synchronized void remove(String address) {
+        load();
+        if (mDevices.remove(address) != null) {
+            onChanged();
+        }
+    }
+
+    /**
+     * 立即寫檔，先寫入暫存檔再rename；寫檔期間不影響其他thread讀取或修改
+     */
+    public void save() throws IOException {
+        ByteBuffer buffer;
+        long version;
+
+        synchronized (this) {
+            if (mPendingSave != null) {
+                mPendingSave.cancel(false);
+                mPendingSave = null;
+            }
+            if (!mIsLoaded) {
+                return;
+            }
+            buffer = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE * mDevices.size());
+            buffer.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putInt(mDevices.size()).putInt(0);
+            for (KnownDevice device : mDevices.values()) {
+                writeRecord(buffer, device);
+            }
+            version = mVersion;
+        }
+        writeFile(buffer, version);
+    }
+
+    /**
+     * 在背景thread寫檔後立即回傳，ex : 在main thread上release時
+     */
+    public void saveAsync() {
+        getSaveExecutor().execute(mSaveRunnable);
+    }
+
+    private void writeFile(ByteBuffer buffer, long version) throws IOException {
+        synchronized (mFileLock) {
+            if (version <= mSavedVersion) {
+                // 較新的內容已寫入
+                return;
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+
+            try {
+                out.write(buffer.array(), 0, buffer.position());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename " + tmp + " to " + mFile + " failed");
+            }
+            mSavedVersion = version;
+        }
+    }
+
+    private void onChanged() {
+        mVersion++;
+        if (mSaveDelayMillis <= 0L || mPendingSave != null) {
+            return;
+        }
+        mPendingSave = getSaveExecutor().schedule(mSaveRunnable, mSaveDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void readFile() throws IOException {
+        FileInputStream in = new FileInputStream(mFile);
+
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            if (size < HEADER_SIZE) {
+                throw new IOException("known device file too short");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            if (buffer.getInt() != MAGIC || buffer.getShort() != VERSION) {
+                throw new IOException("unknown known device file format");
+            }
+            int recordSize = buffer.getShort();
+            int count = buffer.getInt();
+
+            buffer.getInt();
+            if (recordSize < RECORD_SIZE || HEADER_SIZE + (long) recordSize * count > size) {
+                throw new IOException("corrupted known device file");
+            }
+            byte[] name = new byte[NAME_SIZE];
+
+            for (int i = 0; i < count; i++) {
+                buffer.position(HEADER_SIZE + recordSize * i);
+                KnownDevice device = readRecord(buffer, name);
+
+                mDevices.put(device.getAddress(), device);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static KnownDevice readRecord(ByteBuffer buffer, byte[] name) throws UnsupportedEncodingException {
+        String address = formatAddress(buffer.getLong());
+        int deviceClass = buffer.getInt();
+        short lastRssi = buffer.getShort();
+        int nameLength = buffer.getShort();
+        long lastConnectedTime = buffer.getLong();
+        int connectAttempts = buffer.getInt();
+        int connectSuccesses = buffer.getInt();
+
+        buffer.get(name, 0, NAME_SIZE);
+        return new KnownDevice(address, nameLength < 0 ? null : new String(name, 0, Math.min(nameLength, NAME_SIZE), "UTF-8"),
+                deviceClass, lastRssi, lastConnectedTime, connectAttempts, connectSuccesses);
+    }
+
+    private static void writeRecord(ByteBuffer buffer, KnownDevice device) throws UnsupportedEncodingException {
+        byte[] name = device.getName() == null ? null : device.getName().getBytes("UTF-8");
+        int nameLength = name == null ? -1 : utf8Prefix(name, NAME_SIZE);
+
+        buffer.putLong(parseAddress(device.getAddress()))
+                .putInt(device.getDeviceClass())
+                .putShort(device.getLastRssi())
+                .putShort((short) nameLength)
+                .putLong(device.getLastConnectedTime())
+                .putInt(device.getConnectAttempts())
+                .putInt(device.getConnectSuccesses());
+
+        int start = buffer.position();
+
+        if (nameLength > 0) {
+            buffer.put(name, 0, nameLength);
+        }
+        buffer.position(start + NAME_SIZE);
+    }
+
+    /**
+     * 截斷在UTF-8字元邊界
+     */
+    private static int utf8Prefix(byte[] utf8, int max) {
+        if (utf8.length <= max) {
+            return utf8.length;
+        }
+        int length = max;
+
+        while (length > 0 && (utf8[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * @return 是否為XX:XX:XX:XX:XX:XX格式的藍牙位址
+     */
+    public static boolean isValidAddress(String address) {
+        try {
+            parseAddress(address);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param address 格式為"00:11:22:AA:BB:CC"
+     * @throws IllegalArgumentException 格式錯誤
+     */
+    static long parseAddress(String address) {
+        if (address == null || address.length() != 17) {
+            throw new IllegalArgumentException("address[" + address + "]");
+        }
+        long value = 0L;
+
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    throw new IllegalArgumentException("address[" + address + "]");
+                }
+                continue;
+            }
+            // Character.digit也接受全形數字，只允許ASCII
+            int digit = c < 0x80 ? Character.digit(c, 16) : -1;
+
+            if (digit < 0) {
+                throw new IllegalArgumentException("address[" + address + "]");
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    static String formatAddress(long value) {
+        char[] chars = new char[17];
+
+        for (int i = 5; i >= 0; i--) {
+            int b = (int) (value >>> (8 * (5 - i))) & 0xFF;
+            int index = i * 3;
+
+            chars[index] = Character.toUpperCase(Character.forDigit(b >>> 4, 16));
+            chars[index + 1] = Character.toUpperCase(Character.forDigit(b & 0x0F, 16));
+            if (i < 5) {
+                chars[index + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,202 @@
+package ray.library.android.bluetooth;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import ray.library.android.bluetooth.transport.BluetoothTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+/**
+ * Decorates a {@link BluetoothTransport} to count bytes of every socket into {@link BTMetrics}.
+ */
+public class MeteredTransport implements BluetoothTransport {
+    private final BluetoothTransport mTransport;
+    private final BTMetrics mMetrics;
+
+    public MeteredTransport(BluetoothTransport transport, BTMetrics metrics) {
+        mTransport = transport;
+        mMetrics = metrics;
+    }
+
+    public BluetoothTransport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public boolean isSupported() {
+        return mTransport.isSupported();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mTransport.isEnabled();
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return mTransport.getLocalAddress();
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        return new MeteredServerSocket(mTransport.listen(name, uuid));
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        return new MeteredSocket(mTransport.createSocket(address, uuid), false);
+    }
+
+    private class MeteredServerSocket implements TransportServerSocket {
+        private final TransportServerSocket mServerSocket;
+
+        MeteredServerSocket(TransportServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public TransportSocket accept() throws IOException {
+            MeteredSocket socket = new MeteredSocket(mServerSocket.accept(), true);
+
+            socket.open();
+            return socket;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    public class MeteredSocket implements TransportSocket {
+        private final TransportSocket mSocket;
+        private final boolean mIsInbound;
+        private volatile ConnectionStats mStats;
+        private InputStream mInputStream;
+        private OutputStream mOutputStream;
+
+        MeteredSocket(TransportSocket socket, boolean inbound) {
+            mSocket = socket;
+            mIsInbound = inbound;
+        }
+
+        /**
+         * @return 被統計的socket，ex : RfcommSocket
+         */
+        public TransportSocket getSocket() {
+            return mSocket;
+        }
+
+        /**
+         * @return null 尚未連線
+         */
+        public ConnectionStats getStats() {
+            return mStats;
+        }
+
+        private synchronized void open() {
+            if (mStats == null) {
+                mStats = mMetrics.openConnection(mSocket.getRemoteAddress(), mIsInbound);
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+            open();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mSocket.isConnected();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteAddress();
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (mInputStream == null) {
+                open();
+                mInputStream = new FilterInputStream(mSocket.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int value = super.read();
+
+                        if (value != -1) {
+                            mMetrics.addBytesIn(mStats, 1L);
+                        }
+                        return value;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = in.read(b, off, len);
+
+                        if (n > 0) {
+                            mMetrics.addBytesIn(mStats, n);
+                        }
+                        return n;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        // 經由stream關閉時也要結束統計
+                        MeteredSocket.this.close();
+                    }
+                };
+            }
+            return mInputStream;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (mOutputStream == null) {
+                open();
+                mOutputStream = new FilterOutputStream(mSocket.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        mMetrics.addBytesOut(mStats, 1L);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        mMetrics.addBytesOut(mStats, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            flush();
+                        } finally {
+                            MeteredSocket.this.close();
+                        }
+                    }
+                };
+            }
+            return mOutputStream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mSocket.close();
+            } finally {
+                ConnectionStats stats = mStats;
+
+                if (stats != null) {
+                    mMetrics.closeConnection(stats);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ray.library.android.bluetooth.transport.BluetoothTransport;
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * Connects to many devices with bounded parallelism. Each attempt is bounded by
+ * attemptTimeoutMillis, enforced by closing the socket since BluetoothSocket.connect()
+ * has no timeout; failed attempts are retried with jittered exponential backoff.
+ */
+public class MultiConnector {
+    private final static String TAG = RayLog.tag(MultiConnector.class);
+    public final static int DEFAULT_PARALLELISM = 3;
+    public final static long DEFAULT_ATTEMPT_TIMEOUT_MILLIS = 5000L;
+    public final static int DEFAULT_MAX_ATTEMPTS = 3;
+    public final static long DEFAULT_BASE_BACKOFF_MILLIS = 200L;
+    public final static long DEFAULT_MAX_BACKOFF_MILLIS = 2000L;
+    private final static int STATE_CONNECTING = 0;
+    private final static int STATE_DONE = 1;
+    private final static int STATE_TIMED_OUT = 2;
+
+    private final BluetoothTransport mTransport;
+    private final UUID mUuid;
+    private final Random mRandom = new Random();
+    private int mParallelism = DEFAULT_PARALLELISM;
+    private long mAttemptTimeoutMillis = DEFAULT_ATTEMPT_TIMEOUT_MILLIS;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mBaseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private long mMaxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private Runnable mBeforeConnect;
+    private OnDeviceConnectListener mOnDeviceConnectListener;
+    private ConnectionPool.OnConnectListener mOnConnectListener;
+    private volatile CompressionNegotiator mCompressionNegotiator;
+
+    public MultiConnector(BluetoothTransport transport, UUID uuid) {
+        if (transport == null) {
+            throw new IllegalArgumentException("transport == null");
+        }
+        mTransport = transport;
+        mUuid = uuid;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism <= 0");
+        }
+        mParallelism = parallelism;
+    }
+
+    public void setAttemptTimeout(long attemptTimeoutMillis) {
+        if (attemptTimeoutMillis <= 0L) {
+            throw new IllegalArgumentException("attemptTimeoutMillis <= 0");
+        }
+        mAttemptTimeoutMillis = attemptTimeoutMillis;
+    }
+
+    /**
+     * @param maxAttempts     每個裝置最多嘗試幾次
+     * @param baseBackoffMillis 第n次重試前等待 random(0, base * 2^(n-1))，最多maxBackoffMillis
+     * @param maxBackoffMillis
+     */
+    public void setRetry(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis) {
+        if (maxAttempts <= 0 || baseBackoffMillis < 0L || maxBackoffMillis < baseBackoffMillis) {
+            throw new IllegalArgumentException("maxAttempts <= 0 || baseBackoffMillis < 0 || maxBackoffMillis < baseBackoffMillis");
+        }
+        mMaxAttempts = maxAttempts;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 開始連線前呼叫一次，ex : cancelDiscovery()
+     */
+    public void setBeforeConnect(Runnable beforeConnect) {
+        mBeforeConnect = beforeConnect;
+    }
+
+    /**
+     * 每個裝置完成(成功或放棄)時在worker thread上呼叫
+     */
+    public void setOnDeviceConnectListener(OnDeviceConnectListener listener) {
+        mOnDeviceConnectListener = listener;
+    }
+
+    /**
+     * 每次連線嘗試後呼叫，在worker thread上
+     */
+    public void setOnConnectListener(ConnectionPool.OnConnectListener listener) {
+        mOnConnectListener = listener;
+    }
+
+    /**
+     * 連線後先進行壓縮握手，握手也算在attemptTimeout內
+     *
+     * @param negotiator null 不進行握手
+     */
+    public void setCompressionNegotiator(CompressionNegotiator negotiator) {
+        mCompressionNegotiator = negotiator;
+    }
+
+    /**
+     * 連線到所有裝置，block直到全部完成；需在背景thread呼叫
+     *
+     * @param addresses
+     * @return 依addresses順序的結果，成功的socket由caller負責關閉
+     * @throws InterruptedException 已連線的socket會被關閉
+     */
+    public Result connectAll(List<String> addresses) throws InterruptedException {
+        final long start = System.nanoTime();
+        final DeviceResult[] results = new DeviceResult[addresses.size()];
+        final CountDownLatch done = new CountDownLatch(addresses.size());
+        final AtomicInteger next = new AtomicInteger();
+        final List<String> targets = new ArrayList<String>(addresses);
+        int workers = Math.min(mParallelism, targets.size());
+
+        if (mBeforeConnect != null) {
+            mBeforeConnect.run();
+        }
+        final boolean[] cancelled = new boolean[1];
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+
+        try {
+            for (int i = 0; i < workers; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        int index;
+
+                        while ((index = next.getAndIncrement()) < targets.size()) {
+                            try {
+                                connect(targets.get(index), index, results, cancelled);
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            // 已連線的socket不會交給caller，在此關閉；之後才完成的由worker關閉
+            synchronized (results) {
+                cancelled[0] = true;
+                for (DeviceResult result : results) {
+                    if (result != null && result.isSuccess()) {
+                        closeQuietly(result.getSocket());
+                    }
+                }
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+        List<DeviceResult> list = new ArrayList<DeviceResult>(results.length);
+
+        Collections.addAll(list, results);
+        return new Result(list, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void connect(String address, int index, DeviceResult[] results, boolean[] cancelled) {
+        DeviceResult result;
+
+        try {
+            result = connectWithRetry(address);
+        } catch (RuntimeException e) {
+            // ex : getRemoteDevice()對格式錯誤的address丟出IllegalArgumentException
+            RayLog.w(TAG, "connect " + address + " failed", e);
+            result = new DeviceResult(address, null, new IOException("connect failed, " + e, e), 1, -1L, 0L);
+        }
+        synchronized (results) {
+            if (cancelled[0]) {
+                if (result.isSuccess()) {
+                    closeQuietly(result.getSocket());
+                }
+                return;
+            }
+            results[index] = result;
+        }
+        OnDeviceConnectListener listener = mOnDeviceConnectListener;
+
+        if (listener != null) {
+            try {
+                listener.onDeviceConnect(result);
+            } catch (RuntimeException e) {
+                RayLog.w(TAG, "onDeviceConnect failed", e);
+            }
+        }
+    }
+
+    private DeviceResult connectWithRetry(String address) {
+        long start = System.nanoTime();
+        IOException lastError = null;
+        int attempt = 0;
+
+        while (attempt < mMaxAttempts) {
+            if (attempt > 0 && !sleepBackoff(attempt)) {
+                break;
+            }
+            attempt++;
+            long attemptStart = System.nanoTime();
+
+            try {
+                TransportSocket socket = connectOnce(address);
+
+                onAttempt(address, true, attemptStart);
+                return new DeviceResult(address, socket, null, attempt,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - attemptStart),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (IOException e) {
+                onAttempt(address, false, attemptStart);
+                lastError = e;
+            }
+        }
+        return new DeviceResult(address, null, lastError, attempt, -1L,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void onAttempt(String address, boolean success, long attemptStart) {
+        ConnectionPool.OnConnectListener listener = mOnConnectListener;
+
+        if (listener != null) {
+            // 丟出例外時已連線的socket會遺失
+            try {
+                listener.onConnect(address, success, System.nanoTime() - attemptStart);
+            } catch (RuntimeException e) {
+                RayLog.w(TAG, "OnConnectListener failed", e);
+            }
+        }
+    }
+
+    private TransportSocket connectOnce(String address) throws IOException {
+        final TransportSocket socket = mTransport.createSocket(address, mUuid);
+        final AtomicInteger state = new AtomicInteger(STATE_CONNECTING);
+        ScheduledFuture<?> timeout = SharedScheduler.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (state.compareAndSet(STATE_CONNECTING, STATE_TIMED_OUT)) {
+                    closeQuietly(socket);
+                }
+            }
+        }, mAttemptTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        TransportSocket connected;
+
+        try {
+            socket.connect();
+            CompressionNegotiator negotiator = mCompressionNegotiator;
+
+            connected = negotiator != null ? negotiator.negotiate(socket) : socket;
+        } catch (IOException e) {
+            timeout.cancel(false);
+            closeQuietly(socket);
+            if (state.get() == STATE_TIMED_OUT) {
+                throw new IOException("connect timeout[" + mAttemptTimeoutMillis + "ms]", e);
+            }
+            throw e;
+        }
+        timeout.cancel(false);
+
+        if (!state.compareAndSet(STATE_CONNECTING, STATE_DONE)) {
+            // 連線成功的同時逾時，socket已被關閉
+            throw new IOException("connect timeout[" + mAttemptTimeoutMillis + "ms]");
+        }
+        return connected;
+    }
+
+    private boolean sleepBackoff(int attempt) {
+        long ceiling = Math.min(mMaxBackoffMillis, mBaseBackoffMillis << Math.min(attempt - 1, 20));
+        long sleep;
+
+        synchronized (mRandom) {
+            sleep = ceiling <= 0L ? 0L : (long) (mRandom.nextDouble() * ceiling);
+        }
+        try {
+            Thread.sleep(sleep);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void closeQuietly(TransportSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close socket failed", e);
+        }
+    }
+
+    public static interface OnDeviceConnectListener {
+        void onDeviceConnect(DeviceResult result);
+    }
+
+    public static class DeviceResult {
+        private final String mAddress;
+        private final TransportSocket mSocket;
+        private final IOException mError;
+        private final int mAttempts;
+        private final long mConnectMillis;
+        private final long mTotalMillis;
+
+        DeviceResult(String address, TransportSocket socket, IOException error, int attempts,
+                     long connectMillis, long totalMillis) {
+            mAddress = address;
+            mSocket = socket;
+            mError = error;
+            mAttempts = attempts;
+            mConnectMillis = connectMillis;
+            mTotalMillis = totalMillis;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public boolean isSuccess() {
+            return mSocket != null;
+        }
+
+        /**
+         * @return 成功時為已連線的socket，否則為null
+         */
+        public TransportSocket getSocket() {
+            return mSocket;
+        }
+
+        /**
+         * @return 最後一次失敗的原因
+         */
+        public IOException getError() {
+            return mError;
+        }
+
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        /**
+         * @return 成功那次嘗試的連線時間，失敗為-1
+         */
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        /**
+         * @return 含重試及等待的總時間
+         */
+        public long getTotalMillis() {
+            return mTotalMillis;
+        }
+    }
+
+    public static class Result {
+        private final List<DeviceResult> mDeviceResults;
+        private final long mElapsedMillis;
+
+        Result(List<DeviceResult> deviceResults, long elapsedMillis) {
+            mDeviceResults = Collections.unmodifiableList(deviceResults);
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public List<DeviceResult> getDeviceResults() {
+            return mDeviceResults;
+        }
+
+        public int getSuccessCount() {
+            int count = 0;
+
+            for (DeviceResult result : mDeviceResults) {
+                if (result.isSuccess()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public int getFailureCount() {
+            return mDeviceResults.size() - getSuccessCount();
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package ray.library.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * One logical stream of a {@link ChannelMultiplexer}. Received data is buffered in a ring of
+ * window bytes, writes block only while this channel has no credit left.
+ */
+public class MuxChannel implements Closeable {
+    private final ChannelMultiplexer mMultiplexer;
+    private final int mId;
+    private final byte[] mReceiveBuffer;
+    private final InputStream mInputStream = new ChannelInputStream();
+    private final OutputStream mOutputStream = new ChannelOutputStream();
+    private int mReadPosition;
+    private int mAvailable;
+    private int mConsumedSinceCredit;
+    private int mSendCredits;
+    private boolean mIsRemoteClose;
+    private boolean mIsLocalClose;
+    private IOException mFailure;
+    private long mBytesSent;
+    private long mBytesReceived;
+    private long mCreditStallCount;
+    // 已送出OPEN，由ChannelMultiplexer在自身lock下存取
+    boolean mIsAnnounced;
+
+    MuxChannel(ChannelMultiplexer multiplexer, int id, int window) {
+        mMultiplexer = multiplexer;
+        mId = id;
+        mReceiveBuffer = new byte[window];
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * @return 寫入時因沒有credit而等待的次數，持續增加表示對方讀取太慢
+     */
+    public synchronized long getCreditStallCount() {
+        return mCreditStallCount;
+    }
+
+    /**
+     * 通知對方此channel不再寫入，對方讀完已收到的資料後得到EOF
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mIsLocalClose) {
+                return;
+            }
+            mIsLocalClose = true;
+            notifyAll();
+        }
+        mMultiplexer.removeChannel(this);
+
+        if (!mMultiplexer.isClose()) {
+            mMultiplexer.writeControl(ChannelMultiplexer.TYPE_CLOSE, mId, 0);
+        }
+    }
+
+    /**
+     * reader thread
+     */
+    void onData(byte[] b, int off, int len) throws IOException {
+        synchronized (this) {
+            int capacity = mReceiveBuffer.length;
+
+            if (len > capacity - mAvailable) {
+                throw new IOException("channel[" + mId + "] credit exceeded");
+            }
+            int writePosition = (mReadPosition + mAvailable) % capacity;
+            int first = Math.min(len, capacity - writePosition);
+
+            System.arraycopy(b, off, mReceiveBuffer, writePosition, first);
+            System.arraycopy(b, off + first, mReceiveBuffer, 0, len - first);
+            mAvailable += len;
+            mBytesReceived += len;
+            notifyAll();
+        }
+    }
+
+    synchronized void addSendCredits(int credits) {
+        mSendCredits += credits;
+        notifyAll();
+    }
+
+    synchronized void onRemoteClose() {
+        mIsRemoteClose = true;
+        notifyAll();
+    }
+
+    synchronized void onMultiplexerClosed(IOException cause) {
+        mIsRemoteClose = true;
+        mFailure = cause;
+        notifyAll();
+    }
+
+    private int read(byte[] b, int off, int len) throws IOException {
+        int n;
+        int credit = 0;
+
+        synchronized (this) {
+            while (mAvailable == 0) {
+                if (mIsLocalClose || mIsRemoteClose) {
+                    if (mFailure != null) {
+                        throw new IOException("link failed", mFailure);
+                    }
+                    return -1;
+                }
+                waitInterruptibly();
+            }
+            int capacity = mReceiveBuffer.length;
+
+            n = Math.min(len, mAvailable);
+            int first = Math.min(n, capacity - mReadPosition);
+
+            System.arraycopy(mReceiveBuffer, mReadPosition, b, off, first);
+            System.arraycopy(mReceiveBuffer, 0, b, off + first, n - first);
+            mReadPosition = (mReadPosition + n) % capacity;
+            mAvailable -= n;
+            mConsumedSinceCredit += n;
+
+            // 累積到一半window才回credit，減少CREDIT frame數量
+            if (mConsumedSinceCredit >= capacity / 2 && !mIsLocalClose && !mIsRemoteClose) {
+                credit = mConsumedSinceCredit;
+                mConsumedSinceCredit = 0;
+            }
+        }
+        if (credit > 0) {
+            mMultiplexer.writeControl(ChannelMultiplexer.TYPE_CREDIT, mId, credit);
+        }
+        return n;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+
+            synchronized (this) {
+                if (mSendCredits == 0) {
+                    mCreditStallCount++;
+                }
+                while (mSendCredits == 0) {
+                    checkWritable();
+                    waitInterruptibly();
+                }
+                checkWritable();
+                n = Math.min(Math.min(len, mSendCredits), mMultiplexer.getMaxFrameSize());
+                mSendCredits -= n;
+                mBytesSent += n;
+            }
+            mMultiplexer.writeData(mId, b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (mIsLocalClose) {
+            throw new IOException("channel[" + mId + "] closed");
+        }
+        if (mIsRemoteClose) {
+            throw new IOException("channel[" + mId + "] closed by remote", mFailure);
+        }
+    }
+
+    private void waitInterruptibly() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private class ChannelInputStream extends InputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return MuxChannel.this.read(mSingle, 0, 1) == -1 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return MuxChannel.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MuxChannel.this) {
+                return mAvailable;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            MuxChannel.this.close();
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingle[0] = (byte) b;
+            MuxChannel.this.write(mSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MuxChannel.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            MuxChannel.this.close();
+        }
+    }
+}
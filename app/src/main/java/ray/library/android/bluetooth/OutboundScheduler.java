@@ -0,0 +1,446 @@
+package ray.library.android.bluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Priority classes for the outbound side of a {@link BTConnection}. Messages are split into
+ * chunks of at most chunkSize, and the classes are served by deficit round robin: every round
+ * a class may send weight * chunkSize bytes. A 1 MB bulk message therefore only delays a
+ * control frame by one bulk quantum, and no class with queued data starves.
+ * <p>
+ * The BTConnection queue is kept below maxPendingBytes so the order is decided here, just
+ * before the frame reaches the socket. Every frame starts with one byte, MORE(0x80) | class.
+ * Once a scheduler is used, every send on the connection must go through it, and the peer
+ * must feed each received frame to a {@link Reassembler}.
+ */
+public class OutboundScheduler implements Closeable {
+    private final static String TAG = RayLog.tag(OutboundScheduler.class);
+    public final static int PRIORITY_HIGH = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_BULK = 2;
+    public final static int MAX_CLASSES = 8;
+    public final static int DEFAULT_CHUNK_SIZE = 1024;
+    private final static int FLAG_MORE = 0x80;
+    private final static int CLASS_MASK = 0x7F;
+
+    private final BTConnection mConnection;
+    private final int[] mWeights;
+    private final ClassQueue[] mQueues;
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private long mMaxPendingBytes = 2 * DEFAULT_CHUNK_SIZE;
+    private Thread mWriterThread;
+    private volatile Thread mWriterWaiter;
+    private volatile boolean mIsClose;
+    private volatile IOException mCloseCause;
+
+    /**
+     * weights為{8, 4, 1}，對應PRIORITY_HIGH、PRIORITY_NORMAL、PRIORITY_BULK
+     */
+    public OutboundScheduler(BTConnection connection) {
+        this(connection, new int[]{8, 4, 1});
+    }
+
+    /**
+     * @param connection 已start的連線
+     * @param weights    每個class每輪可送出的chunk數，index即為class，越前面越先送
+     */
+    public OutboundScheduler(BTConnection connection, int[] weights) {
+        if (connection == null) {
+            throw new IllegalArgumentException("connection == null");
+        }
+        if (weights == null || weights.length == 0 || weights.length > MAX_CLASSES) {
+            throw new IllegalArgumentException("weights.length not in [1, " + MAX_CLASSES + "]");
+        }
+        mConnection = connection;
+        mWeights = weights.clone();
+        mQueues = new ClassQueue[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("weights[" + i + "] <= 0");
+            }
+            mQueues[i] = new ClassQueue();
+        }
+    }
+
+    /**
+     * start前設定，maxPendingBytes一併設為chunkSize的2倍
+     *
+     * @param chunkSize 需小於連線的maxFrameLength
+     */
+    public synchronized void setChunkSize(int chunkSize) {
+        checkNotStarted();
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize <= 0");
+        }
+        mChunkSize = chunkSize;
+        mMaxPendingBytes = 2L * chunkSize;
+    }
+
+    /**
+     * start前設定；越小高優先的frame等待越短，但需足以讓socket持續有資料可寫
+     *
+     * @param maxPendingBytes BTConnection queue中最多的bytes
+     */
+    public synchronized void setMaxPendingBytes(long maxPendingBytes) {
+        checkNotStarted();
+        if (maxPendingBytes <= 0L) {
+            throw new IllegalArgumentException("maxPendingBytes <= 0");
+        }
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * start前送出的message會排隊，start後依權重送出
+     */
+    public synchronized void start() {
+        checkNotStarted();
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeLoop();
+                } catch (IOException e) {
+                    shutdown(e);
+                }
+            }
+        }, "OutboundScheduler-" + mConnection.getRemoteAddress());
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * 放入所屬class的queue後立即回傳，任何thread皆可呼叫；同一class內依呼叫順序送出
+     *
+     * @param message  送出前不可修改其內容，長度可為0
+     * @param priority class，0為最高
+     * @throws IOException 已關閉或連線錯誤
+     */
+    public void send(byte[] message, int priority) throws IOException {
+        if (message == null) {
+            throw new IllegalArgumentException("message == null");
+        }
+        if (priority < 0 || priority >= mQueues.length) {
+            throw new IllegalArgumentException("priority[" + priority + "] not in [0, " + mQueues.length + ")");
+        }
+        if (mIsClose) {
+            throw closedException();
+        }
+        if (mConnection.isClose()) {
+            throw new IOException("connection closed", mConnection.getCloseCause());
+        }
+        mQueues[priority].offer(new Message(message));
+        LockSupport.unpark(mWriterWaiter);
+    }
+
+    public int getClassCount() {
+        return mQueues.length;
+    }
+
+    /**
+     * @param priority class
+     * @return 該class的queue深度與等待時間
+     */
+    public ClassStats getClassStats(int priority) {
+        return mQueues[priority].mStats;
+    }
+
+    public boolean isClose() {
+        return mIsClose;
+    }
+
+    /**
+     * @return null 正常關閉
+     */
+    public IOException getCloseCause() {
+        return mCloseCause;
+    }
+
+    public void dump(PrintWriter writer) {
+        for (int i = 0; i < mQueues.length; i++) {
+            writer.println("class[" + i + "] weight[" + mWeights[i] + "] " + mQueues[i].mStats);
+        }
+        writer.flush();
+    }
+
+    /**
+     * 停止送出，排隊中的message捨棄；不關閉連線
+     */
+    @Override
+    public void close() {
+        shutdown(null);
+    }
+
+    private void writeLoop() throws IOException {
+        int[] deficits = new int[mQueues.length];
+
+        while (!mIsClose) {
+            boolean isIdle = true;
+
+            for (int i = 0; i < mQueues.length && !mIsClose; i++) {
+                ClassQueue queue = mQueues[i];
+
+                if (queue.mQueue.isEmpty()) {
+                    // 閒置的class不累積額度
+                    deficits[i] = 0;
+                    continue;
+                }
+                isIdle = false;
+                deficits[i] += mWeights[i] * mChunkSize;
+                while (deficits[i] > 0 && !mIsClose) {
+                    Message message = queue.mQueue.peek();
+
+                    if (message == null) {
+                        deficits[i] = 0;
+                        break;
+                    }
+                    mConnection.awaitQueuedBytes(mMaxPendingBytes);
+                    deficits[i] -= sendChunk(i, message);
+                }
+            }
+            if (isIdle) {
+                mWriterWaiter = Thread.currentThread();
+                if (isEmpty() && !mIsClose) {
+                    LockSupport.park(this);
+                }
+                mWriterWaiter = null;
+            }
+        }
+    }
+
+    /**
+     * @return 送出的payload bytes，至少為1以免空的message不消耗額度
+     */
+    private int sendChunk(int priority, Message message) throws IOException {
+        int length = Math.min(mChunkSize, message.mData.length - message.mOffset);
+        boolean isLast = message.mOffset + length == message.mData.length;
+
+        ClassQueue queue = mQueues[priority];
+
+        if (message.mOffset == 0) {
+            queue.mStats.mWaitTime.record(System.nanoTime() - message.mEnqueueNanos);
+        }
+        // 統計需在最後一個chunk交給連線前更新，對方收到message時已可見
+        if (isLast && queue.mQueue.remove(message)) {
+            queue.onSent(message);
+        }
+        // BTConnection保留head直到寫出，每個frame需各自的header
+        ByteBuffer head = ByteBuffer.allocate(1);
+
+        head.put((byte) (priority | (isLast ? 0 : FLAG_MORE))).flip();
+        mConnection.send(head, ByteBuffer.wrap(message.mData, message.mOffset, length));
+        message.mOffset += length;
+        return Math.max(1, length);
+    }
+
+    private boolean isEmpty() {
+        for (ClassQueue queue : mQueues) {
+            if (!queue.mQueue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void shutdown(IOException cause) {
+        Thread writerThread;
+
+        synchronized (this) {
+            if (mIsClose) {
+                return;
+            }
+            mCloseCause = cause;
+            mIsClose = true;
+            writerThread = mWriterThread;
+        }
+        if (cause != null) {
+            RayLog.w(TAG, "scheduler stopped " + mConnection.getRemoteAddress(), cause);
+        }
+        // writer可能閒置或在等待連線寫出
+        if (writerThread != null && writerThread != Thread.currentThread()) {
+            writerThread.interrupt();
+        }
+        for (ClassQueue queue : mQueues) {
+            queue.clear();
+        }
+    }
+
+    private IOException closedException() {
+        IOException cause = mCloseCause;
+
+        return cause == null ? new IOException("OutboundScheduler closed") : new IOException("OutboundScheduler closed", cause);
+    }
+
+    private void checkNotStarted() {
+        if (mWriterThread != null) {
+            throw new IllegalStateException("OutboundScheduler already started");
+        }
+    }
+
+    /**
+     * 單一class的統計，任何thread皆可讀取
+     */
+    public static class ClassStats {
+        private final AtomicInteger mQueuedMessages = new AtomicInteger();
+        private final AtomicLong mQueuedBytes = new AtomicLong();
+        private final AtomicLong mSentMessages = new AtomicLong();
+        private final AtomicLong mSentBytes = new AtomicLong();
+        private final AtomicLong mDroppedMessages = new AtomicLong();
+        private final Histogram mWaitTime = new Histogram();
+
+        /**
+         * @return 排隊中(含送出一半)的message數
+         */
+        public int getQueuedMessages() {
+            return mQueuedMessages.get();
+        }
+
+        public long getQueuedBytes() {
+            return mQueuedBytes.get();
+        }
+
+        public long getSentMessages() {
+            return mSentMessages.get();
+        }
+
+        public long getSentBytes() {
+            return mSentBytes.get();
+        }
+
+        /**
+         * @return 關閉時捨棄的message數
+         */
+        public long getDroppedMessages() {
+            return mDroppedMessages.get();
+        }
+
+        /**
+         * @return send至第一個chunk交給連線的時間(ns)
+         */
+        public Histogram getWaitTime() {
+            return mWaitTime;
+        }
+
+        @Override
+        public String toString() {
+            return "queued[" + mQueuedMessages.get() + "/" + mQueuedBytes.get() + "B],sent["
+                    + mSentMessages.get() + "/" + mSentBytes.get() + "B],dropped[" + mDroppedMessages.get()
+                    + "],wait(us) " + mWaitTime.getSnapshot().format(1000L);
+        }
+    }
+
+    /**
+     * 接收端，將chunk組回message；只能由一個thread使用
+     */
+    public static class Reassembler {
+        private final ByteArrayOutputStream[] mPartials = new ByteArrayOutputStream[MAX_CLASSES];
+        private int mMaxMessageLength = 1024 * 1024;
+        private int mLastPriority = -1;
+
+        public void setMaxMessageLength(int maxMessageLength) {
+            if (maxMessageLength <= 0) {
+                throw new IllegalArgumentException("maxMessageLength <= 0");
+            }
+            mMaxMessageLength = maxMessageLength;
+        }
+
+        /**
+         * @param frame 由{@link BTConnection#take(long)}取得
+         * @return 完整的message，尚未收齊時為null
+         * @throws IOException 格式錯誤或超過maxMessageLength
+         */
+        public byte[] onFrame(byte[] frame) throws IOException {
+            if (frame.length == 0) {
+                throw new IOException("frame without header");
+            }
+            int header = frame[0] & 0xFF;
+            int priority = header & CLASS_MASK;
+
+            if (priority >= MAX_CLASSES) {
+                throw new IOException("unknown class[" + priority + "]");
+            }
+            ByteArrayOutputStream partial = mPartials[priority];
+            boolean hasMore = (header & FLAG_MORE) != 0;
+
+            if (partial == null && !hasMore) {
+                // 未分割的message不經過緩衝
+                mLastPriority = priority;
+                byte[] message = new byte[frame.length - 1];
+
+                System.arraycopy(frame, 1, message, 0, message.length);
+                return message;
+            }
+            if (partial == null) {
+                partial = new ByteArrayOutputStream(frame.length * 4);
+                mPartials[priority] = partial;
+            }
+            if (partial.size() + frame.length - 1 > mMaxMessageLength) {
+                mPartials[priority] = null;
+                throw new IOException("message of class[" + priority + "] exceeds " + mMaxMessageLength);
+            }
+            partial.write(frame, 1, frame.length - 1);
+            if (hasMore) {
+                return null;
+            }
+            mPartials[priority] = null;
+            mLastPriority = priority;
+            return partial.toByteArray();
+        }
+
+        /**
+         * @return 最後一個由onFrame回傳的message所屬class
+         */
+        public int getLastPriority() {
+            return mLastPriority;
+        }
+    }
+
+    private static class Message {
+        final byte[] mData;
+        final long mEnqueueNanos;
+        // 只由writer thread存取
+        int mOffset;
+
+        Message(byte[] data) {
+            mData = data;
+            mEnqueueNanos = System.nanoTime();
+        }
+    }
+
+    private static class ClassQueue {
+        final ConcurrentLinkedQueue<Message> mQueue = new ConcurrentLinkedQueue<Message>();
+        final ClassStats mStats = new ClassStats();
+
+        void offer(Message message) {
+            mStats.mQueuedMessages.incrementAndGet();
+            mStats.mQueuedBytes.addAndGet(message.mData.length);
+            mQueue.offer(message);
+        }
+
+        void onSent(Message message) {
+            mStats.mQueuedMessages.decrementAndGet();
+            mStats.mQueuedBytes.addAndGet(-message.mData.length);
+            mStats.mSentMessages.incrementAndGet();
+            mStats.mSentBytes.addAndGet(message.mData.length);
+        }
+
+        void clear() {
+            Message message;
+
+            while ((message = mQueue.poll()) != null) {
+                mStats.mQueuedMessages.decrementAndGet();
+                mStats.mQueuedBytes.addAndGet(-message.mData.length);
+                mStats.mDroppedMessages.incrementAndGet();
+            }
+        }
+    }
+}
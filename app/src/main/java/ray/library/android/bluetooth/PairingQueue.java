@@ -0,0 +1,458 @@
+package ray.library.android.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Bonds a list of devices back to back. The system bonding stack handles one bond at a time,
+ * so the queue issues the next createBond as soon as the previous one reaches BONDED or
+ * BOND_NONE, rather than waiting for a user to tap through a dialog. Each attempt has a
+ * timeout, after which the queue waits for the system to leave BOND_BONDING before the next
+ * createBond. A failed attempt is retried up to maxAttempts, and every device ends with a
+ * {@link Result}, failures included. Started by {@link BTManager#startPairing(PairingQueue)},
+ * which pauses discovery while the queue runs.
+ * <p>
+ * All state changes run on {@link SharedScheduler}.
+ */
+public class PairingQueue {
+    private final static String TAG = RayLog.tag(PairingQueue.class);
+    public final static long DEFAULT_BOND_TIMEOUT_MILLIS = 30 * 1000L;
+    public final static int DEFAULT_MAX_ATTEMPTS = 3;
+    public final static long DEFAULT_RETRY_DELAY_MILLIS = 1000L;
+    public final static int REASON_NONE = 0;
+    /**
+     * createBond回傳false
+     */
+    public final static int REASON_REJECTED = 1;
+    /**
+     * BOND_BONDING後回到BOND_NONE，ex : PIN錯誤、對方拒絕
+     */
+    public final static int REASON_BOND_FAILED = 2;
+    public final static int REASON_TIMEOUT = 3;
+    public final static int REASON_CANCELLED = 4;
+
+    private final List<String> mAddresses;
+    private final List<Result> mResults = new ArrayList<Result>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private long mBondTimeoutMillis = DEFAULT_BOND_TIMEOUT_MILLIS;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long mRetryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private OnPairingListener mOnPairingListener;
+    private volatile ScheduledExecutorService mScheduler;
+    // 以下只在scheduler thread上存取
+    private BondDriver mDriver;
+    private Runnable mBeforeBond;
+    private Runnable mOnFinish;
+    // bond逾時或重試的排程
+    private ScheduledFuture<?> mPending;
+    private boolean mIsBonding;
+    // 逾時但系統可能仍在BONDING的裝置，結束前createBond會被拒絕
+    private String mStaleBondAddress;
+    private boolean mIsWaitingForStaleBond;
+    private int mIndex;
+    private int mAttempt;
+    private long mDeviceStartNanos;
+    private volatile boolean mIsStarted;
+    private volatile boolean mIsFinished;
+    private volatile int mCompletedCount;
+    private volatile int mFailedCount;
+    private volatile long mStartNanos;
+
+    /**
+     * @param addresses 依順序配對，重複的address只配對一次
+     */
+    public PairingQueue(List<String> addresses) {
+        if (addresses == null || addresses.isEmpty()) {
+            throw new IllegalArgumentException("addresses is empty");
+        }
+        mAddresses = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(addresses)));
+    }
+
+    /**
+     * @param bondTimeoutMillis 每次createBond等待BONDED或BOND_NONE的時間，含使用者確認PIN
+     */
+    public synchronized void setBondTimeout(long bondTimeoutMillis) {
+        checkNotStarted();
+        if (bondTimeoutMillis <= 0L) {
+            throw new IllegalArgumentException("bondTimeoutMillis <= 0");
+        }
+        mBondTimeoutMillis = bondTimeoutMillis;
+    }
+
+    /**
+     * @param maxAttempts    每個裝置最多嘗試次數
+     * @param retryDelayMillis 失敗後等待多久再試，讓系統清除前一次的狀態
+     */
+    public synchronized void setRetry(int maxAttempts, long retryDelayMillis) {
+        checkNotStarted();
+        if (maxAttempts <= 0 || retryDelayMillis < 0L) {
+            throw new IllegalArgumentException("maxAttempts <= 0 || retryDelayMillis < 0");
+        }
+        mMaxAttempts = maxAttempts;
+        mRetryDelayMillis = retryDelayMillis;
+    }
+
+    public synchronized void setOnPairingListener(OnPairingListener listener) {
+        checkNotStarted();
+        mOnPairingListener = listener;
+    }
+
+    public List<String> getAddresses() {
+        return mAddresses;
+    }
+
+    public int getTotalCount() {
+        return mAddresses.size();
+    }
+
+    /**
+     * @return 已有結果的裝置數，含失敗
+     */
+    public int getCompletedCount() {
+        return mCompletedCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return 開始至今每分鐘完成的裝置數
+     */
+    public double getDevicesPerMinute() {
+        long startNanos = mStartNanos;
+
+        if (startNanos == 0L) {
+            return 0.0;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        return elapsedNanos <= 0L ? 0.0 : mCompletedCount * (double) TimeUnit.MINUTES.toNanos(1) / elapsedNanos;
+    }
+
+    public boolean isFinished() {
+        return mIsFinished;
+    }
+
+    /**
+     * 目前的裝置以REASON_CANCELLED結束，其餘不再配對；已開始的系統配對不會中斷
+     */
+    public void cancel() {
+        ScheduledExecutorService scheduler = mScheduler;
+
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsFinished) {
+                    return;
+                }
+                cancelPending();
+                while (mIndex < mAddresses.size()) {
+                    complete(false, REASON_CANCELLED);
+                }
+                finish();
+            }
+        });
+    }
+
+    /**
+     * 等待所有裝置完成，返回時onPairingFinished已呼叫完
+     *
+     * @return 依addresses順序
+     */
+    public List<Result> await() throws InterruptedException {
+        mDone.await();
+        return getResults();
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDone.await(timeout, unit);
+    }
+
+    public synchronized List<Result> getResults() {
+        return new ArrayList<Result>(mResults);
+    }
+
+    /**
+     * @param driver     呼叫系統的createBond
+     * @param beforeBond 每次createBond前呼叫，ex : cancelDiscovery
+     * @param onFinish   結束時呼叫一次
+     */
+    synchronized void start(ScheduledExecutorService scheduler, BondDriver driver, Runnable beforeBond, Runnable onFinish) {
+        checkNotStarted();
+        mIsStarted = true;
+        mScheduler = scheduler;
+        mDriver = driver;
+        mBeforeBond = beforeBond;
+        mOnFinish = onFinish;
+        mStartNanos = System.nanoTime();
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                bondNext();
+            }
+        });
+    }
+
+    /**
+     * ACTION_BOND_STATE_CHANGED，任何thread皆可呼叫
+     */
+    void onBondStateChanged(final String address, final int state, final int prevState) {
+        mScheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsFinished) {
+                    return;
+                }
+                boolean isCurrent = mIndex < mAddresses.size() && mAddresses.get(mIndex).equalsIgnoreCase(address);
+
+                if (address.equalsIgnoreCase(mStaleBondAddress) && state != BluetoothDevice.BOND_BONDING) {
+                    // 逾時的系統配對已結束，可以再createBond
+                    mStaleBondAddress = null;
+
+                    if (mIsWaitingForStaleBond) {
+                        mIsWaitingForStaleBond = false;
+                        cancelPending();
+
+                        if (state != BluetoothDevice.BOND_BONDED || !isCurrent) {
+                            bondNext();
+                            return;
+                        }
+                    }
+                }
+                if (!isCurrent) {
+                    return;
+                }
+                if (state == BluetoothDevice.BOND_BONDED) {
+                    // 逾時後才完成的配對也算成功
+                    cancelPending();
+                    mIsBonding = false;
+                    complete(true, REASON_NONE);
+                    bondNext();
+                } else if (state == BluetoothDevice.BOND_NONE && prevState == BluetoothDevice.BOND_BONDING && mIsBonding) {
+                    cancelPending();
+                    onAttemptFailed(REASON_BOND_FAILED);
+                }
+            }
+        });
+    }
+
+    private void bondNext() {
+        while (!mIsFinished && mIndex < mAddresses.size()) {
+            if (mStaleBondAddress != null) {
+                if (mDriver.getBondState(mStaleBondAddress) == BluetoothDevice.BOND_BONDING) {
+                    waitForStaleBond();
+                    return;
+                }
+                mStaleBondAddress = null;
+            }
+            String address = mAddresses.get(mIndex);
+
+            if (mAttempt == 0) {
+                mDeviceStartNanos = System.nanoTime();
+                if (mDriver.getBondState(address) == BluetoothDevice.BOND_BONDED) {
+                    complete(true, REASON_NONE);
+                    continue;
+                }
+            }
+            mAttempt++;
+            if (mBeforeBond != null) {
+                mBeforeBond.run();
+            }
+            RayLog.event(TAG, "createBond ", address);
+            if (!mDriver.createBond(address)) {
+                onAttemptFailed(REASON_REJECTED);
+                return;
+            }
+            mIsBonding = true;
+            mPending = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mPending = null;
+                    if (!mIsFinished) {
+                        mStaleBondAddress = mAddresses.get(mIndex);
+                        onAttemptFailed(REASON_TIMEOUT);
+                    }
+                }
+            }, mBondTimeoutMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        finish();
+    }
+
+    /**
+     * 系統同時只處理一個配對，等逾時的裝置離開BOND_BONDING再createBond；最多等bondTimeout
+     */
+    private void waitForStaleBond() {
+        mIsWaitingForStaleBond = true;
+        mPending = mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPending = null;
+                if (!mIsFinished && mIsWaitingForStaleBond) {
+                    RayLog.w(TAG, "bond " + mStaleBondAddress + " still bonding");
+                    mIsWaitingForStaleBond = false;
+                    mStaleBondAddress = null;
+                    bondNext();
+                }
+            }
+        }, mBondTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void onAttemptFailed(int reason) {
+        String address = mAddresses.get(mIndex);
+
+        mIsBonding = false;
+        RayLog.w(TAG, "bond " + address + " attempt[" + mAttempt + "] failed, reason[" + reason + "]");
+        if (mAttempt < mMaxAttempts) {
+            mPending = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mPending = null;
+                    bondNext();
+                }
+            }, mRetryDelayMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        complete(false, reason);
+        bondNext();
+    }
+
+    private void complete(boolean success, int reason) {
+        String address = mAddresses.get(mIndex);
+        long durationMillis = mDeviceStartNanos == 0L ? 0L
+                : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mDeviceStartNanos);
+        Result result = new Result(address, success, success ? REASON_NONE : reason, mAttempt, durationMillis);
+
+        synchronized (this) {
+            mResults.add(result);
+        }
+        mIndex++;
+        mAttempt = 0;
+        mDeviceStartNanos = 0L;
+        if (!success) {
+            mFailedCount++;
+        }
+        mCompletedCount++;
+
+        OnPairingListener listener = mOnPairingListener;
+
+        if (listener != null) {
+            listener.onPairingProgress(this, result);
+        }
+    }
+
+    private void finish() {
+        if (mIsFinished) {
+            return;
+        }
+        mIsFinished = true;
+        RayLog.event(TAG, "pairing finished, failed ", mFailedCount);
+        try {
+            if (mOnFinish != null) {
+                mOnFinish.run();
+            }
+            OnPairingListener listener = mOnPairingListener;
+
+            if (listener != null) {
+                listener.onPairingFinished(this, getResults());
+            }
+        } finally {
+            // callback完成後才放行await，呼叫端可立即開始下一個queue
+            mDone.countDown();
+        }
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    private void checkNotStarted() {
+        if (mIsStarted) {
+            throw new IllegalStateException("PairingQueue already started");
+        }
+    }
+
+    /**
+     * 系統配對的介面，讓PairingQueue不直接依賴BluetoothAdapter
+     */
+    interface BondDriver {
+        int getBondState(String address);
+
+        boolean createBond(String address);
+    }
+
+    public static interface OnPairingListener {
+        /**
+         * 每個裝置完成(成功或失敗)時在scheduler thread上呼叫，需快速回傳；
+         * 進度及速度可由{@link #getCompletedCount()}、{@link #getDevicesPerMinute()}取得
+         */
+        void onPairingProgress(PairingQueue queue, Result result);
+
+        void onPairingFinished(PairingQueue queue, List<Result> results);
+    }
+
+    public static class Result {
+        private final String mAddress;
+        private final boolean mIsSuccess;
+        private final int mReason;
+        private final int mAttempts;
+        private final long mDurationMillis;
+
+        Result(String address, boolean success, int reason, int attempts, long durationMillis) {
+            mAddress = address;
+            mIsSuccess = success;
+            mReason = reason;
+            mAttempts = attempts;
+            mDurationMillis = durationMillis;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public boolean isSuccess() {
+            return mIsSuccess;
+        }
+
+        /**
+         * @return REASON_NONE, REASON_REJECTED, REASON_BOND_FAILED, REASON_TIMEOUT, REASON_CANCELLED
+         */
+        public int getReason() {
+            return mReason;
+        }
+
+        /**
+         * @return 0 已配對，不需createBond
+         */
+        public int getAttempts() {
+            return mAttempts;
+        }
+
+        public long getDurationMillis() {
+            return mDurationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + (mIsSuccess ? " bonded" : " failed reason[" + mReason + "]")
+                    + " attempts[" + mAttempts + "] " + mDurationMillis + "ms";
+        }
+    }
+}
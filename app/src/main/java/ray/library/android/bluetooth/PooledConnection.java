@@ -0,0 +1,82 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import ray.library.android.bluetooth.transport.TransportSocket;
+import ray.library.android.common.RayLog;
+
+/**
+ * A client socket leased from {@link ConnectionPool}. Call {@link #release()} when done so
+ * the next caller can reuse the link, or {@link #invalidate()} after an I/O error.
+ */
+public class PooledConnection {
+    private final static String TAG = RayLog.tag(PooledConnection.class);
+    private final ConnectionPool mPool;
+    private final String mAddress;
+    private final TransportSocket mSocket;
+    private long mLastUsedNanos;
+    private boolean mIsLeased;
+
+    PooledConnection(ConnectionPool pool, String address, TransportSocket socket) {
+        mPool = pool;
+        mAddress = address;
+        mSocket = socket;
+        mLastUsedNanos = System.nanoTime();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public TransportSocket getSocket() {
+        return mSocket;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    /**
+     * 歸還給pool以便重複使用
+     */
+    public void release() {
+        mPool.release(this, false);
+    }
+
+    /**
+     * 關閉socket，不再放回pool
+     */
+    public void invalidate() {
+        mPool.release(this, true);
+    }
+
+    long getLastUsedNanos() {
+        return mLastUsedNanos;
+    }
+
+    void setLastUsedNanos(long nanos) {
+        mLastUsedNanos = nanos;
+    }
+
+    boolean isLeased() {
+        return mIsLeased;
+    }
+
+    void setLeased(boolean leased) {
+        mIsLeased = leased;
+    }
+
+    void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            RayLog.w(TAG, "close socket failed", e);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package ray.library.android.bluetooth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Pending result of {@link RpcChannel#call(byte[], long)}, completed once with the response,
+ * an {@link IOException} (timeout, remote error, closed connection) or by {@link #cancel(boolean)}.
+ */
+public class RpcCall implements Future<byte[]> {
+    private final static String TAG = RayLog.tag(RpcCall.class);
+    private final int mId;
+    private final RpcChannel mChannel;
+    private final long mStartNanos;
+    private byte[] mResponse;
+    private IOException mError;
+    private boolean mIsDone;
+    private boolean mIsCancelled;
+    private OnCompleteListener mOnCompleteListener;
+    private HashedTimerWheel.Timeout mTimeout;
+
+    /**
+     * @param channel null 不佔用in-flight空位
+     */
+    RpcCall(int id, RpcChannel channel) {
+        mId = id;
+        mChannel = channel;
+        mStartNanos = System.nanoTime();
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * 已完成時立即在呼叫的thread上執行，否則在完成的thread上(reader、timer wheel或close的thread)
+     *
+     * @param listener
+     */
+    public void setOnCompleteListener(OnCompleteListener listener) {
+        synchronized (this) {
+            if (!mIsDone) {
+                mOnCompleteListener = listener;
+                return;
+            }
+        }
+        notifyComplete(listener);
+    }
+
+    /**
+     * 等待結果
+     *
+     * @return response
+     * @throws IOException 逾時、對方回傳錯誤、連線關閉或已取消
+     */
+    public byte[] await() throws IOException {
+        synchronized (this) {
+            while (!mIsDone) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mIsCancelled) {
+                throw new IOException("call[" + mId + "] cancelled");
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return mResponse;
+        }
+    }
+
+    /**
+     * @return 完成前為null
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mIsDone) {
+                return false;
+            }
+            mIsCancelled = true;
+        }
+        return complete(null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mIsDone;
+    }
+
+    @Override
+    public synchronized byte[] get() throws InterruptedException, ExecutionException {
+        while (!mIsDone) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized byte[] get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!mIsDone) {
+            long remaining = deadline - System.nanoTime();
+
+            if (remaining <= 0L) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    long getStartNanos() {
+        return mStartNanos;
+    }
+
+    void setTimeout(HashedTimerWheel.Timeout timeout) {
+        synchronized (this) {
+            if (!mIsDone) {
+                mTimeout = timeout;
+                return;
+            }
+        }
+        timeout.cancel();
+    }
+
+    /**
+     * @return false 已完成
+     */
+    boolean complete(byte[] response, IOException error) {
+        OnCompleteListener listener;
+        HashedTimerWheel.Timeout timeout;
+
+        synchronized (this) {
+            if (mIsDone) {
+                return false;
+            }
+            mIsDone = true;
+            mResponse = response;
+            mError = error;
+            listener = mOnCompleteListener;
+            mOnCompleteListener = null;
+            timeout = mTimeout;
+            mTimeout = null;
+            // 先釋放空位，await回傳後即可再發出call
+            if (mChannel != null) {
+                mChannel.onCallComplete(this);
+            }
+            notifyAll();
+        }
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        notifyComplete(listener);
+        return true;
+    }
+
+    private byte[] result() throws ExecutionException {
+        if (mIsCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mResponse;
+    }
+
+    private void notifyComplete(OnCompleteListener listener) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onComplete(this);
+        } catch (RuntimeException e) {
+            RayLog.e(TAG, "OnCompleteListener failed", e);
+        }
+    }
+
+    public static interface OnCompleteListener {
+        /**
+         * 以{@link #await()}或{@link #get()}取得結果，不會阻塞
+         */
+        void onComplete(RpcCall call);
+    }
+}
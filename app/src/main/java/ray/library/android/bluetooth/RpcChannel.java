@@ -0,0 +1,357 @@
+package ray.library.android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ray.library.android.common.RayLog;
+
+/**
+ * Pipelined request/response over one {@link BTConnection}. Every request carries a
+ * correlation id, so many calls can be outstanding on the socket at once and responses may
+ * arrive in any order. Calls are bounded by a per-call timeout (on the shared
+ * {@link HashedTimerWheel}) and by maxInFlight, which blocks {@link #call(byte[], long)}
+ * instead of letting the peer's queue grow without limit.
+ * <p>
+ * The channel is symmetric: both ends may call, and incoming requests are answered by
+ * {@link RequestHandler}. Each message is type(1) | id(4) | payload.
+ */
+public class RpcChannel implements Closeable {
+    private final static String TAG = RayLog.tag(RpcChannel.class);
+    public final static int DEFAULT_MAX_IN_FLIGHT = 32;
+    public final static long DEFAULT_TIMEOUT_MILLIS = 5000L;
+    final static byte TYPE_REQUEST = 1;
+    final static byte TYPE_RESPONSE = 2;
+    final static byte TYPE_ERROR = 3;
+    final static int HEADER_LENGTH = 5;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static long POLL_MILLIS = 1000L;
+
+    private final BTConnection mConnection;
+    private final HashedTimerWheel mWheel;
+    private final ConcurrentHashMap<Integer, RpcCall> mPending = new ConcurrentHashMap<Integer, RpcCall>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+    private final AtomicLong mLateResponseCount = new AtomicLong();
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private Semaphore mInFlight;
+    private RequestHandler mRequestHandler;
+    private Executor mRequestExecutor;
+    private Histogram mLatency;
+    private Thread mReaderThread;
+    private volatile IOException mCloseCause;
+    private volatile boolean mIsClose;
+
+    /**
+     * @param connection 已start的連線，此後由RpcChannel獨佔consumer
+     */
+    public RpcChannel(BTConnection connection) {
+        this(connection, HashedTimerWheel.getDefault());
+    }
+
+    public RpcChannel(BTConnection connection, HashedTimerWheel wheel) {
+        if (connection == null || wheel == null) {
+            throw new IllegalArgumentException("connection == null || wheel == null");
+        }
+        mConnection = connection;
+        mWheel = wheel;
+    }
+
+    /**
+     * start前設定
+     *
+     * @param maxInFlight 同時等待回應的call上限
+     */
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        checkNotStarted();
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight <= 0");
+        }
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * start前設定
+     *
+     * @param handler  null 回傳錯誤給對方
+     * @param executor null 在reader thread上執行，handler阻塞時會延遲此端所有call的回應
+     */
+    public synchronized void setRequestHandler(RequestHandler handler, Executor executor) {
+        checkNotStarted();
+        mRequestHandler = handler;
+        mRequestExecutor = executor;
+    }
+
+    /**
+     * start前設定，記錄每個成功call的來回時間(ns)
+     */
+    public synchronized void setLatencyHistogram(Histogram histogram) {
+        checkNotStarted();
+        mLatency = histogram;
+    }
+
+    public synchronized void start() {
+        checkNotStarted();
+        mInFlight = new Semaphore(mMaxInFlight);
+        mReaderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, "RpcChannel-" + mConnection.getRemoteAddress());
+        mReaderThread.setDaemon(true);
+        mReaderThread.start();
+    }
+
+    public BTConnection getConnection() {
+        return mConnection;
+    }
+
+    public boolean isClose() {
+        return mIsClose;
+    }
+
+    /**
+     * 送出後立即回傳，任何thread皆可呼叫；已達maxInFlight時阻塞直到有空位，
+     * 等待的時間也計入timeoutMillis
+     *
+     * @param request
+     * @param timeoutMillis 逾時以SocketTimeoutException完成
+     * @return 完成順序不一定與呼叫順序相同
+     * @throws IOException 連線已關閉
+     */
+    public RpcCall call(byte[] request, long timeoutMillis) throws IOException {
+        if (request == null) {
+            throw new IllegalArgumentException("request == null");
+        }
+        if (mReaderThread == null) {
+            throw new IllegalStateException("RpcChannel not started");
+        }
+        checkOpen();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        try {
+            if (!mInFlight.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                RpcCall call = new RpcCall(0, null);
+
+                call.complete(null, new SocketTimeoutException("in-flight limit[" + mMaxInFlight + "] not released in " + timeoutMillis + "ms"));
+                return call;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        int id = mNextId.incrementAndGet();
+        final RpcCall call = new RpcCall(id, this);
+
+        mPending.put(id, call);
+        // 與failAll競爭，put之後再檢查
+        if (mIsClose) {
+            call.complete(null, closedException());
+            throw closedException();
+        }
+        call.setTimeout(mWheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                call.complete(null, new SocketTimeoutException("call[" + call.getId() + "] timeout"));
+            }
+        }, TimeUnit.NANOSECONDS.toMillis(Math.max(0L, deadline - System.nanoTime()))));
+        try {
+            send(TYPE_REQUEST, id, request);
+        } catch (IOException e) {
+            call.complete(null, e);
+            throw e;
+        }
+        return call;
+    }
+
+    /**
+     * 等同call(request, DEFAULT_TIMEOUT_MILLIS).await()
+     */
+    public byte[] callAndWait(byte[] request) throws IOException {
+        return call(request, DEFAULT_TIMEOUT_MILLIS).await();
+    }
+
+    public int getInFlightCount() {
+        return mPending.size();
+    }
+
+    /**
+     * @return 逾時或取消後才收到的回應數
+     */
+    public long getLateResponseCount() {
+        return mLateResponseCount.get();
+    }
+
+    /**
+     * 等待中的call以IOException完成，並關閉連線
+     */
+    @Override
+    public void close() {
+        shutdown(null);
+        mConnection.close();
+    }
+
+    /**
+     * RpcCall完成時呼叫，釋放in-flight的空位
+     */
+    void onCallComplete(RpcCall call) {
+        if (mPending.remove(call.getId(), call)) {
+            mInFlight.release();
+        }
+    }
+
+    private void read() {
+        try {
+            while (!mIsClose) {
+                byte[] frame = mConnection.take(POLL_MILLIS);
+
+                if (frame != null) {
+                    onFrame(frame);
+                }
+            }
+        } catch (IOException e) {
+            shutdown(e);
+            // 沒有其他reader會讀取此連線
+            mConnection.close();
+        } catch (RuntimeException e) {
+            RayLog.w(TAG, "rpc reader failed", e);
+            shutdown(new IOException("rpc reader failed, " + e, e));
+            mConnection.close();
+        }
+    }
+
+    private void onFrame(byte[] frame) throws IOException {
+        if (frame.length < HEADER_LENGTH) {
+            throw new IOException("rpc frame too short[" + frame.length + "]");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        byte type = buffer.get();
+        int id = buffer.getInt();
+        byte[] payload = new byte[buffer.remaining()];
+
+        buffer.get(payload);
+        switch (type) {
+            case TYPE_REQUEST:
+                onRequest(id, payload);
+                break;
+            case TYPE_RESPONSE:
+            case TYPE_ERROR:
+                onResponse(id, type, payload);
+                break;
+            default:
+                throw new IOException("unknown rpc type[" + type + "]");
+        }
+    }
+
+    private void onResponse(int id, byte type, byte[] payload) {
+        RpcCall call = mPending.get(id);
+
+        if (call == null) {
+            mLateResponseCount.incrementAndGet();
+            return;
+        }
+        if (type == TYPE_RESPONSE) {
+            if (call.complete(payload, null) && mLatency != null) {
+                mLatency.record(System.nanoTime() - call.getStartNanos());
+            }
+        } else {
+            call.complete(null, new IOException("remote error : " + new String(payload, UTF_8)));
+        }
+    }
+
+    private void onRequest(final int id, final byte[] request) {
+        final RequestHandler handler = mRequestHandler;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                byte type = TYPE_RESPONSE;
+                byte[] response;
+
+                try {
+                    if (handler == null) {
+                        throw new IOException("no request handler");
+                    }
+                    response = handler.onRequest(request);
+                    if (response == null) {
+                        response = new byte[0];
+                    }
+                } catch (Exception e) {
+                    RayLog.w(TAG, "request[" + id + "] failed", e);
+                    type = TYPE_ERROR;
+                    response = String.valueOf(e.getMessage()).getBytes(UTF_8);
+                }
+                try {
+                    send(type, id, response);
+                } catch (IOException e) {
+                    RayLog.w(TAG, "response[" + id + "] not sent", e);
+                }
+            }
+        };
+
+        if (mRequestExecutor == null) {
+            task.run();
+        } else {
+            mRequestExecutor.execute(task);
+        }
+    }
+
+    private void send(byte type, int id, byte[] payload) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_LENGTH);
+
+        head.put(type).putInt(id).flip();
+        mConnection.send(head, ByteBuffer.wrap(payload));
+    }
+
+    private void shutdown(IOException cause) {
+        synchronized (this) {
+            if (mIsClose) {
+                return;
+            }
+            mCloseCause = cause;
+            mIsClose = true;
+        }
+        IOException error = closedException();
+
+        for (RpcCall call : mPending.values()) {
+            call.complete(null, error);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (mIsClose) {
+            throw closedException();
+        }
+    }
+
+    private IOException closedException() {
+        IOException cause = mCloseCause;
+
+        return cause == null ? new IOException("RpcChannel closed") : new IOException("RpcChannel closed", cause);
+    }
+
+    private void checkNotStarted() {
+        if (mReaderThread != null) {
+            throw new IllegalStateException("RpcChannel already started");
+        }
+    }
+
+    public static interface RequestHandler {
+        /**
+         * 在reader thread或指定的Executor上呼叫
+         *
+         * @param request
+         * @return response，null視為空的response
+         * @throws Exception 訊息回傳給對方，對方的call以IOException完成
+         */
+        byte[] onRequest(byte[] request) throws Exception;
+    }
+}
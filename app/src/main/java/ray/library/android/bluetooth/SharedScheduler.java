@@ -0,0 +1,31 @@
+package ray.library.android.bluetooth;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Single daemon thread shared by the library's short timers (timeouts, retries, eviction).
+ * Tasks should be short and never block on I/O, a blocked task delays every other timer.
+ */
+public class SharedScheduler {
+    private static ScheduledExecutorService sScheduler;
+
+    private SharedScheduler() {
+    }
+
+    public static synchronized ScheduledExecutorService get() {
+        if (sScheduler == null) {
+            sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "BTManager-scheduler");
+
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
@@ -0,0 +1,112 @@
+package ray.library.android.bluetooth;
+
+/**
+ * Bounded single-producer single-consumer queue on a power of two array. offer() must only be
+ * called from one thread and poll() from one (other) thread, neither takes a lock.
+ * Each side caches the other side's index and only re-reads it when the ring looks full / empty.
+ */
+public class SpscRingBuffer<E> {
+    private final Object[] mBuffer;
+    private final int mMask;
+    private volatile long mHead;
+    private volatile long mTail;
+    // 只由producer存取
+    private long mCachedHead;
+    // 只由consumer存取
+    private long mCachedTail;
+
+    /**
+     * @param capacity 會向上取2的次方
+     */
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity <= 0 || capacity > 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new Object[size];
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * producer thread
+     *
+     * @return false 已滿
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long tail = mTail;
+
+        if (tail - mCachedHead >= mBuffer.length) {
+            mCachedHead = mHead;
+            if (tail - mCachedHead >= mBuffer.length) {
+                return false;
+            }
+        }
+        mBuffer[(int) tail & mMask] = e;
+        // volatile寫入讓consumer看到元素
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * consumer thread
+     *
+     * @return null 為空
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = mHead;
+
+        if (head >= mCachedTail) {
+            mCachedTail = mTail;
+            if (head >= mCachedTail) {
+                return null;
+            }
+        }
+        int index = (int) head & mMask;
+        E e = (E) mBuffer[index];
+
+        mBuffer[index] = null;
+        mHead = head + 1;
+        return e;
+    }
+
+    /**
+     * consumer thread
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        long head = mHead;
+
+        if (head >= mCachedTail) {
+            mCachedTail = mTail;
+            if (head >= mCachedTail) {
+                return null;
+            }
+        }
+        return (E) mBuffer[(int) head & mMask];
+    }
+
+    /**
+     * 任何thread皆可呼叫，僅為估計值
+     */
+    public int size() {
+        long head = mHead;
+
+        return (int) Math.max(0L, Math.min(mBuffer.length, mTail - head));
+    }
+
+    public boolean isEmpty() {
+        return mTail == mHead;
+    }
+}
@@ -0,0 +1,215 @@
+package ray.library.android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A discovery that stops as soon as maxCount devices match a {@link DevicePredicate},
+ * the timeout elapses or the inquiry finishes. Created by
+ * {@link BTManager#startDiscovery(DevicePredicate, int, long, BTManager.OnTargetedDiscoveryListener)}.
+ */
+public class TargetedDiscovery implements Future<TargetedDiscovery.Result> {
+    /**
+     * 已找到maxCount個符合的裝置
+     */
+    public final static int REASON_COMPLETED = 0;
+    public final static int REASON_TIMEOUT = 1;
+    /**
+     * inquiry已結束(ACTION_DISCOVERY_FINISHED)
+     */
+    public final static int REASON_FINISHED = 2;
+    public final static int REASON_CANCELLED = 3;
+    /**
+     * 無法開始搜尋
+     */
+    public final static int REASON_FAILED = 4;
+
+    private final DevicePredicate mPredicate;
+    private final int mMaxCount;
+    private final BTManager.OnTargetedDiscoveryListener mListener;
+    private final LinkedHashMap<String, DiscoveredDevice> mMatches = new LinkedHashMap<String, DiscoveredDevice>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final long mStartNanos = System.nanoTime();
+    private long mFirstMatchNanos = -1L;
+    private Runnable mOnFinish;
+    private ScheduledFuture<?> mTimeout;
+    private Result mResult;
+
+    TargetedDiscovery(DevicePredicate predicate, int maxCount, BTManager.OnTargetedDiscoveryListener listener) {
+        if (predicate == null) {
+            throw new IllegalArgumentException("predicate == null");
+        }
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("maxCount <= 0");
+        }
+        mPredicate = predicate;
+        mMaxCount = maxCount;
+        mListener = listener;
+    }
+
+    /**
+     * 需在開始接收裝置及排程逾時之前呼叫
+     *
+     * @param onFinish 結束時呼叫一次，用於停止inquiry
+     */
+    synchronized void start(Runnable onFinish) {
+        mOnFinish = onFinish;
+    }
+
+    /**
+     * @param timeout 已結束時立即取消
+     */
+    void setTimeout(ScheduledFuture<?> timeout) {
+        synchronized (this) {
+            if (mResult == null) {
+                mTimeout = timeout;
+                return;
+            }
+        }
+        timeout.cancel(false);
+    }
+
+    /**
+     * @return true 此裝置使搜尋達成目標
+     */
+    boolean onDevice(DiscoveredDevice device) {
+        synchronized (this) {
+            if (mResult != null || !mPredicate.matches(device)) {
+                return false;
+            }
+            if (mFirstMatchNanos < 0L) {
+                mFirstMatchNanos = System.nanoTime();
+            }
+            mMatches.put(device.getAddress(), device);
+
+            if (mMatches.size() < mMaxCount) {
+                return false;
+            }
+        }
+        finish(REASON_COMPLETED);
+        return true;
+    }
+
+    void finish(int reason) {
+        Result result;
+        Runnable onFinish;
+
+        synchronized (this) {
+            if (mResult != null) {
+                return;
+            }
+            long firstMatchMillis = mFirstMatchNanos < 0L ? -1L
+                    : TimeUnit.NANOSECONDS.toMillis(mFirstMatchNanos - mStartNanos);
+
+            mResult = new Result(reason, new ArrayList<DiscoveredDevice>(mMatches.values()), firstMatchMillis,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartNanos));
+            result = mResult;
+            onFinish = mOnFinish;
+
+            if (mTimeout != null) {
+                mTimeout.cancel(false);
+            }
+        }
+        try {
+            if (onFinish != null) {
+                onFinish.run();
+            }
+            if (mListener != null) {
+                mListener.onTargetedDiscoveryFinish(result);
+            }
+        } finally {
+            // callback完成後才放行get，inquiry已停止
+            mDone.countDown();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mResult != null) {
+                return false;
+            }
+        }
+        finish(REASON_CANCELLED);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mResult != null && mResult.getReason() == REASON_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResult != null;
+    }
+
+    @Override
+    public Result get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public Result get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized Result getResult() {
+        return mResult;
+    }
+
+    public static interface DevicePredicate {
+        /**
+         * 在回報裝置的thread上呼叫，需快速回傳
+         */
+        boolean matches(DiscoveredDevice device);
+    }
+
+    public static class Result {
+        private final int mReason;
+        private final List<DiscoveredDevice> mMatches;
+        private final long mTimeToFirstMatchMillis;
+        private final long mElapsedMillis;
+
+        Result(int reason, List<DiscoveredDevice> matches, long timeToFirstMatchMillis, long elapsedMillis) {
+            mReason = reason;
+            mMatches = Collections.unmodifiableList(matches);
+            mTimeToFirstMatchMillis = timeToFirstMatchMillis;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return REASON_COMPLETED, REASON_TIMEOUT, REASON_FINISHED, REASON_CANCELLED, REASON_FAILED
+         */
+        public int getReason() {
+            return mReason;
+        }
+
+        public List<DiscoveredDevice> getMatches() {
+            return mMatches;
+        }
+
+        /**
+         * @return -1 沒有符合的裝置
+         */
+        public long getTimeToFirstMatchMillis() {
+            return mTimeToFirstMatchMillis;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+}
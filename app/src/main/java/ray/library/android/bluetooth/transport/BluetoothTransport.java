@@ -0,0 +1,37 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Adapter level entry point of a transport, ex : RFCOMM over {@link android.bluetooth.BluetoothAdapter}
+ * or an in-process {@link LoopbackTransport}.
+ */
+public interface BluetoothTransport {
+
+    boolean isSupported();
+
+    boolean isEnabled();
+
+    String getLocalAddress();
+
+    /**
+     * 建立server socket，等待client連入
+     *
+     * @param name service name
+     * @param uuid service record uuid
+     * @return
+     * @throws IOException
+     */
+    TransportServerSocket listen(String name, UUID uuid) throws IOException;
+
+    /**
+     * 建立尚未連線的client socket，需再呼叫{@link TransportSocket#connect()}
+     *
+     * @param address remote device address
+     * @param uuid    service record uuid
+     * @return
+     * @throws IOException
+     */
+    TransportSocket createSocket(String address, UUID uuid) throws IOException;
+}
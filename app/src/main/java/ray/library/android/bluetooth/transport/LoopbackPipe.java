@@ -0,0 +1,166 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+/**
+ * One direction of a loopback link, bytes written become readable after
+ * serialization time (bytesPerSecond) plus latency.
+ */
+class LoopbackPipe {
+    private final long mBytesPerSecond;
+    private final long mLatencyNanos;
+    private final int mCapacity;
+    private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+    private int mBuffered;
+    private long mNextFreeNanos;
+    private boolean mWriterClosed;
+    private boolean mReaderClosed;
+
+    /**
+     * @param bytesPerSecond 0 表示不限頻寬
+     * @param latencyNanos   單向延遲
+     * @param capacity       尚未被讀取的最大bytes，超過時write會block
+     */
+    LoopbackPipe(long bytesPerSecond, long latencyNanos, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+        mBytesPerSecond = bytesPerSecond;
+        mLatencyNanos = latencyNanos;
+        mCapacity = capacity;
+    }
+
+    synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (mBuffered >= mCapacity && !mReaderClosed && !mWriterClosed) {
+                waitQuietly(0L);
+            }
+            if (mWriterClosed) {
+                throw new IOException("socket closed");
+            }
+            if (mReaderClosed) {
+                throw new IOException("broken pipe");
+            }
+            int chunk = Math.min(len, mCapacity - mBuffered);
+            byte[] data = new byte[chunk];
+
+            System.arraycopy(b, off, data, 0, chunk);
+            mSegments.addLast(new Segment(data, deliverAt(chunk)));
+            mBuffered += chunk;
+            off += chunk;
+            len -= chunk;
+            notifyAll();
+        }
+    }
+
+    synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (mReaderClosed) {
+                throw new IOException("socket closed");
+            }
+            Segment segment = mSegments.peekFirst();
+
+            if (segment == null) {
+                if (mWriterClosed) {
+                    return -1;
+                }
+                waitQuietly(0L);
+                continue;
+            }
+            long delay = segment.mAvailableAtNanos - System.nanoTime();
+
+            if (delay > 0L) {
+                waitQuietly(delay);
+                continue;
+            }
+            int count = 0;
+
+            // 一次讀出所有已到達的segment
+            while (segment != null && count < len && segment.mAvailableAtNanos <= System.nanoTime()) {
+                int n = Math.min(len - count, segment.mData.length - segment.mPosition);
+
+                System.arraycopy(segment.mData, segment.mPosition, b, off + count, n);
+                segment.mPosition += n;
+                count += n;
+                if (segment.mPosition == segment.mData.length) {
+                    mSegments.removeFirst();
+                    segment = mSegments.peekFirst();
+                }
+            }
+            mBuffered -= count;
+            notifyAll();
+            return count;
+        }
+    }
+
+    synchronized int available() {
+        long now = System.nanoTime();
+        int count = 0;
+
+        for (Segment segment : mSegments) {
+            if (segment.mAvailableAtNanos > now) {
+                break;
+            }
+            count += segment.mData.length - segment.mPosition;
+        }
+        return count;
+    }
+
+    /**
+     * 寫入端關閉，讀取端讀完剩餘資料後得到EOF
+     */
+    synchronized void closeWriter() {
+        mWriterClosed = true;
+        notifyAll();
+    }
+
+    /**
+     * 讀取端關閉，之後寫入會得到IOException
+     */
+    synchronized void closeReader() {
+        mReaderClosed = true;
+        mSegments.clear();
+        mBuffered = 0;
+        notifyAll();
+    }
+
+    private long deliverAt(int length) {
+        long now = System.nanoTime();
+
+        if (mBytesPerSecond > 0L) {
+            mNextFreeNanos = Math.max(now, mNextFreeNanos) + length * 1000000000L / mBytesPerSecond;
+        } else {
+            mNextFreeNanos = now;
+        }
+        return mNextFreeNanos + mLatencyNanos;
+    }
+
+    private void waitQuietly(long nanos) throws IOException {
+        try {
+            if (nanos <= 0L) {
+                wait();
+            } else {
+                wait(nanos / 1000000L, (int) (nanos % 1000000L));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private static class Segment {
+        final byte[] mData;
+        final long mAvailableAtNanos;
+        int mPosition;
+
+        Segment(byte[] data, long availableAtNanos) {
+            mData = data;
+            mAvailableAtNanos = availableAtNanos;
+        }
+    }
+}
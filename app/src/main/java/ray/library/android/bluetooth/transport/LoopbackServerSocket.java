@@ -0,0 +1,68 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Listening end of a {@link LoopbackTransport} service record.
+ */
+public class LoopbackServerSocket implements TransportServerSocket {
+    private final LoopbackTransport mTransport;
+    private final UUID mUuid;
+    private final ArrayDeque<LoopbackSocket> mPending = new ArrayDeque<LoopbackSocket>();
+    private boolean mIsClose;
+
+    LoopbackServerSocket(LoopbackTransport transport, UUID uuid) {
+        mTransport = transport;
+        mUuid = uuid;
+    }
+
+    synchronized boolean offer(LoopbackSocket socket) {
+        if (mIsClose) {
+            return false;
+        }
+        mPending.addLast(socket);
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized TransportSocket accept() throws IOException {
+        while (mPending.isEmpty()) {
+            if (mIsClose) {
+                throw new IOException("socket closed");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("accept interrupted");
+            }
+        }
+        return mPending.removeFirst();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mIsClose) {
+                return;
+            }
+            mIsClose = true;
+            notifyAll();
+        }
+        mTransport.unregister(mUuid, this);
+
+        // 尚未被accept的連線一併關閉
+        LoopbackSocket socket;
+
+        while ((socket = poll()) != null) {
+            socket.close();
+        }
+    }
+
+    private synchronized LoopbackSocket poll() {
+        return mPending.pollFirst();
+    }
+}
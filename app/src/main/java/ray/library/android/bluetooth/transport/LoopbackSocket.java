@@ -0,0 +1,143 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * One end of a {@link LoopbackTransport} link.
+ */
+public class LoopbackSocket implements TransportSocket {
+    private final LoopbackTransport mTransport;
+    private final String mRemoteAddress;
+    private final UUID mUuid;
+    private LoopbackPipe mInput;
+    private LoopbackPipe mOutput;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+    private boolean mIsClose;
+
+    LoopbackSocket(LoopbackTransport transport, String remoteAddress, UUID uuid) {
+        mTransport = transport;
+        mRemoteAddress = remoteAddress;
+        mUuid = uuid;
+    }
+
+    synchronized void attach(LoopbackPipe input, LoopbackPipe output) {
+        mInput = input;
+        mOutput = output;
+        mInputStream = new PipeInputStream();
+        mOutputStream = new PipeOutputStream();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        synchronized (this) {
+            if (mIsClose) {
+                throw new IOException("socket closed");
+            }
+            if (mInput != null) {
+                throw new IOException("already connected");
+            }
+        }
+        mTransport.connect(this, mUuid);
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return mInput != null && !mIsClose;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return mRemoteAddress;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (mInputStream == null) {
+            throw new IOException("not connected");
+        }
+        return mInputStream;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (mOutputStream == null) {
+            throw new IOException("not connected");
+        }
+        return mOutputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        LoopbackPipe input;
+        LoopbackPipe output;
+
+        synchronized (this) {
+            if (mIsClose) {
+                return;
+            }
+            mIsClose = true;
+            input = mInput;
+            output = mOutput;
+        }
+        if (input != null) {
+            input.closeReader();
+        }
+        if (output != null) {
+            output.closeWriter();
+        }
+    }
+
+    private class PipeInputStream extends InputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            return read(mSingle, 0, 1) == -1 ? -1 : mSingle[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            return mInput.read(b, off, len);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mInput.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            LoopbackSocket.this.close();
+        }
+    }
+
+    private class PipeOutputStream extends OutputStream {
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public void write(int b) throws IOException {
+            mSingle[0] = (byte) b;
+            write(mSingle, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            mOutput.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            LoopbackSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process transport for running the accept-and-read path on a plain JVM.
+ * Each direction of a link is shaped by a bandwidth and a one-way latency.
+ */
+public class LoopbackTransport implements BluetoothTransport {
+    public final static String LOOPBACK_ADDRESS = "00:00:00:00:00:00";
+    public final static int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final ConcurrentHashMap<UUID, LoopbackServerSocket> mServers = new ConcurrentHashMap<UUID, LoopbackServerSocket>();
+    private final long mBytesPerSecond;
+    private final long mLatencyNanos;
+    private final int mCapacity;
+
+    /**
+     * 不限頻寬、無延遲
+     */
+    public LoopbackTransport() {
+        this(0L, 0L);
+    }
+
+    /**
+     * @param bytesPerSecond 單向頻寬，0 表示不限
+     * @param latencyMillis  單向延遲
+     */
+    public LoopbackTransport(long bytesPerSecond, long latencyMillis) {
+        this(bytesPerSecond, latencyMillis * 1000000L, DEFAULT_CAPACITY);
+    }
+
+    public LoopbackTransport(long bytesPerSecond, long latencyNanos, int capacity) {
+        if (bytesPerSecond < 0L || latencyNanos < 0L) {
+            throw new IllegalArgumentException("bytesPerSecond < 0 || latencyNanos < 0");
+        }
+        mBytesPerSecond = bytesPerSecond;
+        mLatencyNanos = latencyNanos;
+        mCapacity = capacity;
+    }
+
+    @Override
+    public boolean isSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return LOOPBACK_ADDRESS;
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        LoopbackServerSocket serverSocket = new LoopbackServerSocket(this, uuid);
+
+        if (mServers.putIfAbsent(uuid, serverSocket) != null) {
+            throw new IOException("uuid[" + uuid + "] already in use");
+        }
+        return serverSocket;
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        return new LoopbackSocket(this, address, uuid);
+    }
+
+    void connect(LoopbackSocket client, UUID uuid) throws IOException {
+        LoopbackServerSocket serverSocket = mServers.get(uuid);
+
+        if (serverSocket == null) {
+            throw new IOException("Service discovery failed, uuid[" + uuid + "]");
+        }
+        LoopbackPipe clientToServer = new LoopbackPipe(mBytesPerSecond, mLatencyNanos, mCapacity);
+        LoopbackPipe serverToClient = new LoopbackPipe(mBytesPerSecond, mLatencyNanos, mCapacity);
+        LoopbackSocket server = new LoopbackSocket(this, LOOPBACK_ADDRESS, uuid);
+
+        server.attach(clientToServer, serverToClient);
+        client.attach(serverToClient, clientToServer);
+
+        if (!serverSocket.offer(server)) {
+            client.close();
+            throw new IOException("Connection refused, uuid[" + uuid + "]");
+        }
+    }
+
+    void unregister(UUID uuid, LoopbackServerSocket serverSocket) {
+        mServers.remove(uuid, serverSocket);
+    }
+}
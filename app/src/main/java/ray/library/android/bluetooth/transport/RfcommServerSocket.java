@@ -0,0 +1,30 @@
+package ray.library.android.bluetooth.transport;
+
+import android.bluetooth.BluetoothServerSocket;
+
+import java.io.IOException;
+
+/**
+ * {@link TransportServerSocket} wrapping {@link BluetoothServerSocket}.
+ */
+public class RfcommServerSocket implements TransportServerSocket {
+    private BluetoothServerSocket mBluetoothServerSocket;
+
+    public RfcommServerSocket(BluetoothServerSocket serverSocket) {
+        mBluetoothServerSocket = serverSocket;
+    }
+
+    public BluetoothServerSocket getBluetoothServerSocket() {
+        return mBluetoothServerSocket;
+    }
+
+    @Override
+    public TransportSocket accept() throws IOException {
+        return new RfcommSocket(mBluetoothServerSocket.accept());
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBluetoothServerSocket.close();
+    }
+}
@@ -0,0 +1,55 @@
+package ray.library.android.bluetooth.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * {@link TransportSocket} wrapping {@link BluetoothSocket}.
+ */
+public class RfcommSocket implements TransportSocket {
+    private BluetoothSocket mBluetoothSocket;
+
+    public RfcommSocket(BluetoothSocket socket) {
+        mBluetoothSocket = socket;
+    }
+
+    public BluetoothSocket getBluetoothSocket() {
+        return mBluetoothSocket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mBluetoothSocket.connect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mBluetoothSocket.isConnected();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        BluetoothDevice device = mBluetoothSocket.getRemoteDevice();
+
+        return device == null ? null : device.getAddress();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mBluetoothSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mBluetoothSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBluetoothSocket.close();
+    }
+}
@@ -0,0 +1,52 @@
+package ray.library.android.bluetooth.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * RFCOMM transport backed by the Android {@link BluetoothAdapter}.
+ */
+public class RfcommTransport implements BluetoothTransport {
+    private BluetoothAdapter mBluetoothAdapter;
+
+    public RfcommTransport(BluetoothAdapter adapter) {
+        if (adapter == null) {
+            throw new IllegalArgumentException("adapter == null");
+        }
+        mBluetoothAdapter = adapter;
+    }
+
+    public BluetoothAdapter getBluetoothAdapter() {
+        return mBluetoothAdapter;
+    }
+
+    @Override
+    public boolean isSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mBluetoothAdapter.isEnabled();
+    }
+
+    @Override
+    public String getLocalAddress() {
+        return mBluetoothAdapter.getAddress();
+    }
+
+    @Override
+    public TransportServerSocket listen(String name, UUID uuid) throws IOException {
+        return new RfcommServerSocket(mBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(name, uuid));
+    }
+
+    @Override
+    public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+
+        return new RfcommSocket(device.createInsecureRfcommSocketToServiceRecord(uuid));
+    }
+}
@@ -0,0 +1,21 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Listening socket of a {@link BluetoothTransport}.
+ */
+public interface TransportServerSocket extends Closeable {
+
+    /**
+     * Block until a client connects, {@link #close()} from another thread aborts it with IOException.
+     *
+     * @return
+     * @throws IOException
+     */
+    TransportSocket accept() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
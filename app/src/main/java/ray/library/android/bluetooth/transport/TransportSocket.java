@@ -0,0 +1,30 @@
+package ray.library.android.bluetooth.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connected (or connectable) stream socket of a {@link BluetoothTransport}.
+ */
+public interface TransportSocket extends Closeable {
+
+    /**
+     * Block until connected, {@link #close()} from another thread aborts it with IOException.
+     *
+     * @throws IOException
+     */
+    void connect() throws IOException;
+
+    boolean isConnected();
+
+    String getRemoteAddress();
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,18 @@
+package ray.library.android.common;
+
+import android.util.Log;
+
+/**
+ * Default {@link RayLog.Printer} on a device, created by RayLog through reflection so RayLog
+ * itself can be compiled and tested without android.jar.
+ */
+public class LogcatPrinter implements RayLog.Printer {
+
+    @Override
+    public void println(int level, String tag, String message, Throwable throwable) {
+        if (throwable != null) {
+            message = message + '\n' + Log.getStackTraceString(throwable);
+        }
+        Log.println(level, tag, message);
+    }
+}
@@ -0,0 +1,338 @@
+package ray.library.android.common;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Level-checked logging with per-class cached tags, ex :
+ * <pre>
+ * private final static String TAG = RayLog.tag(BTManager.class);
+ * RayLog.d(TAG, "connected, address=", address);
+ * </pre>
+ * Message and argument are concatenated only when the level is enabled, so a disabled call
+ * does not allocate. Warnings, errors and {@link #event(String, String, Object)} are also kept
+ * in a fixed-size ring buffer of recent events that can be dumped after a failure.
+ */
+public final class RayLog {
+    // 與android.util.Log相同
+    public final static int VERBOSE = 2;
+    public final static int DEBUG = 3;
+    public final static int INFO = 4;
+    public final static int WARN = 5;
+    public final static int ERROR = 6;
+    public final static int NONE = Integer.MAX_VALUE;
+    public final static int DEFAULT_EVENT_CAPACITY = 256;
+    private final static String LOGCAT_PRINTER = "ray.library.android.common.LogcatPrinter";
+    private final static ConcurrentHashMap<Class<?>, String> sTags = new ConcurrentHashMap<Class<?>, String>();
+    private static volatile int sLevel = INFO;
+    private static volatile Printer sPrinter = createDefaultPrinter();
+    private static volatile EventBuffer sEventBuffer = new EventBuffer(DEFAULT_EVENT_CAPACITY);
+
+    private RayLog() {
+    }
+
+    /**
+     * @param cls
+     * @return cls的simple name，inner class取外層class；結果會快取
+     */
+    public static String tag(Class<?> cls) {
+        String tag = sTags.get(cls);
+
+        if (tag == null) {
+            Class<?> outer = cls;
+
+            while (outer.getEnclosingClass() != null) {
+                outer = outer.getEnclosingClass();
+            }
+            tag = outer.getSimpleName();
+            sTags.put(cls, tag);
+        }
+        return tag;
+    }
+
+    /**
+     * @param level VERBOSE ~ ERROR，NONE 關閉輸出(event buffer不受影響)
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * @param printer null 使用預設，Android上為logcat，JVM上為System.err
+     */
+    public static void setPrinter(Printer printer) {
+        sPrinter = printer != null ? printer : createDefaultPrinter();
+    }
+
+    /**
+     * @param capacity 保留最近幾筆event，0 表示不保留
+     */
+    public static void setEventCapacity(int capacity) {
+        sEventBuffer = capacity > 0 ? new EventBuffer(capacity) : null;
+    }
+
+    public static void v(String tag, String message) {
+        if (VERBOSE >= sLevel) {
+            sPrinter.println(VERBOSE, tag, message, null);
+        }
+    }
+
+    public static void v(String tag, String message, Object arg) {
+        if (VERBOSE >= sLevel) {
+            sPrinter.println(VERBOSE, tag, message + arg, null);
+        }
+    }
+
+    public static void v(String tag, String message, long arg) {
+        if (VERBOSE >= sLevel) {
+            sPrinter.println(VERBOSE, tag, message + arg, null);
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= sLevel) {
+            sPrinter.println(DEBUG, tag, message, null);
+        }
+    }
+
+    public static void d(String tag, String message, Object arg) {
+        if (DEBUG >= sLevel) {
+            sPrinter.println(DEBUG, tag, message + arg, null);
+        }
+    }
+
+    public static void d(String tag, String message, long arg) {
+        if (DEBUG >= sLevel) {
+            sPrinter.println(DEBUG, tag, message + arg, null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= sLevel) {
+            sPrinter.println(INFO, tag, message, null);
+        }
+    }
+
+    public static void i(String tag, String message, Object arg) {
+        if (INFO >= sLevel) {
+            sPrinter.println(INFO, tag, message + arg, null);
+        }
+    }
+
+    public static void i(String tag, String message, long arg) {
+        if (INFO >= sLevel) {
+            sPrinter.println(INFO, tag, message + arg, null);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        w(tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        record(WARN, tag, message, throwable);
+        if (WARN >= sLevel) {
+            sPrinter.println(WARN, tag, message, throwable);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        e(tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        record(ERROR, tag, message, throwable);
+        if (ERROR >= sLevel) {
+            sPrinter.println(ERROR, tag, message, throwable);
+        }
+    }
+
+    /**
+     * 只記錄到event buffer，不輸出；dump時才組成字串
+     *
+     * @param tag
+     * @param event 建議使用常數字串
+     * @param arg   ex : device address，可為null
+     */
+    public static void event(String tag, String event, Object arg) {
+        EventBuffer buffer = sEventBuffer;
+
+        if (buffer != null) {
+            buffer.add(INFO, tag, event, arg, 0L, false);
+        }
+    }
+
+    public static void event(String tag, String event, long value) {
+        EventBuffer buffer = sEventBuffer;
+
+        if (buffer != null) {
+            buffer.add(INFO, tag, event, null, value, true);
+        }
+    }
+
+    public static void clearEvents() {
+        EventBuffer buffer = sEventBuffer;
+
+        if (buffer != null) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * 由舊到新輸出最近的event
+     */
+    public static void dumpEvents(PrintWriter writer) {
+        EventBuffer buffer = sEventBuffer;
+
+        if (buffer != null) {
+            buffer.dump(writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * 以ERROR level輸出到printer，不受setLevel影響
+     *
+     * @param tag
+     */
+    public static void dumpEvents(String tag) {
+        StringWriter stringWriter = new StringWriter();
+
+        dumpEvents(new PrintWriter(stringWriter));
+
+        for (String line : stringWriter.toString().split("\n")) {
+            if (line.length() > 0) {
+                sPrinter.println(ERROR, tag, line, null);
+            }
+        }
+    }
+
+    private static void record(int level, String tag, String message, Throwable throwable) {
+        EventBuffer buffer = sEventBuffer;
+
+        if (buffer != null) {
+            buffer.add(level, tag, message, throwable, 0L, false);
+        }
+    }
+
+    private static Printer createDefaultPrinter() {
+        // ART與Dalvik的java.vm.name皆為Dalvik
+        if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+            try {
+                return (Printer) Class.forName(LOGCAT_PRINTER).newInstance();
+            } catch (Exception e) {
+                // 使用System.err
+            }
+        }
+        return new StreamPrinter(System.err);
+    }
+
+    public static interface Printer {
+        /**
+         * @param throwable 可為null
+         */
+        void println(int level, String tag, String message, Throwable throwable);
+    }
+
+    public static class StreamPrinter implements Printer {
+        private final static String LEVELS = "??VDIWE";
+        private final PrintStream mStream;
+
+        public StreamPrinter(PrintStream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public void println(int level, String tag, String message, Throwable throwable) {
+            char levelChar = level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?';
+
+            synchronized (mStream) {
+                mStream.println(levelChar + "/" + tag + ": " + message);
+                if (throwable != null) {
+                    throwable.printStackTrace(mStream);
+                }
+            }
+        }
+    }
+
+    /**
+     * 固定大小的ring buffer，新增時只寫入預先配置的陣列
+     */
+    private static class EventBuffer {
+        private final long[] mTimes;
+        private final int[] mLevels;
+        private final String[] mTags;
+        private final String[] mMessages;
+        private final Object[] mArgs;
+        private final long[] mValues;
+        private final boolean[] mHasValues;
+        private long mCount;
+
+        EventBuffer(int capacity) {
+            mTimes = new long[capacity];
+            mLevels = new int[capacity];
+            mTags = new String[capacity];
+            mMessages = new String[capacity];
+            mArgs = new Object[capacity];
+            mValues = new long[capacity];
+            mHasValues = new boolean[capacity];
+        }
+
+        synchronized void add(int level, String tag, String message, Object arg, long value, boolean hasValue) {
+            int index = (int) (mCount++ % mTimes.length);
+
+            mTimes[index] = System.currentTimeMillis();
+            mLevels[index] = level;
+            mTags[index] = tag;
+            mMessages[index] = message;
+            mArgs[index] = arg;
+            mValues[index] = value;
+            mHasValues[index] = hasValue;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < mArgs.length; i++) {
+                mTags[i] = null;
+                mMessages[i] = null;
+                mArgs[i] = null;
+            }
+            mCount = 0L;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+            int capacity = mTimes.length;
+            long start = Math.max(0L, mCount - capacity);
+
+            for (long i = start; i < mCount; i++) {
+                int index = (int) (i % capacity);
+                StringBuilder line = new StringBuilder();
+
+                line.append(format.format(new Date(mTimes[index]))).append(' ')
+                        .append(StreamPrinter.LEVELS.charAt(mLevels[index])).append('/')
+                        .append(mTags[index]).append(": ").append(mMessages[index]);
+                if (mHasValues[index]) {
+                    line.append(mValues[index]);
+                } else if (mArgs[index] instanceof Throwable) {
+                    line.append(", ").append(mArgs[index]);
+                } else if (mArgs[index] != null) {
+                    line.append(mArgs[index]);
+                }
+                writer.println(line);
+            }
+        }
+    }
+}
@@ -1,30 +1,33 @@
 package ray.library.android.common;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Created by Ray Lee on 2016/8/19.
  */
 public class RayUtility {
+    private final static ConcurrentHashMap<String, String> sSimpleNames = new ConcurrentHashMap<String, String>();
 
     /**
      * get current class, ex : MainActivity
-     * igo
+     * 每次呼叫都需取得stack trace，建議只在static初始化時使用，或改用{@link RayLog#tag(Class)}
      *
      * @return
      */
     public static String getCurrentClassSimpleName() {
-        String tag = "null";
-        try {
-            String stackClassName = Thread.currentThread().getStackTrace()[3].getClassName();
+        String stackClassName = Thread.currentThread().getStackTrace()[3].getClassName();
+        String tag = sSimpleNames.get(stackClassName);
 
-            int moneyIndex = stackClassName.indexOf('$');
+        if (tag == null) {
+            // 直接由class name取得，不需Class.forName
+            String className = stackClassName;
+            int moneyIndex = className.indexOf('$');
 
             if (moneyIndex != -1) {
-                stackClassName = stackClassName.substring(0, moneyIndex);
+                className = className.substring(0, moneyIndex);
             }
-
-            tag = Class.forName(stackClassName).getSimpleName();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            tag = className.substring(className.lastIndexOf('.') + 1);
+            sSimpleNames.put(stackClassName, tag);
         }
         return tag;
     }
@@ -8,16 +8,77 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import ray.library.android.common.RayLog;
+
 public class PermissionsHelper {
-    private static PermissionsHelper sInstance = new PermissionsHelper();
-    private PermissionsRequestProxy mPermissionsRequestProxy;
+    private final static String TAG = RayLog.tag(PermissionsHelper.class);
+    private static PermissionsHelper sInstance;
+    // 只快取已允許的權限；權限被撤銷時系統會結束process，未允許的則可能在app設定中被開啟，每次重新檢查
+    private final static ConcurrentHashMap<String, Boolean> sGrantedCache = new ConcurrentHashMap<String, Boolean>();
+    private static volatile SelfPermissionChecker sSelfPermissionChecker = new SelfPermissionChecker() {
+        @Override
+        public int checkSelfPermission(Context context, String permission) {
+            return ContextCompat.checkSelfPermission(context, permission);
+        }
+    };
+    private PermissionsRequestQueue mPermissionsRequestQueue;
+    private WeakReference<Activity> mActivity;
+    private Context mContext;
+
+    /**
+     * @param executor 合併請求用的loop
+     * @param launcher null : 開啟PermissionsRequestActivity
+     */
+    PermissionsHelper(Executor executor, PermissionsRequestQueue.Launcher launcher) {
+        if (launcher == null) {
+            launcher = new PermissionsRequestQueue.Launcher() {
+                @Override
+                public void launch(String[] permissions) {
+                    startRequestActivity(permissions);
+                }
+            };
+        }
+        mPermissionsRequestQueue = new PermissionsRequestQueue(executor, launcher, new PermissionsRequestQueue.GrantChecker() {
+            @Override
+            public boolean isGranted(String permission) {
+                Context context;
 
-    private PermissionsHelper() {
-        mPermissionsRequestProxy = new PermissionsRequestProxy();
-        PermissionsRequestActivity.setPermissionsHelperListener(mPermissionsRequestProxy);
+                synchronized (PermissionsHelper.this) {
+                    context = mContext;
+                }
+                return hasGrantedPermission(context, permission);
+            }
+        });
+    }
+
+    private static synchronized PermissionsHelper getInstance() {
+        if (sInstance == null) {
+            final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+            sInstance = new PermissionsHelper(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    // 同一輪main loop內的請求合併為一個dialog
+                    mainHandler.post(command);
+                }
+            }, null);
+            PermissionsRequestActivity.setPermissionsResultListener(new PermissionsResultListener() {
+                @Override
+                public void onPermissionsResult(PermissionsResult result) {
+                    sInstance.onResult(result);
+                }
+            });
+        }
+        return sInstance;
     }
 
     /**
@@ -27,20 +88,71 @@ public class PermissionsHelper {
      * @param permission
      * @param listener
      */
-    public static void request(@NonNull Activity activity, @NonNull String permission,
-                               @NonNull PermissionsHelperListener listener) {
-        sInstance.doRequest(activity, permission, listener);
+    public static void request(@NonNull Activity activity, @NonNull final String permission,
+                               @NonNull final PermissionsHelperListener listener) {
+        if (permission == null) {
+            throw new IllegalArgumentException("permission == null");
+        }
+        request(activity, new String[]{permission}, new PermissionsResultListener() {
+            @Override
+            public void onPermissionsResult(PermissionsResult result) {
+                listener.onPermissionsResult(permission, result.isGranted(permission),
+                        result.hasShowedRequestPermissionDialog(permission));
+            }
+        });
+    }
+
+    /**
+     * 一次請求多個權限，只顯示一次系統dialog；全部已允許時直接在呼叫的thread上回傳結果，不開啟activity。
+     * dialog顯示中再請求相同權限會共用同一個結果，其他權限則合併到下一個dialog
+     *
+     * @param activity
+     * @param permissions
+     * @param listener
+     */
+    public static void request(@NonNull Activity activity, @NonNull String[] permissions,
+                               @NonNull PermissionsResultListener listener) {
+        getInstance().doRequest(activity, permissions, listener);
     }
 
     /**
-     * 檢查是否有取得允許權限
+     * 檢查是否有取得允許權限，已允許的結果會快取
      *
      * @param context
      * @param permission
      * @return
      */
     public static boolean hasGrantedPermission(Context context, String permission) {
-        return ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        if (sGrantedCache.containsKey(permission)) {
+            return true;
+        }
+        if (sSelfPermissionChecker.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED) {
+            sGrantedCache.put(permission, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 清除已允許權限的快取，ex : 從app設定返回後
+     */
+    public static void invalidateGrantCache() {
+        sGrantedCache.clear();
+    }
+
+    static void updateGrantCache(String permission, boolean granted) {
+        if (granted) {
+            sGrantedCache.put(permission, Boolean.TRUE);
+        } else {
+            sGrantedCache.remove(permission);
+        }
+    }
+
+    /**
+     * 替換系統權限檢查，ex : 在JVM上測試
+     */
+    static void setSelfPermissionChecker(SelfPermissionChecker checker) {
+        sSelfPermissionChecker = checker;
     }
 
     /**
@@ -74,20 +186,59 @@ public class PermissionsHelper {
         try {
             context.startActivity(intent);
         } catch (ActivityNotFoundException e) {
-            e.printStackTrace();
+            RayLog.w(TAG, "open app settings failed", e);
         }
     }
 
-    private void doRequest(Activity activity, String permission, PermissionsHelperListener listener) {
-        if (permission == null) {
-            throw new IllegalArgumentException("permission == null");
+    void doRequest(Activity activity, String[] permissions, PermissionsResultListener listener) {
+        if (permissions == null || permissions.length == 0) {
+            throw new IllegalArgumentException("permissions is empty");
         }
+        boolean isAllGranted = true;
+
+        for (String permission : permissions) {
+            if (permission == null) {
+                throw new IllegalArgumentException("permission == null");
+            }
+            if (isAllGranted && !hasGrantedPermission(activity, permission)) {
+                isAllGranted = false;
+            }
+        }
+        if (isAllGranted) {
+            listener.onPermissionsResult(PermissionsResult.granted(permissions));
+            return;
+        }
+        synchronized (this) {
+            mActivity = new WeakReference<Activity>(activity);
+            mContext = activity.getApplicationContext();
+        }
+        mPermissionsRequestQueue.enqueue(permissions.clone(), listener);
+    }
+
+    void onResult(PermissionsResult result) {
+        mPermissionsRequestQueue.onResult(result);
+    }
 
-        mPermissionsRequestProxy.setPermissionsHelperListener(listener);
+    /**
+     * 由最後一個請求權限的activity開啟dialog
+     *
+     * @param permissions
+     */
+    private void startRequestActivity(String[] permissions) {
+        Activity activity;
 
+        synchronized (this) {
+            activity = mActivity != null ? mActivity.get() : null;
+        }
+        if (activity == null || activity.isFinishing()) {
+            RayLog.w(TAG, "no activity to request permissions");
+            mPermissionsRequestQueue.onResult(new PermissionsResult(permissions, new boolean[permissions.length],
+                    new boolean[permissions.length]));
+            return;
+        }
         Intent intent = new Intent(activity, PermissionsRequestActivity.class);
 
-        intent.putExtra(PermissionsRequestActivity.PERMISSIONS_NAME, permission);
+        intent.putExtra(PermissionsRequestActivity.PERMISSIONS_NAMES, permissions);
         activity.startActivity(intent);
         activity.overridePendingTransition(0, 0);
     }
@@ -96,24 +247,13 @@ public class PermissionsHelper {
         public void onPermissionsResult(String permissions, boolean isGrant, boolean hasShowedRequestPermissionDialog);
     }
 
-    private class PermissionsRequestProxy implements PermissionsHelperListener {
-        private PermissionsHelperListener mPermissionsHelperListener;
-
-        PermissionsRequestProxy() {
-        }
-
-        private void setPermissionsHelperListener(PermissionsHelperListener listener) {
-            mPermissionsHelperListener = listener;
-        }
+    public static interface PermissionsResultListener {
+        public void onPermissionsResult(PermissionsResult result);
+    }
 
-        @Override
-        public void onPermissionsResult(String permissions, boolean isGrant, boolean hasShowedRequestPermissionDialog) {
+    static interface SelfPermissionChecker {
+        public int checkSelfPermission(Context context, String permission);
+    }
 
-            if (mPermissionsHelperListener != null) {
-                mPermissionsHelperListener.onPermissionsResult(permissions, isGrant, hasShowedRequestPermissionDialog);
-            }
 
-            mPermissionsHelperListener = null;
-        }
-    }
 }
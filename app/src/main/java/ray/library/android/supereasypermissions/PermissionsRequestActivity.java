@@ -8,16 +8,23 @@ import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PermissionsRequestActivity extends Activity {
     public final static String PERMISSIONS_NAME = "permissionsName";
+    public final static String PERMISSIONS_NAMES = "permissionsNames";
 
     private final static int REQUEST = 100;
-    private static PermissionsHelper.PermissionsHelperListener sPermissionsHelperListener;
+    private final static String HAS_SHOWED_DIALOG = "hasShowedDialog";
+    private static PermissionsHelper.PermissionsResultListener sPermissionsResultListener;
 
-    private boolean mHasShowedRequestPermissionDialog;// 請求權限前
+    private String[] mPermissions;
+    private boolean[] mHasShowedRequestPermissionDialog;// 請求權限前
+    private boolean mIsResultDelivered;
 
-    public static void setPermissionsHelperListener(PermissionsHelper.PermissionsHelperListener listener) {
-        sPermissionsHelperListener = listener;
+    public static void setPermissionsResultListener(PermissionsHelper.PermissionsResultListener listener) {
+        sPermissionsResultListener = listener;
     }
 
     @Override
@@ -25,14 +32,27 @@ public class PermissionsRequestActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         Intent intent = getIntent();
-        String permissions = null;
 
         if (intent != null) {
-            permissions = intent.getStringExtra(PERMISSIONS_NAME);
+            mPermissions = intent.getStringArrayExtra(PERMISSIONS_NAMES);
 
-            if (permissions != null) {
-                mHasShowedRequestPermissionDialog = hasShowedRequestPermissionDialog(permissions);
-                requestLocationPermission(permissions);
+            if (mPermissions == null && intent.getStringExtra(PERMISSIONS_NAME) != null) {
+                mPermissions = new String[]{intent.getStringExtra(PERMISSIONS_NAME)};
+            }
+            if (mPermissions != null && mPermissions.length > 0) {
+                mHasShowedRequestPermissionDialog = savedInstanceState != null
+                        ? savedInstanceState.getBooleanArray(HAS_SHOWED_DIALOG) : null;
+
+                if (mHasShowedRequestPermissionDialog != null) {
+                    // 重建時系統會把dialog結果送到新的activity，不重複請求
+                    return;
+                }
+                mHasShowedRequestPermissionDialog = new boolean[mPermissions.length];
+
+                for (int i = 0; i < mPermissions.length; i++) {
+                    mHasShowedRequestPermissionDialog[i] = hasShowedRequestPermissionDialog(mPermissions[i]);
+                }
+                requestPermissions();
                 return;
             }
         }
@@ -40,17 +60,43 @@ public class PermissionsRequestActivity extends Activity {
         overridePendingTransition(0, 0);
     }
 
-    private void requestLocationPermission(String permissions) {
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBooleanArray(HAS_SHOWED_DIALOG, mHasShowedRequestPermissionDialog);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 未收到dialog結果就結束(ex : 被系統或task結束)，仍回傳目前的狀態，否則queue會一直等待
+        if (isFinishing() && !mIsResultDelivered && mHasShowedRequestPermissionDialog != null) {
+            int[] grantResults = new int[mPermissions.length];
+
+            for (int i = 0; i < mPermissions.length; i++) {
+                grantResults[i] = ContextCompat.checkSelfPermission(this, mPermissions[i]);
+            }
+            onPermissionsResult(mPermissions, grantResults);
+        }
+    }
+
+    private void requestPermissions() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            int hasPermission = ContextCompat.checkSelfPermission(this, permissions);
+            List<String> missing = new ArrayList<String>();
 
-            if (hasPermission != PackageManager.PERMISSION_GRANTED) {
-                requestPermissions(new String[]{permissions}, REQUEST);
+            for (String permission : mPermissions) {
+                if (ContextCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
+                    missing.add(permission);
+                }
+            }
+            if (!missing.isEmpty()) {
+                // 一次請求所有未允許的權限
+                requestPermissions(missing.toArray(new String[missing.size()]), REQUEST);
                 return;
             }
         }
 
-        onPermissionsResult(permissions, true);
+        onPermissionsResult(new String[0], new int[0]);
         finish();
         overridePendingTransition(0, 0);
     }
@@ -58,7 +104,7 @@ public class PermissionsRequestActivity extends Activity {
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         if (requestCode == REQUEST) {
-            onPermissionsResult(permissions[0], grantResults[0] == PackageManager.PERMISSION_GRANTED);
+            onPermissionsResult(permissions, grantResults);
         } else {
             super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         }
@@ -66,14 +112,38 @@ public class PermissionsRequestActivity extends Activity {
         overridePendingTransition(0, 0);
     }
 
-    private void onPermissionsResult(String permissions, boolean isGrant) {
-        if (sPermissionsHelperListener != null) {
+    /**
+     * @param requested    請求的權限，不在其中的為請求前已允許
+     * @param grantResults 請求被中斷時為空陣列，視為拒絕
+     */
+    private void onPermissionsResult(String[] requested, int[] grantResults) {
+        mIsResultDelivered = true;
+        boolean[] granted = new boolean[mPermissions.length];
+        boolean[] hasShowedRequestPermissionDialog = new boolean[mPermissions.length];
+
+        for (int i = 0; i < mPermissions.length; i++) {
+            int index = indexOf(requested, mPermissions[i]);
+
+            granted[i] = index == -1 || (index < grantResults.length
+                    && grantResults[index] == PackageManager.PERMISSION_GRANTED);
             // 記錄是否有彈出過詢問使用者是否允許的dialog
-            boolean hasShowedRequestPermissionDialog = hasShowedRequestPermissionDialog(permissions)
-                    | mHasShowedRequestPermissionDialog;
+            hasShowedRequestPermissionDialog[i] = hasShowedRequestPermissionDialog(mPermissions[i])
+                    | mHasShowedRequestPermissionDialog[i];
+            PermissionsHelper.updateGrantCache(mPermissions[i], granted[i]);
+        }
+        if (sPermissionsResultListener != null) {
+            sPermissionsResultListener.onPermissionsResult(new PermissionsResult(mPermissions, granted,
+                    hasShowedRequestPermissionDialog));
+        }
+    }
 
-            sPermissionsHelperListener.onPermissionsResult(permissions, isGrant, hasShowedRequestPermissionDialog);
+    private static int indexOf(String[] permissions, String permission) {
+        for (int i = 0; i < permissions.length; i++) {
+            if (permission.equals(permissions[i])) {
+                return i;
+            }
         }
+        return -1;
     }
 
     private boolean hasShowedRequestPermissionDialog(String permissions) {
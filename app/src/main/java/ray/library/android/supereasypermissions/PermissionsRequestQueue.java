@@ -0,0 +1,159 @@
+package ray.library.android.supereasypermissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Serializes permission dialogs. Requests whose permissions are all part of the dialog already
+ * showing are coalesced onto it; other requests wait and are batched into one next dialog.
+ * Requests made in the same main loop pass are batched by launching through {@code launchExecutor}.
+ */
+class PermissionsRequestQueue {
+    private final Executor mLaunchExecutor;
+    private final Launcher mLauncher;
+    private final GrantChecker mGrantChecker;
+    private final List<Request> mPending = new ArrayList<Request>();
+    private final List<Request> mInFlight = new ArrayList<Request>();
+    private final Set<String> mInFlightPermissions = new LinkedHashSet<String>();
+    private boolean mIsLaunchScheduled;
+    private int mDialogCount;
+    private int mCoalescedCount;
+
+    private final Runnable mLaunchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            launchNext();
+        }
+    };
+
+    /**
+     * @param launchExecutor ex : main thread Handler.post，讓同一輪的請求合併
+     * @param launcher       顯示系統dialog，結果需呼叫{@link #onResult(PermissionsResult)}
+     * @param grantChecker
+     */
+    PermissionsRequestQueue(Executor launchExecutor, Launcher launcher, GrantChecker grantChecker) {
+        mLaunchExecutor = launchExecutor;
+        mLauncher = launcher;
+        mGrantChecker = grantChecker;
+    }
+
+    void enqueue(String[] permissions, PermissionsHelper.PermissionsResultListener listener) {
+        Request request = new Request(permissions, listener);
+
+        synchronized (this) {
+            if (!mInFlight.isEmpty() && mInFlightPermissions.containsAll(Arrays.asList(permissions))) {
+                // 相同權限的dialog已顯示中，共用結果
+                mInFlight.add(request);
+                mCoalescedCount++;
+                return;
+            }
+            mPending.add(request);
+
+            if (!mInFlight.isEmpty() || mIsLaunchScheduled) {
+                return;
+            }
+            mIsLaunchScheduled = true;
+        }
+        mLaunchExecutor.execute(mLaunchRunnable);
+    }
+
+    /**
+     * dialog結束，回傳給等待中的所有listener後顯示下一批
+     *
+     * @param result
+     */
+    void onResult(PermissionsResult result) {
+        List<Request> finished;
+
+        synchronized (this) {
+            finished = new ArrayList<Request>(mInFlight);
+            mInFlight.clear();
+            mInFlightPermissions.clear();
+        }
+        for (Request request : finished) {
+            request.mListener.onPermissionsResult(result.subset(request.mPermissions));
+        }
+        launchNext();
+    }
+
+    synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    synchronized int getDialogCount() {
+        return mDialogCount;
+    }
+
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private void launchNext() {
+        List<Request> granted = new ArrayList<Request>();
+        String[] permissions;
+
+        synchronized (this) {
+            mIsLaunchScheduled = false;
+
+            if (!mInFlight.isEmpty() || mPending.isEmpty()) {
+                return;
+            }
+            for (Request request : mPending) {
+                boolean isAllGranted = true;
+
+                for (String permission : request.mPermissions) {
+                    if (!mGrantChecker.isGranted(permission)) {
+                        isAllGranted = false;
+                        break;
+                    }
+                }
+                if (isAllGranted) {
+                    // 可能已在前一個dialog中被允許
+                    granted.add(request);
+                } else {
+                    mInFlight.add(request);
+                }
+            }
+            mPending.clear();
+
+            if (mInFlight.isEmpty()) {
+                permissions = null;
+            } else {
+                // dialog中也包含已允許的權限，讓結果可以直接分給各request
+                for (Request request : mInFlight) {
+                    mInFlightPermissions.addAll(Arrays.asList(request.mPermissions));
+                }
+                permissions = mInFlightPermissions.toArray(new String[mInFlightPermissions.size()]);
+                mDialogCount++;
+            }
+        }
+        for (Request request : granted) {
+            request.mListener.onPermissionsResult(PermissionsResult.granted(request.mPermissions));
+        }
+        if (permissions != null) {
+            mLauncher.launch(permissions);
+        }
+    }
+
+    static interface Launcher {
+        void launch(String[] permissions);
+    }
+
+    static interface GrantChecker {
+        boolean isGranted(String permission);
+    }
+
+    private static class Request {
+        final String[] mPermissions;
+        final PermissionsHelper.PermissionsResultListener mListener;
+
+        Request(String[] permissions, PermissionsHelper.PermissionsResultListener listener) {
+            mPermissions = permissions;
+            mListener = listener;
+        }
+    }
+}
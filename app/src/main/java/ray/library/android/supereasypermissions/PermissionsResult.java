@@ -0,0 +1,98 @@
+package ray.library.android.supereasypermissions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-permission result of one {@link PermissionsHelper#request(android.app.Activity, String[],
+ * PermissionsHelper.PermissionsResultListener)}.
+ */
+public class PermissionsResult {
+    private final String[] mPermissions;
+    private final boolean[] mGranted;
+    private final boolean[] mShowedRequestPermissionDialog;
+
+    PermissionsResult(String[] permissions, boolean[] granted, boolean[] showedRequestPermissionDialog) {
+        mPermissions = permissions;
+        mGranted = granted;
+        mShowedRequestPermissionDialog = showedRequestPermissionDialog;
+    }
+
+    /**
+     * 全部已允許，不需顯示dialog
+     */
+    static PermissionsResult granted(String[] permissions) {
+        boolean[] granted = new boolean[permissions.length];
+
+        Arrays.fill(granted, true);
+        return new PermissionsResult(permissions, granted, new boolean[permissions.length]);
+    }
+
+    /**
+     * @param permissions 需包含在此結果中，不在其中的視為拒絕
+     */
+    PermissionsResult subset(String[] permissions) {
+        boolean[] granted = new boolean[permissions.length];
+        boolean[] showedRequestPermissionDialog = new boolean[permissions.length];
+
+        for (int i = 0; i < permissions.length; i++) {
+            granted[i] = isGranted(permissions[i]);
+            showedRequestPermissionDialog[i] = hasShowedRequestPermissionDialog(permissions[i]);
+        }
+        return new PermissionsResult(permissions, granted, showedRequestPermissionDialog);
+    }
+
+    public List<String> getPermissions() {
+        return Arrays.asList(mPermissions);
+    }
+
+    public boolean isGranted(String permission) {
+        int index = indexOf(permission);
+
+        return index != -1 && mGranted[index];
+    }
+
+    public boolean isAllGranted() {
+        for (boolean granted : mGranted) {
+            if (!granted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<String> getDeniedPermissions() {
+        List<String> denied = new ArrayList<String>();
+
+        for (int i = 0; i < mPermissions.length; i++) {
+            if (!mGranted[i]) {
+                denied.add(mPermissions[i]);
+            }
+        }
+        return denied;
+    }
+
+    /**
+     * @return false 且被拒絕時，表示使用者已選擇不再詢問，需到app設定開啟
+     */
+    public boolean hasShowedRequestPermissionDialog(String permission) {
+        int index = indexOf(permission);
+
+        return index != -1 && mShowedRequestPermissionDialog[index];
+    }
+
+    private int indexOf(String permission) {
+        for (int i = 0; i < mPermissions.length; i++) {
+            if (mPermissions[i].equals(permission)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "granted" + Arrays.toString(mGranted) + ",permissions" + Arrays.toString(mPermissions);
+    }
+}
@@ -0,0 +1,166 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class AcceptEngineTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+
+    @Test
+    public void slowHandler_doesNotBlockOtherClients() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(2);
+        final AtomicInteger count = new AtomicInteger();
+        AcceptEngine engine = new AcceptEngine(transport.listen("test", SERVICE),
+                new BTManager.OnAcceptBluetoothSocketListener() {
+                    @Override
+                    public void onAcceptBluetoothSocket(TransportSocket socket) {
+                        if (count.incrementAndGet() == 1) {
+                            await(release);
+                        }
+                        handled.countDown();
+                    }
+                });
+
+        engine.setWorkerCount(2);
+        engine.start();
+        connect(transport);
+        connect(transport);
+
+        // 第一個handler尚未結束時，第二個client仍應被處理
+        assertTrue(waitFor(count, 2));
+        assertEquals(1, handled.getCount());
+        release.countDown();
+        assertTrue(handled.await(1L, TimeUnit.SECONDS));
+        assertTrue(engine.shutdown(1000L));
+    }
+
+    @Test
+    public void maxConnections_rejectsOverflow() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        final AtomicInteger reason = new AtomicInteger();
+        AcceptEngine engine = new AcceptEngine(transport.listen("test", SERVICE),
+                new BTManager.OnAcceptBluetoothSocketListener() {
+                    @Override
+                    public void onAcceptBluetoothSocket(TransportSocket socket) {
+                        await(release);
+                    }
+                });
+
+        engine.setMaxConnections(1);
+        engine.setOnAdmissionListener(new AcceptEngine.OnAdmissionListener() {
+            @Override
+            public boolean onAdmission(TransportSocket socket) {
+                return true;
+            }
+
+            @Override
+            public void onRejected(TransportSocket socket, int r) {
+                reason.set(r);
+                rejected.countDown();
+            }
+        });
+        engine.start();
+        connect(transport);
+        connect(transport);
+
+        assertTrue(rejected.await(1L, TimeUnit.SECONDS));
+        assertEquals(AcceptEngine.REJECT_MAX_CONNECTIONS, reason.get());
+        assertEquals(1, engine.getActiveConnections());
+        release.countDown();
+        assertTrue(engine.shutdown(1000L));
+        assertEquals(0, engine.getActiveConnections());
+    }
+
+    @Test
+    public void shutdown_closesStuckConnectionsAfterTimeout() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        final CountDownLatch started = new CountDownLatch(1);
+        AcceptEngine engine = new AcceptEngine(transport.listen("test", SERVICE),
+                new BTManager.OnAcceptBluetoothSocketListener() {
+                    @Override
+                    public void onAcceptBluetoothSocket(TransportSocket socket) {
+                        started.countDown();
+                        try {
+                            // 等到engine強制關閉socket
+                            socket.getInputStream().read();
+                        } catch (IOException e) {
+                            // expected
+                        }
+                    }
+                });
+
+        engine.start();
+        TransportSocket client = connect(transport);
+
+        assertTrue(started.await(1L, TimeUnit.SECONDS));
+        assertFalse(engine.shutdown(50L));
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    @Test
+    public void acceptError_backsOffInsteadOfSpinning() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        AcceptEngine engine = new AcceptEngine(new TransportServerSocket() {
+            @Override
+            public TransportSocket accept() throws IOException {
+                attempts.incrementAndGet();
+                throw new IOException("accept failed");
+            }
+
+            @Override
+            public void close() {
+            }
+        }, new BTManager.OnAcceptBluetoothSocketListener() {
+            @Override
+            public void onAcceptBluetoothSocket(TransportSocket socket) {
+            }
+        });
+
+        engine.setBackoff(10L, 40L);
+        engine.start();
+        Thread.sleep(200L);
+        engine.shutdown(100L);
+
+        // 10 + 20 + 40 + 40 ... 200ms內最多約7次
+        assertTrue("attempts " + attempts.get(), attempts.get() <= 8);
+    }
+
+    private static TransportSocket connect(LoopbackTransport transport) throws IOException {
+        TransportSocket socket = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        socket.connect();
+        return socket;
+    }
+
+    private static boolean waitFor(AtomicInteger value, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000L;
+
+        while (value.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        return value.get() >= expected;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BTEventBusTest {
+
+    @Test
+    public void subscribersChanged_notifiedOnRegisterAndEffectiveUnregister() {
+        BTEventBus bus = new BTEventBus(null, null);
+        final List<Class<?>> changes = new ArrayList<Class<?>>();
+        BTManager.OnDiscoveryBluetoothFinishListener listener = new BTManager.OnDiscoveryBluetoothFinishListener() {
+            @Override
+            public void onDiscoveryBluetoothFinish() {
+            }
+        };
+
+        bus.setOnSubscribersChangedListener(new BTEventBus.OnSubscribersChangedListener() {
+            @Override
+            public void onSubscribersChanged(Class<?> listenerType) {
+                changes.add(listenerType);
+            }
+        });
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, listener, BTEventBus.THREAD_POSTING);
+        assertTrue(bus.hasSubscribers(BTManager.OnDiscoveryBluetoothFinishListener.class));
+        bus.unregister(BTManager.OnDiscoveryBluetoothFinishListener.class, listener);
+        bus.unregister(BTManager.OnDiscoveryBluetoothFinishListener.class, listener);// 已移除，不通知
+        assertFalse(bus.hasSubscribers(BTManager.OnDiscoveryBluetoothFinishListener.class));
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void post_deliversToEverySubscriberOnItsExecutor() {
+        QueueExecutor main = new QueueExecutor();
+        QueueExecutor background = new QueueExecutor();
+        BTEventBus bus = new BTEventBus(main, background);
+        final List<String> calls = new ArrayList<String>();
+
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new Recorder(calls, "posting"),
+                BTEventBus.THREAD_POSTING);
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new Recorder(calls, "main"),
+                BTEventBus.THREAD_MAIN);
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new Recorder(calls, "background"),
+                BTEventBus.THREAD_BACKGROUND);
+
+        bus.post(BTManager.OnDiscoveryBluetoothFinishListener.class, FINISH);
+        assertEquals(1, calls.size());
+        assertEquals("posting", calls.get(0));
+
+        main.runAll();
+        background.runAll();
+        assertEquals(3, calls.size());
+        assertEquals("main", calls.get(1));
+        assertEquals("background", calls.get(2));
+    }
+
+    @Test
+    public void unregister_andFailingSubscriber_doNotAffectOthers() {
+        BTEventBus bus = new BTEventBus(null, null);
+        final List<String> calls = new ArrayList<String>();
+        Recorder removed = new Recorder(calls, "removed");
+
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new BTManager.OnDiscoveryBluetoothFinishListener() {
+            @Override
+            public void onDiscoveryBluetoothFinish() {
+                throw new IllegalStateException("subscriber failure");
+            }
+        }, BTEventBus.THREAD_POSTING);
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, removed, BTEventBus.THREAD_POSTING);
+        bus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new Recorder(calls, "kept"),
+                BTEventBus.THREAD_POSTING);
+        bus.unregister(BTManager.OnDiscoveryBluetoothFinishListener.class, removed);
+
+        bus.post(BTManager.OnDiscoveryBluetoothFinishListener.class, FINISH);
+        assertEquals(1, calls.size());
+        assertEquals("kept", calls.get(0));
+        assertFalse(bus.hasSubscribers(BTManager.OnFoundBluetoothDeviceListener.class));
+    }
+
+    private static final BTEventBus.Event<BTManager.OnDiscoveryBluetoothFinishListener> FINISH =
+            new BTEventBus.Event<BTManager.OnDiscoveryBluetoothFinishListener>() {
+                @Override
+                public void deliver(BTManager.OnDiscoveryBluetoothFinishListener listener) {
+                    listener.onDiscoveryBluetoothFinish();
+                }
+            };
+
+    private static class Recorder implements BTManager.OnDiscoveryBluetoothFinishListener {
+        private final List<String> mCalls;
+        private final String mName;
+
+        Recorder(List<String> calls, String name) {
+            mCalls = calls;
+            mName = name;
+        }
+
+        @Override
+        public void onDiscoveryBluetoothFinish() {
+            mCalls.add(mName);
+        }
+    }
+
+    private static class QueueExecutor implements Executor {
+        private final List<Runnable> mQueue = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        void runAll() {
+            for (Runnable runnable : mQueue) {
+                runnable.run();
+            }
+            mQueue.clear();
+        }
+    }
+}
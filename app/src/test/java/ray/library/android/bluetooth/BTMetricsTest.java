@@ -0,0 +1,135 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class BTMetricsTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+
+    @Test
+    public void histogram_buckets() {
+        for (long value = 0L; value < 100000L; value += 7L) {
+            int index = Histogram.bucketIndex(value);
+
+            assertTrue(Histogram.bucketLowerBound(index) <= value);
+            assertTrue(Histogram.bucketLowerBound(index + 1) > value);
+        }
+        assertTrue(Histogram.bucketIndex(Long.MAX_VALUE) >= 0);
+    }
+
+    @Test
+    public void histogram_percentiles() {
+        Histogram histogram = new Histogram();
+
+        for (long value = 1L; value <= 1000L; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals(1000L, snapshot.getCount());
+        assertEquals(1L, snapshot.getMin());
+        assertEquals(1000L, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 0.001);
+        assertEquals(500.0, snapshot.getP50(), 500 * 0.07);
+        assertEquals(990.0, snapshot.getP99(), 990 * 0.07);
+    }
+
+    @Test
+    public void discovery_countsUniqueDevicesPerScan() {
+        BTMetrics metrics = new BTMetrics();
+
+        metrics.onDeviceDiscovered("A", 5L);// 尚未開始搜尋
+        metrics.onDiscoveryStarted(100L);
+        metrics.onDeviceDiscovered("A", 400L);
+        metrics.onDeviceDiscovered("A", 500L);
+        metrics.onDeviceDiscovered("B", 600L);
+        metrics.onDiscoveryFinished();
+
+        BTMetrics.Snapshot snapshot = metrics.getSnapshot();
+
+        assertEquals(1L, snapshot.getScanCount());
+        assertEquals(300L, snapshot.getTimeToFirstDevice().getMax());
+        assertEquals(2L, snapshot.getDevicesPerScan().getMax());
+    }
+
+    @Test
+    public void bond_durationAndFailure() {
+        BTMetrics metrics = new BTMetrics();
+
+        metrics.onBondStarted("A", 1000L);
+        metrics.onBondFinished("A", true, 3000L);
+        metrics.onBondStarted("B", 1000L);
+        metrics.onBondFinished("B", false, 2000L);
+
+        BTMetrics.Snapshot snapshot = metrics.getSnapshot();
+
+        assertEquals(1L, snapshot.getBondDuration().getCount());
+        assertEquals(2000L, snapshot.getBondDuration().getMax());
+        assertEquals(1L, snapshot.getBondFailureCount());
+    }
+
+    @Test
+    public void meteredTransport_countsBytesPerConnection() throws Exception {
+        BTMetrics metrics = new BTMetrics();
+        MeteredTransport transport = new MeteredTransport(new LoopbackTransport(), metrics);
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        OutputStream out = client.getOutputStream();
+        InputStream in = server.getInputStream();
+
+        out.write(new byte[10]);
+        out.write(1);
+        out.flush();
+        assertEquals(10, in.read(new byte[10]));
+        assertEquals(1, in.read());
+        assertEquals(2, metrics.getSnapshot().getOpenConnections().size());
+
+        ConnectionStats clientStats = ((MeteredTransport.MeteredSocket) client).getStats();
+
+        assertEquals(11L, clientStats.getBytesOut());
+        assertFalse(clientStats.isInbound());
+
+        BTMetrics.Snapshot snapshot = metrics.getSnapshot();
+
+        assertEquals(11L, snapshot.getBytesIn());
+        assertEquals(11L, snapshot.getBytesOut());
+
+        client.close();
+        server.close();
+        serverSocket.close();
+        assertEquals(0, metrics.getSnapshot().getOpenConnections().size());
+        assertTrue(clientStats.getClosedAtMillis() > 0L);
+    }
+
+    @Test
+    public void meteredSocket_closedThroughStream() throws Exception {
+        BTMetrics metrics = new BTMetrics();
+        MeteredTransport transport = new MeteredTransport(new LoopbackTransport(), metrics);
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+        assertEquals(2, metrics.getSnapshot().getOpenConnections().size());
+
+        client.getOutputStream().close();
+        server.getInputStream().close();
+        assertEquals(0, metrics.getSnapshot().getOpenConnections().size());
+        assertFalse(client.isConnected());
+        // 不是RFCOMM socket
+        assertNull(BTManager.getBluetoothSocket(client));
+    }
+}
@@ -0,0 +1,194 @@
+package ray.library.android.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BroadcastTraceTest {
+    private static final String A = "00:11:22:AA:BB:01";
+    private static final String B = "00:11:22:AA:BB:02";
+    private static final String C = "00:11:22:AA:BB:03";
+    private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final AtomicInteger mFoundCount = new AtomicInteger();
+    private final AtomicInteger mPairedCount = new AtomicInteger();
+    private final AtomicInteger mPairFailedCount = new AtomicInteger();
+    private final AtomicInteger mFinishCount = new AtomicInteger();
+    private final List<Boolean> mStates = new ArrayList<Boolean>();
+
+    @Test
+    public void writeRead_roundTripsEveryType() throws IOException {
+        List<BroadcastRecord> records = storm();
+        BroadcastTrace.Reader reader = new BroadcastTrace.Reader(new ByteArrayInputStream(write(records)));
+
+        for (BroadcastRecord expected : records) {
+            BroadcastRecord actual = reader.read();
+
+            assertNotNull(actual);
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getTimestampNanos(), actual.getTimestampNanos());
+            assertEquals(expected.getAddress(), actual.getAddress());
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getDeviceClass(), actual.getDeviceClass());
+            assertEquals(expected.getRssi(), actual.getRssi());
+            assertEquals(expected.getState(), actual.getState());
+            assertEquals(expected.getPrevState(), actual.getPrevState());
+        }
+        assertNull(reader.read());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_truncatedTrace() throws IOException {
+        byte[] trace = write(storm());
+        byte[] truncated = new byte[trace.length - 3];
+
+        System.arraycopy(trace, 0, truncated, 0, truncated.length);
+        BroadcastTrace.Reader reader = new BroadcastTrace.Reader(new ByteArrayInputStream(truncated));
+
+        while (reader.read() != null) {
+        }
+    }
+
+    @Test
+    public void replay_dispatchesStormThroughListeners() throws IOException {
+        BTMetrics metrics = new BTMetrics();
+        BroadcastReplayer replayer = new BroadcastReplayer(newDispatcher(metrics));
+        List<BroadcastRecord> records = storm();
+        BroadcastReplayer.Result result = replayer.replay(new BroadcastTrace.Reader(new ByteArrayInputStream(write(records))));
+
+        assertEquals(records.size(), result.getRecordCount());
+        assertEquals(records.size(), result.getDispatchTime().getCount());
+        // 重複回報不通知，RSSI變化超過門檻才通知
+        assertEquals(4, mFoundCount.get());
+        assertEquals(1, mPairedCount.get());
+        assertEquals(1, mPairFailedCount.get());
+        assertEquals(1, mFinishCount.get());
+        assertEquals(1, mStates.size());
+        assertTrue(mStates.get(0));
+
+        BTMetrics.Snapshot snapshot = metrics.getSnapshot();
+
+        assertEquals(1, snapshot.getScanCount());
+        assertEquals(1, snapshot.getBondFailureCount());
+        assertEquals(1, snapshot.getBondDuration().getCount());
+    }
+
+    @Test
+    public void replay_pacedFollowsRecordedTimeline() throws IOException {
+        byte[] trace = write(storm());
+        BroadcastReplayer replayer = new BroadcastReplayer(newDispatcher(new BTMetrics()));
+
+        replayer.setSpeed(BroadcastReplayer.SPEED_RECORDED);
+        BroadcastReplayer.Result paced = replayer.replay(new BroadcastTrace.Reader(new ByteArrayInputStream(trace)));
+
+        assertTrue(paced.getTraceNanos() > 0L);
+        assertTrue(paced.getElapsedNanos() >= paced.getTraceNanos());
+
+        replayer.setSpeed(BroadcastReplayer.SPEED_UNLIMITED);
+        BroadcastReplayer.Result unlimited = replayer.replay(new BroadcastTrace.Reader(new ByteArrayInputStream(trace)));
+
+        assertEquals(paced.getRecordCount(), unlimited.getRecordCount());
+        assertEquals(0L, unlimited.getMaxLagNanos());
+        assertTrue(unlimited.getElapsedNanos() < paced.getElapsedNanos());
+    }
+
+    private BroadcastDispatcher newDispatcher(BTMetrics metrics) {
+        BTEventBus eventBus = new BTEventBus(null, null);
+
+        eventBus.register(BTManager.OnFoundBluetoothDeviceListener.class, new BTManager.OnFoundBluetoothDeviceListener() {
+            @Override
+            public void onFoundBluetoothDevice(BluetoothDevice device) {
+                mFoundCount.incrementAndGet();
+            }
+        }, BTEventBus.THREAD_POSTING);
+        eventBus.register(BTManager.OnPairBluetoothDeviceListener.class, new BTManager.OnPairBluetoothDeviceListener() {
+            @Override
+            public void onPairedBluetoothDevice(BluetoothDevice device) {
+                mPairedCount.incrementAndGet();
+            }
+
+            @Override
+            public void onUnpairedBluetoothDevice(BluetoothDevice device) {
+            }
+        }, BTEventBus.THREAD_POSTING);
+        eventBus.register(BTManager.OnPairFailedBluetoothDeviceListener.class, new BTManager.OnPairFailedBluetoothDeviceListener() {
+            @Override
+            public void onPairFailedBluetoothDevice(BluetoothDevice device) {
+                mPairFailedCount.incrementAndGet();
+            }
+        }, BTEventBus.THREAD_POSTING);
+        eventBus.register(BTManager.OnDiscoveryBluetoothFinishListener.class, new BTManager.OnDiscoveryBluetoothFinishListener() {
+            @Override
+            public void onDiscoveryBluetoothFinish() {
+                mFinishCount.incrementAndGet();
+            }
+        }, BTEventBus.THREAD_POSTING);
+        eventBus.register(BTManager.OnBluetoothStateChangedListener.class, new BTManager.OnBluetoothStateChangedListener() {
+            @Override
+            public void onBluetoothStateChanged(boolean enable) {
+                mStates.add(enable);
+            }
+        }, BTEventBus.THREAD_POSTING);
+        return new BroadcastDispatcher(eventBus, metrics, new DiscoveryCache());
+    }
+
+    private static byte[] write(List<BroadcastRecord> records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BroadcastTrace.Writer writer = new BroadcastTrace.Writer(out);
+
+        for (BroadcastRecord record : records) {
+            writer.write(record);
+        }
+        assertEquals(records.size(), writer.getRecordCount());
+        writer.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 一次掃描中同一裝置回報多次，之後A配對成功、B配對失敗，最後開啟藍牙
+     */
+    private static List<BroadcastRecord> storm() {
+        List<BroadcastRecord> records = new ArrayList<BroadcastRecord>();
+        long t = 1000000000L;
+
+        records.add(adapter(BroadcastRecord.TYPE_DISCOVERY_STARTED, t, 0, 0));
+        for (int i = 0; i < 5; i++) {
+            records.add(found(A, "手機", (short) -60, t += STEP_NANOS));
+            records.add(found(B, null, (short) (-70 - i), t += STEP_NANOS));
+            records.add(found(C, "Headset", DiscoveredDevice.RSSI_UNKNOWN, t += STEP_NANOS));
+        }
+        records.add(found(B, null, (short) -90, t += STEP_NANOS));
+        records.add(adapter(BroadcastRecord.TYPE_DISCOVERY_FINISHED, t += STEP_NANOS, 0, 0));
+        records.add(bond(A, BluetoothDevice.BOND_BONDING, BluetoothDevice.BOND_NONE, t += STEP_NANOS));
+        records.add(bond(A, BluetoothDevice.BOND_BONDED, BluetoothDevice.BOND_BONDING, t += STEP_NANOS));
+        records.add(bond(B, BluetoothDevice.BOND_BONDING, BluetoothDevice.BOND_NONE, t += STEP_NANOS));
+        records.add(bond(B, BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING, t += STEP_NANOS));
+        records.add(adapter(BroadcastRecord.TYPE_STATE_CHANGED, t += STEP_NANOS, BluetoothAdapter.STATE_ON,
+                BluetoothAdapter.STATE_TURNING_ON));
+        return records;
+    }
+
+    private static BroadcastRecord found(String address, String name, short rssi, long t) {
+        return new BroadcastRecord(BroadcastRecord.TYPE_FOUND, t, address, name, 0x240404, rssi, 0, 0);
+    }
+
+    private static BroadcastRecord bond(String address, int state, int prevState, long t) {
+        return new BroadcastRecord(BroadcastRecord.TYPE_BOND_STATE_CHANGED, t, address, null, 0,
+                DiscoveredDevice.RSSI_UNKNOWN, state, prevState);
+    }
+
+    private static BroadcastRecord adapter(int type, long t, int state, int prevState) {
+        return new BroadcastRecord(type, t, null, null, 0, DiscoveredDevice.RSSI_UNKNOWN, state, prevState);
+    }
+}
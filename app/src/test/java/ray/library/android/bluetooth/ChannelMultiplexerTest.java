@@ -0,0 +1,159 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class ChannelMultiplexerTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final int CONTROL = 0;
+    private static final int BULK = 2;
+
+    private ChannelMultiplexer mClient;
+    private ChannelMultiplexer mServer;
+    private final BlockingQueue<MuxChannel> mOpened = new ArrayBlockingQueue<MuxChannel>(8);
+
+    @Before
+    public void setUp() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+
+        mClient = new ChannelMultiplexer(client);
+        mServer = new ChannelMultiplexer(server);
+        mClient.setWindow(4096);
+        mServer.setWindow(4096);
+        mClient.setMaxFrameSize(512);
+        mServer.setOnChannelListener(new ChannelMultiplexer.OnChannelListener() {
+            @Override
+            public void onChannelOpened(MuxChannel channel) {
+                mOpened.add(channel);
+            }
+
+            @Override
+            public void onMultiplexerClosed(IOException cause) {
+            }
+        });
+        mClient.start();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.close();
+        mServer.close();
+    }
+
+    @Test
+    public void data_roundTripsPerChannel() throws Exception {
+        byte[] payload = new byte[20000];
+        new Random(1L).nextBytes(payload);
+
+        final MuxChannel bulk = mClient.openChannel(BULK);
+        MuxChannel remote = mOpened.poll(1, TimeUnit.SECONDS);
+        assertEquals(BULK, remote.getId());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bulk.getOutputStream().write(payload(20000));
+                    bulk.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        byte[] received = readAll(remote.getInputStream());
+        writer.join(1000L);
+
+        assertArrayEquals(payload, received);
+        assertTrue(bulk.getCreditStallCount() > 0);// 20000 > window
+    }
+
+    @Test
+    public void slowBulkConsumer_doesNotBlockControl() throws Exception {
+        final MuxChannel bulk = mClient.openChannel(BULK);
+        MuxChannel control = mClient.openChannel(CONTROL);
+        MuxChannel remoteBulk = mOpened.poll(1, TimeUnit.SECONDS);
+        MuxChannel remoteControl = mOpened.poll(1, TimeUnit.SECONDS);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bulk.getOutputStream().write(new byte[64 * 1024]);
+                } catch (IOException e) {
+                    // tearDown關閉
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+
+        // bulk無人讀取，只能送出一個window
+        long deadline = System.currentTimeMillis() + 1000L;
+        while (bulk.getCreditStallCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertEquals(4096L, bulk.getBytesSent());
+
+        control.getOutputStream().write(new byte[]{1, 2, 3});
+        byte[] buffer = new byte[3];
+        assertEquals(3, remoteControl.getInputStream().read(buffer));
+        assertArrayEquals(new byte[]{1, 2, 3}, buffer);
+        assertEquals(4096, remoteBulk.getInputStream().available());
+    }
+
+    @Test
+    public void linkClosed_failsBlockedReader() throws Exception {
+        MuxChannel control = mClient.openChannel(CONTROL);
+        mOpened.poll(1, TimeUnit.SECONDS);
+
+        mServer.close();
+        assertEquals(-1, control.getInputStream().read());
+        try {
+            control.getOutputStream().write(1);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        new Random(1L).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        int total = 0;
+        int n;
+
+        while ((n = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += n;
+        }
+        return Arrays.copyOf(buffer, total);
+    }
+}
@@ -0,0 +1,172 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class CoalescingOutputStreamTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+
+    @Test
+    public void sizeFlush_emitsFullBatchesInOrder() throws Exception {
+        RecordingStream sink = new RecordingStream();
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 10, 0L, null);
+
+        for (int i = 0; i < 4; i++) {
+            out.write(new byte[]{(byte) (i * 3), (byte) (i * 3 + 1), (byte) (i * 3 + 2)});
+        }
+        assertEquals(1, sink.mWrites.size());
+        assertEquals(10, sink.mWrites.get(0).intValue());
+        assertEquals(1L, out.getSizeFlushCount());
+
+        // 大筆資料先送出已緩衝的2 bytes再直接寫出
+        byte[] large = new byte[25];
+
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (12 + i);
+        }
+        out.write(large);
+        assertEquals(3, sink.mWrites.size());
+        assertEquals(2, sink.mWrites.get(1).intValue());
+        assertEquals(25, sink.mWrites.get(2).intValue());
+
+        byte[] written = sink.toByteArray();
+
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(i, written[i]);
+        }
+        assertEquals(5L, out.getWriteCount());
+        assertEquals(37L, out.getByteCount());
+        assertEquals(3L, out.getBatchCount());
+        assertEquals(37.0 / 3, out.getAverageBatchSize(), 0.001);
+    }
+
+    @Test
+    public void timeFlush_sendsPartialBatch() throws Exception {
+        RecordingStream sink = new RecordingStream();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 100, 20L, scheduler);
+
+        try {
+            long start = System.nanoTime();
+
+            out.write(new byte[]{1, 2, 3});
+            out.write(4);
+            assertEquals(0, sink.size());
+            while (sink.flushCount() == 0 && System.nanoTime() - start < 1000000000L) {
+                Thread.sleep(2L);
+            }
+            assertEquals(4, sink.size());
+            assertTrue(System.nanoTime() - start >= 20000000L);
+            assertEquals(1L, out.getTimeFlushCount());
+            assertEquals(1L, out.getBatchCount());
+            assertEquals(1, sink.flushCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void explicitFlush_sendsImmediately() throws Exception {
+        RecordingStream sink = new RecordingStream();
+        CoalescingOutputStream out = new CoalescingOutputStream(sink, 100, 0L, null);
+
+        out.write(new byte[]{1, 2, 3});
+        out.flush();
+        out.flush();// 沒有緩衝的資料，不計次
+        assertEquals(1, sink.mWrites.size());
+        assertEquals(1L, out.getExplicitFlushCount());
+        assertEquals(2, sink.flushCount());
+
+        out.write(9);
+        out.close();
+        assertEquals(4, sink.size());
+        assertEquals(2L, out.getExplicitFlushCount());
+        try {
+            out.write(1);
+            fail("stream closed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void connectionWriter_coalescesFrames() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+        BTConnection sender = new BTConnection(client);
+        BTConnection receiver = new BTConnection(server);
+
+        try {
+            // start前排隊，writer一次寫出全部frame
+            for (int i = 0; i < 100; i++) {
+                sender.send(new byte[]{(byte) i, 1, 2, 3, 4, 5, 6, 7});
+            }
+            receiver.start();
+            sender.start();
+            for (int i = 0; i < 100; i++) {
+                assertEquals((byte) i, receiver.take(2000L)[0]);
+            }
+            assertEquals(100L, sender.getFramesOut());
+            assertTrue("batches " + sender.getWriteBatchCount(), sender.getWriteBatchCount() < 10L);
+            assertTrue(sender.getAverageWriteBatchSize() > 100.0);
+        } finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    /**
+     * 記錄每次write的長度
+     */
+    private static class RecordingStream extends OutputStream {
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        final List<Integer> mWrites = new ArrayList<Integer>();
+        private int mFlushCount;
+
+        @Override
+        public synchronized void write(int b) {
+            mWrites.add(1);
+            mData.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            mWrites.add(len);
+            mData.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() {
+            mFlushCount++;
+        }
+
+        synchronized int flushCount() {
+            return mFlushCount;
+        }
+
+        synchronized int size() {
+            return mData.size();
+        }
+
+        synchronized byte[] toByteArray() {
+            return mData.toByteArray();
+        }
+    }
+}
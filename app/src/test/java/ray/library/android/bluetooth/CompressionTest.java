@@ -0,0 +1,152 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+
+    @Test
+    public void telemetry_isCompressed_andRandomDataBypassed() throws IOException {
+        CompressionStats stats = new CompressionStats();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(wire, null, stats);
+        byte[] telemetry = telemetry(200);
+        byte[] random = new byte[3 * CompressingOutputStream.DEFAULT_BLOCK_SIZE];
+
+        new Random(1L).nextBytes(random);
+        out.write(telemetry);
+        out.flush();
+        long telemetryWire = wire.size();
+        out.write(random);
+        out.flush();
+
+        assertTrue(telemetryWire < telemetry.length / 3);
+        assertTrue(stats.getBypassedBlockCount() >= 1);
+        // raw block只多header
+        assertTrue(wire.size() - telemetryWire <= random.length + 4 * 3);
+
+        DecompressingInputStream in = new DecompressingInputStream(new ByteArrayInputStream(wire.toByteArray()), null, stats);
+
+        assertArrayEquals(telemetry, readFully(in, telemetry.length));
+        assertArrayEquals(random, readFully(in, random.length));
+        assertEquals(-1, in.read());
+        assertEquals(stats.getRawBytesOut(), stats.getRawBytesIn());
+        assertEquals(stats.getWireBytesOut(), stats.getWireBytesIn());
+    }
+
+    @Test
+    public void negotiate_compressesOnlyWhenBothOffer() throws Exception {
+        CompressionNegotiator on = new CompressionNegotiator(null);
+        CompressionNegotiator off = new CompressionNegotiator(null);
+
+        off.setEnabled(false);
+        TransportSocket[] pair = negotiatePair(on, on);
+        assertTrue(pair[0] instanceof CompressedSocket);
+        assertTrue(pair[1] instanceof CompressedSocket);
+        assertRoundTrip(pair);
+
+        pair = negotiatePair(on, off);
+        assertFalse(pair[0] instanceof CompressedSocket);
+        assertFalse(pair[1] instanceof CompressedSocket);
+        assertRoundTrip(pair);
+    }
+
+    @Test
+    public void negotiate_dictionaryUsedOnlyWhenIdentical() throws Exception {
+        CompressionNegotiator client = new CompressionNegotiator(null);
+        CompressionNegotiator server = new CompressionNegotiator(null);
+
+        client.setDictionary("\"rssi\":\"battery\":\"temperature\":".getBytes("UTF-8"));
+        server.setDictionary("\"rssi\":\"battery\":\"temperature\":".getBytes("UTF-8"));
+        TransportSocket[] pair = negotiatePair(client, server);
+        assertTrue(((CompressedSocket) pair[0]).hasDictionary());
+        assertRoundTrip(pair);
+
+        server.setDictionary("other".getBytes("UTF-8"));
+        pair = negotiatePair(client, server);
+        assertFalse(((CompressedSocket) pair[0]).hasDictionary());
+        assertFalse(((CompressedSocket) pair[1]).hasDictionary());
+        assertRoundTrip(pair);
+    }
+
+    private static TransportSocket[] negotiatePair(CompressionNegotiator clientNegotiator,
+                                                   final CompressionNegotiator serverNegotiator) throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        final TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<TransportSocket> server = executor.submit(new Callable<TransportSocket>() {
+                @Override
+                public TransportSocket call() throws Exception {
+                    TransportSocket socket = serverSocket.accept();
+
+                    serverSocket.close();
+                    return serverNegotiator.negotiate(socket);
+                }
+            });
+            client.connect();
+            TransportSocket negotiated = clientNegotiator.negotiate(client);
+
+            return new TransportSocket[]{negotiated, server.get()};
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertRoundTrip(TransportSocket[] pair) throws IOException {
+        byte[] telemetry = telemetry(50);
+        OutputStream out = pair[0].getOutputStream();
+
+        out.write(telemetry);
+        out.flush();
+        assertArrayEquals(telemetry, readFully(pair[1].getInputStream(), telemetry.length));
+        pair[0].close();
+        pair[1].close();
+    }
+
+    private static byte[] telemetry(int count) throws IOException {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < count; i++) {
+            builder.append("{\"seq\":").append(i).append(",\"rssi\":-").append(40 + i % 30)
+                    .append(",\"battery\":").append(100 - i % 100).append(",\"temperature\":21.").append(i % 10)
+                    .append("}\n");
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        int off = 0;
+
+        while (off < length) {
+            int n = in.read(b, off, length - off);
+
+            if (n == -1) {
+                fail("EOF after " + off + " bytes");
+            }
+            off += n;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,124 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final String ADDRESS = "11:22:33:44:55:66";
+
+    @Test
+    public void release_reusesSocket() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.listen("test", SERVICE);
+        ConnectionPool pool = new ConnectionPool(transport, SERVICE);
+
+        PooledConnection first = pool.acquire(ADDRESS, 100L);
+        first.release();
+        PooledConnection second = pool.acquire(ADDRESS, 100L);
+
+        assertSame(first.getSocket(), second.getSocket());
+        second.invalidate();
+        assertEquals(0, pool.getConnectionCount(ADDRESS));
+        pool.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void perDeviceLimit_timesOut() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.listen("test", SERVICE);
+        ConnectionPool pool = new ConnectionPool(transport, SERVICE);
+
+        pool.acquire(ADDRESS, 100L);
+        pool.acquire(ADDRESS, 50L);
+    }
+
+    @Test
+    public void throwingListener_releasesSlot() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        ConnectionPool pool = new ConnectionPool(transport, SERVICE);
+
+        pool.setOnConnectListener(new ConnectionPool.OnConnectListener() {
+            @Override
+            public void onConnect(String address, boolean success, long connectNanos) {
+                throw new IllegalArgumentException("address[" + address + "]");
+            }
+        });
+        // 沒有server，連線失敗
+        try {
+            pool.acquire(ADDRESS, 100L);
+            fail("no server");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, pool.getConnectionCount(ADDRESS));
+
+        transport.listen("test", SERVICE);
+        PooledConnection connection = pool.acquire(ADDRESS, 100L);
+
+        assertNotNull(connection.getSocket());
+        assertEquals(1, pool.getConnectionCount(ADDRESS));
+        pool.close();
+    }
+
+    @Test
+    public void idleConnections_evicted() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.listen("test", SERVICE);
+        ConnectionPool pool = new ConnectionPool(transport, SERVICE);
+
+        pool.setIdleTimeout(20L);
+        pool.acquire(ADDRESS, 100L).release();
+        assertEquals(1, pool.getIdleCount(ADDRESS));
+        Thread.sleep(30L);
+        pool.evictIdle();
+        assertEquals(0, pool.getConnectionCount(ADDRESS));
+        pool.close();
+    }
+
+    @Test
+    public void waiter_survivesEvictionOfItsEntry() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        transport.listen("test", SERVICE);
+        final ConnectionPool pool = new ConnectionPool(transport, SERVICE);
+        final AtomicReference<PooledConnection> acquired = new AtomicReference<PooledConnection>();
+        PooledConnection leased = pool.acquire(ADDRESS, 100L);
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(pool.acquire(ADDRESS, 2000L));
+                } catch (IOException e) {
+                    // acquired維持null
+                }
+            }
+        });
+
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1L);
+        }
+        // 持有pool的lock，waiter醒來前entry已被移除
+        synchronized (pool) {
+            leased.invalidate();
+            pool.evictIdle();
+        }
+        waiter.join(2000L);
+        assertNotNull(acquired.get());
+        assertEquals(1, pool.getConnectionCount(ADDRESS));
+        try {
+            pool.acquire(ADDRESS, 20L);
+            fail("maxPerDevice exceeded");
+        } catch (IOException expected) {
+        }
+        acquired.get().invalidate();
+        assertEquals(0, pool.getConnectionCount(ADDRESS));
+        pool.close();
+    }
+}
@@ -0,0 +1,47 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiscoveryCacheTest {
+    private static final String ADDRESS = "11:22:33:44:55:66";
+
+    @Test
+    public void duplicateReports_suppressed() {
+        DiscoveryCache cache = new DiscoveryCache();
+
+        assertTrue(cache.update(ADDRESS, "printer", 0x680, (short) -60, 0L).isNew());
+        assertNull(cache.update(ADDRESS, "printer", 0x680, (short) -62, 100L));
+        assertEquals(1, cache.getSnapshot(100L).size());
+        assertEquals(100L, cache.get(ADDRESS, 100L).getLastSeen());
+    }
+
+    @Test
+    public void changes_reported() {
+        DiscoveryCache cache = new DiscoveryCache();
+
+        cache.update(ADDRESS, null, 0x680, (short) -60, 0L);
+
+        DiscoveredDevice renamed = cache.update(ADDRESS, "printer", 0x680, (short) -60, 10L);
+        assertNotNull(renamed);
+        assertFalse(renamed.isNew());
+        assertEquals("printer", renamed.getName());
+
+        DiscoveredDevice closer = cache.update(ADDRESS, null, 0x680, (short) -40, 20L);
+        assertNotNull(closer);
+        assertEquals("printer", closer.getName());
+        assertEquals(-40, closer.getRssi());
+        assertEquals(0L, closer.getFirstSeen());
+    }
+
+    @Test
+    public void expiredEntries_evicted() {
+        DiscoveryCache cache = new DiscoveryCache();
+
+        cache.setTtl(1000L);
+        cache.update(ADDRESS, "printer", 0x680, (short) -60, 0L);
+        assertEquals(0, cache.getSnapshot(2000L).size());
+        assertTrue(cache.update(ADDRESS, "printer", 0x680, (short) -60, 3000L).isNew());
+    }
+}
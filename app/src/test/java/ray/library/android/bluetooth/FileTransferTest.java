@@ -0,0 +1,164 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final int LENGTH = 300 * 1024 + 123;
+
+    private File mDirectory;
+    private File mSource;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("transfer", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdirs());
+        mSource = File.createTempFile("firmware", ".bin");
+        byte[] content = new byte[LENGTH];
+
+        new Random(7L).nextBytes(content);
+        FileOutputStream out = new FileOutputStream(mSource);
+
+        out.write(content);
+        out.close();
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+        File[] files = mDirectory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+        mSource.delete();
+    }
+
+    @Test
+    public void spscRing_preservesOrderAndReportsFull() {
+        SpscRingBuffer<Integer> ring = new SpscRingBuffer<Integer>(3);
+
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), ring.poll());
+        }
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void transfer_resumesAfterDroppedLink() throws Exception {
+        BTConnection[] pair = connect();
+        final BTConnection senderConnection = pair[0];
+        FileTransferSender sender = new FileTransferSender(senderConnection);
+
+        sender.setOnProgressListener(new FileTransferSender.OnProgressListener() {
+            @Override
+            public void onProgress(long transferred, long total, double bytesPerSecond) {
+                if (transferred > total / 2) {
+                    // 模擬連線中斷
+                    senderConnection.close(0L);
+                }
+            }
+        });
+        Future<File> received = receive(pair[1]);
+
+        try {
+            sender.send(mSource);
+            fail("link dropped");
+        } catch (IOException expected) {
+        }
+        try {
+            received.get();
+            fail("link dropped");
+        } catch (Exception expected) {
+        }
+        pair[1].close();
+
+        pair = connect();
+        sender = new FileTransferSender(pair[0]);
+        received = receive(pair[1]);
+        long resent = sender.send(mSource);
+        File file = received.get();
+
+        assertTrue(resent < LENGTH / 2);
+        assertEquals(mSource.length(), file.length());
+        assertArrayEquals(readAll(mSource), readAll(file));
+        assertEquals(1, mDirectory.listFiles().length);
+        pair[0].close();
+        pair[1].close();
+    }
+
+    private Future<File> receive(final BTConnection connection) {
+        return mExecutor.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                FileTransferReceiver receiver = new FileTransferReceiver(connection, mDirectory);
+
+                receiver.setIdleTimeout(5000L);
+                return receiver.receive();
+            }
+        });
+    }
+
+    private static BTConnection[] connect() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+
+        BTConnection clientConnection = new BTConnection(client);
+        BTConnection serverConnection = new BTConnection(server);
+
+        clientConnection.start();
+        serverConnection.start();
+        return new BTConnection[]{clientConnection, serverConnection};
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+
+        try {
+            byte[] b = new byte[(int) in.length()];
+
+            in.readFully(b);
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    @Test
+    public void roundTrip_byteAtATime() throws Exception {
+        BufferPool pool = new BufferPool();
+        FrameEncoder encoder = new FrameEncoder(pool, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] large = new byte[300];
+
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        encoder.encode(new byte[]{1, 2, 3}, 0, 3, out);
+        encoder.encode(new byte[0], 0, 0, out);
+        encoder.encode(large, 0, large.length, out);
+
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        FrameDecoder decoder = new FrameDecoder(pool, 1024, true, new CollectingListener(frames));
+        byte[] encoded = out.toByteArray();
+
+        for (int i = 0; i < encoded.length; i++) {
+            decoder.decode(encoded, i, 1);
+        }
+
+        assertEquals(3, frames.size());
+        assertArrayEquals(new byte[]{1, 2, 3}, frames.get(0));
+        assertEquals(0, frames.get(1).length);
+        assertArrayEquals(large, frames.get(2));
+    }
+
+    @Test
+    public void readFrom_decodesStream() throws Exception {
+        BufferPool pool = new BufferPool();
+        FrameEncoder encoder = new FrameEncoder(pool, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 100; i++) {
+            encoder.encode(new byte[]{(byte) i}, 0, 1, out);
+        }
+        List<byte[]> frames = new ArrayList<byte[]>();
+
+        new FrameDecoder(pool, 16, false, new CollectingListener(frames))
+                .readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(100, frames.size());
+        assertEquals(99, frames.get(99)[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptPayload_failsCrc() throws Exception {
+        BufferPool pool = new BufferPool();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new FrameEncoder(pool, true).encode(new byte[]{1, 2, 3}, 0, 3, out);
+        byte[] encoded = out.toByteArray();
+
+        encoded[2] ^= 0x01;
+        new FrameDecoder(pool, 1024, true, new CollectingListener(new ArrayList<byte[]>()))
+                .decode(encoded, 0, encoded.length);
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedFrame_rejected() throws Exception {
+        BufferPool pool = new BufferPool();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new FrameEncoder(pool, false).encode(new byte[100], 0, 100, out);
+        byte[] encoded = out.toByteArray();
+
+        new FrameDecoder(pool, 64, false, new CollectingListener(new ArrayList<byte[]>()))
+                .decode(encoded, 0, encoded.length);
+    }
+
+    @Test
+    public void pool_reusesBuffersPerSizeClass() {
+        BufferPool pool = new BufferPool(64, 1024, 4);
+        ByteBuffer first = pool.acquire(100);
+
+        assertEquals(128, first.capacity());
+        assertEquals(100, first.limit());
+        pool.release(first);
+        assertSame(first, pool.acquire(120));
+        assertNotSame(first, pool.acquire(120));
+        assertEquals(4096, pool.acquire(4096).capacity());
+    }
+
+    private static class CollectingListener implements FrameDecoder.OnFrameListener {
+        private final List<byte[]> mFrames;
+
+        CollectingListener(List<byte[]> frames) {
+            mFrames = frames;
+        }
+
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            byte[] copy = new byte[frame.remaining()];
+
+            frame.get(copy);
+            mFrames.add(copy);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class KeepAliveManagerTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final long PING_INTERVAL = 50L;
+    private static final int MISSED_PINGS = 2;
+
+    private HashedTimerWheel mWheel;
+    private KeepAliveManager mKeepAlive;
+    private final List<BTConnection> mLost = new CopyOnWriteArrayList<BTConnection>();
+
+    @Before
+    public void setUp() {
+        mWheel = new HashedTimerWheel(5L, 64, "test-wheel");
+        mKeepAlive = new KeepAliveManager(mWheel);
+        mKeepAlive.setPingInterval(PING_INTERVAL);
+        mKeepAlive.setMissedPings(MISSED_PINGS);
+        mKeepAlive.setOnLinkLostListener(new KeepAliveManager.OnLinkLostListener() {
+            @Override
+            public void onLinkLost(BTConnection connection, long silentMillis) {
+                mLost.add(connection);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mWheel.stop();
+    }
+
+    @Test
+    public void wheel_firesInDeadlineOrder_andSkipsCancelled() throws InterruptedException {
+        final List<Integer> fired = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(3);
+
+        // 超過一圈(64 * 5ms)的timeout需多轉一圈
+        for (final int delay : new int[]{400, 30, 120}) {
+            mWheel.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    fired.add(delay);
+                    done.countDown();
+                }
+            }, delay);
+        }
+        HashedTimerWheel.Timeout cancelled = mWheel.newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fired.add(-1);
+            }
+        }, 60);
+
+        assertTrue(cancelled.cancel());
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(3, fired.size());
+        assertEquals(Integer.valueOf(30), fired.get(0));
+        assertEquals(Integer.valueOf(120), fired.get(1));
+        assertEquals(Integer.valueOf(400), fired.get(2));
+        assertFalse(cancelled.isExpired());
+        assertEquals(0, mWheel.getTimeoutCount());
+    }
+
+    @Test
+    public void idleLinks_stayUp_whenPeerAnswers() throws Exception {
+        TransportSocket[] sockets = connect();
+        BTConnection client = start(sockets[0]);
+        BTConnection server = start(sockets[1]);
+        TransportSocket[] plainSockets = connect();
+        BTConnection watched = start(plainSockets[0]);
+        BTConnection plain = start(plainSockets[1]);
+
+        // 兩端皆監控，及只有一端監控
+        mKeepAlive.register(client);
+        mKeepAlive.register(server);
+        mKeepAlive.register(watched);
+        Thread.sleep(PING_INTERVAL * (MISSED_PINGS + 4));
+
+        assertTrue(mLost.isEmpty());
+        assertFalse(client.isClose() || server.isClose() || watched.isClose() || plain.isClose());
+        // ping不會交給consumer
+        assertNull(server.poll());
+        assertNull(plain.poll());
+        assertEquals(3, mKeepAlive.getConnectionCount());
+        client.close();
+        server.close();
+        watched.close();
+        plain.close();
+    }
+
+    @Test
+    public void silentPeer_isReportedWithinBound() throws Exception {
+        TransportSocket[] sockets = connect();
+        // 對方不讀也不回應，模擬離開範圍
+        BTConnection connection = start(sockets[0]);
+        long start = System.nanoTime();
+
+        mKeepAlive.register(connection);
+        try {
+            connection.take(PING_INTERVAL * (MISSED_PINGS + 2) + 500L);
+            fail("take should fail when the link is lost");
+        } catch (IOException expected) {
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(1, mLost.size());
+        assertSame(connection, mLost.get(0));
+        assertTrue(connection.isClose());
+        assertNotNull(connection.getCloseCause());
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis <= PING_INTERVAL * (MISSED_PINGS + 2) + 100L);
+        assertEquals(0, mKeepAlive.getConnectionCount());
+        sockets[1].close();
+    }
+
+    private static BTConnection start(TransportSocket socket) throws IOException {
+        BTConnection connection = new BTConnection(socket);
+
+        connection.start();
+        return connection;
+    }
+
+    private static TransportSocket[] connect() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+        return new TransportSocket[]{client, server};
+    }
+}
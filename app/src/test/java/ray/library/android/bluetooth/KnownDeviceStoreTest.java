@@ -0,0 +1,100 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class KnownDeviceStoreTest {
+
+    @Test
+    public void save_roundTripsRecords() throws Exception {
+        File file = File.createTempFile("known", ".bin");
+
+        file.delete();
+        try {
+            KnownDeviceStore store = new KnownDeviceStore(file);
+
+            store.setSaveDelay(0L);
+            store.put("00:11:22:AA:BB:CC", "印表機 Printer with a very long name", 0x680);
+            store.put("00:11:22:AA:BB:CD", null, 0x1F00);
+            store.updateRssi("00:11:22:AA:BB:CC", (short) -57);
+            store.recordConnection("00:11:22:AA:BB:CD", true, 2000L);
+            store.recordConnection("00:11:22:AA:BB:CC", true, 1000L);
+            store.recordConnection("00:11:22:AA:BB:CC", false, 1500L);
+            store.save();
+
+            List<KnownDevice> devices = new KnownDeviceStore(file).getKnownDevices();
+
+            assertEquals(2, devices.size());
+            KnownDevice scanner = devices.get(0);
+            KnownDevice printer = devices.get(1);
+
+            assertEquals("00:11:22:AA:BB:CD", scanner.getAddress());
+            assertNull(scanner.getName());
+            assertEquals(2000L, scanner.getLastConnectedTime());
+
+            assertEquals("00:11:22:AA:BB:CC", printer.getAddress());
+            assertTrue(printer.getName().startsWith("印表機 Printer"));
+            assertEquals(0x680, printer.getDeviceClass());
+            assertEquals(-57, printer.getLastRssi());
+            assertEquals(1000L, printer.getLastConnectedTime());
+            assertEquals(0.5, printer.getSuccessRate(), 0.001);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void missingFile_startsEmpty() {
+        assertEquals(0, new KnownDeviceStore(new File("does-not-exist.bin")).getKnownDevices().size());
+    }
+
+    @Test
+    public void saveAsync_writesOnBackgroundThread() throws Exception {
+        File file = File.createTempFile("known", ".bin");
+
+        file.delete();
+        try {
+            KnownDeviceStore store = new KnownDeviceStore(file);
+
+            store.setSaveDelay(0L);
+            store.put("00:11:22:AA:BB:CC", "Printer", 0x680);
+            store.saveAsync();
+
+            long deadline = System.currentTimeMillis() + 2000L;
+
+            while (!file.exists() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5L);
+            }
+            assertEquals(1, new KnownDeviceStore(file).getKnownDevices().size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void parseAddress_validatesFormat() {
+        assertEquals("00:11:22:AA:BB:CC", KnownDeviceStore.formatAddress(KnownDeviceStore.parseAddress("00:11:22:aa:bb:cc")));
+        String[] invalid = {null, "", "00:11:22:AA:BB", "00:11:22:AA:BB:CG", "00-11-22-AA-BB-CC", "00:11:22:AA:BB:C\uFF10",
+                "000:11:22:AA:BB:C"};
+
+        for (String address : invalid) {
+            try {
+                KnownDeviceStore.parseAddress(address);
+                fail(address);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void put_rejectsMalformedAddress() {
+        KnownDeviceStore store = new KnownDeviceStore(new File("does-not-exist.bin"));
+
+        store.setSaveDelay(0L);
+        store.put("not an address", null, 0);
+    }
+}
@@ -0,0 +1,252 @@
+package ray.library.android.bluetooth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class MultiConnectorTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final String DEAD = "DE:AD:00:00:00:00";
+    private static final String MALFORMED = "not an address";
+
+    @Test
+    public void deadDevice_timesOutWithoutBlockingOthers() throws Exception {
+        DeadDeviceTransport transport = new DeadDeviceTransport();
+        transport.listen("test", SERVICE);
+        MultiConnector connector = new MultiConnector(transport, SERVICE);
+
+        connector.setParallelism(2);
+        connector.setAttemptTimeout(100L);
+        connector.setRetry(2, 10L, 20L);
+
+        MultiConnector.Result result = connector.connectAll(Arrays.asList(
+                "00:00:00:00:00:01", DEAD, "00:00:00:00:00:02", "00:00:00:00:00:03"));
+
+        assertEquals(3, result.getSuccessCount());
+        assertEquals(1, result.getFailureCount());
+
+        MultiConnector.DeviceResult dead = result.getDeviceResults().get(1);
+        assertEquals(DEAD, dead.getAddress());
+        assertFalse(dead.isSuccess());
+        assertEquals(2, dead.getAttempts());
+        assertNotNull(dead.getError());
+        assertTrue(result.getDeviceResults().get(0).getConnectMillis() >= 0L);
+        // 兩次100ms timeout加上backoff，遠小於沒有timeout時的永久等待
+        assertTrue("elapsed " + result.getElapsedMillis(), result.getElapsedMillis() < 1000L);
+    }
+
+    @Test
+    public void uncheckedError_isReportedAsFailure() throws Exception {
+        DeadDeviceTransport transport = new DeadDeviceTransport();
+        transport.listen("test", SERVICE);
+        MultiConnector connector = new MultiConnector(transport, SERVICE);
+
+        connector.setParallelism(1);
+        connector.setOnDeviceConnectListener(new MultiConnector.OnDeviceConnectListener() {
+            @Override
+            public void onDeviceConnect(MultiConnector.DeviceResult result) {
+                throw new IllegalStateException("listener bug");
+            }
+        });
+
+        MultiConnector.Result result = connector.connectAll(Arrays.asList(MALFORMED, "00:00:00:00:00:01"));
+
+        assertEquals(1, result.getSuccessCount());
+        MultiConnector.DeviceResult malformed = result.getDeviceResults().get(0);
+        assertFalse(malformed.isSuccess());
+        assertTrue(malformed.getError().getCause() instanceof IllegalArgumentException);
+        result.getDeviceResults().get(1).getSocket().close();
+    }
+
+    @Test
+    public void interrupt_closesConnectedSockets() throws Exception {
+        DeadDeviceTransport transport = new DeadDeviceTransport();
+        transport.listen("test", SERVICE);
+        final MultiConnector connector = new MultiConnector(transport, SERVICE);
+        final List<TransportSocket> connected = new CopyOnWriteArrayList<TransportSocket>();
+        final CountDownLatch firstConnected = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        connector.setParallelism(2);
+        connector.setAttemptTimeout(5000L);
+        connector.setOnDeviceConnectListener(new MultiConnector.OnDeviceConnectListener() {
+            @Override
+            public void onDeviceConnect(MultiConnector.DeviceResult result) {
+                connected.add(result.getSocket());
+                firstConnected.countDown();
+            }
+        });
+        Thread caller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connector.connectAll(Arrays.asList("00:00:00:00:00:01", DEAD));
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        });
+
+        caller.start();
+        assertTrue(firstConnected.await(2, TimeUnit.SECONDS));
+        caller.interrupt();
+        assertTrue(interrupted.await(2, TimeUnit.SECONDS));
+        assertEquals(1, connected.size());
+        assertFalse(connected.get(0).isConnected());
+    }
+
+    @Test
+    public void throwingAttemptListener_keepsSocket() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        MultiConnector connector = new MultiConnector(transport, SERVICE);
+
+        connector.setOnConnectListener(new ConnectionPool.OnConnectListener() {
+            @Override
+            public void onConnect(String address, boolean success, long connectNanos) {
+                throw new IllegalArgumentException("address[" + address + "]");
+            }
+        });
+        MultiConnector.Result result = connector.connectAll(Arrays.asList(LoopbackTransport.LOOPBACK_ADDRESS));
+        MultiConnector.DeviceResult device = result.getDeviceResults().get(0);
+
+        assertTrue(device.isSuccess());
+        assertTrue(device.getSocket().isConnected());
+        device.getSocket().close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void compression_handshakeOnEveryLink() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        final TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        final CompressionNegotiator negotiator = new CompressionNegotiator(null);
+        final List<TransportSocket> accepted = new CopyOnWriteArrayList<TransportSocket>();
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // client先寫hello，依序握手即可
+                    for (int i = 0; i < 2; i++) {
+                        accepted.add(negotiator.negotiate(serverSocket.accept()));
+                    }
+                } catch (IOException e) {
+                    // 由client端的結果判斷
+                }
+            }
+        });
+        server.start();
+        MultiConnector connector = new MultiConnector(transport, SERVICE);
+
+        connector.setCompressionNegotiator(negotiator);
+        MultiConnector.Result result = connector.connectAll(Arrays.asList("00:00:00:00:00:01", "00:00:00:00:00:02"));
+
+        server.join(2000L);
+        serverSocket.close();
+        assertEquals(2, result.getSuccessCount());
+        for (MultiConnector.DeviceResult device : result.getDeviceResults()) {
+            assertTrue(device.getSocket() instanceof CompressedSocket);
+            device.getSocket().close();
+        }
+        assertEquals(2, accepted.size());
+        for (TransportSocket socket : accepted) {
+            assertTrue(socket instanceof CompressedSocket);
+            socket.close();
+        }
+    }
+
+    @Test
+    public void compression_silentPeerTimesOut() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        MultiConnector connector = new MultiConnector(transport, SERVICE);
+
+        connector.setCompressionNegotiator(new CompressionNegotiator(null));
+        connector.setAttemptTimeout(100L);
+        connector.setRetry(1, 0L, 0L);
+        // 對方沒有握手，等待hello也受attemptTimeout限制
+        MultiConnector.Result result = connector.connectAll(Arrays.asList("00:00:00:00:00:01"));
+
+        serverSocket.close();
+        assertEquals(1, result.getFailureCount());
+        assertTrue(result.getElapsedMillis() < 1000L);
+    }
+
+    /**
+     * DEAD的connect()會一直block到socket被關閉，MALFORMED如同getRemoteDevice()丟出IllegalArgumentException
+     */
+    private static class DeadDeviceTransport extends LoopbackTransport {
+
+        @Override
+        public TransportSocket createSocket(String address, UUID uuid) throws IOException {
+            if (MALFORMED.equals(address)) {
+                throw new IllegalArgumentException(address + " is not a valid Bluetooth address");
+            }
+            if (!DEAD.equals(address)) {
+                return super.createSocket(address, uuid);
+            }
+            return new HangingSocket(super.createSocket(address, uuid));
+        }
+    }
+
+    private static class HangingSocket implements TransportSocket {
+        private final TransportSocket mSocket;
+        private boolean mIsClose;
+
+        HangingSocket(TransportSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            while (!mIsClose) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            throw new IOException("socket closed");
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mSocket.getRemoteAddress();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public synchronized void close() {
+            mIsClose = true;
+            notifyAll();
+        }
+    }
+}
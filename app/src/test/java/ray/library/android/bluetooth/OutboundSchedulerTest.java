@@ -0,0 +1,139 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+    private static final int CHUNK_SIZE = 256;
+
+    private BTConnection mClient;
+    private BTConnection mServer;
+    private OutboundScheduler mScheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+        mClient = new BTConnection(client);
+        mServer = new BTConnection(server);
+        mClient.start();
+        mServer.start();
+        mScheduler = new OutboundScheduler(mClient);
+        mScheduler.setChunkSize(CHUNK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.close();
+        mClient.close();
+        mServer.close();
+    }
+
+    @Test
+    public void controlFrames_overtakeBulkPayload() throws Exception {
+        byte[] bulk = new byte[64 * CHUNK_SIZE + 17];
+
+        new Random(3L).nextBytes(bulk);
+        mScheduler.send(bulk, OutboundScheduler.PRIORITY_BULK);
+        for (int i = 0; i < 3; i++) {
+            mScheduler.send(new byte[]{(byte) i}, OutboundScheduler.PRIORITY_HIGH);
+        }
+        mScheduler.send(new byte[0], OutboundScheduler.PRIORITY_NORMAL);
+        mScheduler.start();
+
+        OutboundScheduler.Reassembler reassembler = new OutboundScheduler.Reassembler();
+        List<Integer> order = new ArrayList<Integer>();
+        byte[] received = null;
+
+        while (received == null) {
+            byte[] message = reassembler.onFrame(mServer.take(2000L));
+
+            if (message == null) {
+                continue;
+            }
+            order.add(reassembler.getLastPriority());
+            if (reassembler.getLastPriority() == OutboundScheduler.PRIORITY_BULK) {
+                received = message;
+            } else if (reassembler.getLastPriority() == OutboundScheduler.PRIORITY_HIGH) {
+                assertArrayEquals(new byte[]{(byte) (order.size() - 1)}, message);
+            } else {
+                assertEquals(0, message.length);
+            }
+        }
+        assertEquals(5, order.size());
+        assertEquals(Integer.valueOf(OutboundScheduler.PRIORITY_BULK), order.get(4));
+        assertArrayEquals(bulk, received);
+
+        OutboundScheduler.ClassStats stats = mScheduler.getClassStats(OutboundScheduler.PRIORITY_BULK);
+
+        assertEquals(1L, stats.getSentMessages());
+        assertEquals(0, stats.getQueuedMessages());
+        assertEquals(1L, stats.getWaitTime().getCount());
+    }
+
+    @Test
+    public void weightedRoundRobin_doesNotStarveBulk() throws Exception {
+        int count = 40;
+
+        // 每個message剛好一個chunk，每輪依權重8:4:1送出
+        for (int i = 0; i < count; i++) {
+            mScheduler.send(new byte[CHUNK_SIZE], OutboundScheduler.PRIORITY_HIGH);
+            mScheduler.send(new byte[CHUNK_SIZE], OutboundScheduler.PRIORITY_NORMAL);
+            mScheduler.send(new byte[CHUNK_SIZE], OutboundScheduler.PRIORITY_BULK);
+        }
+        assertEquals(count, mScheduler.getClassStats(OutboundScheduler.PRIORITY_BULK).getQueuedMessages());
+        assertEquals((long) count * CHUNK_SIZE, mScheduler.getClassStats(OutboundScheduler.PRIORITY_BULK).getQueuedBytes());
+        mScheduler.start();
+
+        OutboundScheduler.Reassembler reassembler = new OutboundScheduler.Reassembler();
+        int[] firstRound = new int[3];
+
+        for (int i = 0; i < 13; i++) {
+            assertNotNull(reassembler.onFrame(mServer.take(2000L)));
+            firstRound[reassembler.getLastPriority()]++;
+        }
+        assertArrayEquals(new int[]{8, 4, 1}, firstRound);
+        for (int i = 13; i < count * 3; i++) {
+            assertNotNull(reassembler.onFrame(mServer.take(2000L)));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(count, mScheduler.getClassStats(i).getSentMessages());
+            assertEquals(0, mScheduler.getClassStats(i).getQueuedMessages());
+        }
+    }
+
+    @Test
+    public void closedConnection_stopsScheduler() throws Exception {
+        mScheduler.start();
+        mClient.close(0L);
+        try {
+            mScheduler.send(new byte[1], OutboundScheduler.PRIORITY_HIGH);
+            fail("connection closed");
+        } catch (IOException expected) {
+        }
+        try {
+            mScheduler.send(new byte[1], OutboundScheduler.PRIORITY_HIGH + 3);
+            fail("unknown class");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ray.library.android.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PairingQueueTest {
+    private static final String BONDED = "00:00:00:00:00:01";
+    private static final String GOOD = "00:00:00:00:00:02";
+    private static final String BAD_PIN = "00:00:00:00:00:03";
+    private static final String BUSY = "00:00:00:00:00:04";
+    private static final String SILENT = "00:00:00:00:00:05";
+    private static final String STUCK = "00:00:00:00:00:06";
+
+    private ScheduledExecutorService mScheduler;
+    private final AtomicInteger mBeforeBondCount = new AtomicInteger();
+    private final AtomicInteger mBusyAttempts = new AtomicInteger();
+    private final AtomicInteger mProgressCount = new AtomicInteger();
+    private final AtomicInteger mFinishCount = new AtomicInteger();
+    private volatile boolean mIsStuckBonding;
+    private PairingQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mScheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void bondsBackToBack_andReportsEveryFailure() throws Exception {
+        mQueue = new PairingQueue(Arrays.asList(BONDED, GOOD, BAD_PIN, BUSY, GOOD));
+        mQueue.setRetry(2, 10L);
+        mQueue.setBondTimeout(1000L);
+        List<PairingQueue.Result> results = run();
+
+        assertEquals(4, results.size());
+        assertResult(results.get(0), BONDED, true, PairingQueue.REASON_NONE, 0);
+        assertResult(results.get(1), GOOD, true, PairingQueue.REASON_NONE, 1);
+        assertResult(results.get(2), BAD_PIN, false, PairingQueue.REASON_BOND_FAILED, 2);
+        // 第一次createBond被拒絕，重試成功
+        assertResult(results.get(3), BUSY, true, PairingQueue.REASON_NONE, 2);
+        assertEquals(5, mBeforeBondCount.get());
+        assertEquals(4, mProgressCount.get());
+        assertEquals(1, mFinishCount.get());
+        assertEquals(4, mQueue.getCompletedCount());
+        assertEquals(1, mQueue.getFailedCount());
+        assertTrue(mQueue.getDevicesPerMinute() > 0.0);
+    }
+
+    @Test
+    public void silentDevice_timesOutAfterRetries() throws Exception {
+        mQueue = new PairingQueue(Arrays.asList(SILENT, GOOD));
+        mQueue.setRetry(2, 0L);
+        mQueue.setBondTimeout(30L);
+        long start = System.nanoTime();
+        List<PairingQueue.Result> results = run();
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 60L);
+        assertResult(results.get(0), SILENT, false, PairingQueue.REASON_TIMEOUT, 2);
+        assertResult(results.get(1), GOOD, true, PairingQueue.REASON_NONE, 1);
+    }
+
+    @Test
+    public void timeout_waitsForSystemBondBeforeNextDevice() throws Exception {
+        mQueue = new PairingQueue(Arrays.asList(STUCK, GOOD));
+        mQueue.setRetry(1, 0L);
+        mQueue.setBondTimeout(200L);
+        start();
+        Thread.sleep(300L);
+        // 系統的配對在queue逾時後才結束
+        mIsStuckBonding = false;
+        mQueue.onBondStateChanged(STUCK, BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING);
+
+        assertTrue(mQueue.await(2, TimeUnit.SECONDS));
+        List<PairingQueue.Result> results = mQueue.getResults();
+
+        assertResult(results.get(0), STUCK, false, PairingQueue.REASON_TIMEOUT, 1);
+        assertResult(results.get(1), GOOD, true, PairingQueue.REASON_NONE, 1);
+    }
+
+    @Test
+    public void cancel_endsRemainingDevices() throws Exception {
+        mQueue = new PairingQueue(Arrays.asList(SILENT, GOOD, BAD_PIN));
+        mQueue.setBondTimeout(5000L);
+        start();
+        mQueue.cancel();
+        assertTrue(mQueue.await(1, TimeUnit.SECONDS));
+
+        List<PairingQueue.Result> results = mQueue.getResults();
+
+        assertEquals(3, results.size());
+        for (PairingQueue.Result result : results) {
+            assertFalse(result.isSuccess());
+            assertEquals(PairingQueue.REASON_CANCELLED, result.getReason());
+        }
+        assertEquals(1, mFinishCount.get());
+    }
+
+    private List<PairingQueue.Result> run() throws InterruptedException {
+        start();
+        assertTrue(mQueue.await(2, TimeUnit.SECONDS));
+        return mQueue.getResults();
+    }
+
+    private void start() {
+        mQueue.setOnPairingListener(new PairingQueue.OnPairingListener() {
+            @Override
+            public void onPairingProgress(PairingQueue queue, PairingQueue.Result result) {
+                mProgressCount.incrementAndGet();
+            }
+
+            @Override
+            public void onPairingFinished(PairingQueue queue, List<PairingQueue.Result> results) {
+                mFinishCount.incrementAndGet();
+            }
+        });
+        mQueue.start(mScheduler, new FakeDriver(), new Runnable() {
+            @Override
+            public void run() {
+                mBeforeBondCount.incrementAndGet();
+            }
+        }, null);
+    }
+
+    private static void assertResult(PairingQueue.Result result, String address, boolean success, int reason, int attempts) {
+        assertEquals(address, result.getAddress());
+        assertEquals(success, result.isSuccess());
+        assertEquals(reason, result.getReason());
+        assertEquals(attempts, result.getAttempts());
+    }
+
+    /**
+     * 以廣播的順序回報bond state，ex : BOND_NONE -> BOND_BONDING -> BOND_BONDED
+     */
+    private class FakeDriver implements PairingQueue.BondDriver {
+        @Override
+        public int getBondState(String address) {
+            if (STUCK.equals(address) && mIsStuckBonding) {
+                return BluetoothDevice.BOND_BONDING;
+            }
+            return BONDED.equals(address) ? BluetoothDevice.BOND_BONDED : BluetoothDevice.BOND_NONE;
+        }
+
+        @Override
+        public boolean createBond(String address) {
+            // 系統同時只處理一個配對
+            if (mIsStuckBonding) {
+                return false;
+            }
+            if (STUCK.equals(address)) {
+                mIsStuckBonding = true;
+                return true;
+            }
+            if (BUSY.equals(address) && mBusyAttempts.incrementAndGet() == 1) {
+                return false;
+            }
+            if (!SILENT.equals(address)) {
+                broadcast(address, BluetoothDevice.BOND_BONDING, BluetoothDevice.BOND_NONE);
+                broadcast(address, BAD_PIN.equals(address) ? BluetoothDevice.BOND_NONE : BluetoothDevice.BOND_BONDED,
+                        BluetoothDevice.BOND_BONDING);
+            }
+            return true;
+        }
+
+        private void broadcast(final String address, final int state, final int prevState) {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    mQueue.onBondStateChanged(address, state, prevState);
+                }
+            }, 5L, TimeUnit.MILLISECONDS);
+        }
+    }
+}
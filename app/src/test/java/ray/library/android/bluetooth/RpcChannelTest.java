@@ -0,0 +1,219 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+import static org.junit.Assert.*;
+
+public class RpcChannelTest {
+    private static final UUID SERVICE = UUID.fromString(BTManager.SPP_UUID);
+
+    private HashedTimerWheel mWheel;
+    private ExecutorService mExecutor;
+    private RpcChannel mClient;
+    private RpcChannel mServer;
+
+    @Before
+    public void setUp() {
+        mWheel = new HashedTimerWheel(5L, 64, "test-wheel");
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        mExecutor.shutdownNow();
+        mWheel.stop();
+    }
+
+    @Test
+    public void pipelinedCalls_completeOutOfOrder() throws Exception {
+        // request的第一個byte為處理時間(10ms)，回應為request加1
+        open(4, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) throws Exception {
+                Thread.sleep(request[0] * 10L);
+                return new byte[]{(byte) (request[0] + 1)};
+            }
+        });
+        final List<Integer> completed = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(3);
+        int[] delays = {20, 1, 8};
+        RpcCall[] calls = new RpcCall[delays.length];
+
+        for (int i = 0; i < delays.length; i++) {
+            final int delay = delays[i];
+
+            calls[i] = mClient.call(new byte[]{(byte) delay}, 2000L);
+            calls[i].setOnCompleteListener(new RpcCall.OnCompleteListener() {
+                @Override
+                public void onComplete(RpcCall call) {
+                    completed.add(delay);
+                    done.countDown();
+                }
+            });
+        }
+        assertEquals(3, mClient.getInFlightCount());
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < delays.length; i++) {
+            assertArrayEquals(new byte[]{(byte) (delays[i] + 1)}, calls[i].await());
+        }
+        assertEquals(Integer.valueOf(1), completed.get(0));
+        assertEquals(Integer.valueOf(8), completed.get(1));
+        assertEquals(Integer.valueOf(20), completed.get(2));
+        assertEquals(0, mClient.getInFlightCount());
+    }
+
+    @Test
+    public void slowCall_timesOut_andLateResponseIsDropped() throws Exception {
+        open(4, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) throws Exception {
+                if (request.length == 0) {
+                    throw new IllegalStateException("empty request");
+                }
+                Thread.sleep(request[0]);
+                return request;
+            }
+        });
+        RpcCall slow = mClient.call(new byte[]{100}, 30L);
+        RpcCall fast = mClient.call(new byte[]{0}, 1000L);
+
+        try {
+            slow.await();
+            fail("call should time out");
+        } catch (SocketTimeoutException expected) {
+        }
+        assertArrayEquals(new byte[]{0}, fast.await());
+        try {
+            mClient.call(new byte[0], 1000L).await();
+            fail("remote error expected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("empty request"));
+        }
+        assertEquals(0, mClient.getInFlightCount());
+
+        long deadline = System.currentTimeMillis() + 1000L;
+
+        while (mClient.getLateResponseCount() == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(1L, mClient.getLateResponseCount());
+    }
+
+    @Test
+    public void inFlightCap_blocksFurtherCalls() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        open(2, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) throws Exception {
+                release.await();
+                return request;
+            }
+        });
+        RpcCall first = mClient.call(new byte[]{1}, 2000L);
+        RpcCall second = mClient.call(new byte[]{2}, 2000L);
+        long start = System.nanoTime();
+        RpcCall third = mClient.call(new byte[]{3}, 50L);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40L);
+        assertTrue(third.isDone());
+        assertTrue(third.getError() instanceof SocketTimeoutException);
+        release.countDown();
+        assertArrayEquals(new byte[]{1}, first.await());
+        assertArrayEquals(new byte[]{2}, second.await());
+        assertArrayEquals(new byte[]{4}, mClient.call(new byte[]{4}, 2000L).await());
+    }
+
+    @Test
+    public void closedLink_failsPendingCalls() throws Exception {
+        open(4, new RpcChannel.RequestHandler() {
+            @Override
+            public byte[] onRequest(byte[] request) throws Exception {
+                Thread.sleep(5000L);
+                return request;
+            }
+        });
+        RpcCall call = mClient.call(new byte[]{1}, 5000L);
+
+        mServer.getConnection().close(0L);
+        try {
+            call.await();
+            fail("link closed");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof SocketTimeoutException);
+        }
+        assertEquals(0, mClient.getInFlightCount());
+        try {
+            mClient.call(new byte[]{2}, 1000L);
+            fail("channel closed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void malformedFrame_closesConnection() throws Exception {
+        open(4, null);
+        RpcCall call = mClient.call(new byte[]{1}, 5000L);
+
+        // 少於header長度
+        mServer.getConnection().send(new byte[]{9});
+        try {
+            call.await();
+            fail("malformed frame");
+        } catch (IOException expected) {
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+        while (!mClient.getConnection().isClose() && System.nanoTime() < deadline) {
+            Thread.sleep(5L);
+        }
+        assertTrue(mClient.isClose());
+        assertTrue(mClient.getConnection().isClose());
+    }
+
+    private void open(int maxInFlight, RpcChannel.RequestHandler handler) throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        serverSocket.close();
+
+        mClient = new RpcChannel(start(client), mWheel);
+        mClient.setMaxInFlight(maxInFlight);
+        mClient.start();
+        mServer = new RpcChannel(start(server), mWheel);
+        mServer.setRequestHandler(handler, mExecutor);
+        mServer.start();
+    }
+
+    private static BTConnection start(TransportSocket socket) throws IOException {
+        BTConnection connection = new BTConnection(socket);
+
+        connection.start();
+        return connection;
+    }
+}
@@ -0,0 +1,148 @@
+package ray.library.android.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TargetedDiscoveryTest {
+    private static final TargetedDiscovery.DevicePredicate NEAR_HEADSET = new TargetedDiscovery.DevicePredicate() {
+        @Override
+        public boolean matches(DiscoveredDevice device) {
+            return device.getName() != null && device.getName().startsWith("Headset") && device.getRssi() > -70;
+        }
+    };
+
+    private ScheduledExecutorService mScheduler;
+    private final AtomicInteger mOnFinishCount = new AtomicInteger();
+    private final AtomicInteger mListenerCount = new AtomicInteger();
+    private final Runnable mOnFinish = new Runnable() {
+        @Override
+        public void run() {
+            mOnFinishCount.incrementAndGet();
+        }
+    };
+    private final BTManager.OnTargetedDiscoveryListener mListener = new BTManager.OnTargetedDiscoveryListener() {
+        @Override
+        public void onTargetedDiscoveryFinish(TargetedDiscovery.Result result) {
+            mListenerCount.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mScheduler = new ScheduledThreadPoolExecutor(1);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void predicateMatch_finishesEarlyAtMaxCount() throws Exception {
+        TargetedDiscovery discovery = start(2, 5000L);
+
+        assertFalse(discovery.onDevice(device("00:00:00:00:00:01", "Headset A", -80)));// 太遠
+        assertFalse(discovery.onDevice(device("00:00:00:00:00:02", "Phone", -40)));
+        assertFalse(discovery.onDevice(device("00:00:00:00:00:03", "Headset B", -50)));
+        assertFalse(discovery.onDevice(device("00:00:00:00:00:03", "Headset B", -45)));// 同一裝置只算一次
+        assertTrue(discovery.onDevice(device("00:00:00:00:00:04", "Headset C", -60)));
+        assertFalse(discovery.onDevice(device("00:00:00:00:00:05", "Headset D", -60)));// 已結束
+
+        TargetedDiscovery.Result result = discovery.get(1, TimeUnit.SECONDS);
+
+        assertEquals(TargetedDiscovery.REASON_COMPLETED, result.getReason());
+        assertEquals(2, result.getMatches().size());
+        assertEquals("00:00:00:00:00:03", result.getMatches().get(0).getAddress());
+        assertEquals(-45, result.getMatches().get(0).getRssi());
+        assertEquals(1, mOnFinishCount.get());
+        assertEquals(1, mListenerCount.get());
+    }
+
+    @Test
+    public void timeout_keepsPartialMatches() throws Exception {
+        TargetedDiscovery discovery = start(3, 30L);
+
+        discovery.onDevice(device("00:00:00:00:00:01", "Headset A", -50));
+
+        TargetedDiscovery.Result result = discovery.get(1, TimeUnit.SECONDS);
+
+        assertEquals(TargetedDiscovery.REASON_TIMEOUT, result.getReason());
+        assertEquals(1, result.getMatches().size());
+        assertTrue(result.getElapsedMillis() >= 30L);
+        assertEquals(1, mOnFinishCount.get());
+    }
+
+    @Test
+    public void cancel_finishesOnce() throws Exception {
+        TargetedDiscovery discovery = start(1, 5000L);
+
+        assertTrue(discovery.cancel(false));
+        assertFalse(discovery.cancel(false));
+        assertTrue(discovery.isCancelled());
+        assertTrue(discovery.isDone());
+        assertEquals(TargetedDiscovery.REASON_CANCELLED, discovery.get().getReason());
+        assertTrue(discovery.get().getMatches().isEmpty());
+        assertEquals(-1L, discovery.get().getTimeToFirstMatchMillis());
+        assertEquals(1, mOnFinishCount.get());
+        assertEquals(1, mListenerCount.get());
+    }
+
+    @Test
+    public void timeToFirstMatch_measuredFromStart() throws Exception {
+        TargetedDiscovery discovery = start(2, 5000L);
+
+        Thread.sleep(20L);
+        discovery.onDevice(device("00:00:00:00:00:01", "Headset A", -50));
+        Thread.sleep(20L);
+        discovery.onDevice(device("00:00:00:00:00:02", "Headset B", -50));
+
+        TargetedDiscovery.Result result = discovery.get();
+
+        assertTrue(result.getTimeToFirstMatchMillis() >= 20L);
+        assertTrue(result.getElapsedMillis() >= result.getTimeToFirstMatchMillis() + 20L);
+    }
+
+    @Test
+    public void timeoutScheduledAfterFinish_isCancelled() {
+        TargetedDiscovery discovery = new TargetedDiscovery(NEAR_HEADSET, 1, null);
+
+        discovery.start(mOnFinish);
+        discovery.finish(TargetedDiscovery.REASON_FAILED);
+
+        ScheduledFuture<?> timeout = schedule(discovery, 5000L);
+
+        discovery.setTimeout(timeout);
+        assertTrue(timeout.isCancelled());
+        assertEquals(1, mOnFinishCount.get());
+    }
+
+    private TargetedDiscovery start(int maxCount, long timeoutMillis) {
+        TargetedDiscovery discovery = new TargetedDiscovery(NEAR_HEADSET, maxCount, mListener);
+
+        discovery.start(mOnFinish);
+        discovery.setTimeout(schedule(discovery, timeoutMillis));
+        return discovery;
+    }
+
+    private ScheduledFuture<?> schedule(final TargetedDiscovery discovery, long timeoutMillis) {
+        return mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                discovery.finish(TargetedDiscovery.REASON_TIMEOUT);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static DiscoveredDevice device(String address, String name, int rssi) {
+        return new DiscoveredDevice(address, name, 0, (short) rssi, 0L, 0L, 1);
+    }
+}
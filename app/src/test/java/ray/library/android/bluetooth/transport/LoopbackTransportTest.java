@@ -0,0 +1,103 @@
+package ray.library.android.bluetooth.transport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LoopbackTransportTest {
+    private static final UUID SERVICE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    @Test
+    public void connect_echoesBothDirections() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket("11:22:33:44:55:66", SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+
+        client.getOutputStream().write(new byte[]{1, 2, 3});
+        byte[] received = readFully(server.getInputStream(), 3);
+        assertArrayEquals(new byte[]{1, 2, 3}, received);
+
+        server.getOutputStream().write(received);
+        assertArrayEquals(new byte[]{1, 2, 3}, readFully(client.getInputStream(), 3));
+
+        client.close();
+        assertEquals(-1, server.getInputStream().read());
+        serverSocket.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void connect_withoutServerFails() throws Exception {
+        new LoopbackTransport().createSocket("11:22:33:44:55:66", SERVICE).connect();
+    }
+
+    @Test
+    public void accept_abortedByClose() throws Exception {
+        final TransportServerSocket serverSocket = new LoopbackTransport().listen("test", SERVICE);
+        final AtomicReference<Exception> closeError = new AtomicReference<Exception>();
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                    serverSocket.close();
+                } catch (Exception e) {
+                    closeError.set(e);
+                }
+            }
+        };
+
+        closer.start();
+        try {
+            serverSocket.accept();
+            fail("accept should be aborted by close");
+        } catch (IOException expected) {
+        }
+        closer.join(2000L);
+        assertNull(closeError.get());
+    }
+
+    @Test
+    public void bandwidth_limitsThroughput() throws Exception {
+        // 100KB/s, 傳20KB 至少需要約200ms
+        LoopbackTransport transport = new LoopbackTransport(100 * 1024, 0L);
+        TransportServerSocket serverSocket = transport.listen("test", SERVICE);
+        TransportSocket client = transport.createSocket("11:22:33:44:55:66", SERVICE);
+
+        client.connect();
+        TransportSocket server = serverSocket.accept();
+        long start = System.nanoTime();
+        OutputStream out = client.getOutputStream();
+
+        out.write(new byte[20 * 1024]);
+        readFully(server.getInputStream(), 20 * 1024);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+        assertTrue("elapsed " + elapsedMillis, elapsedMillis >= 180L);
+        client.close();
+        serverSocket.close();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+
+        while (offset < length) {
+            int n = in.read(buffer, offset, length - offset);
+
+            if (n == -1) {
+                throw new IOException("EOF");
+            }
+            offset += n;
+        }
+        return buffer;
+    }
+}
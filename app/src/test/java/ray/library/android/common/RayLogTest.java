@@ -0,0 +1,73 @@
+package ray.library.android.common;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RayLogTest {
+    private static final String TAG = RayLog.tag(RayLogTest.class);
+
+    @After
+    public void tearDown() {
+        RayLog.setLevel(RayLog.INFO);
+        RayLog.setPrinter(null);
+        RayLog.setEventCapacity(RayLog.DEFAULT_EVENT_CAPACITY);
+    }
+
+    @Test
+    public void tag_usesOuterClassAndIsCached() {
+        Runnable inner = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        assertEquals("RayLogTest", RayLog.tag(inner.getClass()));
+        assertSame(RayLog.tag(inner.getClass()), RayLog.tag(inner.getClass()));
+    }
+
+    @Test
+    public void level_filtersPrinter() {
+        final List<String> lines = new ArrayList<String>();
+
+        RayLog.setPrinter(new RayLog.Printer() {
+            @Override
+            public void println(int level, String tag, String message, Throwable throwable) {
+                lines.add(level + tag + message);
+            }
+        });
+        RayLog.setLevel(RayLog.WARN);
+        RayLog.d(TAG, "hidden ", 1L);
+        RayLog.i(TAG, "hidden ", "x");
+        RayLog.w(TAG, "shown");
+
+        assertEquals(1, lines.size());
+        assertEquals(RayLog.WARN + TAG + "shown", lines.get(0));
+    }
+
+    @Test
+    public void events_keepMostRecent() {
+        RayLog.setEventCapacity(3);
+        RayLog.setLevel(RayLog.NONE);
+
+        for (int i = 0; i < 5; i++) {
+            RayLog.event(TAG, "event ", i);
+        }
+        RayLog.e(TAG, "failed", new IllegalStateException("boom"));
+
+        StringWriter writer = new StringWriter();
+        RayLog.dumpEvents(new PrintWriter(writer));
+        String[] lines = writer.toString().trim().split("\n");
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith("I/RayLogTest: event 3"));
+        assertTrue(lines[1].endsWith("I/RayLogTest: event 4"));
+        assertTrue(lines[2].endsWith("E/RayLogTest: failed, java.lang.IllegalStateException: boom"));
+    }
+}
@@ -0,0 +1,210 @@
+package ray.library.android.supereasypermissions;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PermissionsHelperTest {
+    private static final String LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private final List<Runnable> mLoop = new ArrayList<Runnable>();
+    private final List<String[]> mLaunched = new ArrayList<String[]>();
+    private final Set<String> mSystemGranted = new HashSet<String>();
+    private final List<String> mSystemChecks = new ArrayList<String>();
+    private final Activity mActivity = new Activity() {
+        @Override
+        public Context getApplicationContext() {
+            return null;
+        }
+    };
+    private PermissionsHelper mHelper;
+
+    @Before
+    public void setUp() {
+        PermissionsHelper.invalidateGrantCache();
+        PermissionsHelper.setSelfPermissionChecker(new PermissionsHelper.SelfPermissionChecker() {
+            @Override
+            public int checkSelfPermission(Context context, String permission) {
+                mSystemChecks.add(permission);
+                return mSystemGranted.contains(permission) ? PackageManager.PERMISSION_GRANTED
+                        : PackageManager.PERMISSION_DENIED;
+            }
+        });
+        mHelper = new PermissionsHelper(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mLoop.add(command);
+            }
+        }, new PermissionsRequestQueue.Launcher() {
+            @Override
+            public void launch(String[] permissions) {
+                mLaunched.add(permissions);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PermissionsHelper.invalidateGrantCache();
+    }
+
+    @Test
+    public void cachedGrant_skipsActivity() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        mSystemGranted.add(LOCATION);
+        mSystemGranted.add(STORAGE);
+        mHelper.doRequest(mActivity, new String[]{LOCATION, STORAGE}, first);
+        assertEquals(Arrays.asList(LOCATION, STORAGE), mSystemChecks);
+
+        // 已快取，不再詢問系統
+        mHelper.doRequest(mActivity, new String[]{STORAGE, LOCATION}, second);
+        assertEquals(2, mSystemChecks.size());
+
+        // 全部已允許時直接回傳，不經過loop也不開啟activity
+        assertTrue(mLoop.isEmpty());
+        assertTrue(mLaunched.isEmpty());
+        assertEquals(1, first.mResults.size());
+        assertTrue(first.mResults.get(0).isAllGranted());
+        assertEquals(Arrays.asList(STORAGE, LOCATION), second.mResults.get(0).getPermissions());
+        assertTrue(second.mResults.get(0).isAllGranted());
+    }
+
+    @Test
+    public void denial_recheckedOnEachRequest() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        mHelper.doRequest(mActivity, new String[]{CAMERA}, first);
+        runLoop();
+        assertEquals(1, mLaunched.size());
+        mHelper.onResult(new PermissionsResult(new String[]{CAMERA}, new boolean[]{false}, new boolean[]{true}));
+        assertFalse(first.mResults.get(0).isGranted(CAMERA));
+        assertFalse(PermissionsHelper.hasGrantedPermission(mActivity, CAMERA));
+
+        int checks = mSystemChecks.size();
+
+        // 使用者從app設定開啟後，下次請求重新檢查即取得
+        mSystemGranted.add(CAMERA);
+        mHelper.doRequest(mActivity, new String[]{CAMERA}, second);
+        assertEquals(checks + 1, mSystemChecks.size());
+        assertEquals(1, mLaunched.size());
+        assertTrue(mLoop.isEmpty());
+        assertTrue(second.mResults.get(0).isGranted(CAMERA));
+    }
+
+    @Test
+    public void invalidateGrantCache_checksSystemAgain() {
+        mSystemGranted.add(LOCATION);
+        assertTrue(PermissionsHelper.hasGrantedPermission(mActivity, LOCATION));
+        assertTrue(PermissionsHelper.hasGrantedPermission(mActivity, LOCATION));
+        assertEquals(1, mSystemChecks.size());
+
+        mSystemGranted.remove(LOCATION);
+        assertTrue(PermissionsHelper.hasGrantedPermission(mActivity, LOCATION));// 仍為快取結果
+        PermissionsHelper.invalidateGrantCache();
+        assertFalse(PermissionsHelper.hasGrantedPermission(mActivity, LOCATION));
+        assertEquals(2, mSystemChecks.size());
+
+        // dialog結果也會更新快取
+        PermissionsHelper.updateGrantCache(STORAGE, true);
+        assertTrue(PermissionsHelper.hasGrantedPermission(mActivity, STORAGE));
+        PermissionsHelper.updateGrantCache(STORAGE, false);
+        assertFalse(PermissionsHelper.hasGrantedPermission(mActivity, STORAGE));
+    }
+
+    @Test
+    public void multiPermissionRequest_aggregatesResult() {
+        Recorder recorder = new Recorder();
+
+        mSystemGranted.add(LOCATION);
+        mHelper.doRequest(mActivity, new String[]{LOCATION, STORAGE, CAMERA}, recorder);
+        runLoop();
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(new HashSet<String>(Arrays.asList(LOCATION, STORAGE, CAMERA)),
+                new HashSet<String>(Arrays.asList(mLaunched.get(0))));
+
+        String[] launched = mLaunched.get(0);
+        boolean[] granted = new boolean[launched.length];
+        boolean[] showed = new boolean[launched.length];
+
+        for (int i = 0; i < launched.length; i++) {
+            // 請求前已允許的由activity標記為允許
+            granted[i] = !CAMERA.equals(launched[i]);
+            showed[i] = STORAGE.equals(launched[i]);
+        }
+        mHelper.onResult(new PermissionsResult(launched, granted, showed));
+
+        assertEquals(1, recorder.mResults.size());
+        PermissionsResult result = recorder.mResults.get(0);
+
+        assertEquals(Arrays.asList(LOCATION, STORAGE, CAMERA), result.getPermissions());
+        assertFalse(result.isAllGranted());
+        assertTrue(result.isGranted(LOCATION));
+        assertTrue(result.isGranted(STORAGE));
+        assertFalse(result.isGranted(CAMERA));
+        assertEquals(Arrays.asList(CAMERA), result.getDeniedPermissions());
+        assertTrue(result.hasShowedRequestPermissionDialog(STORAGE));
+        // 被拒絕且未顯示dialog : 使用者已選擇不再詢問
+        assertFalse(result.hasShowedRequestPermissionDialog(CAMERA));
+    }
+
+    @Test
+    public void permissionsResult_subsetAndGranted() {
+        PermissionsResult result = new PermissionsResult(new String[]{LOCATION, STORAGE},
+                new boolean[]{true, false}, new boolean[]{false, true});
+        PermissionsResult subset = result.subset(new String[]{STORAGE, CAMERA});
+
+        assertEquals(Arrays.asList(STORAGE, CAMERA), subset.getPermissions());
+        assertFalse(subset.isGranted(STORAGE));
+        assertTrue(subset.hasShowedRequestPermissionDialog(STORAGE));
+        // 不在原結果中的視為拒絕
+        assertFalse(subset.isGranted(CAMERA));
+        assertEquals(Arrays.asList(STORAGE, CAMERA), subset.getDeniedPermissions());
+        assertTrue(result.subset(new String[]{LOCATION}).isAllGranted());
+
+        PermissionsResult granted = PermissionsResult.granted(new String[]{LOCATION, CAMERA});
+
+        assertTrue(granted.isAllGranted());
+        assertTrue(granted.getDeniedPermissions().isEmpty());
+        assertFalse(granted.hasShowedRequestPermissionDialog(LOCATION));
+        assertFalse(granted.isGranted(STORAGE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRequest_rejected() {
+        mHelper.doRequest(mActivity, new String[0], new Recorder());
+    }
+
+    private void runLoop() {
+        while (!mLoop.isEmpty()) {
+            mLoop.remove(0).run();
+        }
+    }
+
+    private static class Recorder implements PermissionsHelper.PermissionsResultListener {
+        final List<PermissionsResult> mResults = new ArrayList<PermissionsResult>();
+
+        @Override
+        public void onPermissionsResult(PermissionsResult result) {
+            mResults.add(result);
+        }
+    }
+}
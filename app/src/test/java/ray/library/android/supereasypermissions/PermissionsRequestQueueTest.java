@@ -0,0 +1,142 @@
+package ray.library.android.supereasypermissions;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PermissionsRequestQueueTest {
+    private static final String LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String STORAGE = "android.permission.WRITE_EXTERNAL_STORAGE";
+    private static final String CAMERA = "android.permission.CAMERA";
+
+    private final List<Runnable> mLoop = new ArrayList<Runnable>();
+    private final List<String[]> mLaunched = new ArrayList<String[]>();
+    private final Set<String> mGranted = new HashSet<String>();
+    private PermissionsRequestQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new PermissionsRequestQueue(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mLoop.add(command);
+            }
+        }, new PermissionsRequestQueue.Launcher() {
+            @Override
+            public void launch(String[] permissions) {
+                mLaunched.add(permissions);
+            }
+        }, new PermissionsRequestQueue.GrantChecker() {
+            @Override
+            public boolean isGranted(String permission) {
+                return mGranted.contains(permission);
+            }
+        });
+    }
+
+    @Test
+    public void burst_batchedIntoOneDialog() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        mQueue.enqueue(new String[]{LOCATION}, first);
+        mQueue.enqueue(new String[]{STORAGE}, second);
+        runLoop();
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(new HashSet<String>(Arrays.asList(LOCATION, STORAGE)),
+                new HashSet<String>(Arrays.asList(mLaunched.get(0))));
+
+        mQueue.onResult(new PermissionsResult(mLaunched.get(0), new boolean[]{true, false}, new boolean[2]));
+        assertEquals(Arrays.asList(LOCATION), first.mResults.get(0).getPermissions());
+        assertTrue(first.mResults.get(0).isAllGranted());
+        assertFalse(second.mResults.get(0).isAllGranted());
+    }
+
+    @Test
+    public void inFlightDuplicate_coalescedAndFannedOut() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        mQueue.enqueue(new String[]{LOCATION}, first);
+        runLoop();
+        mQueue.enqueue(new String[]{LOCATION}, second);
+        runLoop();
+
+        assertEquals(1, mLaunched.size());
+        assertEquals(1, mQueue.getCoalescedCount());
+
+        mQueue.onResult(new PermissionsResult(new String[]{LOCATION}, new boolean[]{true}, new boolean[1]));
+        assertEquals(1, first.mResults.size());
+        assertEquals(1, second.mResults.size());
+        assertTrue(second.mResults.get(0).isGranted(LOCATION));
+    }
+
+    @Test
+    public void differentPermissionWhileInFlight_waitsForNextDialog() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        Recorder third = new Recorder();
+
+        mQueue.enqueue(new String[]{LOCATION}, first);
+        runLoop();
+        mQueue.enqueue(new String[]{CAMERA}, second);
+        mQueue.enqueue(new String[]{LOCATION, STORAGE}, third);
+        runLoop();
+        assertEquals(1, mLaunched.size());
+        assertEquals(2, mQueue.getPendingCount());
+
+        mGranted.add(LOCATION);
+        mQueue.onResult(new PermissionsResult(new String[]{LOCATION}, new boolean[]{true}, new boolean[1]));
+
+        assertEquals(2, mLaunched.size());
+        assertEquals(new HashSet<String>(Arrays.asList(CAMERA, LOCATION, STORAGE)),
+                new HashSet<String>(Arrays.asList(mLaunched.get(1))));
+        assertTrue(second.mResults.isEmpty());
+    }
+
+    @Test
+    public void grantedByPreviousDialog_answeredWithoutLaunch() {
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        mQueue.enqueue(new String[]{LOCATION, STORAGE}, first);
+        runLoop();
+        mQueue.enqueue(new String[]{STORAGE, CAMERA}, second);
+
+        mGranted.add(STORAGE);
+        mGranted.add(CAMERA);
+        mQueue.onResult(new PermissionsResult(new String[]{LOCATION, STORAGE}, new boolean[]{false, true},
+                new boolean[2]));
+
+        assertEquals(1, mLaunched.size());
+        assertTrue(second.mResults.get(0).isAllGranted());
+        assertEquals(1, mQueue.getDialogCount());
+    }
+
+    private void runLoop() {
+        List<Runnable> runnables = new ArrayList<Runnable>(mLoop);
+
+        mLoop.clear();
+        for (Runnable runnable : runnables) {
+            runnable.run();
+        }
+    }
+
+    private static class Recorder implements PermissionsHelper.PermissionsResultListener {
+        final List<PermissionsResult> mResults = new ArrayList<PermissionsResult>();
+
+        @Override
+        public void onPermissionsResult(PermissionsResult result) {
+            mResults.add(result);
+        }
+    }
+}
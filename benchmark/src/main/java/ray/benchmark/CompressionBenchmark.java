@@ -0,0 +1,99 @@
+package ray.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.CompressingOutputStream;
+import ray.library.android.bluetooth.DecompressingInputStream;
+
+/**
+ * CPU cost per block of {@link CompressingOutputStream} / {@link DecompressingInputStream} on
+ * telemetry-like text and on incompressible data (which should cost little more than a copy).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    private final static OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"telemetry", "random"})
+    public String data;
+
+    private CompressingOutputStream mOut;
+    private byte[] mBlock;
+    private byte[] mEncoded;
+    private byte[] mDecoded;
+
+    @Setup
+    public void setup() throws IOException {
+        mBlock = new byte[CompressingOutputStream.DEFAULT_BLOCK_SIZE];
+        if ("random".equals(data)) {
+            new Random(42L).nextBytes(mBlock);
+        } else {
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = 0; builder.length() < mBlock.length; i++) {
+                builder.append("{\"seq\":").append(i).append(",\"rssi\":-").append(40 + i % 30)
+                        .append(",\"battery\":").append(100 - i % 100).append("}\n");
+            }
+            System.arraycopy(builder.toString().getBytes("UTF-8"), 0, mBlock, 0, mBlock.length);
+        }
+        mOut = new CompressingOutputStream(NULL_OUTPUT_STREAM, null, null);
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(encoded, null, null);
+
+        out.write(mBlock);
+        out.flush();
+        mEncoded = encoded.toByteArray();
+        mDecoded = new byte[mBlock.length];
+    }
+
+    /**
+     * random時除了第一次嘗試外都會直接略過壓縮
+     */
+    @Benchmark
+    public void compressBlock() throws IOException {
+        mOut.write(mBlock);
+    }
+
+    @Benchmark
+    public int decompressBlock() throws IOException {
+        DecompressingInputStream in = new DecompressingInputStream(new ByteArrayInputStream(mEncoded), null, null);
+        int off = 0;
+        int n;
+
+        while ((n = in.read(mDecoded, off, mDecoded.length - off)) > 0) {
+            off += n;
+        }
+        in.close();
+        return off;
+    }
+}
@@ -0,0 +1,115 @@
+package ray.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.BTEventBus;
+
+/**
+ * Listener dispatch done by BTManager.BluetoothReceiver#onReceive, which posts every broadcast
+ * through {@link BTEventBus}. The receiver itself needs android.content.Intent and is not run here.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class EventDispatchBenchmark {
+    private final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"0", "1", "4", "16"})
+    public int subscribers;
+
+    private BTEventBus mEventBus;
+    private BTEventBus mExecutorEventBus;
+    private Blackhole mBlackhole;
+    private final BTEventBus.Event<OnStateListener> mStaticEvent = new BTEventBus.Event<OnStateListener>() {
+        @Override
+        public void deliver(OnStateListener listener) {
+            listener.onState(true);
+        }
+    };
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mEventBus = new BTEventBus(DIRECT_EXECUTOR, DIRECT_EXECUTOR);
+        mExecutorEventBus = new BTEventBus(DIRECT_EXECUTOR, DIRECT_EXECUTOR);
+
+        for (int i = 0; i < subscribers; i++) {
+            OnStateListener stateListener = new OnStateListener() {
+                @Override
+                public void onState(boolean enable) {
+                    mBlackhole.consume(enable);
+                }
+            };
+
+            mEventBus.register(OnStateListener.class, stateListener, BTEventBus.THREAD_POSTING);
+            mExecutorEventBus.register(OnStateListener.class, stateListener, DIRECT_EXECUTOR);
+            mEventBus.register(OnFoundListener.class, new OnFoundListener() {
+                @Override
+                public void onFound(String address) {
+                    mBlackhole.consume(address);
+                }
+            }, BTEventBus.THREAD_POSTING);
+        }
+    }
+
+    /**
+     * ex : ACTION_STATE_CHANGED，預先建立的event
+     */
+    @Benchmark
+    public void postStaticEvent() {
+        mEventBus.post(OnStateListener.class, mStaticEvent);
+    }
+
+    /**
+     * ex : ACTION_FOUND，每次建立帶device的event
+     */
+    @Benchmark
+    public void postCapturingEvent() {
+        final String address = "00:11:22:33:44:55";
+
+        mEventBus.post(OnFoundListener.class, new BTEventBus.Event<OnFoundListener>() {
+            @Override
+            public void deliver(OnFoundListener listener) {
+                listener.onFound(address);
+            }
+        });
+    }
+
+    /**
+     * THREAD_MAIN / THREAD_BACKGROUND 的Runnable包裝成本，executor直接在同thread執行
+     */
+    @Benchmark
+    public void postThroughExecutor() {
+        mExecutorEventBus.post(OnStateListener.class, mStaticEvent);
+    }
+
+    public static interface OnStateListener {
+        void onState(boolean enable);
+    }
+
+    public static interface OnFoundListener {
+        void onFound(String address);
+    }
+}
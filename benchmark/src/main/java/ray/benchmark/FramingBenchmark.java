@@ -0,0 +1,122 @@
+package ray.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.BufferPool;
+import ray.library.android.bluetooth.FrameDecoder;
+import ray.library.android.bluetooth.FrameEncoder;
+
+/**
+ * {@link FrameEncoder} / {@link FrameDecoder} with and without CRC, and {@link BufferPool}
+ * compared with allocating a buffer per frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class FramingBenchmark {
+    private final static OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"16", "990", "16384"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean crc;
+
+    private BufferPool mBufferPool;
+    private FrameEncoder mEncoder;
+    private FrameDecoder mDecoder;
+    private byte[] mPayload;
+    private byte[] mEncoded;
+    private int mEncodedLength;
+    private ByteBuffer mEncodeBuffer;
+    private Blackhole mBlackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mBufferPool = new BufferPool();
+        mEncoder = new FrameEncoder(mBufferPool, crc);
+        mDecoder = new FrameDecoder(mBufferPool, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH, crc,
+                new FrameDecoder.OnFrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer frame) {
+                        mBlackhole.consume(frame.remaining());
+                    }
+                });
+        mPayload = new byte[payloadSize];
+        new Random(42L).nextBytes(mPayload);
+        mEncodeBuffer = ByteBuffer.allocate(mEncoder.encodedLength(payloadSize));
+        mEncodedLength = mEncoder.encode(mPayload, 0, payloadSize, mEncodeBuffer);
+        mEncoded = mEncodeBuffer.array();
+    }
+
+    @Benchmark
+    public int encodeToBuffer() {
+        mEncodeBuffer.clear();
+        return mEncoder.encode(mPayload, 0, payloadSize, mEncodeBuffer);
+    }
+
+    /**
+     * 使用pool的暫存buffer，單次write
+     */
+    @Benchmark
+    public void encodeToStream() throws IOException {
+        mEncoder.encode(mPayload, 0, payloadSize, NULL_OUTPUT_STREAM);
+    }
+
+    @Benchmark
+    public void decode() throws IOException {
+        mDecoder.decode(mEncoded, 0, mEncodedLength);
+    }
+
+    /**
+     * 每次一個byte，模擬資料被切碎到達
+     */
+    @Benchmark
+    public void decodeByteAtATime() throws IOException {
+        for (int i = 0; i < mEncodedLength; i++) {
+            mDecoder.decode(mEncoded, i, 1);
+        }
+    }
+
+    @Benchmark
+    public void pooledBuffer() {
+        ByteBuffer buffer = mBufferPool.acquire(payloadSize);
+
+        mBlackhole.consume(buffer);
+        mBufferPool.release(buffer);
+    }
+
+    @Benchmark
+    public ByteBuffer allocatedBuffer() {
+        return ByteBuffer.allocate(payloadSize);
+    }
+}
@@ -0,0 +1,117 @@
+package ray.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.bluetooth.CoalescingOutputStream;
+import ray.library.android.bluetooth.transport.LoopbackTransport;
+import ray.library.android.bluetooth.transport.TransportServerSocket;
+import ray.library.android.bluetooth.transport.TransportSocket;
+
+/**
+ * Write then read back one chunk over an unshaped {@link LoopbackTransport} pipe on a single thread,
+ * measures the stream overhead without radio or scheduling noise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class LoopbackStreamBenchmark {
+    private final static UUID SERVICE = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    @Param({"1", "64", "990", "8192"})
+    public int chunkSize;
+
+    private TransportServerSocket mServerSocket;
+    private TransportSocket mClient;
+    private TransportSocket mServer;
+    private OutputStream mOutputStream;
+    private CoalescingOutputStream mCoalescingOutputStream;
+    private InputStream mInputStream;
+    private byte[] mWriteBuffer;
+    private byte[] mReadBuffer;
+
+    @Setup
+    public void setup() throws IOException {
+        LoopbackTransport transport = new LoopbackTransport();
+
+        mServerSocket = transport.listen("benchmark", SERVICE);
+        mClient = transport.createSocket(LoopbackTransport.LOOPBACK_ADDRESS, SERVICE);
+        mClient.connect();
+        mServer = mServerSocket.accept();
+        mOutputStream = mClient.getOutputStream();
+        // 只由flush()送出，避免timer thread干擾量測
+        mCoalescingOutputStream = new CoalescingOutputStream(mOutputStream,
+                CoalescingOutputStream.DEFAULT_BATCH_SIZE, 0L, null);
+        mInputStream = mServer.getInputStream();
+        mWriteBuffer = new byte[chunkSize];
+        mReadBuffer = new byte[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mClient.close();
+        mServer.close();
+        mServerSocket.close();
+    }
+
+    @Benchmark
+    public int writeRead() throws IOException {
+        mOutputStream.write(mWriteBuffer, 0, chunkSize);
+        mOutputStream.flush();
+        return readFully();
+    }
+
+    /**
+     * 以byte為單位寫入，比較CoalescingOutputStream合併寫入的效果
+     */
+    @Benchmark
+    public int writeBytesRead() throws IOException {
+        for (int i = 0; i < chunkSize; i++) {
+            mOutputStream.write(mWriteBuffer[i]);
+        }
+        mOutputStream.flush();
+        return readFully();
+    }
+
+    @Benchmark
+    public int coalescedWriteBytesRead() throws IOException {
+        for (int i = 0; i < chunkSize; i++) {
+            mCoalescingOutputStream.write(mWriteBuffer[i]);
+        }
+        mCoalescingOutputStream.flush();
+        return readFully();
+    }
+
+    private int readFully() throws IOException {
+        int total = 0;
+
+        while (total < chunkSize) {
+            int n = mInputStream.read(mReadBuffer, total, chunkSize - total);
+
+            if (n == -1) {
+                throw new IOException("EOF");
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+package ray.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ray.library.android.common.RayLog;
+import ray.library.android.common.RayUtility;
+
+/**
+ * {@link RayUtility#getCurrentClassSimpleName()} walks the stack on each call, compared with
+ * {@link RayLog#tag(Class)} and the constant tag pattern used by BTManager, plus the cost of
+ * a disabled log call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class RayUtilityBenchmark {
+    private static String TAG = RayUtilityBenchmark.class.getSimpleName();
+
+    @Benchmark
+    public String getCurrentClassSimpleName() {
+        return RayUtility.getCurrentClassSimpleName();
+    }
+
+    @Benchmark
+    public String staticTag() {
+        return TAG;
+    }
+
+    @Benchmark
+    public String getSimpleName() {
+        return getClass().getSimpleName();
+    }
+
+    @Benchmark
+    public String rayLogTag() {
+        return RayLog.tag(RayUtilityBenchmark.class);
+    }
+
+    /**
+     * DEBUG低於預設level，不應組成字串
+     */
+    @Benchmark
+    public void disabledDebugLog() {
+        RayLog.d(TAG, "address=", TAG);
+    }
+}